@@ -0,0 +1,78 @@
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.Sha256Hasher;
+import com.google.bitcoin.core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares double SHA-256 through {@link Utils#doubleDigest(byte[])}, which uses the per-thread engines of
+ * {@link Sha256Hasher}, with a single engine shared behind a lock as Utils used to do. The pooled throughput should
+ * grow with the number of cores while the locked one does not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashingBenchmark {
+    // About the size of a transaction.
+    @Param({ "250" })
+    public int size;
+
+    private byte[] input;
+    private MessageDigest sharedDigest;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        input = new byte[size];
+        for (int i = 0; i < size; i++)
+            input[i] = (byte) i;
+        sharedDigest = MessageDigest.getInstance("SHA-256");
+    }
+
+    private byte[] lockedDoubleDigest() {
+        synchronized (sharedDigest) {
+            sharedDigest.reset();
+            sharedDigest.update(input, 0, input.length);
+            return sharedDigest.digest(sharedDigest.digest());
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] pooledOneThread() {
+        return Utils.doubleDigest(input);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] pooledAllCores() {
+        return Utils.doubleDigest(input);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] lockedOneThread() {
+        return lockedDoubleDigest();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] lockedAllCores() {
+        return lockedDoubleDigest();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] incrementalAllCores() {
+        Sha256Hasher hasher = Sha256Hasher.newHasher();
+        hasher.write(input, 0, input.length / 2);
+        hasher.write(input, input.length / 2, input.length - input.length / 2);
+        return hasher.doubleDigest();
+    }
+}
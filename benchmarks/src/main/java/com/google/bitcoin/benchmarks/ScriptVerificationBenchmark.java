@@ -0,0 +1,50 @@
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the spend of a pay-to-address output, which is what most of the work of checking a block comes down to.
+ * The interpreted variant has an extra push in front of the signature, so the scripts are run rather than matched
+ * against the template. Both include the signature check itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptVerificationBenchmark {
+    private Transaction tx;
+    private Script scriptPubKey, scriptSig, interpretedScriptSig;
+
+    @Setup
+    public void setUp() {
+        NetworkParameters params = UnitTestParams.get();
+        ECKey key = new ECKey();
+        tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Utils.COIN, new ECKey().toAddress(params));
+        scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(params));
+        TransactionSignature sig = tx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        scriptSig = ScriptBuilder.createInputScript(sig, key);
+        interpretedScriptSig = new ScriptBuilder().smallNum(1).data(sig.encodeToBitcoin()).data(key.getPubKey()).build();
+    }
+
+    @Benchmark
+    public void payToAddress() throws ScriptException {
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, true);
+    }
+
+    @Benchmark
+    public void payToAddressInterpreted() throws ScriptException {
+        interpretedScriptSig.correctlySpends(tx, 0, scriptPubKey, true);
+    }
+}
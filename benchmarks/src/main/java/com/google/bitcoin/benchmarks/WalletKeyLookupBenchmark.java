@@ -0,0 +1,90 @@
+package com.google.bitcoin.benchmarks;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up keys in a wallet with as many keys as a mining node collects over a few months, one per coinbase. The
+ * lookups are what {@link TransactionOutput#isMine(Wallet)} does for every output of every transaction seen, so their
+ * cost should not depend on the number of keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletKeyLookupBenchmark {
+    @Param({ "100000" })
+    public int keys;
+
+    private static final int LOOKUPS = 1024;
+
+    private Wallet wallet;
+    private byte[][] pubKeys, pubKeyHashes, missingHashes;
+    private TransactionOutput[] outputs;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        NetworkParameters params = UnitTestParams.get();
+        wallet = new Wallet(params);
+        // Lookups only look at the public key bytes, so random ones will do and save deriving 100k points.
+        Random random = new Random(1);
+        List<ECKey> keyList = new ArrayList<ECKey>(keys + LOOKUPS);
+        for (int i = 0; i < keys + LOOKUPS; i++) {
+            byte[] pubKey = new byte[33];
+            random.nextBytes(pubKey);
+            pubKey[0] = 2;
+            keyList.add(new ECKey(null, pubKey));
+        }
+        // The last few are left out of the wallet to look up keys which aren't there.
+        wallet.addKeys(keyList.subList(0, keys));
+
+        pubKeys = new byte[LOOKUPS][];
+        pubKeyHashes = new byte[LOOKUPS][];
+        missingHashes = new byte[LOOKUPS][];
+        outputs = new TransactionOutput[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            ECKey key = keyList.get((int) ((long) i * keys / LOOKUPS));
+            pubKeys[i] = key.getPubKey();
+            pubKeyHashes[i] = key.getPubKeyHash();
+            missingHashes[i] = keyList.get(keys + i).getPubKeyHash();
+            outputs[i] = new TransactionOutput(params, null, BigInteger.ONE, key.toAddress(params));
+        }
+    }
+
+    private int next() {
+        return next = (next + 1) & (LOOKUPS - 1);
+    }
+
+    @Benchmark
+    public ECKey findKeyFromPubHash() {
+        return wallet.findKeyFromPubHash(pubKeyHashes[next()]);
+    }
+
+    @Benchmark
+    public ECKey findMissingKeyFromPubHash() {
+        return wallet.findKeyFromPubHash(missingHashes[next()]);
+    }
+
+    @Benchmark
+    public boolean isPubKeyMine() {
+        return wallet.isPubKeyMine(pubKeys[next()]);
+    }
+
+    @Benchmark
+    public boolean outputIsMine() {
+        return outputs[next()].isMine(wallet);
+    }
+}
@@ -21,6 +21,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -98,6 +99,8 @@ public abstract class AbstractBlockChain {
 
     /** Keeps a map of block hashes to StoredBlocks. */
     private final BlockStore blockStore;
+    // The best chain by height, for finding ancestors without walking back through the store.
+    private final ChainIndex chainIndex;
 
     /**
      * Tracks the top of the best known chain.<p>
@@ -124,6 +127,8 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Serialized size of what's kept, counted against maxOrphanBytes.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -134,11 +139,30 @@ public abstract class AbstractBlockChain {
                 this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = this.block.bitcoinSerialize().length;
+            if (filteredTxHashes != null)
+                size += filteredTxHashes.size() * 32;
+            if (filteredTxn != null) {
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.bitcoinSerialize().length;
+            }
+            this.size = size;
         }
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. In the order they arrived, which is the order they're evicted in when there
+    // are too many.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    // The same blocks by the hash of the block they're waiting for, so that once a block connects its orphans can be
+    // found without looking at all of them.
+    private final Map<Sha256Hash, List<OrphanBlock>> orphanBlocksByPrev = new HashMap<Sha256Hash, List<OrphanBlock>>();
+    private long orphanBytes;
+    /** How many orphan blocks are kept by default, see {@link #setOrphanLimits(int, long)}. */
+    public static final int DEFAULT_MAX_ORPHAN_BLOCKS = 1000;
+    /** How many bytes of orphan blocks are kept by default, see {@link #setOrphanLimits(int, long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BYTES = 64 * 1000 * 1000;
+    private int maxOrphanBlocks = DEFAULT_MAX_ORPHAN_BLOCKS;
+    private long maxOrphanBytes = DEFAULT_MAX_ORPHAN_BYTES;
 
     private final Map<Sha256Hash, Block> headersWaitingForItsTransactions = new HashMap<Sha256Hash, Block>();
 
@@ -162,6 +186,7 @@ public abstract class AbstractBlockChain {
     public AbstractBlockChain(NetworkParameters params, List<BlockChainListener> listeners,
                               BlockStore blockStore) throws BlockStoreException {
         this.blockStore = blockStore;
+        this.chainIndex = new ChainIndex(blockStore);
         chainHead = blockStore.getChainHead();
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = params;
@@ -479,7 +504,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -491,7 +516,7 @@ public abstract class AbstractBlockChain {
             headersWaitingForItsTransactions.remove(block.getHash());
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             statsBlocksAdded++;
             return true;
@@ -564,7 +589,7 @@ public abstract class AbstractBlockChain {
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = findSplit(newBlock, head);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
@@ -713,7 +738,7 @@ public abstract class AbstractBlockChain {
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint = findSplit(newChainHead, head);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", head.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
@@ -806,26 +831,44 @@ public abstract class AbstractBlockChain {
      * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
      * but are part of the same chain.
      */
-    private static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
-                                         BlockStore store) throws BlockStoreException {
-        StoredBlock currentChainCursor = oldChainHead;
-        StoredBlock newChainCursor = newChainHead;
-        // Loop until we find the block both chains have in common. Example:
+    private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead) throws BlockStoreException {
+        // Find the block both chains have in common. Example:
         //
         //    A -> B -> C -> D
         //         \--> E -> F -> G
         //
-        // findSplit will return block B. oldChainHead = D and newChainHead = G.
-        while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
-            }
-        }
-        return currentChainCursor;
+        // findSplit will return block B. oldChainHead = D and newChainHead = G. Only the blocks off the best chain
+        // are walked back through, the index knows where they join it.
+        return chainIndex.findSplit(newChainHead, oldChainHead);
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, or the block itself if the height is its own. For
+     * blocks on or near the best chain this reads at most one block from the store, however far back the height is.
+     *
+     * @return the ancestor, or null if the chain below the block runs off the blocks in the store.
+     * @throws IllegalArgumentException if the height is negative or above the block.
+     */
+    @Nullable
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        return chainIndex.getAncestor(block, height);
+    }
+
+    /**
+     * Returns the hash of the ancestor of the given block at the given height, as
+     * {@link #getAncestor(StoredBlock, int)} does, without reading the ancestor itself from the store.
+     */
+    @Nullable
+    public Sha256Hash getAncestorHash(StoredBlock block, int height) throws BlockStoreException {
+        return chainIndex.getAncestorHash(block, height);
+    }
+
+    /**
+     * Returns a block locator for the chain ending in the given block, for getblocks and getheaders messages: the
+     * most recent blocks, then blocks further and further apart, and the genesis block last.
+     */
+    public List<Sha256Hash> getBlockLocator(StoredBlock head) throws BlockStoreException {
+        return chainIndex.getLocator(head);
     }
 
     /**
@@ -867,46 +910,122 @@ public abstract class AbstractBlockChain {
 
     protected void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         doSetChainHead(chainHead);
+        chainIndex.setChainHead(chainHead);
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks which were waiting for the given block, then the ones waiting for those and so on,
+     * so every orphan is connected after its parent and only orphans which can now connect are looked at.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
+        if (orphanBlocks.isEmpty())
+            return;
+        int blocksConnected = 0;
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(connected);
+        while (!parents.isEmpty()) {
+            List<OrphanBlock> children = orphanBlocksByPrev.get(parents.poll());
+            if (children == null)
+                continue;
+            // Copied, as connecting a child removes it from the list.
+            for (OrphanBlock orphanBlock : new ArrayList<OrphanBlock>(children)) {
                 log.debug("Trying to connect {}", orphanBlock.block.getHash());
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
+                if (getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash()) == null) {
+                    // The parent connected but is out of scope, as can happen with a pruned store.
                     log.debug("  but it is not connectable right now");
                     continue;
                 }
-                // Otherwise we can connect it now.
+                // Removed first, so that a block which fails to verify isn't tried again.
+                removeOrphan(orphanBlock);
                 // False here ensures we don't recurse infinitely downwards when connecting huge chains.
                 add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+    }
+
+    private void addOrphan(OrphanBlock orphanBlock) {
+        checkState(lock.isHeldByCurrentThread());
+        Sha256Hash hash = orphanBlock.block.getHash();
+        OrphanBlock previous = orphanBlocks.get(hash);
+        if (previous != null)
+            removeOrphan(previous);
+        orphanBlocks.put(hash, orphanBlock);
+        List<OrphanBlock> siblings = orphanBlocksByPrev.get(orphanBlock.block.getPrevBlockHash());
+        if (siblings == null) {
+            siblings = new ArrayList<OrphanBlock>(1);
+            orphanBlocksByPrev.put(orphanBlock.block.getPrevBlockHash(), siblings);
+        }
+        siblings.add(orphanBlock);
+        orphanBytes += orphanBlock.size;
+        evictOrphans(hash);
+    }
+
+    private void removeOrphan(OrphanBlock orphanBlock) {
+        Sha256Hash hash = orphanBlock.block.getHash();
+        orphanBlocks.remove(hash);
+        List<OrphanBlock> siblings = orphanBlocksByPrev.get(orphanBlock.block.getPrevBlockHash());
+        if (siblings != null) {
+            siblings.remove(orphanBlock);
+            if (siblings.isEmpty())
+                orphanBlocksByPrev.remove(orphanBlock.block.getPrevBlockHash());
+        }
+        orphanBytes -= orphanBlock.size;
+    }
+
+    // Drops the oldest orphans until the pool is within its limits again, keeping the given one which just arrived
+    // so that its callers can still look it up. If an evicted block is needed after all, its descendants are still
+    // here and getOrphanRoot leads to it being downloaded again.
+    private void evictOrphans(Sha256Hash keep) {
+        Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
+        while ((orphanBlocks.size() > maxOrphanBlocks || orphanBytes > maxOrphanBytes) && iter.hasNext()) {
+            OrphanBlock oldest = iter.next();
+            if (oldest.block.getHash().equals(keep))
+                continue;
+            log.info("Too many orphan blocks, dropping {}", oldest.block.getHash());
+            iter.remove();
+            // Done by hand as the iterator has already taken it out of orphanBlocks.
+            List<OrphanBlock> siblings = orphanBlocksByPrev.get(oldest.block.getPrevBlockHash());
+            siblings.remove(oldest);
+            if (siblings.isEmpty())
+                orphanBlocksByPrev.remove(oldest.block.getPrevBlockHash());
+            orphanBytes -= oldest.size;
+        }
+    }
+
+    /**
+     * Sets how many orphan blocks are kept, and how many bytes they may take up, before the oldest are dropped. The
+     * most recent orphan is always kept. Defaults to {@link #DEFAULT_MAX_ORPHAN_BLOCKS} and
+     * {@link #DEFAULT_MAX_ORPHAN_BYTES}.
+     */
+    public void setOrphanLimits(int maxBlocks, long maxBytes) {
+        Preconditions.checkArgument(maxBlocks > 0 && maxBytes > 0);
+        lock.lock();
+        try {
+            maxOrphanBlocks = maxBlocks;
+            maxOrphanBytes = maxBytes;
+            evictOrphans(null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of orphan blocks being kept. */
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     // February 16th 2012
@@ -938,17 +1057,14 @@ public abstract class AbstractBlockChain {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // We need to find a block far back in the chain. The index finds it without walking back through the store,
+        // except the first time, when the index is filled in that far down.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.getInterval() - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        StoredBlock cursor = chainIndex.getAncestor(storedPrev, storedPrev.getHeight() - (params.getInterval() - 1));
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
@@ -74,6 +74,9 @@ public class BitcoinSerializer {
         names.put(PushHeader.class, "pushheader");
         names.put(PushHeaderAck.class, "pheaderack");
         names.put(PushTransactionList.class, "pushtxlist");
+        names.put(CompactTransactionList.class, "cmpctxlist");
+        names.put(GetBlockTransactions.class, "getblocktxn");
+        names.put(BlockTransactions.class, "blocktxn");
     }
 
     /**
@@ -133,6 +136,20 @@ public class BitcoinSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Serializes the message once into a {@link SerializedMessage} that can then be written to many peers.
+     */
+    public SerializedMessage serialize(Message message) throws IOException {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        byte[] payload = message.bitcoinSerialize();
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream(4 + COMMAND_LEN + 4 + 4 + payload.length);
+        serialize(name, payload, out);
+        return new SerializedMessage(message, out.toByteArray());
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -243,6 +260,12 @@ public class BitcoinSerializer {
             return new PushHeaderAck(params, payloadBytes);
         } else if (command.equals("pushtxlist")) {
             return new PushTransactionList(params, payloadBytes);
+        } else if (command.equals("cmpctxlist")) {
+            return new CompactTransactionList(params, payloadBytes);
+        } else if (command.equals("getblocktxn")) {
+            return new GetBlockTransactions(params, payloadBytes);
+        } else if (command.equals("blocktxn")) {
+            return new BlockTransactions(params, payloadBytes);
         } else {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(params, command, payloadBytes);
@@ -35,7 +35,6 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 
-import static com.google.bitcoin.core.Utils.doubleDigest;
 import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
 
 /**
@@ -523,9 +522,9 @@ public class Block extends Message {
      */
     private Sha256Hash calculateHash() {
         try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            Sha256Hasher hasher = Sha256Hasher.newHasher();
+            writeHeader(hasher);
+            return new Sha256Hash(Utils.reverseBytes(hasher.doubleDigest()));
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Represents the "blocktxn" P2P network message, the answer to a {@link GetBlockTransactions} message. It
+ * contains the requested transactions of a block in the order they were requested.</p>
+ */
+public class BlockTransactions extends Message {
+
+    private static final long serialVersionUID = 4426331961962163538L;
+
+    private Sha256Hash blockHash;
+    private List<Transaction> transactions;
+
+    public BlockTransactions(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    public BlockTransactions(NetworkParameters params, Sha256Hash blockHash, List<Transaction> transactions) {
+        super(params);
+        this.blockHash = blockHash;
+        this.transactions = new ArrayList<Transaction>(transactions);
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    @Override
+    public Sha256Hash getHash() {
+        return blockHash;
+    }
+
+    public List<Transaction> getTransactions() {
+        return Collections.unmodifiableList(transactions);
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        cursor = offset;
+        blockHash = readHash();
+        long count = readVarInt();
+        if (count > PushTransactionList.MAX_ITEMS)
+            throw new ProtocolException("Too many items in blocktxn message: " + count);
+        transactions = new ArrayList<Transaction>((int) count);
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction(params, bytes, cursor, this, parseLazy, parseRetain, UNKNOWN_LENGTH);
+            // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            cursor += tx.getMessageSize();
+            transactions.add(tx);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(Utils.reverseBytes(blockHash.getBytes()));
+        stream.write(new VarInt(transactions.size()).encode());
+        for (Transaction tx : transactions)
+            tx.bitcoinSerialize(stream);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockTransactions [blockHash=" + blockHash + ", transactions=" + transactions.size() + "]";
+    }
+}
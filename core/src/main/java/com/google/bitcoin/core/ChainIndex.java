@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>The hashes of the best chain by height, so that finding the ancestor of a block at some height doesn't mean
+ * walking back one {@link BlockStore#get(Sha256Hash)} at a time. For a block on the best chain, or one a few blocks
+ * off it, the ancestor at any height costs at most one store read. On the SQL stores every read is a query, and a
+ * difficulty retarget alone looks {@link NetworkParameters#getInterval()} blocks back.</p>
+ *
+ * <p>The stores keep no pointers to ancestors, so instead of skip pointers the index is kept in memory. It is filled
+ * in backwards lazily, as far down as has been asked for, and each block is read from the store at most once to do
+ * so. {@link #setChainHead(StoredBlock)} keeps it following the best chain: a new block costs nothing, a
+ * re-organize costs a read per block replaced.</p>
+ *
+ * <p>Whatever the chain head, the entries filled in always form one chain, each the parent of the one
+ * above, so answers stay right even when the index lags behind a re-organize; they only cost more reads.</p>
+ */
+class ChainIndex {
+    // Recently used blocks, so walking the same few blocks off the best chain again doesn't read them again.
+    private static final int CACHE_SIZE = 1000;
+
+    private final ReentrantLock lock = Threading.lock("ChainIndex");
+    private final BlockStore store;
+    // Hashes by height. Heights below lowest haven't been filled in yet and are null.
+    @GuardedBy("lock") private final ArrayList<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+    @GuardedBy("lock") private int lowest;
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, StoredBlock> cache =
+            new LinkedHashMap<Sha256Hash, StoredBlock>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    ChainIndex(BlockStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Makes the index follow the chain ending in the given block, replacing the entries of the old chain down to the
+     * point where the two meet.
+     */
+    void setChainHead(StoredBlock head) throws BlockStoreException {
+        lock.lock();
+        try {
+            int height = head.getHeight();
+            if (hashes.isEmpty() || lowest > height)
+                lowest = height;
+            while (hashes.size() > height + 1)
+                hashes.remove(hashes.size() - 1);
+            while (hashes.size() < height + 1)
+                hashes.add(null);
+            StoredBlock cursor = head;
+            while (true) {
+                int h = cursor.getHeight();
+                Sha256Hash hash = cursor.getHeader().getHash();
+                if (h >= lowest && hash.equals(hashes.get(h)))
+                    break;  // Joined the chain already in the index.
+                hashes.set(h, hash);
+                cache.put(hash, cursor);
+                if (h <= lowest)
+                    break;  // Nothing further down is known yet, it's filled in when somebody asks for it.
+                cursor = get(cursor.getHeader().getPrevBlockHash());
+                if (cursor == null) {
+                    // The chain below isn't in the store, nothing below this block can be answered from the index.
+                    lowest = h;
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, the block itself if the height is its own, or null
+     * if the chain below the block isn't in the store.
+     */
+    @Nullable
+    StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            Sha256Hash hash = getAncestorHash(block, height);
+            return hash == null ? null : get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the hash of the ancestor of the given block at the given height, as {@link #getAncestor(StoredBlock, int)}
+     * does but without reading the ancestor itself from the store.
+     */
+    @Nullable
+    Sha256Hash getAncestorHash(StoredBlock block, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= block.getHeight(), "Height %s is not below the block", height);
+        lock.lock();
+        try {
+            if (hashes.isEmpty())
+                setChainHead(block);
+            StoredBlock cursor = block;
+            // Walk back until the block is found on the indexed chain, or the height is reached off it.
+            while (!isIndexed(cursor)) {
+                if (cursor.getHeight() == height)
+                    return cursor.getHeader().getHash();
+                cursor = get(cursor.getHeader().getPrevBlockHash());
+                if (cursor == null)
+                    return null;
+            }
+            if (!fillDownTo(height))
+                return null;
+            return hashes.get(height);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the last block two chains have in common, which may be one of the two heads if one chain extends the
+     * other.
+     *
+     * @throws NullPointerException if either chain runs off the blocks in the store before meeting the other.
+     */
+    StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            if (hashes.isEmpty())
+                setChainHead(oldChainHead);
+            StoredBlock newCursor = newChainHead, oldCursor = oldChainHead;
+            // Walk each chain back until it meets the other, or both reach the indexed chain. Below that point the
+            // two chains are the same, so the lower of the two is where they meet.
+            while (!newCursor.equals(oldCursor)) {
+                boolean newIndexed = isIndexed(newCursor), oldIndexed = isIndexed(oldCursor);
+                if (newIndexed && oldIndexed)
+                    return newCursor.getHeight() <= oldCursor.getHeight() ? newCursor : oldCursor;
+                if (!oldIndexed && (newIndexed || oldCursor.getHeight() > newCursor.getHeight())) {
+                    oldCursor = get(oldCursor.getHeader().getPrevBlockHash());
+                    checkNotNull(oldCursor, "Attempt to follow an orphan chain");
+                } else {
+                    newCursor = get(newCursor.getHeader().getPrevBlockHash());
+                    checkNotNull(newCursor, "Attempt to follow an orphan chain");
+                }
+            }
+            return newCursor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a block locator for the chain ending in the given block, as described at
+     * https://en.bitcoin.it/wiki/Protocol_specification#getblocks: the ten most recent blocks, then back in steps
+     * doubling in size, then the genesis block.
+     */
+    List<Sha256Hash> getLocator(StoredBlock head) throws BlockStoreException {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(32);
+        int step = 1;
+        for (int height = head.getHeight(); height > 0; height -= step) {
+            Sha256Hash hash = getAncestorHash(head, height);
+            if (hash == null)
+                return locator;
+            locator.add(hash);
+            if (locator.size() >= 10)
+                step *= 2;
+        }
+        Sha256Hash genesis = getAncestorHash(head, 0);
+        if (genesis != null)
+            locator.add(genesis);
+        return locator;
+    }
+
+    @GuardedBy("lock")
+    private boolean isIndexed(StoredBlock block) throws BlockStoreException {
+        int height = block.getHeight();
+        if (height >= hashes.size())
+            return false;
+        if (height < lowest && !fillDownTo(height))
+            return false;
+        return block.getHeader().getHash().equals(hashes.get(height));
+    }
+
+    // Fills in the index down to the given height, returning false if the chain runs off the blocks in the store.
+    @GuardedBy("lock")
+    private boolean fillDownTo(int height) throws BlockStoreException {
+        if (lowest <= height)
+            return true;
+        StoredBlock cursor = get(hashes.get(lowest));
+        while (lowest > height) {
+            if (cursor == null)
+                return false;
+            // Not cached on the way, or filling in a long way down would push everything else out of the cache.
+            cursor = get(cursor.getHeader().getPrevBlockHash(), false);
+            if (cursor == null)
+                return false;
+            lowest--;
+            hashes.set(lowest, cursor.getHeader().getHash());
+        }
+        return true;
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean cacheIt) throws BlockStoreException {
+        StoredBlock block = cache.get(hash);
+        if (block == null) {
+            block = store.get(hash);
+            if (block != null && cacheIt)
+                cache.put(hash, block);
+        }
+        return block;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Represents the "cmpctxlist" P2P network message, a compact version of {@link PushTransactionList}. Instead of
+ * the full hash of every transaction in the block it carries a 6 byte short id per transaction, plus a few
+ * prefilled transactions the receiver is not expected to have (at least the coinbase).</p>
+ *
+ * <p>Short ids are the lower 48 bits of SipHash-2-4 of the transaction hash, keyed with the first 16 bytes of the
+ * SHA-256 of the block header followed by a random nonce chosen by the sender. The salt makes it impossible to
+ * precompute colliding transactions for every block. The receiver matches short ids against its
+ * {@link MemoryPool} and asks for any missing transaction with a {@link GetBlockTransactions} message.</p>
+ */
+public class CompactTransactionList extends Message {
+
+    private static final long serialVersionUID = 2890254173361927734L;
+
+    /** Number of bytes of a short transaction id on the wire. */
+    public static final int SHORT_ID_LENGTH = 6;
+    private static final long SHORT_ID_MASK = 0xffffffffffffL;
+
+    private Sha256Hash blockHash;
+    private long nonce;
+    private long[] shortIds;
+    // Index in the block -> transaction.
+    private SortedMap<Integer, Transaction> prefilledTransactions;
+
+    public CompactTransactionList(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    /**
+     * Builds the message for the given block, prefilling the coinbase transaction. As in any valid block, the first
+     * transaction must be the coinbase and no other may be one.
+     * @param nonce The salt used to compute the short ids, should be random for every message.
+     */
+    public CompactTransactionList(NetworkParameters params, Block block, long nonce) {
+        super(params);
+        List<Transaction> transactions = block.getTransactions();
+        checkArgument(!transactions.isEmpty() && transactions.get(0).isCoinBase(),
+                "Block %s does not start with a coinbase transaction", block.getHash());
+        this.blockHash = block.getHash();
+        this.nonce = nonce;
+        this.prefilledTransactions = new TreeMap<Integer, Transaction>();
+        prefilledTransactions.put(0, transactions.get(0));
+        this.shortIds = new long[transactions.size() - 1];
+        HashFunction hashFunction = shortIdHashFunction(block, nonce);
+        for (int i = 1; i < transactions.size(); i++) {
+            Transaction tx = transactions.get(i);
+            checkArgument(!tx.isCoinBase(), "Block %s has more than one coinbase transaction", block.getHash());
+            shortIds[i - 1] = shortId(hashFunction, tx.getHash());
+        }
+    }
+
+    /**
+     * Returns the hash function used to compute the short ids of the given block's transactions for the given nonce.
+     */
+    public static HashFunction shortIdHashFunction(Block header, long nonce) {
+        ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(Block.HEADER_SIZE + 8);
+        try {
+            header.writeHeader(stream);
+            Utils.int64ToByteStreamLE(nonce, stream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        byte[] key = Sha256Hash.create(stream.toByteArray()).getBytes();
+        return Hashing.sipHash24(Utils.readInt64(key, 0), Utils.readInt64(key, 8));
+    }
+
+    /** Returns the 48 bit short id of the transaction with the given hash. */
+    public static long shortId(HashFunction hashFunction, Sha256Hash txHash) {
+        return hashFunction.hashBytes(txHash.getBytes()).asLong() & SHORT_ID_MASK;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    @Override
+    public Sha256Hash getHash() {
+        return blockHash;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** Returns the short ids of the transactions that are not prefilled, in block order. */
+    public long[] getShortIds() {
+        return shortIds;
+    }
+
+    /** Returns the prefilled transactions keyed by their index in the block. */
+    public SortedMap<Integer, Transaction> getPrefilledTransactions() {
+        return Collections.unmodifiableSortedMap(prefilledTransactions);
+    }
+
+    /** Returns the number of transactions in the block. */
+    public int getTransactionCount() {
+        return shortIds.length + prefilledTransactions.size();
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        cursor = offset;
+        blockHash = readHash();
+        nonce = readInt64();
+        long shortIdCount = readVarInt();
+        if (shortIdCount > PushTransactionList.MAX_ITEMS)
+            throw new ProtocolException("Too many short ids in cmpctxlist message: " + shortIdCount);
+        shortIds = new long[(int) shortIdCount];
+        for (int i = 0; i < shortIdCount; i++) {
+            byte[] id = readBytes(SHORT_ID_LENGTH);
+            long shortId = 0;
+            for (int j = SHORT_ID_LENGTH - 1; j >= 0; j--)
+                shortId = (shortId << 8) | (id[j] & 0xFFL);
+            shortIds[i] = shortId;
+        }
+        long prefilledCount = readVarInt();
+        if (shortIdCount + prefilledCount > PushTransactionList.MAX_ITEMS)
+            throw new ProtocolException("Too many items in cmpctxlist message: " + (shortIdCount + prefilledCount));
+        prefilledTransactions = new TreeMap<Integer, Transaction>();
+        int index = -1;
+        for (int i = 0; i < prefilledCount; i++) {
+            // Indexes are differentially encoded, each one relative to the previous one plus one. The delta is
+            // unsigned on the wire, so one too big for a long reads as negative.
+            long delta = readVarInt();
+            if (delta < 0 || delta >= shortIdCount + prefilledCount - index - 1)
+                throw new ProtocolException("Prefilled transaction index out of range in cmpctxlist: " +
+                        (index + delta + 1));
+            index += (int) delta + 1;
+            Transaction tx = new Transaction(params, bytes, cursor, this, parseLazy, parseRetain, UNKNOWN_LENGTH);
+            // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
+            tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+            cursor += tx.getMessageSize();
+            prefilledTransactions.put(index, tx);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(Utils.reverseBytes(blockHash.getBytes()));
+        Utils.int64ToByteStreamLE(nonce, stream);
+        stream.write(new VarInt(shortIds.length).encode());
+        for (long shortId : shortIds) {
+            for (int j = 0; j < SHORT_ID_LENGTH; j++)
+                stream.write((int) (0xFF & (shortId >> (8 * j))));
+        }
+        stream.write(new VarInt(prefilledTransactions.size()).encode());
+        int previousIndex = -1;
+        for (Map.Entry<Integer, Transaction> entry : prefilledTransactions.entrySet()) {
+            stream.write(new VarInt(entry.getKey() - previousIndex - 1).encode());
+            entry.getValue().bitcoinSerialize(stream);
+            previousIndex = entry.getKey();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompactTransactionList [blockHash=" + blockHash + ", shortIds=" + shortIds.length
+                + ", prefilledTransactions=" + prefilledTransactions.size() + "]";
+    }
+}
@@ -0,0 +1,135 @@
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.hash.HashFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Rebuilds the transaction list of a block announced with a {@link CompactTransactionList}. The short ids are
+ * matched against the {@link MemoryPool} through an index of the pool keyed by short id (short ids are salted per
+ * message, so the index is built for each message). Transactions that are not in the pool, or whose short id matches
+ * more than one pool transaction, are left missing and have to be fetched from the sending peer with a
+ * {@link GetBlockTransactions} message built from {@link #getMissingIndexes()}.</p>
+ *
+ * <p>Instances are not thread safe.</p>
+ */
+public class CompactTransactionListReconstructor {
+    private final Block header;
+    private final CompactTransactionList message;
+    private final Transaction[] transactions;
+    private final List<Integer> missingIndexes;
+    private boolean memoryPoolMatches;
+
+    /**
+     * Matches the short ids of the message against the given memory pool.
+     * @param header The header of the block the message refers to.
+     */
+    public CompactTransactionListReconstructor(Block header, CompactTransactionList message, MemoryPool memoryPool) {
+        checkArgument(header.getHash().equals(message.getBlockHash()));
+        this.header = header;
+        this.message = message;
+        this.transactions = new Transaction[message.getTransactionCount()];
+        this.missingIndexes = new ArrayList<Integer>();
+
+        for (Map.Entry<Integer, Transaction> entry : message.getPrefilledTransactions().entrySet())
+            transactions[entry.getKey()] = entry.getValue();
+
+        // Build the short id index of the memory pool. A short id shared by two pool transactions is mapped to null
+        // so that it is requested instead of guessed.
+        HashFunction hashFunction = CompactTransactionList.shortIdHashFunction(header, message.getNonce());
+        Map<Long, Transaction> index = new HashMap<Long, Transaction>();
+        for (Transaction tx : memoryPool.getAll()) {
+            Long shortId = CompactTransactionList.shortId(hashFunction, tx.getHash());
+            if (index.containsKey(shortId))
+                index.put(shortId, null);
+            else
+                index.put(shortId, tx);
+        }
+
+        long[] shortIds = message.getShortIds();
+        int shortIdCursor = 0;
+        for (int i = 0; i < transactions.length; i++) {
+            if (transactions[i] != null)
+                continue;
+            Transaction tx = index.get(shortIds[shortIdCursor++]);
+            if (tx != null) {
+                transactions[i] = tx;
+                memoryPoolMatches = true;
+            } else
+                missingIndexes.add(i);
+        }
+    }
+
+    public Sha256Hash getBlockHash() {
+        return header.getHash();
+    }
+
+    public Block getHeader() {
+        return header;
+    }
+
+    /** Returns the indexes of the transactions that could not be found in the memory pool, in increasing order. */
+    public List<Integer> getMissingIndexes() {
+        return Collections.unmodifiableList(missingIndexes);
+    }
+
+    /** Returns true if some of the transactions were matched from the memory pool rather than sent by the peer. */
+    public boolean hasMemoryPoolMatches() {
+        return memoryPoolMatches;
+    }
+
+    /** Returns true if every transaction of the block is known. */
+    public boolean isComplete() {
+        return missingIndexes.isEmpty();
+    }
+
+    /**
+     * Fills in the missing transactions from the peer's answer to our {@link GetBlockTransactions}. Returns false if
+     * the answer does not match what was requested, in which case nothing is changed.
+     */
+    public boolean addMissingTransactions(BlockTransactions blockTransactions) {
+        List<Transaction> received = blockTransactions.getTransactions();
+        if (!blockTransactions.getBlockHash().equals(getBlockHash()) || received.size() != missingIndexes.size())
+            return false;
+        for (int i = 0; i < received.size(); i++)
+            transactions[missingIndexes.get(i)] = received.get(i);
+        missingIndexes.clear();
+        return true;
+    }
+
+    /**
+     * Forgets every transaction matched from the memory pool, so that all of them are requested from the peer. Used
+     * when the reconstructed list does not match the merkle root of the header, ie there was a short id collision
+     * with a transaction the sender did not include.
+     */
+    public void discardMemoryPoolMatches() {
+        memoryPoolMatches = false;
+        missingIndexes.clear();
+        for (int i = 0; i < transactions.length; i++) {
+            if (message.getPrefilledTransactions().containsKey(i))
+                continue;
+            transactions[i] = null;
+            missingIndexes.add(i);
+        }
+    }
+
+    /** Returns true if the reconstructed transactions hash to the merkle root of the header. */
+    public boolean checkMerkleRoot() {
+        checkState(isComplete());
+        return header.getMerkleRoot().equals(MerkleTreeUtils.calculateTransactionsMerkleRoot(getTransactions()));
+    }
+
+    /** Returns the transactions of the block, in block order. Only valid once {@link #isComplete()}. */
+    public List<Transaction> getTransactions() {
+        checkState(isComplete());
+        return Arrays.asList(transactions);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Represents the "getblocktxn" P2P network message, sent in reply to a {@link CompactTransactionList} to ask for
+ * the transactions of the block that could not be found in the memory pool. The peer answers with a
+ * {@link BlockTransactions} message.</p>
+ */
+public class GetBlockTransactions extends Message {
+
+    private static final long serialVersionUID = -1858612361347413474L;
+
+    private Sha256Hash blockHash;
+    private List<Integer> indexes;
+
+    public GetBlockTransactions(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    /**
+     * @param indexes Indexes in the block of the requested transactions, in increasing order.
+     */
+    public GetBlockTransactions(NetworkParameters params, Sha256Hash blockHash, List<Integer> indexes) {
+        super(params);
+        this.blockHash = blockHash;
+        this.indexes = new ArrayList<Integer>(indexes);
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    @Override
+    public Sha256Hash getHash() {
+        return blockHash;
+    }
+
+    public List<Integer> getIndexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
+    @Override
+    protected void parseLite() throws ProtocolException {
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        cursor = offset;
+        blockHash = readHash();
+        long count = readVarInt();
+        if (count > PushTransactionList.MAX_ITEMS)
+            throw new ProtocolException("Too many items in getblocktxn message: " + count);
+        indexes = new ArrayList<Integer>((int) count);
+        int index = -1;
+        for (int i = 0; i < count; i++) {
+            // Indexes are differentially encoded, each one relative to the previous one plus one. The delta is
+            // unsigned on the wire, so one too big for a long reads as negative. No block we relay has more
+            // transactions than a transaction list can carry.
+            long delta = readVarInt();
+            if (delta < 0 || delta >= PushTransactionList.MAX_ITEMS - index - 1)
+                throw new ProtocolException("Transaction index out of range in getblocktxn: " +
+                        (index + delta + 1));
+            index += (int) delta + 1;
+            indexes.add(index);
+        }
+        length = cursor - offset;
+    }
+
+    @Override
+    public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(Utils.reverseBytes(blockHash.getBytes()));
+        stream.write(new VarInt(indexes.size()).encode());
+        int previousIndex = -1;
+        for (int index : indexes) {
+            stream.write(new VarInt(index - previousIndex - 1).encode());
+            previousIndex = index;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GetBlockTransactions [blockHash=" + blockHash + ", indexes=" + indexes.size() + "]";
+    }
+}
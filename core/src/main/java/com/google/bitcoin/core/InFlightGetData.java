@@ -0,0 +1,306 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The getdata requests a {@link Peer} is waiting on, indexed by the hash of the item requested, so that an answer,
+ * a notfound or a timeout costs a lookup rather than a scan of every outstanding request. Reconstructing a block from
+ * a pushtxlist can mean tens of thousands of them at once.</p>
+ *
+ * <p>At most {@link #getMaxInFlight()} items are in flight at a time. Requests beyond that wait, in order, until
+ * {@link #takeSendable()} hands them back as answers make room. Requests which have gone unanswered for too long are
+ * handed back by {@link #expire(long)}, so they can be asked of another peer.</p>
+ */
+class InFlightGetData {
+    /** A request for one item. Requests for the same item, from different callers, are kept separately. */
+    static class Request {
+        final InventoryItem item;
+        final SettableFuture future;
+        // If the peer does not support the notfound message, we'll use ping/pong messages to simulate it. This is
+        // a nasty hack that relies on the fact that bitcoin-qt is single threaded and processes messages in order.
+        // The nonce field records which pong should clear this request as "not found".
+        final long nonce;
+        // How many times the item was asked for before, of other peers which didn't answer in time.
+        final int attempts;
+        long sentAtMillis;
+
+        Request(InventoryItem item, SettableFuture future, long nonce, int attempts) {
+            this.item = item;
+            this.future = future;
+            this.nonce = nonce;
+            this.attempts = attempts;
+        }
+
+        Request(InventoryItem item, long nonce) {
+            this(item, SettableFuture.create(), nonce, 0);
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("InFlightGetData");
+    // Both in the order the items were first requested, so waiting ones are sent in that order.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, List<Request>> inFlight =
+            new LinkedHashMap<Sha256Hash, List<Request>>();
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, List<Request>> waiting =
+            new LinkedHashMap<Sha256Hash, List<Request>>();
+    // Every request in flight, in the order each was sent, so the oldest are found first when looking for timeouts. A
+    // request for an item already in flight goes at the end, whenever the earlier one for the item was sent.
+    @GuardedBy("lock") private final LinkedHashSet<Request> inFlightBySendTime = new LinkedHashSet<Request>();
+    @GuardedBy("lock") private int inFlightCount, waitingCount;
+    @GuardedBy("lock") private int maxInFlight;
+
+    InFlightGetData(int maxInFlight) {
+        setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * Adds a request, returning true if it's in flight and should be sent now, or false if it has to wait for room
+     * behind the ones already in flight.
+     */
+    boolean add(Request request) {
+        lock.lock();
+        try {
+            if (inFlightCount < maxInFlight && waitingCount == 0) {
+                putInFlight(request);
+                return true;
+            }
+            put(waiting, request);
+            waitingCount++;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void putInFlight(Request request) {
+        request.sentAtMillis = Utils.currentTimeMillis();
+        put(inFlight, request);
+        inFlightBySendTime.add(request);
+        inFlightCount++;
+    }
+
+    private static void put(Map<Sha256Hash, List<Request>> map, Request request) {
+        List<Request> requests = map.get(request.item.hash);
+        if (requests == null) {
+            requests = new ArrayList<Request>(1);
+            map.put(request.item.hash, requests);
+        }
+        requests.add(request);
+    }
+
+    /**
+     * Moves as many waiting requests as there is room for in flight, returning them so they can be sent. Call after
+     * anything which may have made room.
+     */
+    List<Request> takeSendable() {
+        lock.lock();
+        try {
+            List<Request> result = new ArrayList<Request>();
+            Iterator<List<Request>> it = waiting.values().iterator();
+            while (inFlightCount < maxInFlight && it.hasNext()) {
+                List<Request> requests = it.next();
+                it.remove();
+                waitingCount -= requests.size();
+                for (Request request : requests)
+                    putInFlight(request);
+                result.addAll(requests);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes every request for the given hash, in flight or waiting, with the given answer. Returns false if
+     * nothing was waiting for it.
+     */
+    @SuppressWarnings("unchecked")
+    boolean complete(Sha256Hash hash, Object answer) {
+        List<Request> requests = remove(hash);
+        if (requests.isEmpty())
+            return false;
+        // Outside the lock: the futures may have listeners which run straight away.
+        for (Request request : requests)
+            request.future.set(answer);
+        return true;
+    }
+
+    /** Cancels every request for the given hash, which the peer told us it doesn't have. Returns false if none. */
+    boolean notFound(Sha256Hash hash) {
+        List<Request> requests = remove(hash);
+        for (Request request : requests)
+            request.future.cancel(true);
+        return !requests.isEmpty();
+    }
+
+    private List<Request> remove(Sha256Hash hash) {
+        lock.lock();
+        try {
+            List<Request> result = new ArrayList<Request>();
+            List<Request> requests = inFlight.remove(hash);
+            if (requests != null) {
+                inFlightCount -= requests.size();
+                // One by one: removeAll can call the list's contains() for every request in the set.
+                for (Request request : requests)
+                    inFlightBySendTime.remove(request);
+                result.addAll(requests);
+            }
+            requests = waiting.remove(hash);
+            if (requests != null) {
+                waitingCount -= requests.size();
+                result.addAll(requests);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the requests with the given nonce, which the pong answering the ping sent after them has
+     * shown won't be answered. This scans every request, but only happens with peers too old to send notfound.
+     */
+    List<Request> removeByNonce(long nonce) {
+        lock.lock();
+        try {
+            List<Request> result = new ArrayList<Request>();
+            inFlightCount -= removeByNonce(inFlight, nonce, result);
+            for (Request request : result)
+                inFlightBySendTime.remove(request);
+            waitingCount -= removeByNonce(waiting, nonce, result);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int removeByNonce(Map<Sha256Hash, List<Request>> map, long nonce, List<Request> result) {
+        int removed = 0;
+        Iterator<List<Request>> it = map.values().iterator();
+        while (it.hasNext()) {
+            List<Request> requests = it.next();
+            Iterator<Request> requestIt = requests.iterator();
+            while (requestIt.hasNext()) {
+                Request request = requestIt.next();
+                if (request.nonce == nonce) {
+                    requestIt.remove();
+                    result.add(request);
+                    removed++;
+                }
+            }
+            if (requests.isEmpty())
+                it.remove();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes and returns the requests which have been in flight for at least the given time without an answer.
+     * Only the expired ones are looked at, as the oldest come first. Each request is timed from when it was sent, so
+     * one for an item which was already in flight doesn't expire along with the earlier one.
+     */
+    List<Request> expire(long timeoutMillis) {
+        long expiredBefore = Utils.currentTimeMillis() - timeoutMillis;
+        lock.lock();
+        try {
+            List<Request> result = new ArrayList<Request>();
+            Iterator<Request> it = inFlightBySendTime.iterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                if (request.sentAtMillis > expiredBefore)
+                    break;
+                it.remove();
+                List<Request> requests = inFlight.get(request.item.hash);
+                requests.remove(request);
+                if (requests.isEmpty())
+                    inFlight.remove(request.item.hash);
+                inFlightCount--;
+                result.add(request);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes and returns every request, in flight or waiting, for when the connection is gone. */
+    List<Request> removeAll() {
+        lock.lock();
+        try {
+            List<Request> result = new ArrayList<Request>(inFlightCount + waitingCount);
+            for (List<Request> requests : inFlight.values())
+                result.addAll(requests);
+            for (List<Request> requests : waiting.values())
+                result.addAll(requests);
+            inFlight.clear();
+            inFlightBySendTime.clear();
+            waiting.clear();
+            inFlightCount = waitingCount = 0;
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInFlightCount() {
+        lock.lock();
+        try {
+            return inFlightCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaitingCount() {
+        lock.lock();
+        try {
+            return waitingCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getMaxInFlight() {
+        lock.lock();
+        try {
+            return maxInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets how many items may be in flight at once. Lowering it doesn't recall any already sent. */
+    void setMaxInFlight(int maxInFlight) {
+        checkArgument(maxInFlight > 0);
+        lock.lock();
+        try {
+            this.maxInFlight = maxInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
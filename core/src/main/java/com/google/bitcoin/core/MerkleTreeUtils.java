@@ -1,23 +1,165 @@
 package com.google.bitcoin.core;
 
 import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
+import static com.google.common.base.Preconditions.checkArgument;
 
+import java.security.DigestException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class MerkleTreeUtils {
 
+    private static final int HASH_LENGTH = 32;
+
+    /** Default value of {@link #getParallelThreshold()}. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    // Number of chunks the leaves are split in when hashing in parallel. Visible for testing.
+    static volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+    // Largest buffer kept around by a thread between two calls, enough for a pushtxlist of the maximum size.
+    private static final int MAX_RETAINED_BUFFER_LENGTH = (int) PushTransactionList.MAX_ITEMS * HASH_LENGTH;
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+    /**
+     * Returns the number of hashes from which {@link #calculateHashesMerkleRoot(List)} hashes the lower levels of the
+     * tree on several threads of {@link Threading#THREAD_POOL}.
+     */
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /** Sets the value returned by {@link #getParallelThreshold()}, {@link Integer#MAX_VALUE} disables parallel hashing. */
+    public static void setParallelThreshold(int threshold) {
+        checkArgument(threshold > 1);
+        parallelThreshold = threshold;
+    }
+
     public static Sha256Hash calculateTransactionsMerkleRoot(List<Transaction> transactions) {
-        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(transactions.size());
-        for (Transaction transaction : transactions) {
-            hashes.add(transaction.getHash());
-        }
-        return calculateHashesMerkleRoot(hashes);
+        checkArgument(!transactions.isEmpty());
+        byte[] buffer = getBuffer(transactions.size());
+        for (int i = 0; i < transactions.size(); i++)
+            putLeaf(buffer, i, transactions.get(i).getHash());
+        return calculateMerkleRoot(buffer, transactions.size());
     }
 
     public static Sha256Hash calculateHashesMerkleRoot(List<Sha256Hash> transactionHashes) {
-        List<byte[]> tree = buildMerkleTree(transactionHashes);
-        return new Sha256Hash(tree.get(tree.size() - 1));
+        checkArgument(!transactionHashes.isEmpty());
+        byte[] buffer = getBuffer(transactionHashes.size());
+        for (int i = 0; i < transactionHashes.size(); i++)
+            putLeaf(buffer, i, transactionHashes.get(i));
+        return calculateMerkleRoot(buffer, transactionHashes.size());
+    }
+
+    private static byte[] getBuffer(int leafCount) {
+        int length = leafCount * HASH_LENGTH;
+        byte[] buffer = buffers.get();
+        if (buffer != null && buffer.length >= length)
+            return buffer;
+        buffer = new byte[length];
+        if (length <= MAX_RETAINED_BUFFER_LENGTH)
+            buffers.set(buffer);
+        return buffer;
+    }
+
+    // Copies the hash into the buffer in digest byte order, which is the reverse of the Sha256Hash order.
+    private static void putLeaf(byte[] buffer, int index, Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        int offset = index * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            buffer[offset + i] = bytes[HASH_LENGTH - 1 - i];
+    }
+
+    /**
+     * Computes the root of the tree built by {@link #buildMerkleTree(List)} without keeping the intermediate levels.
+     * The leaves are stored back to back in the buffer in digest byte order, and every level overwrites the start of
+     * the level below it, so apart from the returned hash nothing is allocated. Above the parallel threshold the
+     * leaves are split in power of two sized chunks that are reduced to their subtree root on separate threads,
+     * before the remaining levels are hashed by the calling thread.
+     */
+    private static Sha256Hash calculateMerkleRoot(final byte[] buffer, int leafCount) {
+        int levels = 0;
+        for (int size = leafCount; size > 1; size = (size + 1) / 2)
+            levels++;
+        int chunkLevels = 0;
+        if (leafCount >= parallelThreshold) {
+            int threads = parallelism;
+            // Largest power of two chunk size that still gives every thread a chunk.
+            while (threads > 1 && (leafCount >> (chunkLevels + 1)) >= threads)
+                chunkLevels++;
+        }
+        if (chunkLevels > 0) {
+            final int chunkSize = 1 << chunkLevels;
+            final int chunkCount = (leafCount + chunkSize - 1) / chunkSize;
+            final int levelsPerChunk = chunkLevels;
+            final int lastLeaf = leafCount;
+            List<ListenableFuture<?>> futures = new ArrayList<ListenableFuture<?>>(chunkCount - 1);
+            for (int chunk = 1; chunk < chunkCount; chunk++) {
+                final int first = chunk * chunkSize;
+                futures.add(Threading.THREAD_POOL.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        reduceChunk(buffer, first, Math.min(chunkSize, lastLeaf - first), levelsPerChunk);
+                    }
+                }));
+            }
+            reduceChunk(buffer, 0, chunkSize, levelsPerChunk);
+            Future<?> all = Futures.allAsList(futures);
+            try {
+                Uninterruptibles.getUninterruptibly(all);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+            // Gather the chunk roots at the start of the buffer and hash the upper levels.
+            for (int chunk = 1; chunk < chunkCount; chunk++)
+                System.arraycopy(buffer, chunk * chunkSize * HASH_LENGTH, buffer, chunk * HASH_LENGTH, HASH_LENGTH);
+            reduceChunk(buffer, 0, chunkCount, levels - chunkLevels);
+        } else {
+            reduceChunk(buffer, 0, leafCount, levels);
+        }
+        byte[] root = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++)
+            root[i] = buffer[HASH_LENGTH - 1 - i];
+        return new Sha256Hash(root);
+    }
+
+    /**
+     * Hashes the given number of levels of the subtree whose leaves are the count nodes starting at index first,
+     * leaving its root at index first. A subtree that runs out of nodes early, ie the last chunk of a parallel
+     * computation, keeps hashing its single node with itself so it ends at the same height as its siblings.
+     */
+    private static void reduceChunk(byte[] buffer, int first, int count, int levels) {
+        MessageDigest digest = Sha256Hasher.acquire();
+        int base = first * HASH_LENGTH;
+        try {
+            for (int level = 0; level < levels; level++) {
+                for (int left = 0; left < count; left += 2) {
+                    // The right hand node is the same as the left hand one when the level has an odd size.
+                    int right = Math.min(left + 1, count - 1);
+                    int out = base + (left / 2) * HASH_LENGTH;
+                    digest.update(buffer, base + left * HASH_LENGTH, HASH_LENGTH);
+                    digest.update(buffer, base + right * HASH_LENGTH, HASH_LENGTH);
+                    digest.digest(buffer, out, HASH_LENGTH);
+                    digest.update(buffer, out, HASH_LENGTH);
+                    digest.digest(buffer, out, HASH_LENGTH);
+                }
+                count = (count + 1) / 2;
+            }
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen, the output always fits.
+        }
+        Sha256Hasher.release(digest);
     }
 
     public static List<byte[]> buildMerkleTree(List<Sha256Hash> transactionHashes) {
@@ -22,6 +22,7 @@ import static com.google.common.base.Preconditions.checkState;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -29,6 +30,7 @@ import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -127,22 +129,19 @@ public class Peer extends PeerSocketHandler {
     // actual false positive rate. For now a good value was determined empirically around January 2013.
     private static final int RESEND_BLOOM_FILTER_BLOCK_COUNT = 25000;
     // Keeps track of things we requested internally with getdata but didn't receive yet, so we can avoid re-requests.
-    // It's not quite the same as getDataFutures, as this is used only for getdatas done as part of downloading
+    // It's not quite the same as inFlightGetData, as this is used only for getdatas done as part of downloading
     // the chain and so is lighter weight (we just keep a bunch of hashes not futures).
     //
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
-    // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
-    // whilst waiting for the response. Is not used for downloads Peer generates itself.
-    private static class GetDataRequest {
-        Sha256Hash hash;
-        SettableFuture future;
-        // If the peer does not support the notfound message, we'll use ping/pong messages to simulate it. This is
-        // a nasty hack that relies on the fact that bitcoin-qt is single threaded and processes messages in order.
-        // The nonce field records which pong should clear this request as "not found".
-        long nonce;
-    }
-    private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
+    // When an API user explicitly requests a block or transaction from a peer, or a pushtxlist needs transactions,
+    // the request is put here whilst waiting for the response. Is not used for downloads Peer generates itself.
+    private final InFlightGetData inFlightGetData;
+    /** How many items may be requested with getdata and not answered yet, before further requests wait. */
+    public static final int DEFAULT_MAX_GETDATA_IN_FLIGHT = 20000;
+    // How long a getdata may go unanswered before its items are asked of another peer, and how many peers to ask.
+    static final long GETDATA_TIMEOUT_MILLIS = 10000;
+    static final int MAX_GETDATA_ATTEMPTS = 3;
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -161,6 +160,12 @@ public class Peer extends PeerSocketHandler {
 
     // Should be a Set but could not find a size limited set in java
     Cache<Sha256Hash, Sha256Hash> headersThisPeerKnowsAbout;
+    // Blocks announced by this peer with a cmpctxlist, waiting for the blocktxn answering our getblocktxn.
+    private final Cache<Sha256Hash, CompactTransactionListReconstructor> pendingReconstructions =
+            CacheBuilder.newBuilder().maximumSize(16).expireAfterWrite(1, TimeUnit.MINUTES).build();
+
+    // On test networks received messages are held back for a while to emulate network behaviour, see simulatedLatency.
+    @Nullable private final SimulatedLink simulatedTcpLink, simulatedUdpLink;
     
     /**
      * <p>Construct a peer that reads/writes from the given block chain.</p>
@@ -242,7 +247,7 @@ public class Peer extends PeerSocketHandler {
         this.downloadTxDependencies = downloadTxDependencies;
         this.blockChain = chain;  // Allowed to be null.
         this.vDownloadData = chain != null;
-        this.getDataFutures = new CopyOnWriteArrayList<GetDataRequest>();
+        this.inFlightGetData = new InFlightGetData(DEFAULT_MAX_GETDATA_IN_FLIGHT);
         this.eventListeners = new CopyOnWriteArrayList<PeerListenerRegistration>();
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         this.isAcked = false;
@@ -251,6 +256,31 @@ public class Peer extends PeerSocketHandler {
         this.memoryPool = mempool;
         this.initiatedByPeer = initiatedByPeer;
         this.headersThisPeerKnowsAbout = CacheBuilder.newBuilder().maximumSize(100).build();
+        if (params instanceof RegTestParams) {
+            this.simulatedTcpLink = new SimulatedLink(new SimulatedLink.Receiver() {
+                @Override
+                public void receive(Message m) {
+                    try {
+                        handleLowPriorityMessage(m);
+                    } catch (Exception e) {
+                        exceptionCaught(e);
+                    }
+                }
+            });
+            this.simulatedUdpLink = new SimulatedLink(new SimulatedLink.Receiver() {
+                @Override
+                public void receive(Message m) {
+                    try {
+                        handleHighPriorityMessage(m);
+                    } catch (Exception e) {
+                        exceptionCaught(e);
+                    }
+                }
+            });
+        } else {
+            this.simulatedTcpLink = null;
+            this.simulatedUdpLink = null;
+        }
     }
 
     /**
@@ -329,6 +359,9 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        // Nothing more will be answered on this connection.
+        for (InFlightGetData.Request req : inFlightGetData.removeAll())
+            requestElsewhere(req);
         for (final PeerListenerRegistration registration : eventListeners) {
             if (registration.callOnDisconnect)
                 registration.executor.execute(new Runnable() {
@@ -365,16 +398,29 @@ public class Peer extends PeerSocketHandler {
     @Override
     protected void processHighPriorityMessage(long nodeId, Message m) {
         if(vPeerVersionMessage.getNonce() == nodeId) {
-            maybeDelay(m);
-            log.info("{}: Received high priority message {} {}", getAddress(), m.getClass().getSimpleName(), m.toString());
-            if (m instanceof PushHeader) {
-                processPushHeader((PushHeader) m, TransportProtocol.UDP);
-            }
+            if (simulatedUdpLink != null)
+                simulatedUdpLink.send(m, simulatedLatency());
+            else
+                handleHighPriorityMessage(m);
         }        
     }
+
+    private void handleHighPriorityMessage(Message m) {
+        log.info("{}: Received high priority message {} {}", getAddress(), m.getClass().getSimpleName(), m.toString());
+        if (m instanceof PushHeader) {
+            processPushHeader((PushHeader) m, TransportProtocol.UDP);
+        }
+    }
     
+    @Override
     protected void processLowPriorityMessage(Message m) throws Exception {
-        maybeDelay(m);
+        if (simulatedTcpLink != null)
+            simulatedTcpLink.send(m, simulatedLatency());
+        else
+            handleLowPriorityMessage(m);
+    }
+
+    private void handleLowPriorityMessage(Message m) throws Exception {
         if (!(m instanceof Ping) && ! (m instanceof Pong)) {        
             log.info("{}: Received low priority message {} {}", getAddress(), m.getClass().getSimpleName(), m.toString());
         }
@@ -407,6 +453,12 @@ public class Peer extends PeerSocketHandler {
             processPushHeaderAck((PushHeaderAck) m);
         } else if (m instanceof PushTransactionList) {
             processPushTransactionList((PushTransactionList) m);
+        } else if (m instanceof CompactTransactionList) {
+            processCompactTransactionList((CompactTransactionList) m);
+        } else if (m instanceof GetBlockTransactions) {
+            processGetBlockTransactions((GetBlockTransactions) m);
+        } else if (m instanceof BlockTransactions) {
+            processBlockTransactions((BlockTransactions) m);
         } else if (m instanceof InventoryMessage) {
             processInv((InventoryMessage) m);
         } else if (m instanceof Block) {
@@ -493,7 +545,7 @@ public class Peer extends PeerSocketHandler {
             //throw new ProtocolException("Peer does not have a copy of the block chain.");
         }
         if (vPeerVersionMessage.acceptUdp()) {
-            writeTarget.setUDPPort(vPeerVersionMessage.myAddr.getPort());
+            setRemoteUDPPort(vPeerVersionMessage.myAddr.getPort(), vPeerVersionMessage.getNonce());
         }
     }
 
@@ -519,16 +571,11 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
-        for (GetDataRequest req : getDataFutures) {
-            for (InventoryItem item : m.getItems()) {
-                if (item.hash.equals(req.hash)) {
-                    log.info("{}: Bottomed out dep tree at {}", this, req.hash);
-                    req.future.cancel(true);
-                    getDataFutures.remove(req);
-                    break;
-                }
-            }
+        for (InventoryItem item : m.getItems()) {
+            if (inFlightGetData.notFound(item.hash))
+                log.info("{}: Bottomed out dep tree at {}", this, item.hash);
         }
+        sendWaitingGetData();
     }
 
     private void processAlert(AlertMessage m) {
@@ -560,8 +607,7 @@ public class Peer extends PeerSocketHandler {
             sendLowPriorityMessage(new PushHeaderAck(params, m.getHash()));            
         }
         
-        MessageIdentifier messageIdentifier = new MessageIdentifier(m.getClass(), m.getHash());
-        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(messageIdentifier);
+        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(m.getClass(), m.getHash());
         if (!shouldProcess) return;
         
         try {
@@ -589,8 +635,7 @@ public class Peer extends PeerSocketHandler {
             return;
         }
         
-        MessageIdentifier messageIdentifier = new MessageIdentifier(m.getClass(), m.getHash());
-        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(messageIdentifier);
+        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(m.getClass(), m.getHash());
         if (!shouldProcess) return;
 
         
@@ -617,7 +662,7 @@ public class Peer extends PeerSocketHandler {
         
         GetDataMessage getdata = new GetDataMessage(params);
 
-        List<ListenableFuture<Transaction>> futures = Lists.newArrayList();
+        List<ListenableFuture<Transaction>> futures = Lists.newArrayListWithCapacity(transactionHashes.size());
         futures.add(Futures.immediateFuture(coinbaseTransaction));
 
         for (Sha256Hash transactionHash : transactionHashes) {
@@ -628,13 +673,12 @@ public class Peer extends PeerSocketHandler {
                 futures.add(Futures.immediateFuture(transaction));
             } else {
                 log.debug("{}: getdata on tx {}", getAddress(), transactionHash);
-                getdata.addTransaction(transactionHash);
-                GetDataRequest req = new GetDataRequest();
-                req.hash = transactionHash;
-                req.future = SettableFuture.create();
+                InFlightGetData.Request req = new InFlightGetData.Request(
+                        new InventoryItem(InventoryItem.Type.Transaction, transactionHash), 0);
                 futures.add(req.future);
-                getDataFutures.add(req);
-                
+                // Beyond the in-flight limit, the rest are asked for as answers come in.
+                if (inFlightGetData.add(req))
+                    getdata.addItem(req.item);
             }
         }
 
@@ -647,35 +691,13 @@ public class Peer extends PeerSocketHandler {
         
         Futures.addCallback(successful, new FutureCallback<List<Transaction>>() {
             public void onSuccess(List<Transaction> transactions) {
+                // Transactions which no peer would give us, in time or at all, are null.
+                if (transactions.contains(null)) {
+                    log.warn("{}: Could not download all the transactions of block {}", getAddress(), blockHash);
+                    return;
+                }
                 log.info("{}: I have all the transactions for received PushTransactionList for block {}!", getAddress(), m.getBlockHash());
-                Block block = blockHeader;
-                for (Transaction transaction : transactions) {
-                    block.addTransaction(transaction);
-                }                    
-                try {
-                    if (blockChain.add(block)) {
-                        peerGroup.broadcastLowPriorityMessage(m, Peer.this);
-                    } else {
-                        lock.lock();
-                        try {
-                            if (downloadBlockBodies) {
-                                final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                                blockChainDownloadLocked(orphanRoot.getHash());
-                            } else {
-                                log.info("Did not start chain download on solved block due to in-flight header download.");
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-                    }
-                } catch (VerificationException e) {
-                    // We don't want verification failures to kill the thread.
-                    log.warn("{}: Block verification failed", getAddress(), e);
-                } catch (PrunedException e) {
-                    // Unreachable when in SPV mode.
-                    throw new RuntimeException(e);
-                }                    
-
+                connectTransactionList(blockHeader, transactions);
             }
 
             public void onFailure(Throwable throwable) {
@@ -685,6 +707,146 @@ public class Peer extends PeerSocketHandler {
         });
     }
 
+    /**
+     * Adds the transactions to the header waiting for them, connects the resulting block and relays its transaction
+     * list to the other peers.
+     */
+    private void connectTransactionList(Block blockHeader, List<Transaction> transactions) {
+        Block block = blockHeader;
+        for (Transaction transaction : transactions) {
+            block.addTransaction(transaction);
+        }
+        try {
+            if (blockChain.add(block)) {
+                peerGroup.broadcastTransactionList(block, Peer.this);
+            } else {
+                lock.lock();
+                try {
+                    if (downloadBlockBodies) {
+                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(block.getHash()));
+                        blockChainDownloadLocked(orphanRoot.getHash());
+                    } else {
+                        log.info("Did not start chain download on solved block due to in-flight header download.");
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (VerificationException e) {
+            // We don't want verification failures to kill the thread.
+            log.warn("{}: Block verification failed", getAddress(), e);
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void processCompactTransactionList(CompactTransactionList m) throws BlockStoreException {
+        if (blockChain == null) {
+            // Can happen if we are receiving unrequested data, or due to programmer error.
+            log.warn("Received cmpctxlist when Peer is not configured with a chain.");
+            return;
+        }
+
+        // Counted together with pushtxlist, both carry the transaction list of the same block.
+        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(PushTransactionList.class, m.getHash());
+        if (!shouldProcess) return;
+
+        final Sha256Hash blockHash = m.getBlockHash();
+        final Block blockHeader = blockChain.getHeadersWaitingForItsTransactions().get(blockHash);
+        if (blockHeader==null) {
+            log.info("Received cmpctxlist but the pushheader not arrived yet or was already processed.");
+            if (!blockChain.isOrphan(blockHash) && blockChain.getBlockStore().get(blockHash)==null) {
+                InventoryMessage inv = new InventoryMessage(params);
+                inv.addItem(new InventoryItem(InventoryItem.Type.Block, blockHash));
+                processInv(inv);
+            }
+            return;
+        }
+
+        if (memoryPool == null) {
+            // Without a memory pool there is nothing to match the short ids against, so get the whole block.
+            log.info("{}: No memory pool to reconstruct block {} from, requesting the full block", getAddress(), blockHash);
+            GetDataMessage getdata = new GetDataMessage(params);
+            getdata.addBlock(blockHash);
+            sendLowPriorityMessage(getdata);
+            return;
+        }
+
+        for (Transaction prefilled : m.getPrefilledTransactions().values())
+            prefilled.verify();
+
+        CompactTransactionListReconstructor reconstructor =
+                new CompactTransactionListReconstructor(blockHeader, m, memoryPool);
+        if (reconstructor.isComplete()) {
+            if (reconstructor.checkMerkleRoot()) {
+                log.info("{}: Reconstructed block {} from cmpctxlist and the memory pool", getAddress(), blockHash);
+                connectTransactionList(blockHeader, reconstructor.getTransactions());
+                return;
+            }
+            // A short id collided with a memory pool transaction that is not in the block. Ask for everything.
+            log.info("{}: cmpctxlist for block {} does not match the merkle root, requesting all transactions",
+                    getAddress(), blockHash);
+            reconstructor.discardMemoryPoolMatches();
+        }
+        requestMissingTransactions(reconstructor);
+    }
+
+    private void requestMissingTransactions(CompactTransactionListReconstructor reconstructor) {
+        Sha256Hash blockHash = reconstructor.getBlockHash();
+        List<Integer> missingIndexes = reconstructor.getMissingIndexes();
+        log.info("{}: Requesting {} transactions of block {}", getAddress(), missingIndexes.size(), blockHash);
+        pendingReconstructions.put(blockHash, reconstructor);
+        sendLowPriorityMessage(new GetBlockTransactions(params, blockHash, missingIndexes));
+    }
+
+    private void processBlockTransactions(BlockTransactions m) {
+        CompactTransactionListReconstructor reconstructor = pendingReconstructions.getIfPresent(m.getBlockHash());
+        if (reconstructor == null) {
+            log.info("{}: Received blocktxn for block {} we did not ask for", getAddress(), m.getBlockHash());
+            return;
+        }
+        pendingReconstructions.invalidate(m.getBlockHash());
+        for (Transaction transaction : m.getTransactions())
+            transaction.verify();
+        if (!reconstructor.addMissingTransactions(m)) {
+            log.warn("{}: blocktxn for block {} does not match the requested transactions", getAddress(), m.getBlockHash());
+            return;
+        }
+        if (reconstructor.checkMerkleRoot()) {
+            connectTransactionList(reconstructor.getHeader(), reconstructor.getTransactions());
+            return;
+        }
+        if (!reconstructor.hasMemoryPoolMatches()) {
+            // Every transaction came from the peer, asking again would get the same answer.
+            log.warn("{}: blocktxn for block {} does not match the merkle root", getAddress(), m.getBlockHash());
+            return;
+        }
+        // A short id collided with a memory pool transaction that is not in the block. Ask for everything.
+        log.info("{}: block {} does not match the merkle root after blocktxn, requesting all transactions",
+                getAddress(), m.getBlockHash());
+        reconstructor.discardMemoryPoolMatches();
+        requestMissingTransactions(reconstructor);
+    }
+
+    private void processGetBlockTransactions(GetBlockTransactions m) {
+        Block block = peerGroup.getRecentlyBroadcastBlock(m.getBlockHash());
+        if (block == null) {
+            log.info("{}: Received getblocktxn for block {} we did not relay recently", getAddress(), m.getBlockHash());
+            return;
+        }
+        List<Transaction> blockTransactions = block.getTransactions();
+        List<Transaction> transactions = new ArrayList<Transaction>(m.getIndexes().size());
+        for (int index : m.getIndexes()) {
+            if (index < 0 || index >= blockTransactions.size()) {
+                log.warn("{}: getblocktxn for block {} asks for out of range index {}", getAddress(), m.getBlockHash(), index);
+                return;
+            }
+            transactions.add(blockTransactions.get(index));
+        }
+        sendLowPriorityMessage(new BlockTransactions(params, m.getBlockHash(), transactions));
+    }
+
     private void processHeaders(HeadersMessage m) throws ProtocolException {
         // Runs in network loop thread for this peer.
         //
@@ -712,8 +874,7 @@ public class Peer extends PeerSocketHandler {
             checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
-                MessageIdentifier messageIdentifier = new MessageIdentifier(m.getClass(), header.getHash());
-                boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(messageIdentifier);
+                boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(m.getClass(), header.getHash());
                 if (!shouldProcess) continue;
                 
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -831,18 +992,6 @@ public class Peer extends PeerSocketHandler {
     
     private void processGetBlocks(GetBlocksMessage getblocks) throws BlockStoreException {
         BlockStore store = blockChain.getBlockStore();
-        StoredBlock lastKnownBlockInLocator = null;
-        for (Sha256Hash locatorHash: getblocks.getLocator()) {
-            StoredBlock storedBlock = store.get(locatorHash);
-            if (storedBlock!=null) {
-                lastKnownBlockInLocator = storedBlock;
-                break;
-            }
-        }
-        if (lastKnownBlockInLocator==null) {
-            log.warn("{}: no known hash in locator: {}", getAddress(), getblocks.toString());
-            return;
-        }
         Sha256Hash stopHash = getblocks.getStopHash();
         StoredBlock stopBlock;
         if (stopHash.equals(Sha256Hash.ZERO_HASH)) {
@@ -854,29 +1003,47 @@ public class Peer extends PeerSocketHandler {
                 return;
             }            
         }         
-        List<StoredBlock> fullResponseList = new LinkedList<StoredBlock>();
-        StoredBlock currentBlock = stopBlock;
-        while (!currentBlock.equals(lastKnownBlockInLocator) && 
-               !currentBlock.getHeader().getHash().equals(params.getGenesisBlock().getHash())) {
-            fullResponseList.add(currentBlock);
-            currentBlock = currentBlock.getPrev(store);            
+        // The first block of the locator which is on the chain leading to the stop block is where the peer's chain
+        // and ours meet, even if the peer is on a fork of our chain.
+        StoredBlock lastKnownBlockInLocator = null;
+        for (Sha256Hash locatorHash: getblocks.getLocator()) {
+            StoredBlock storedBlock = store.get(locatorHash);
+            if (storedBlock != null && storedBlock.getHeight() <= stopBlock.getHeight() &&
+                    locatorHash.equals(blockChain.getAncestorHash(stopBlock, storedBlock.getHeight()))) {
+                lastKnownBlockInLocator = storedBlock;
+                break;
+            }
+        }
+        if (lastKnownBlockInLocator==null) {
+            log.warn("{}: no known hash in locator: {}", getAddress(), getblocks.toString());
+            return;
         }
         InventoryMessage invResponse = new InventoryMessage(params);
-        for (int i = 0; i < Math.min(500, fullResponseList.size()); i++) {
-            currentBlock = fullResponseList.get(fullResponseList.size()-i-1);
-            invResponse.addBlock(currentBlock.getHeader());
-            if (i==499) {
-                lastInvNumber500SentAsPartOfBlockChainUpload = currentBlock.getHeader();
-            }            
+        int lastHeight = Math.min(lastKnownBlockInLocator.getHeight() + 500, stopBlock.getHeight());
+        for (int height = lastKnownBlockInLocator.getHeight() + 1; height <= lastHeight; height++) {
+            Sha256Hash hash = blockChain.getAncestorHash(stopBlock, height);
+            if (hash == null) {
+                // The store is missing part of the chain, send the blocks up to there.
+                log.warn("{}: no block at height {} below {}, sending {} blocks", getAddress(), height,
+                        stopBlock.getHeader().getHash(), invResponse.getItems().size());
+                break;
+            }
+            invResponse.addItem(new InventoryItem(InventoryItem.Type.Block, hash));
+        }
+        if (invResponse.getItems().size() == 500) {
+            StoredBlock last = blockChain.getAncestor(stopBlock, lastHeight);
+            if (last != null)
+                lastInvNumber500SentAsPartOfBlockChainUpload = last.getHeader();
+            else
+                log.warn("{}: no block at height {} below {}", getAddress(), lastHeight, stopBlock.getHeader().getHash());
         }
-        sendLowPriorityMessage(invResponse);        
+        sendLowPriorityMessage(invResponse);
     }
 
     private void processTransaction(Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
-        MessageIdentifier messageIdentifier = new MessageIdentifier(tx.getClass(), tx.getHash());
-        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(messageIdentifier);
+        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(tx.getClass(), tx.getHash());
         if (!shouldProcess) return;
         final Transaction fTx;
         lock.lock();
@@ -1031,15 +1198,12 @@ public class Peer extends PeerSocketHandler {
             if (needToRequest.size() > 1)
                 log.info("{}: Requesting {} transactions for dep resolution", getAddress(), needToRequest.size());
             for (Sha256Hash hash : needToRequest) {
-                getdata.addTransaction(hash);
-                GetDataRequest req = new GetDataRequest();
-                req.hash = hash;
-                req.future = SettableFuture.create();
-                if (!isNotFoundMessageSupported()) {
-                    req.nonce = nonce;
-                }
+                InFlightGetData.Request req = new InFlightGetData.Request(
+                        new InventoryItem(InventoryItem.Type.Transaction, hash),
+                        isNotFoundMessageSupported() ? 0 : nonce);
                 futures.add(req.future);
-                getDataFutures.add(req);
+                if (inFlightGetData.add(req))
+                    getdata.addItem(req.item);
             }
             // The transactions we already grabbed out of the mempool must still be considered by the code below.
             for (Transaction dep : dependencies) {
@@ -1081,7 +1245,8 @@ public class Peer extends PeerSocketHandler {
                 }
             });
             // Start the operation.
-            sendLowPriorityMessage(getdata);
+            if (!getdata.getItems().isEmpty())
+                sendLowPriorityMessage(getdata);
             if (!isNotFoundMessageSupported()) {
                 // If the peer isn't new enough to support the notfound message, we use a nasty hack instead and
                 // assume if we send a ping message after the getdata message, it'll be processed after all answers
@@ -1090,13 +1255,11 @@ public class Peer extends PeerSocketHandler {
                 ping(nonce).addListener(new Runnable() {
                     public void run() {
                         // The pong came back so clear out any transactions we requested but didn't get.
-                        for (GetDataRequest req : getDataFutures) {
-                            if (req.nonce == nonce) {
-                                log.info("{}: Bottomed out dep tree at {}", this, req.hash);
-                                req.future.cancel(true);
-                                getDataFutures.remove(req);
-                            }
+                        for (InFlightGetData.Request req : inFlightGetData.removeByNonce(nonce)) {
+                            log.info("{}: Bottomed out dep tree at {}", this, req.item.hash);
+                            req.future.cancel(true);
                         }
+                        sendWaitingGetData();
                     }
                 }, Threading.SAME_THREAD);
             }
@@ -1125,8 +1288,7 @@ public class Peer extends PeerSocketHandler {
         }
         */
 
-        MessageIdentifier messageIdentifier = new MessageIdentifier(m.getClass(), m.getHash());
-        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(messageIdentifier);
+        boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(m.getClass(), m.getHash());
         if (!shouldProcess) return;
         
         try {
@@ -1244,17 +1406,66 @@ public class Peer extends PeerSocketHandler {
     }
 
     private boolean maybeHandleRequestedData(Message m) {
-        boolean found = false;
-        Sha256Hash hash = m.getHash();
-        for (GetDataRequest req : getDataFutures) {
-            if (hash.equals(req.hash)) {
-                req.future.set(m);
-                getDataFutures.remove(req);
-                found = true;
-                // Keep going in case there are more.
+        if (!inFlightGetData.complete(m.getHash(), m))
+            return false;
+        sendWaitingGetData();
+        return true;
+    }
+
+    // Asks for the requests which were waiting for room in flight, if there is some now.
+    private void sendWaitingGetData() {
+        sendGetData(inFlightGetData.takeSendable());
+    }
+
+    private void sendGetData(List<InFlightGetData.Request> requests) {
+        if (requests.isEmpty())
+            return;
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (InFlightGetData.Request req : requests)
+            getdata.addItem(req.item);
+        sendLowPriorityMessage(getdata);
+    }
+
+    /**
+     * Asks other peers for the items requested of this one which haven't been answered within
+     * {@link #GETDATA_TIMEOUT_MILLIS}. Called periodically by the {@link PeerGroup}.
+     */
+    void checkGetDataTimeouts() {
+        List<InFlightGetData.Request> expired = inFlightGetData.expire(GETDATA_TIMEOUT_MILLIS);
+        if (expired.isEmpty())
+            return;
+        log.info("{}: {} getdata items timed out", this, expired.size());
+        for (InFlightGetData.Request req : expired)
+            requestElsewhere(req);
+        sendWaitingGetData();
+    }
+
+    // Passes a request this peer won't answer on to another peer, or gives up on it if there's none left to ask.
+    private void requestElsewhere(InFlightGetData.Request req) {
+        if (req.item.type == InventoryItem.Type.Transaction && memoryPool != null) {
+            // It may have turned up anyway, from this peer too late or relayed by another.
+            Transaction tx = memoryPool.get(req.item.hash);
+            if (tx != null) {
+                req.future.set(tx);
+                return;
             }
         }
-        return found;
+        Peer other = null;
+        if (peerGroup != null && req.attempts + 1 < MAX_GETDATA_ATTEMPTS)
+            other = peerGroup.selectPeerForGetData(this);
+        if (other == null) {
+            log.info("{}: Giving up on {}", this, req.item);
+            req.future.cancel(true);
+            return;
+        }
+        other.requestAgain(req);
+    }
+
+    // Takes over a request another peer didn't answer, completing the same future.
+    private void requestAgain(InFlightGetData.Request req) {
+        InFlightGetData.Request retry = new InFlightGetData.Request(req.item, req.future, 0, req.attempts + 1);
+        if (inFlightGetData.add(retry))
+            sendGetData(Collections.singletonList(retry));
     }
 
     private void invokeOnBlocksDownloaded(final Block m) {
@@ -1280,8 +1491,7 @@ public class Peer extends PeerSocketHandler {
         List<InventoryItem> blocks = new LinkedList<InventoryItem>();
 
         for (InventoryItem item : items) {
-            MessageIdentifier messageIdentifier = new MessageIdentifier(inv.getClass(), item.hash);
-            boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(messageIdentifier);
+            boolean shouldProcess = peerGroup.shouldProcessReceivedMessage(inv.getClass(), item.hash);
             if (shouldProcess) {
                 switch (item.type) {
                     case Transaction:
@@ -1416,11 +1626,9 @@ public class Peer extends PeerSocketHandler {
     private ListenableFuture sendSingleGetData(GetDataMessage getdata) {
         // This does not need to be locked.
         Preconditions.checkArgument(getdata.getItems().size() == 1);
-        GetDataRequest req = new GetDataRequest();
-        req.future = SettableFuture.create();
-        req.hash = getdata.getItems().get(0).hash;
-        getDataFutures.add(req);
-        sendLowPriorityMessage(getdata);
+        InFlightGetData.Request req = new InFlightGetData.Request(getdata.getItems().get(0), 0);
+        if (inFlightGetData.add(req))
+            sendLowPriorityMessage(getdata);
         return req.future;
     }
 
@@ -1509,16 +1717,6 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
-        // For now we don't do the exponential thinning as suggested here:
-        //
-        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
-        //
-        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
-        // 100 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-        // must always put the genesis block as the first entry.
-        BlockStore store = checkNotNull(blockChain).getBlockStore();
         StoredBlock chainHead = blockChain.getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
         // Did we already make this request? If so, don't do it again.
@@ -1528,19 +1726,18 @@ public class Peer extends PeerSocketHandler {
         }
         log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                 toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
-            }
-        }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null) {
-            blockLocator.add(params.getGenesisBlock().getHash());
+        // The locator is thinned exponentially, as suggested here:
+        //
+        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
+        //
+        // so however deep a re-org, we don't end up downloading the entire chain. The chain's index finds the blocks
+        // without scanning the headers in between.
+        List<Sha256Hash> blockLocator;
+        try {
+            blockLocator = blockChain.getBlockLocator(chainHead);
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
         }
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
@@ -1683,6 +1880,29 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /** Returns how many items have been requested of this peer with getdata and not answered yet. */
+    public int getGetDataInFlightCount() {
+        return inFlightGetData.getInFlightCount();
+    }
+
+    /** Returns how many items requested of this peer are waiting for earlier getdatas to be answered. */
+    public int getGetDataWaitingCount() {
+        return inFlightGetData.getWaitingCount();
+    }
+
+    /**
+     * Sets how many items may be requested of this peer with getdata before further requests wait for answers.
+     * Defaults to {@link #DEFAULT_MAX_GETDATA_IN_FLIGHT}.
+     */
+    public void setMaxGetDataInFlight(int maxGetDataInFlight) {
+        inFlightGetData.setMaxInFlight(maxGetDataInFlight);
+        sendWaitingGetData();
+    }
+
+    public int getMaxGetDataInFlight() {
+        return inFlightGetData.getMaxInFlight();
+    }
+
     private void processPong(Pong m) {
         // Iterates over a snapshot of the list, so we can run unlocked here.
         for (PendingPing ping : pendingPings) {
@@ -1806,29 +2026,19 @@ public class Peer extends PeerSocketHandler {
     }
     
     /**
-     * Delay reading to emulate real network behavior. Used for testing purposes. 
-     * @param bytes
+     * The latency of the link to this peer in milliseconds, which is emulated on test networks on top of the time
+     * the link takes to carry each message. Netbox nodes use the distance between the two nodes, once the version
+     * handshake has told us who the peer is.
      */
-    protected void maybeDelay(Message m) {
-        try {
-            if (params instanceof RegTestParams) {
-                int delay = 0;
-                if (!(params instanceof NetboxParams)) {
-                    delay = 150 + m.getMessageSize()/10000;                    
-                } else {
-                    double DELAY_MULTIPLIER = 1.1d;
-                    double distance = 0;
-                    if (versionMessage!=null && vPeerVersionMessage!=null) {
-                        distance = NetboxParams.get().getDistance((int)versionMessage.getNonce(),(int) vPeerVersionMessage.getNonce());                        
-                    }
-                    delay = (int) (distance * DELAY_MULTIPLIER) + m.getMessageSize()/10000;                    
-                }
-                if (!(m instanceof Ping) && ! (m instanceof Pong)) log.info("About to emulate delay of {}ms", delay);
-                Thread.sleep(delay);
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+    protected long simulatedLatency() {
+        if (!(params instanceof NetboxParams))
+            return 150;
+        final double DELAY_MULTIPLIER = 1.1d;
+        double distance = 0;
+        if (versionMessage != null && vPeerVersionMessage != null) {
+            distance = NetboxParams.get().getDistance((int) versionMessage.getNonce(), (int) vPeerVersionMessage.getNonce());
         }
+        return (long) (distance * DELAY_MULTIPLIER);
     }
     
     @Override
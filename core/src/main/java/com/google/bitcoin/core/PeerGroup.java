@@ -35,18 +35,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nullable;
@@ -69,6 +67,8 @@ import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
@@ -107,8 +107,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     private static final Logger log = LoggerFactory.getLogger(PeerGroup.class);
     protected final ReentrantLock lock = Threading.lock("peergroup");
 
-    //Key=Message Identifier, Value=number of times the message was received
-    ConcurrentMap<MessageIdentifier, AtomicInteger> receivedMessages = new ConcurrentHashMap<MessageIdentifier, AtomicInteger>();
+    // Counts how many times each relayed message was received, bounded in size and age.
+    private final ReceivedMessageTracker receivedMessages = new ReceivedMessageTracker();
     
     // Addresses to try to connect to, excluding active peers.
     @GuardedBy("lock") private Queue<PeerAddress> inactives;
@@ -147,8 +147,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
+    // How often peers are checked for getdatas which went unanswered for too long, also on the ping timer.
+    private static final long GETDATA_TIMEOUT_CHECK_INTERVAL_MSEC = 1000;
 
     private final NetworkParameters params;
+    // Used to serialize broadcast messages once for all the peers they are sent to.
+    private final BitcoinSerializer serializer;
+    // Blocks we relayed lately, kept to answer getblocktxn requests that follow a cmpctxlist.
+    private final Cache<Sha256Hash, Block> recentBlocks = CacheBuilder.newBuilder().maximumSize(16).build();
+    private final Random random = new Random();
     private final AbstractBlockChain chain;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     private final CopyOnWriteArrayList<Wallet> wallets;
@@ -354,6 +361,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain, 
                      ClientConnectionManager connectionManager, boolean startServer, int serverPort, boolean acceptUdp) {
         this.params = checkNotNull(params);
+        this.serializer = new BitcoinSerializer(params);
         this.chain = chain;
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         this.wallets = new CopyOnWriteArrayList<Wallet>();
@@ -615,6 +623,24 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * Picks the peer to ask for items another peer didn't send in time: the connected peer, other than that one,
+     * with the fewest getdata items in flight and room for more. Returns null if there's none.
+     */
+    @Nullable
+    Peer selectPeerForGetData(Peer stalled) {
+        if (!isRunning())
+            return null;
+        Peer best = null;
+        for (Peer peer : peers) {
+            if (peer == stalled || peer.getGetDataInFlightCount() >= peer.getMaxGetDataInFlight())
+                continue;
+            if (best == null || peer.getGetDataInFlightCount() < best.getGetDataInFlightCount())
+                best = peer;
+        }
+        return best;
+    }
+
     /**
      * Returns a list containing Peers that did not complete connection yet.
      */
@@ -786,6 +812,19 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
         highPriorityMessagesTimer = new Timer("High priority messages timer", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                for (Peer peer : peers) {
+                    try {
+                        peer.checkGetDataTimeouts();
+                    } catch (Exception e) {
+                        // Don't let one peer stop the timer for everyone.
+                        log.warn("{}: Exception whilst checking getdata timeouts: {}", peer, e.toString());
+                    }
+                }
+            }
+        }, GETDATA_TIMEOUT_CHECK_INTERVAL_MSEC, GETDATA_TIMEOUT_CHECK_INTERVAL_MSEC);
         channels.startAsync();
         channels.awaitRunning();
         if (startServer) {
@@ -1524,16 +1563,20 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                                  boolean includePeersNotSupportingHighPriorityMessages,
                                  Peer peerToSkip, 
                                  Sha256Hash skipPeersWhichAlreadyReceivedThisHeader) {
+        // Serialized at most once, the first time a peer needs it, and then shared by all the peers.
+        SerializedMessage serializedMessage = null;
         for (Peer peer : peers) {
             try {
                 if (peerToSkip!=null && peer.equals(peerToSkip)) continue;
                 if (skipPeersWhichAlreadyReceivedThisHeader!=null && peer.knowsAboutHeader(skipPeersWhichAlreadyReceivedThisHeader)) continue;
                 if (!includePeersSupportingHighPriorityMessages && peer.getPeerVersionMessage().acceptUdp()) continue;
                 if (!includePeersNotSupportingHighPriorityMessages && !peer.getPeerVersionMessage().acceptUdp()) continue;
+                if (serializedMessage == null)
+                    serializedMessage = serializer.serialize(message);
                 if (highPriority) {
-                    peer.sendHighPriorityMessage(message);                        
+                    peer.sendHighPriorityMessage(serializedMessage);
                 } else {
-                    peer.sendLowPriorityMessage(message);                        
+                    peer.sendLowPriorityMessage(serializedMessage);
                 }
             } catch (Exception e) {
                 log.error("Caught exception sending {} to {}", message, peer, e);
@@ -1548,9 +1591,44 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public void broadcastMinedBlock(Block block) {
         final PushHeader pushHeader = new PushHeader(params, block.cloneAsHeader());
         broadcastPushHeader(pushHeader, null);
-        //Broadcast PushTransactionList
-        PushTransactionList pushTransactionList = new PushTransactionList(params, block);
-        broadcastLowPriorityMessage(pushTransactionList, null);
+        broadcastTransactionList(block, null);
+    }
+
+    /**
+     * Sends the transaction list of the block to all the peers but peerToSkip: a cmpctxlist to the peers that
+     * support it and a pushtxlist to the others. Each message is serialized once. The block is remembered for a while
+     * so peers can ask for the transactions they miss with getblocktxn.
+     */
+    public void broadcastTransactionList(Block block, Peer peerToSkip) {
+        recentBlocks.put(block.getHash(), block);
+        SerializedMessage compactTransactionList = null;
+        SerializedMessage pushTransactionList = null;
+        for (Peer peer : peers) {
+            try {
+                if (peerToSkip!=null && peer.equals(peerToSkip)) continue;
+                if (peer.getPeerVersionMessage().supportsCompactTransactionLists()) {
+                    if (compactTransactionList == null)
+                        compactTransactionList = serializer.serialize(
+                                new CompactTransactionList(params, block, random.nextLong()));
+                    peer.sendLowPriorityMessage(compactTransactionList);
+                } else {
+                    if (pushTransactionList == null)
+                        pushTransactionList = serializer.serialize(new PushTransactionList(params, block));
+                    peer.sendLowPriorityMessage(pushTransactionList);
+                }
+            } catch (Exception e) {
+                log.error("Caught exception sending transaction list of block {} to {}", block.getHash(), peer, e);
+            }
+        }
+    }
+
+    /**
+     * Returns a block recently relayed with {@link #broadcastTransactionList(Block, Peer)}, or null if it is not
+     * known (anymore).
+     */
+    @Nullable
+    public Block getRecentlyBroadcastBlock(Sha256Hash hash) {
+        return recentBlocks.getIfPresent(hash);
     }
 
     public void broadcastPushHeader(final PushHeader pushHeader, final Peer peerToSkip) {
@@ -1740,11 +1818,23 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     }
     
     public boolean shouldProcessReceivedMessage(MessageIdentifier messageIdentifier) {
-        receivedMessages.putIfAbsent(messageIdentifier, new AtomicInteger(0));
-        int numberOfTimesTheMessageWasReceived = receivedMessages.get(messageIdentifier).incrementAndGet();
+        return shouldProcessReceivedMessage(messageIdentifier.getMessageClass(), messageIdentifier.getHash());
+    }
+
+    /**
+     * Records that a message of the given type and hash was received and returns whether it should be processed and
+     * relayed. Only the 1st, 8th, 16th, 32nd... copies are processed.
+     */
+    public boolean shouldProcessReceivedMessage(Class<? extends Message> messageClass, Sha256Hash hash) {
+        int numberOfTimesTheMessageWasReceived = receivedMessages.recordReceived(messageClass, hash);
         // if numberOfTimesTheMessageWasReceived is power of 2, process message
         boolean isPowerOf2 = Utils.isPowerOf2(numberOfTimesTheMessageWasReceived);        
         return isPowerOf2 && numberOfTimesTheMessageWasReceived!=2 && numberOfTimesTheMessageWasReceived!=4;
     }
+
+    /** Returns the table used to de-duplicate received messages, which exposes hit rate and eviction counts. */
+    public ReceivedMessageTracker getReceivedMessageTracker() {
+        return receivedMessages;
+    }
     
 }
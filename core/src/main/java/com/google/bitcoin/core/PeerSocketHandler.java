@@ -20,7 +20,6 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -51,6 +50,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     private boolean closePending = false;
     // writeTarget will be thread-safe, and may call into PeerGroup, which calls us, so we should call it unlocked
     @VisibleForTesting protected MessageWriteTarget writeTarget = null;
+    // Whether high priority messages go over UDP, which takes a UDP socket at both ends
+    private volatile boolean highPriorityOverUdp = false;
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
@@ -77,45 +78,98 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public void sendLowPriorityMessage(Message message) throws NotYetConnectedException {
-        lock.lock();
+        checkConnected();
         try {
-            if (writeTarget == null)
-                throw new NotYetConnectedException();
-        } finally {
-            lock.unlock();
+            sendLowPriorityMessage(serializer.serialize(message));
+        } catch (IOException e) {
+            exceptionCaught(e);
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Sends a message that was already serialized, typically because it is being broadcast to many peers. Throws
+     * NotYetConnectedException if we are not yet connected to the remote peer.
+     */
+    public void sendLowPriorityMessage(SerializedMessage message) throws NotYetConnectedException {
+        checkConnected();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeLowPriorityBytes(out.toByteArray());
-            if (!(message instanceof Ping) && ! (message instanceof Pong)) log.info("{}: Sent {}", this, message.getClass());
+            Message m = message.getMessage();
+            // Announcements are the first thing to go when the peer cannot keep up, it can still ask for what it
+            // missed when it sees it announced by someone else.
+            if (m instanceof InventoryMessage) {
+                if (!writeTarget.writeExpendableBytes(message.getBytes())) {
+                    log.debug("{}: Dropped {}, {} bytes already queued", this, m.getClass(), writeTarget.getQueuedBytes());
+                    return;
+                }
+            } else {
+                writeTarget.writeLowPriorityBytes(message.getBytes());
+            }
+            if (!(m instanceof Ping) && ! (m instanceof Pong)) log.info("{}: Sent {}", this, m.getClass());
         } catch (IOException e) {
             exceptionCaught(e);
         }
     }
 
-
     public void sendHighPriorityMessage(Message message) throws NotYetConnectedException {
+        checkConnected();
+        try {
+            sendHighPriorityMessage(serializer.serialize(message));
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
+    /**
+     * Sends a message that was already serialized over UDP, or over TCP like any other message if either end has no
+     * UDP socket. Throws NotYetConnectedException if we are not yet connected to the remote peer.
+     */
+    public void sendHighPriorityMessage(SerializedMessage message) throws NotYetConnectedException {
+        checkConnected();
+        if (!highPriorityOverUdp) {
+            sendLowPriorityMessage(message);
+            return;
+        }
+        try {
+            writeTarget.writeHighPriorityBytes(message.getHighPriorityBytes(getSelfNodeId()));
+            log.info("{}: UDP Sent {}", this, message.getMessage().getClass());
+        } catch (IOException e) {
+            exceptionCaught(e);
+        }
+    }
+
+    /**
+     * Tells the write target which UDP port the remote peer takes high priority messages on. They are sent over TCP
+     * until then, and for good if the write target has no UDP socket.
+     */
+    protected void setRemoteUDPPort(int udpPort, long remoteNodeId) throws IOException {
+        highPriorityOverUdp = writeTarget.setUDPPort(udpPort, remoteNodeId);
+    }
+
+    /**
+     * Returns the number of bytes sent to the peer which are still waiting to be written to its socket, 0 if not
+     * connected yet.
+     */
+    public long getSendQueueBytes() {
+        MessageWriteTarget target;
         lock.lock();
         try {
-            if (writeTarget == null)
-                throw new NotYetConnectedException();
+            target = writeTarget;
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return target == null ? 0 : target.getQueuedBytes();
+    }
+
+    private void checkConnected() throws NotYetConnectedException {
+        lock.lock();
         try {
-            Utils.int64ToByteStreamLE(getSelfNodeId(), out);
-            serializer.serialize(message, out);
-            writeTarget.writeHighPriorityBytes(out.toByteArray());
-            log.info("{}: UDP Sent {}", this, message.getClass());
-        } catch (IOException e) {
-            exceptionCaught(e);
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
         }
     }
-    
+
     protected abstract long getSelfNodeId();
     
     /**
@@ -217,20 +271,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
     
     @Override
-    public void receiveHighPriorityBytes(byte[] bytes, int offset, int length) {
+    public void receiveHighPriorityBytes(long nodeId, ByteBuffer buff) throws ProtocolException, IOException {
+        // A bad datagram is dropped by the caller, anyone can send one so it is no reason to close the connection.
+        Message message = serializer.deserialize(buff);
         try {
-            long nodeId = Utils.readInt64(bytes, offset);
-            offset = offset + 6;
-            length = length - 6;
-            ByteBuffer buff = ByteBuffer.allocateDirect(65536);
-            buff.put(bytes, offset, length);
-            buff.flip();            
-            Message message = serializer.deserialize(buff);
             processHighPriorityMessage(nodeId, message);
         } catch (Exception e) {
             exceptionCaught(e);
         }
-        
     }
 
 
@@ -268,7 +316,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
 
     /** Catch any exceptions, logging them and then closing the channel. */
-    private void exceptionCaught(Exception e) {
+    protected void exceptionCaught(Exception e) {
         PeerAddress addr = getAddress();
         String s = addr == null ? "?" : addr.toString();
         if (e instanceof ConnectException || e instanceof IOException) {
@@ -0,0 +1,199 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Counts how many times each relayed item (a pushheader, pushtxlist, tx, inv item or header, identified by its
+ * message type and hash) has been received from the network, so {@link PeerGroup} can decide which copies to
+ * process and relay.</p>
+ *
+ * <p>The table is bounded both in size and in time: entries older than the configured maximum age are expired, and
+ * once the maximum size is reached the oldest entry is evicted. An item that falls out of the table is counted again
+ * from one if it is seen later. Lookups do not allocate once an item is known, entries are keyed on the hash alone
+ * and hold a small per message type counter array.</p>
+ */
+public class ReceivedMessageTracker {
+    /** The max number of hashes tracked by a tracker created with the no-args constructor. */
+    public static final int DEFAULT_MAX_SIZE = 200000;
+    /** How long an entry is kept by a tracker created with the no-args constructor. */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("receivedmessages");
+
+    private static class Entry {
+        final long firstSeenMillis;
+        // Parallel arrays, almost always of length one or two (eg a tx and the inv announcing it share a hash).
+        Class<?>[] types;
+        int[] counts;
+
+        Entry(long firstSeenMillis, Class<?> type) {
+            this.firstSeenMillis = firstSeenMillis;
+            this.types = new Class<?>[] { type };
+            this.counts = new int[] { 0 };
+        }
+
+        int increment(Class<?> type) {
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == type)
+                    return ++counts[i];
+            }
+            types = Arrays.copyOf(types, types.length + 1);
+            counts = Arrays.copyOf(counts, counts.length + 1);
+            types[types.length - 1] = type;
+            return counts[counts.length - 1] = 1;
+        }
+    }
+
+    // Insertion ordered, so the eldest entry is always the first one to expire.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Entry> entries;
+    private final long maxAgeMillis;
+
+    @GuardedBy("lock") private long hits, misses, evictions, expirations;
+
+    /**
+     * Creates a tracker that will remember at most the given number of hashes, each for at most the given time.
+     * @param maxSize Max number of hashes to track. The oldest hash is evicted when a new one would exceed this.
+     * @param maxAgeMillis How long a hash is remembered after it was first seen.
+     */
+    public ReceivedMessageTracker(final int maxSize, long maxAgeMillis) {
+        checkArgument(maxSize > 0);
+        checkArgument(maxAgeMillis > 0);
+        this.maxAgeMillis = maxAgeMillis;
+        this.entries = new LinkedHashMap<Sha256Hash, Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Creates a tracker using {@link ReceivedMessageTracker#DEFAULT_MAX_SIZE} and
+     * {@link ReceivedMessageTracker#DEFAULT_MAX_AGE_MILLIS}.
+     */
+    public ReceivedMessageTracker() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Records that an item of the given message type and hash was received and returns how many times it has been
+     * received so far, including this one.
+     */
+    public int recordReceived(Class<? extends Message> messageClass, Sha256Hash hash) {
+        long now = Utils.currentTimeMillis();
+        lock.lock();
+        try {
+            expire(now);
+            Entry entry = entries.get(hash);
+            if (entry == null) {
+                entry = new Entry(now, messageClass);
+                entries.put(hash, entry);
+            }
+            int count = entry.increment(messageClass);
+            if (count == 1)
+                misses++;
+            else
+                hits++;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void expire(long now) {
+        long cutoff = now - maxAgeMillis;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().firstSeenMillis > cutoff)
+                break;
+            it.remove();
+            expirations++;
+        }
+    }
+
+    /** Returns the number of hashes currently tracked. */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many received items had already been seen before. */
+    public long getHits() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many received items were seen for the first time (or again after being evicted or expired). */
+    public long getMisses() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the fraction of received items that had already been seen, or zero if nothing was received yet. */
+    public double getHitRate() {
+        lock.lock();
+        try {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many hashes were dropped because the table was full. */
+    public long getEvictions() {
+        lock.lock();
+        try {
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many hashes were dropped because they were older than the maximum age. */
+    public long getExpirations() {
+        lock.lock();
+        try {
+            return expirations;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("ReceivedMessageTracker: %d entries, %d hits, %d misses, %d evictions, %d expirations",
+                    entries.size(), hits, misses, evictions, expirations);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
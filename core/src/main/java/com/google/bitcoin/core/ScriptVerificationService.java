@@ -0,0 +1,294 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs the scripts of a block's inputs on a fixed set of threads which live as long as the service does. The inputs
+ * of a block are added to a {@link Batch} as they are connected and handed to the threads in chunks, a few per thread,
+ * so a block of small transactions costs a handful of tasks rather than one per transaction. As soon as one input
+ * fails to verify, the rest of the block is skipped.</p>
+ *
+ * <p>A {@link FullPrunedBlockChain} owns one of these and shuts it down when it's closed. This class is thread safe,
+ * but a batch must only be used by the thread which created it.</p>
+ */
+public class ScriptVerificationService {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationService.class);
+
+    /** How many chunks each thread gets per block, so that threads which finish early can take work from slow ones. */
+    static final int CHUNKS_PER_THREAD = 4;
+
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong blocksVerified = new AtomicLong();
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicLong totalVerificationNanos = new AtomicLong();
+    private volatile long lastBlockVerificationNanos;
+
+    /** Creates a service with one verification thread per available processor. */
+    public ScriptVerificationService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a service with the given number of verification threads. */
+    public ScriptVerificationService(int threads) {
+        checkArgument(threads > 0);
+        this.threads = threads;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Script verification thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), builder.build());
+    }
+
+    /**
+     * Starts collecting the inputs of a block which has the given number of inputs in total. The count only decides
+     * how big the chunks are, so it needn't be exact.
+     */
+    public Batch newBatch(int expectedInputs) {
+        checkState(!executor.isShutdown(), "Script verification service has been shut down");
+        int chunkSize = Math.max(1, (expectedInputs + threads * CHUNKS_PER_THREAD - 1) / (threads * CHUNKS_PER_THREAD));
+        return new Batch(chunkSize);
+    }
+
+    /** Returns the number of chunks of inputs waiting for a verification thread. */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns how long the last block took to verify, in nanoseconds: the time from its first inputs being handed to
+     * the threads until all of them were verified.
+     */
+    public long getLastBlockVerificationNanos() {
+        return lastBlockVerificationNanos;
+    }
+
+    /** Returns the total of {@link #getLastBlockVerificationNanos()} over every block verified so far. */
+    public long getTotalVerificationNanos() {
+        return totalVerificationNanos.get();
+    }
+
+    /** Returns the number of blocks whose inputs all verified. */
+    public long getBlocksVerified() {
+        return blocksVerified.get();
+    }
+
+    /** Returns the number of inputs in blocks whose inputs all verified. */
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    /** Returns the number of verification threads. */
+    public int getThreadCount() {
+        return threads;
+    }
+
+    /**
+     * Stops the verification threads, abandoning any chunks which haven't started yet. After this no more batches
+     * can be created, and batches still in use throw {@link IllegalStateException} from {@link Batch#add} and
+     * {@link Batch#verify()}.
+     */
+    public void shutdown() {
+        // The queued chunks are the futures batches wait on, so they must be cancelled or verify() would wait forever.
+        for (Runnable chunk : executor.shutdownNow())
+            ((Future<?>) chunk).cancel(false);
+    }
+
+    /** Returns true once {@link #shutdown()} has been called. */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * The inputs of one block. Inputs are added with {@link #add(Transaction, List, boolean)} and start being verified
+     * once a chunk of them has built up. {@link #verify()} waits for the rest, and {@link #cancel()} gives up on them.
+     */
+    public class Batch {
+        private final int chunkSize;
+        private final List<Future<?>> futures = new ArrayList<Future<?>>();
+        // Set by the first input which fails, or by cancel(). Chunks check it before every input.
+        private final AtomicReference<VerificationException> failure = new AtomicReference<VerificationException>();
+
+        private List<Transaction> txns;
+        private List<Integer> indexes;
+        private List<Script> scripts;
+        private List<Boolean> enforcePayToScriptHash;
+        private int inputs;
+        private long startNanos;
+        private boolean done;
+
+        private Batch(int chunkSize) {
+            this.chunkSize = chunkSize;
+            newChunk();
+        }
+
+        private void newChunk() {
+            txns = new ArrayList<Transaction>(chunkSize);
+            indexes = new ArrayList<Integer>(chunkSize);
+            scripts = new ArrayList<Script>(chunkSize);
+            enforcePayToScriptHash = new ArrayList<Boolean>(chunkSize);
+        }
+
+        /**
+         * Adds every input of the given transaction, which spend the given scripts in order. The transaction and
+         * scripts are read from the verification threads, so mustn't be changed until the batch is done.
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, boolean enforcePayToScriptHash) {
+            checkState(!done);
+            checkArgument(prevOutScripts.size() == tx.getInputs().size());
+            for (int index = 0; index < prevOutScripts.size(); index++) {
+                txns.add(tx);
+                indexes.add(index);
+                scripts.add(prevOutScripts.get(index));
+                this.enforcePayToScriptHash.add(enforcePayToScriptHash);
+                if (txns.size() >= chunkSize)
+                    submit();
+            }
+        }
+
+        private void submit() {
+            if (txns.isEmpty())
+                return;
+            if (futures.isEmpty())
+                startNanos = System.nanoTime();
+            inputs += txns.size();
+            try {
+                futures.add(executor.submit(new Chunk(txns, indexes, scripts, enforcePayToScriptHash, failure)));
+            } catch (RejectedExecutionException e) {
+                cancel();
+                throw new IllegalStateException("Script verification service has been shut down", e);
+            }
+            newChunk();
+        }
+
+        /**
+         * Waits for every input added to be verified, throwing the exception of the first one which failed. Inputs
+         * which hadn't been verified by then are skipped.
+         */
+        public void verify() throws VerificationException {
+            checkState(!done);
+            submit();
+            done = true;
+            try {
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        // Chunks catch everything themselves, so this is a bug in this class.
+                        throw new RuntimeException(e.getCause());
+                    } catch (CancellationException e) {
+                        // Only shutdown() cancels the chunks of a batch still being verified.
+                        cancel();
+                        throw new IllegalStateException("Script verification service has been shut down", e);
+                    }
+                    if (failure.get() != null)
+                        break;
+                }
+            } catch (InterruptedException e) {
+                cancel();
+                throw new RuntimeException(e);  // Shouldn't happen
+            }
+            VerificationException e = failure.get();
+            if (e != null) {
+                cancelRemaining();
+                throw e;
+            }
+            if (futures.isEmpty())
+                return;
+            long nanos = System.nanoTime() - startNanos;
+            lastBlockVerificationNanos = nanos;
+            totalVerificationNanos.addAndGet(nanos);
+            blocksVerified.incrementAndGet();
+            inputsVerified.addAndGet(inputs);
+        }
+
+        /** Abandons the batch, for when the block failed for some other reason before {@link #verify()}. */
+        public void cancel() {
+            done = true;
+            failure.compareAndSet(null, new VerificationException("Script verification cancelled"));
+            cancelRemaining();
+        }
+
+        private void cancelRemaining() {
+            // Chunks already running notice the failure and stop at their next input.
+            for (Future<?> future : futures)
+                future.cancel(false);
+        }
+    }
+
+    /** A run of inputs verified by one task. */
+    private static class Chunk implements Runnable {
+        private final List<Transaction> txns;
+        private final List<Integer> indexes;
+        private final List<Script> scripts;
+        private final List<Boolean> enforcePayToScriptHash;
+        private final AtomicReference<VerificationException> failure;
+
+        private Chunk(List<Transaction> txns, List<Integer> indexes, List<Script> scripts,
+                      List<Boolean> enforcePayToScriptHash, AtomicReference<VerificationException> failure) {
+            this.txns = txns;
+            this.indexes = indexes;
+            this.scripts = scripts;
+            this.enforcePayToScriptHash = enforcePayToScriptHash;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < txns.size(); i++) {
+                if (failure.get() != null)
+                    return;
+                Transaction tx = txns.get(i);
+                int index = indexes.get(i);
+                try {
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, scripts.get(i),
+                            enforcePayToScriptHash.get(i));
+                } catch (VerificationException e) {
+                    fail(e);
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                    fail(new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+                    return;
+                }
+            }
+        }
+
+        private void fail(VerificationException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+}
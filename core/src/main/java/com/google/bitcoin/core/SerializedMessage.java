@@ -0,0 +1,66 @@
+package com.google.bitcoin.core;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link Message} that has already been serialized to the wire format (magic, command, length, checksum and
+ * payload), so it can be written to any number of peers without running the {@link BitcoinSerializer} and
+ * recomputing the checksum once per peer. Obtain one with {@link BitcoinSerializer#serialize(Message)}.</p>
+ *
+ * <p>The wire bytes are shared between every connection the message is written to and must never be modified.</p>
+ */
+public class SerializedMessage {
+    private static final int NODE_ID_LENGTH = 8;
+
+    private final Message message;
+    private final byte[] bytes;
+
+    private static class Datagram {
+        final long nodeId;
+        final byte[] bytes;
+
+        Datagram(long nodeId, byte[] bytes) {
+            this.nodeId = nodeId;
+            this.bytes = bytes;
+        }
+    }
+
+    // The datagram last built by getHighPriorityBytes. Every peer of a PeerGroup sends with the same node id, so in
+    // practice it is built once per broadcast.
+    private volatile Datagram lastDatagram;
+
+    SerializedMessage(Message message, byte[] bytes) {
+        this.message = checkNotNull(message);
+        this.bytes = checkNotNull(bytes);
+    }
+
+    /** Returns the message that was serialized. */
+    public Message getMessage() {
+        return message;
+    }
+
+    /** Returns the wire bytes of the message. The array is shared and must not be modified. */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes of the UDP datagram carrying this message: the sender's node id followed by the wire bytes.
+     * The array is shared and must not be modified.
+     */
+    public byte[] getHighPriorityBytes(long nodeId) {
+        Datagram datagram = lastDatagram;
+        if (datagram != null && datagram.nodeId == nodeId)
+            return datagram.bytes;
+        byte[] out = new byte[NODE_ID_LENGTH + bytes.length];
+        Utils.uint64ToByteArrayLE(nodeId, out, 0);
+        System.arraycopy(bytes, 0, out, NODE_ID_LENGTH, bytes.length);
+        lastDatagram = new Datagram(nodeId, out);
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return "Serialized " + message.getClass().getSimpleName() + " (" + bytes.length + " bytes)";
+    }
+}
@@ -0,0 +1,182 @@
+package com.google.bitcoin.core;
+
+import java.io.OutputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Computes SHA-256 and double SHA-256 hashes without any lock shared between threads. Every thread keeps a small
+ * pool of SHA-256 engines, so hashing from the network threads, the script verification threads and the miner runs
+ * in parallel instead of queueing on a single {@link MessageDigest}.</p>
+ *
+ * <p>The static methods hash byte ranges in one go. For data that is produced piece by piece, get a hasher with
+ * {@link #newHasher()}, feed it through the {@link OutputStream} methods (for instance by serializing a message
+ * straight into it) and finish it with {@link #digest()} or {@link #doubleDigest()}. This avoids concatenating the
+ * pieces into a temporary buffer. A hasher gives its engine back to the pool when it is finished and must not be
+ * used afterwards. Hashers are not thread safe but they can be nested: a hasher obtained while another one is in use
+ * on the same thread gets its own engine.</p>
+ */
+public class Sha256Hasher extends OutputStream {
+    public static final int DIGEST_LENGTH = 32;
+
+    // Engines kept by each thread. More than one is only needed when hashers are nested.
+    private static final int MAX_POOLED_ENGINES = 4;
+
+    private static final MessageDigest prototype;
+    private static final boolean cloneable;
+    static {
+        try {
+            prototype = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+        boolean canClone;
+        try {
+            prototype.clone();
+            canClone = true;
+        } catch (CloneNotSupportedException e) {
+            canClone = false;
+        }
+        cloneable = canClone;
+    }
+
+    private static final ThreadLocal<MessageDigest[]> pools = new ThreadLocal<MessageDigest[]>() {
+        @Override
+        protected MessageDigest[] initialValue() {
+            return new MessageDigest[MAX_POOLED_ENGINES];
+        }
+    };
+
+    private MessageDigest engine;
+
+    private Sha256Hasher(MessageDigest engine) {
+        this.engine = engine;
+    }
+
+    /** Returns a new hasher using an engine from the pool of the calling thread. */
+    public static Sha256Hasher newHasher() {
+        return new Sha256Hasher(acquire());
+    }
+
+    /** Takes a reset engine from the pool of the calling thread, creating one if the pool is empty. */
+    static MessageDigest acquire() {
+        MessageDigest[] pool = pools.get();
+        for (int i = pool.length - 1; i >= 0; i--) {
+            MessageDigest engine = pool[i];
+            if (engine != null) {
+                pool[i] = null;
+                return engine;
+            }
+        }
+        return newEngine();
+    }
+
+    /** Gives an engine obtained from {@link #acquire()} back to the pool of the calling thread. */
+    static void release(MessageDigest engine) {
+        engine.reset();
+        MessageDigest[] pool = pools.get();
+        for (int i = 0; i < pool.length; i++) {
+            if (pool[i] == null) {
+                pool[i] = engine;
+                return;
+            }
+        }
+    }
+
+    private static MessageDigest newEngine() {
+        try {
+            if (cloneable)
+                return (MessageDigest) prototype.clone();
+            return MessageDigest.getInstance("SHA-256");
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);  // Can't happen, checked above.
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        checkState(engine != null, "Hasher already finished");
+        engine.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        checkState(engine != null, "Hasher already finished");
+        engine.update(b, off, len);
+    }
+
+    /** Returns the SHA-256 hash of everything written and finishes the hasher. */
+    public byte[] digest() {
+        checkState(engine != null, "Hasher already finished");
+        byte[] result = engine.digest();
+        finish();
+        return result;
+    }
+
+    /** Returns the SHA-256 hash of the SHA-256 hash of everything written and finishes the hasher. */
+    public byte[] doubleDigest() {
+        checkState(engine != null, "Hasher already finished");
+        byte[] result = engine.digest(engine.digest());
+        finish();
+        return result;
+    }
+
+    private void finish() {
+        release(engine);
+        engine = null;
+    }
+
+    /** Calculates the SHA-256 hash of the given byte range. */
+    public static byte[] digest(byte[] input, int offset, int length) {
+        MessageDigest engine = acquire();
+        engine.update(input, offset, length);
+        byte[] result = engine.digest();
+        release(engine);
+        return result;
+    }
+
+    /** Calculates the SHA-256 hash of the SHA-256 hash of the given byte range. */
+    public static byte[] doubleDigest(byte[] input, int offset, int length) {
+        MessageDigest engine = acquire();
+        engine.update(input, offset, length);
+        byte[] result = engine.digest(engine.digest());
+        release(engine);
+        return result;
+    }
+
+    /** Calculates the SHA-256 hash of the SHA-256 hash of the concatenation of the two byte ranges. */
+    public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                                byte[] input2, int offset2, int length2) {
+        MessageDigest engine = acquire();
+        engine.update(input1, offset1, length1);
+        engine.update(input2, offset2, length2);
+        byte[] result = engine.digest(engine.digest());
+        release(engine);
+        return result;
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the concatenation of the two byte ranges into output at outputOffset,
+     * without allocating. The output may overlap the inputs.
+     */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                              byte[] input2, int offset2, int length2,
+                                              byte[] output, int outputOffset) {
+        MessageDigest engine = acquire();
+        try {
+            engine.update(input1, offset1, length1);
+            engine.update(input2, offset2, length2);
+            engine.digest(output, outputOffset, DIGEST_LENGTH);
+            engine.update(output, outputOffset, DIGEST_LENGTH);
+            engine.digest(output, outputOffset, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // The output range is shorter than a digest.
+        }
+        release(engine);
+    }
+}
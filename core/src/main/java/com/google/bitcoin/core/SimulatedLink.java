@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Holds back the messages received over one connection to emulate the latency and bandwidth of a real network link,
+ * for test networks. A message is delivered once the link would have finished carrying it, after every message before
+ * it, plus the latency of the link. So a message queued behind a big block waits for the block's bytes but not for the
+ * block's latency a second time, as it would if each message were delayed on its own.</p>
+ *
+ * <p>Nothing blocks while messages wait: they are handed to the {@link Receiver} from a small pool of threads shared by
+ * all links, in the order they were received and never more than one at a time for the same link.</p>
+ */
+public class SimulatedLink {
+    private static final Logger log = LoggerFactory.getLogger(SimulatedLink.class);
+
+    /** How fast a link carries messages, in bytes per millisecond (10MB/sec). */
+    public static final int DEFAULT_BYTES_PER_MILLISECOND = 10000;
+
+    /** Receives the messages of a link once they arrive. Shouldn't throw, exceptions are logged and dropped. */
+    public interface Receiver {
+        void receive(Message message);
+    }
+
+    private static final ScheduledThreadPoolExecutor scheduler;
+    static {
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Simulated link thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        scheduler = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), builder.build());
+    }
+
+    private static class Pending {
+        final Message message;
+        final long deliverAtNanos;
+
+        Pending(Message message, long deliverAtNanos) {
+            this.message = message;
+            this.deliverAtNanos = deliverAtNanos;
+        }
+    }
+
+    private final Receiver receiver;
+    private final long nanosPerByte;
+
+    private final ReentrantLock lock = Threading.lock("SimulatedLink");
+    // When the link has finished carrying the messages received so far.
+    @GuardedBy("lock") private long busyUntilNanos = System.nanoTime();
+    @GuardedBy("lock") private long lastDeliveryNanos;
+    @GuardedBy("lock") private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+    // Whether a thread is handing messages to the receiver, in which case it will also take any others that are due.
+    @GuardedBy("lock") private boolean delivering;
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliverDue();
+        }
+    };
+
+    /** Creates a link which carries {@link #DEFAULT_BYTES_PER_MILLISECOND}. */
+    public SimulatedLink(Receiver receiver) {
+        this(receiver, DEFAULT_BYTES_PER_MILLISECOND);
+    }
+
+    public SimulatedLink(Receiver receiver, int bytesPerMillisecond) {
+        checkArgument(bytesPerMillisecond > 0);
+        this.receiver = receiver;
+        this.nanosPerByte = Math.max(1, TimeUnit.MILLISECONDS.toNanos(1) / bytesPerMillisecond);
+    }
+
+    /**
+     * Queues a message which has just been received, to be delivered once the link has carried it and the given
+     * latency has passed.
+     */
+    public void send(Message message, long latencyMillis) {
+        long now = System.nanoTime();
+        long deliverAt;
+        lock.lock();
+        try {
+            busyUntilNanos = Math.max(now, busyUntilNanos) + message.getMessageSize() * nanosPerByte;
+            // Latency may change between messages (it isn't known until the version handshake), but order may not.
+            deliverAt = Math.max(busyUntilNanos + TimeUnit.MILLISECONDS.toNanos(latencyMillis), lastDeliveryNanos);
+            lastDeliveryNanos = deliverAt;
+            pending.add(new Pending(message, deliverAt));
+        } finally {
+            lock.unlock();
+        }
+        scheduler.schedule(deliver, deliverAt - now, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the number of messages received but not delivered yet. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deliverDue() {
+        lock.lock();
+        try {
+            if (delivering)
+                return;
+            delivering = true;
+        } finally {
+            lock.unlock();
+        }
+        while (true) {
+            Message message;
+            lock.lock();
+            try {
+                Pending next = pending.peek();
+                // Checked under the lock, so a message falling due now is either seen here or finds delivering unset.
+                if (next == null || next.deliverAtNanos - System.nanoTime() > 0) {
+                    delivering = false;
+                    return;
+                }
+                pending.poll();
+                message = next.message;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                receiver.receive(message);
+            } catch (RuntimeException e) {
+                log.error("Receiver threw delivering " + message.getClass().getSimpleName(), e);
+            }
+        }
+    }
+}
@@ -18,7 +18,9 @@
 package com.google.bitcoin.core;
 
 import java.io.Serializable;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Contains minimal data neccessary to disconnect/connect the transactions
@@ -64,6 +66,24 @@ public class StoredUndoableBlock implements Serializable {
         return transactions;
     }
     
+    /**
+     * Get the hashes of the transactions this block uses: those it contains, and those whose outputs it creates or
+     * spends according to its transaction output changes.
+     */
+    public Set<Sha256Hash> getTransactionHashes() {
+        Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
+        if (transactions != null)
+            for (Transaction tx : transactions)
+                hashes.add(tx.getHash());
+        if (txOutChanges != null) {
+            for (StoredTransactionOutput out : txOutChanges.txOutsCreated)
+                hashes.add(out.getHash());
+            for (StoredTransactionOutput out : txOutChanges.txOutsSpent)
+                hashes.add(out.getHash());
+        }
+        return hashes;
+    }
+
     /**
      * Get the hash of the represented block
      */
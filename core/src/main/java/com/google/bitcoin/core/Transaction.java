@@ -31,6 +31,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -113,6 +114,10 @@ public class Transaction extends ChildMessage implements Serializable {
     // This is an in memory helper only.
     private transient Sha256Hash hash;
 
+    // What the signature hashes of all inputs have in common, built when the first one is calculated and dropped
+    // whenever the transaction changes. See SigHashCache.
+    private transient volatile SigHashCache sigHashCache;
+
     // Data about how confirmed this tx is. Serialized, may be null. 
     private TransactionConfidence confidence;
 
@@ -458,6 +463,7 @@ public class Transaction extends ChildMessage implements Serializable {
     protected void unCache() {
         super.unCache();
         hash = null;
+        sigHashCache = null;
     }
 
     protected void parseLite() throws ProtocolException {
@@ -945,8 +951,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript,
-                                                    SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript,
+                                      SigHash type, boolean anyoneCanPay) {
         byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
         return hashForSignature(inputIndex, connectedScript, sigHashType);
     }
@@ -963,8 +969,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, Script connectedScript,
-                                                    SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashForSignature(int inputIndex, Script connectedScript,
+                                      SigHash type, boolean anyoneCanPay) {
         int sigHash = TransactionSignature.calcSigHashValue(type, anyoneCanPay);
         return hashForSignature(inputIndex, connectedScript.getProgram(), (byte) sigHash);
     }
@@ -973,107 +979,217 @@ public class Transaction extends ChildMessage implements Serializable {
      * This is required for signatures which use a sigHashType which cannot be represented using SigHash and anyoneCanPay
      * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
         // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
-
-        try {
-            // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
+        //
+        // The reference client builds the simplified transaction by modifying a copy of it. We don't modify anything,
+        // instead the simplified form is written straight into the hasher from a SigHashCache, so this needs no lock
+        // and any number of inputs can be hashed at once, for instance by the script verification threads.
+        SigHashCache cache = getSigHashCache();
+        checkElementIndex(inputIndex, cache.inputCount);
+
+        // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        int mode = sigHashType & 0x1f;
+        boolean anyoneCanPay = (sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE;
+        if (mode == SigHash.SINGLE.ordinal() + 1 && inputIndex >= cache.outputCount) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. The reference client also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
             //
-            // Also store the input sequence numbers in case we are clearing them with SigHash.NONE/SINGLE
-            byte[][] inputScripts = new byte[inputs.size()][];
-            long[] inputSequenceNumbers = new long[inputs.size()];
-            for (int i = 0; i < inputs.size(); i++) {
-                inputScripts[i] = inputs.get(i).getScriptBytes();
-                inputSequenceNumbers[i] = inputs.get(i).getSequenceNumber();
-                inputs.get(i).setScriptBytes(TransactionInput.EMPTY_ARRAY);
-            }
+            // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            //
+            // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+            return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        }
+        if (mode != SigHash.NONE.ordinal() + 1 && mode != SigHash.SINGLE.ordinal() + 1 && !anyoneCanPay)
+            return cache.hashForAll(inputIndex, connectedScript, sigHashType);
+        return cache.hashForContract(inputIndex, connectedScript, sigHashType, mode, anyoneCanPay);
+    }
+
+    private SigHashCache getSigHashCache() {
+        SigHashCache cache = sigHashCache;
+        if (cache == null) {
+            maybeParse();
+            // Two threads may both build one, which is harmless as they are identical.
+            cache = new SigHashCache(version, inputs, outputs, lockTime);
+            sigHashCache = cache;
+        }
+        return cache;
+    }
 
-            // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Satoshi does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            ArrayList<TransactionOutput> outputs = this.outputs;
-            if ((sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1)) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                this.outputs = new ArrayList<TransactionOutput>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1)) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= this.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. The reference client also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-                    // Put the transaction back to how we found it.
-                    //
-                    // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
-                    for (int i = 0; i < inputs.size(); i++) {
-                        inputs.get(i).setScriptBytes(inputScripts[i]);
-                        inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-                    }
-                    this.outputs = outputs;
-                    // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+    /**
+     * <p>The transaction serialized the way every signature hash starts from, with the script of each input replaced
+     * by an empty one, together with the offsets of its parts. A signature hash is then this with the connected script
+     * spliced into the signed input and, for the contract modes, some inputs or outputs left out or blanked.</p>
+     *
+     * <p>For SIGHASH_ALL, by far the most common mode, the bytes before the connected script are the same for each
+     * input except for their length, so the SHA-256 state after each of those prefixes is kept as well and every
+     * input only hashes the remainder. The hash of a transaction with n inputs still covers O(n) bytes, as the
+     * protocol requires, but nothing is serialized or copied any more.</p>
+     *
+     * <p>It is immutable once built, so any number of threads can use it at once.</p>
+     */
+    private static class SigHashCache {
+        // The length of an outpoint, which is where the script of an input starts.
+        private static final int OUTPOINT_LENGTH = 36;
+        // A "null" output, as SIGHASH_SINGLE writes in place of the outputs before the signed one: a value of -1
+        // and an empty script.
+        private static final byte[] NULL_OUTPUT = {-1, -1, -1, -1, -1, -1, -1, -1, 0};
+
+        final int inputCount, outputCount;
+        private final byte[] bytes;
+        // The start of each input and, at the end, of the output count.
+        private final int[] inputOffsets;
+        // The start of each output and, at the end, of the lock time.
+        private final int[] outputOffsets;
+        // The SHA-256 state after the bytes up to the end of the outpoint of each input, or null if the engine can't
+        // be copied.
+        @Nullable private final MessageDigest[] midstates;
+
+        SigHashCache(long version, List<TransactionInput> inputs, List<TransactionOutput> outputs, long lockTime) {
+            inputCount = inputs.size();
+            outputCount = outputs.size();
+            inputOffsets = new int[inputCount + 1];
+            outputOffsets = new int[outputCount + 1];
+            try {
+                UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(
+                        8 + (OUTPOINT_LENGTH + 5) * inputCount + 34 * outputCount);
+                uint32ToByteStreamLE(version, stream);
+                stream.write(new VarInt(inputCount).encode());
+                for (int i = 0; i < inputCount; i++) {
+                    TransactionInput input = inputs.get(i);
+                    inputOffsets[i] = stream.size();
+                    input.getOutpoint().bitcoinSerialize(stream);
+                    stream.write(0);
+                    uint32ToByteStreamLE(input.getSequenceNumber(), stream);
+                }
+                inputOffsets[inputCount] = stream.size();
+                stream.write(new VarInt(outputCount).encode());
+                for (int i = 0; i < outputCount; i++) {
+                    outputOffsets[i] = stream.size();
+                    outputs.get(i).bitcoinSerialize(stream);
                 }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                this.outputs = new ArrayList<TransactionOutput>(this.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    this.outputs.set(i, new TransactionOutput(params, this, NEGATIVE_ONE, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
+                outputOffsets[outputCount] = stream.size();
+                uint32ToByteStreamLE(lockTime, stream);
+                bytes = stream.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
             }
+            midstates = inputCount > 1 ? buildMidstates() : null;
+        }
 
-            ArrayList<TransactionInput> inputs = this.inputs;
-            if ((sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                this.inputs = new ArrayList<TransactionInput>();
-                this.inputs.add(input);
+        @Nullable
+        private MessageDigest[] buildMidstates() {
+            MessageDigest[] result = new MessageDigest[inputCount];
+            MessageDigest engine = Sha256Hasher.acquire();
+            try {
+                int hashed = 0;
+                for (int i = 0; i < inputCount; i++) {
+                    int end = inputOffsets[i] + OUTPOINT_LENGTH;
+                    engine.update(bytes, hashed, end - hashed);
+                    hashed = end;
+                    result[i] = (MessageDigest) engine.clone();
+                }
+                return result;
+            } catch (CloneNotSupportedException e) {
+                return null;
+            } finally {
+                Sha256Hasher.release(engine);
             }
+        }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-            bitcoinSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+        Sha256Hash hashForAll(int inputIndex, byte[] connectedScript, byte sigHashType) {
+            int scriptOffset = inputOffsets[inputIndex] + OUTPOINT_LENGTH;
+            MessageDigest engine;
+            try {
+                engine = midstates != null ? (MessageDigest) midstates[inputIndex].clone() : null;
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);  // Cannot happen, the midstates were cloned the same way.
+            }
+            if (engine == null) {
+                engine = Sha256Hasher.acquire();
+                engine.update(bytes, 0, scriptOffset);
+            }
+            engine.update(new VarInt(connectedScript.length).encode());
+            engine.update(connectedScript);
+            // Skip the empty script, the rest is the same for every input.
+            engine.update(bytes, scriptOffset + 1, bytes.length - scriptOffset - 1);
+            engine.update(new byte[] {sigHashType, 0, 0, 0});
             // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
             // however then we would expect that it is IS reversed.
-            Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
-            bos.close();
-
-            // Put the transaction back to how we found it.
-            this.inputs = inputs;
-            for (int i = 0; i < inputs.size(); i++) {
-                inputs.get(i).setScriptBytes(inputScripts[i]);
-                inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-            }
-            this.outputs = outputs;
+            Sha256Hash hash = new Sha256Hash(engine.digest(engine.digest()));
+            Sha256Hasher.release(engine);
             return hash;
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+        }
+
+        Sha256Hash hashForContract(int inputIndex, byte[] connectedScript, byte sigHashType, int mode,
+                                   boolean anyoneCanPay) {
+            boolean signsAllOutputs = mode != SigHash.NONE.ordinal() + 1 && mode != SigHash.SINGLE.ordinal() + 1;
+            Sha256Hasher hasher = Sha256Hasher.newHasher();
+            try {
+                if (anyoneCanPay) {
+                    // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+                    // of other inputs. For example, this is useful for building assurance contracts.
+                    hasher.write(bytes, 0, 4);
+                    hasher.write(1);
+                    writeInput(hasher, inputIndex, connectedScript, false);
+                } else {
+                    hasher.write(bytes, 0, inputOffsets[0]);
+                    for (int i = 0; i < inputCount; i++) {
+                        // With SIGHASH_NONE/SINGLE, the signature isn't broken by new versions of the transaction
+                        // issued by other parties, so their sequence numbers are zeroed.
+                        if (i == inputIndex)
+                            writeInput(hasher, i, connectedScript, false);
+                        else
+                            writeInput(hasher, i, TransactionInput.EMPTY_ARRAY, !signsAllOutputs);
+                    }
+                }
+                if (mode == SigHash.NONE.ordinal() + 1) {
+                    // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+                    hasher.write(0);
+                } else if (mode == SigHash.SINGLE.ordinal() + 1) {
+                    // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+                    // The outputs after the matching input index are left out, and the outputs before that position
+                    // are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
+                    hasher.write(new VarInt(inputIndex + 1).encode());
+                    for (int i = 0; i < inputIndex; i++)
+                        hasher.write(NULL_OUTPUT);
+                    hasher.write(bytes, outputOffsets[inputIndex], outputOffsets[inputIndex + 1] - outputOffsets[inputIndex]);
+                } else {
+                    hasher.write(bytes, inputOffsets[inputCount], outputOffsets[outputCount] - inputOffsets[inputCount]);
+                }
+                hasher.write(bytes, outputOffsets[outputCount], 4);
+                // We also have to write a hash type (sigHashType is actually an unsigned char)
+                uint32ToByteStreamLE(0x000000ff & sigHashType, hasher);
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+            return new Sha256Hash(hasher.doubleDigest());
+        }
+
+        private void writeInput(Sha256Hasher hasher, int index, byte[] script, boolean zeroSequence) throws IOException {
+            int offset = inputOffsets[index];
+            hasher.write(bytes, offset, OUTPOINT_LENGTH);
+            hasher.write(new VarInt(script.length).encode());
+            hasher.write(script);
+            if (zeroSequence)
+                uint32ToByteStreamLE(0, hasher);
+            else
+                hasher.write(bytes, offset + OUTPOINT_LENGTH + 1, 4);
         }
     }
 
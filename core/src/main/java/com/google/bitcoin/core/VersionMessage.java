@@ -47,13 +47,19 @@ public class VersionMessage extends Message {
      * A services flag that denotes whether the peer accept udp messages or not
      */
     public static final int ACCEPT_UDP = 2;
+
+    /**
+     * A services flag that denotes whether the peer understands cmpctxlist/getblocktxn/blocktxn messages
+     */
+    public static final int COMPACT_TRANSACTION_LISTS = 4;
     
     /**
      * The version number of the protocol spoken.
      */
     public int clientVersion;
     /**
-     * Flags defining what is supported. Right now {@link #NODE_NETWORK} and {@link #ACCEPT_UDP} are the only flag defined.
+     * Flags defining what is supported. Right now {@link #NODE_NETWORK}, {@link #ACCEPT_UDP} and
+     * {@link #COMPACT_TRANSACTION_LISTS} are the only flags defined.
      */
     public long localServices;
     /**
@@ -107,7 +113,7 @@ public class VersionMessage extends Message {
     public VersionMessage(NetworkParameters params, int newBestHeight, boolean relayTxesBeforeFilter, boolean hasACopyOfTheBlockChain, int serverPort, boolean acceptUdp) {
         super(params);
         clientVersion = NetworkParameters.PROTOCOL_VERSION;
-        localServices = (hasACopyOfTheBlockChain ? 1 : 0) | (acceptUdp ? 2 : 0);
+        localServices = (hasACopyOfTheBlockChain ? NODE_NETWORK : 0) | (acceptUdp ? ACCEPT_UDP : 0) | COMPACT_TRANSACTION_LISTS;
         time = System.currentTimeMillis() / 1000;
         // Note that the official client doesn't do anything with these, and finding out your own external IP address
         // is kind of tricky anyway, so we just put nonsense here for now.
@@ -217,6 +223,13 @@ public class VersionMessage extends Message {
     public boolean acceptUdp() {
         return (localServices & ACCEPT_UDP) == ACCEPT_UDP;
     }
+
+    /**
+     * Returns true if the version message indicates the sender can receive blocks as compact transaction lists
+     */
+    public boolean supportsCompactTransactionLists() {
+        return (localServices & COMPACT_TRANSACTION_LISTS) == COMPACT_TRANSACTION_LISTS;
+    }
     
     @Override
     public boolean equals(Object o) {
@@ -49,6 +49,7 @@ import javax.annotation.concurrent.GuardedBy;
 
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
@@ -133,9 +134,25 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // All transactions together.
     final Map<Sha256Hash, Transaction> transactions;
 
+    // Our outputs in the unspent and pending pools which are available for spending, and their total, which is the
+    // ESTIMATED balance. Finding them means checking every output of those transactions against the keychain, so they
+    // are kept until a pool, a connection, the keychain or the depth of a transaction changes, see
+    // spendCandidatesChanged(). The AVAILABLE balance is kept too, but only while none of the candidates are pending,
+    // as peers announcing a pending transaction can make it selectable without the wallet hearing about it.
+    // Null when out of date.
+    @Nullable private transient List<TransactionOutput> spendCandidates;
+    @Nullable private transient BigInteger estimatedBalance;
+    @Nullable private transient BigInteger availableBalance;
+    private transient boolean spendCandidatesPending;
+
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
 
+    // The keychain indexed by public key and by public key hash, as every output of every transaction we see is looked
+    // up in it. The buffers wrap the arrays of the keys themselves, which never change. Rebuilt on deserialization.
+    private transient HashMap<ByteBuffer, ECKey> keysByPubKey;
+    private transient HashMap<ByteBuffer, ECKey> keysByPubKeyHash;
+
     // A list of scripts watched by this wallet.
     private Set<Script> watchedScripts;
 
@@ -219,6 +236,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        indexKeys();
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -279,7 +297,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            keysByPubKey.remove(ByteBuffer.wrap(key.getPubKey()));
+            keysByPubKeyHash.remove(ByteBuffer.wrap(key.getPubKeyHash()));
+            spendCandidatesChanged();
+            return true;
         } finally {
             lock.unlock();
         }
@@ -863,8 +886,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
 
         boolean wasPending = pending.remove(txHash) != null;
-        if (wasPending)
+        if (wasPending) {
             log.info("  <-pending");
+            spendCandidatesChanged();
+        }
 
         if (bestChain) {
             if (wasPending) {
@@ -992,6 +1017,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                 }
             }
+            // Coinbases may have matured.
+            spendCandidatesChanged();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -1124,6 +1151,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // us to use. Move if not.
                 Transaction connected = checkNotNull(input.getOutpoint().fromTx);
                 log.info("  marked {} as spent", input.getOutpoint());
+                spendCandidatesChanged();
                 maybeMovePool(connected, "prevtx");
             }
         }
@@ -1153,6 +1181,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     if (result == TransactionInput.ConnectionResult.SUCCESS) {
                         log.info("Connected pending tx input {}:{}",
                                 pendingTx.getHashAsString(), pendingTx.getInputs().indexOf(input));
+                        spendCandidatesChanged();
                     }
                 }
                 // If the transactions outputs are now all spent, it will be moved into the spent pool by the
@@ -1173,6 +1202,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             pending.remove(tx.getHash());
             unspent.remove(tx.getHash());
             spent.remove(tx.getHash());
+            spendCandidatesChanged();
             addWalletTransaction(Pool.DEAD, tx);
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getOutpoint().fromTx;
@@ -1194,6 +1224,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         if (overridingTx == null)
             return;
         log.warn("Now attempting to connect the inputs of the overriding transaction.");
+        spendCandidatesChanged();
         for (TransactionInput input : overridingTx.getInputs()) {
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
@@ -1213,6 +1244,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        spendCandidatesChanged();
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -1383,6 +1415,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
+        spendCandidatesChanged();
         transactions.put(tx.getHash(), tx);
         switch (pool) {
         case UNSPENT:
@@ -1476,6 +1509,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                spendCandidatesChanged();
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1511,6 +1545,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
             if (dirty) {
+                spendCandidatesChanged();
                 checkState(isConsistent());
                 saveLater();
             }
@@ -1930,8 +1965,6 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             //
             // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
             // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
             LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
@@ -2024,19 +2057,47 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (TransactionOutput output : getSpendCandidates()) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
+                if (excludeImmatureCoinbases && !output.getParentTransaction().isMature()) continue;
+                candidates.add(output);
+            }
+            return candidates;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns our outputs which are available for spending, immature coinbases included, working them out if a change
+    // since the last call made them out of date.
+    private List<TransactionOutput> getSpendCandidates() {
+        checkState(lock.isHeldByCurrentThread());
+        if (spendCandidates == null) {
+            List<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+            BigInteger value = BigInteger.ZERO;
+            boolean anyPending = false;
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
                 for (TransactionOutput output : tx.getOutputs()) {
                     if (!output.isAvailableForSpending()) continue;
                     if (!output.isMine(this)) continue;
                     candidates.add(output);
+                    value = value.add(output.getValue());
+                    anyPending |= tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING;
                 }
             }
-            return candidates;
-        } finally {
-            lock.unlock();
+            spendCandidates = candidates;
+            estimatedBalance = value;
+            spendCandidatesPending = anyPending;
         }
+        return spendCandidates;
+    }
+
+    // Called whenever the pools, the connections between transactions or the keychain change, which may change which
+    // of our outputs are available for spending, or the depth of their transactions changes.
+    private void spendCandidatesChanged() {
+        spendCandidates = null;
+        estimatedBalance = null;
+        availableBalance = null;
     }
 
     /**
@@ -2102,9 +2163,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2114,6 +2174,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     throw new KeyCrypterException("Cannot add key because it's encrypted and this wallet is not.");
                 }
                 keychain.add(key);
+                indexKey(key);
                 added++;
             }
             queueOnKeysAdded(keys);
@@ -2204,25 +2265,36 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(ByteBuffer.wrap(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(ByteBuffer.wrap(key.getPubKey()));
         } finally {
             lock.unlock();
         }
     }
 
+    // Rebuilds the key indexes from the keychain.
+    private void indexKeys() {
+        keysByPubKey = new HashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+        keysByPubKeyHash = new HashMap<ByteBuffer, ECKey>(keychain.size() * 2);
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
+
+    private void indexKey(ECKey key) {
+        keysByPubKey.put(ByteBuffer.wrap(key.getPubKey()), key);
+        keysByPubKeyHash.put(ByteBuffer.wrap(key.getPubKeyHash()), key);
+        spendCandidatesChanged();
+    }
+
     /**
      * Returns true if this wallet contains a public key which hashes to the given hash.
      */
@@ -2248,10 +2320,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(ByteBuffer.wrap(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2303,12 +2372,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
+                if (availableBalance != null)
+                    return availableBalance;
+                BigInteger balance = getBalance(coinSelector);
+                if (!spendCandidatesPending)
+                    availableBalance = balance;
+                return balance;
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                getSpendCandidates();
+                return estimatedBalance;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2566,6 +2638,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        spendCandidatesChanged();
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -2650,6 +2723,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
             }
         }
+        spendCandidatesChanged();
     }
 
     /**
@@ -2836,6 +2910,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            indexKeys();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
@@ -2877,6 +2952,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            indexKeys();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
@@ -3173,6 +3249,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            availableBalance = null;
         } finally {
             lock.unlock();
         }
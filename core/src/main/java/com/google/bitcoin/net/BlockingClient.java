@@ -16,6 +16,7 @@
 
 package com.google.bitcoin.net;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.io.IOException;
@@ -28,19 +29,28 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.net.SocketFactory;
 
 import org.slf4j.LoggerFactory;
 
+import com.google.bitcoin.core.Message;
+
 /**
  * <p>Creates a simple connection to a server using a {@link StreamParser} to process data.</p>
  *
  * <p>Generally, using {@link NioClient} and {@link NioClientManager} should be preferred over {@link BlockingClient}
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
+ *
+ * <p>Writes are queued and sent by a writer thread of their own, so a caller relaying a message to many connections
+ * is never held up by one whose TCP window is full. The queue is bounded, see {@link OverflowPolicy}.</p>
  */
 public class BlockingClient implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
@@ -48,14 +58,35 @@ public class BlockingClient implements MessageWriteTarget {
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
+    /** The default maximum number of bytes waiting to be written, the same as a {@link NioClient}'s. */
+    public static final long DEFAULT_MAX_QUEUED_BYTES = Message.MAX_SIZE + 24; // 24 byte message header
+
+    /** What to do when a write would take the outbound queue over its maximum size. */
+    public enum OverflowPolicy {
+        /** Drop writes made with {@link MessageWriteTarget#writeExpendableBytes(byte[])}, disconnect on others. */
+        DROP_EXPENDABLE,
+        /** Disconnect on any write. */
+        DISCONNECT
+    }
+
+    // Queued by closeConnection() to stop the writer thread
+    private static final byte[] CLOSE = new byte[0];
+
     private StreamParser parser; 
     private ByteBuffer dbuf;
     private Socket socket;
     private DatagramSocket datagramSocket;
+    @Nullable private UDPDispatcher udpDispatcher;
     private InetAddress udpAddress; 
     private int udpPort; 
     private volatile boolean vCloseRequested = false;
 
+    private final LinkedBlockingQueue<byte[]> writeQueue = new LinkedBlockingQueue<byte[]>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong droppedWrites = new AtomicLong();
+    private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_EXPENDABLE;
+
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
      * The given parser <b>MUST</b> be unique to this object. This does not block while waiting for the connection to
@@ -70,10 +101,21 @@ public class BlockingClient implements MessageWriteTarget {
      */
     public BlockingClient(final SocketAddress serverAddress, DatagramSocket _datagramSocket, final StreamParser parser,
                           final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, _datagramSocket, null, parser, connectTimeoutMillis, socketFactory, clientSet);
+    }
+
+    /**
+     * As {@link #BlockingClient(SocketAddress, DatagramSocket, StreamParser, int, SocketFactory, Set)}, registering the
+     * parser with the given dispatcher once the UDP port of the remote peer is known, so it receives its datagrams.
+     */
+    public BlockingClient(final SocketAddress serverAddress, DatagramSocket _datagramSocket,
+                          @Nullable UDPDispatcher udpDispatcher, final StreamParser parser, final int connectTimeoutMillis,
+                          final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
         init(parser);
         this.parser = parser; 
         socket = socketFactory.createSocket();
         datagramSocket = _datagramSocket;
+        this.udpDispatcher = udpDispatcher;
         InetSocketAddress inetSocketAddress = (InetSocketAddress) serverAddress;
         udpAddress = inetSocketAddress.getAddress();
         Thread t = new SocketThread(clientSet, false, serverAddress, connectTimeoutMillis, parser);
@@ -81,11 +123,17 @@ public class BlockingClient implements MessageWriteTarget {
     }
 
     public BlockingClient(Socket _socket, DatagramSocket _datagramSocket, StreamParserFactory parserFactory, final Set<BlockingClient> clientSet) {
+        this(_socket, _datagramSocket, null, parserFactory, clientSet);
+    }
+
+    public BlockingClient(Socket _socket, DatagramSocket _datagramSocket, @Nullable UDPDispatcher udpDispatcher,
+                          StreamParserFactory parserFactory, final Set<BlockingClient> clientSet) {
         StreamParser parser = parserFactory.getNewParser(_socket.getInetAddress(), _socket.getPort());
         init(parser);
         this.parser = parser; 
         socket = _socket;
         datagramSocket = _datagramSocket;
+        this.udpDispatcher = udpDispatcher;
         udpAddress = _socket.getInetAddress();        
         Thread t = new SocketThread(clientSet, true, socket.getRemoteSocketAddress(), 0, parser);
         t.start();
@@ -125,6 +173,7 @@ public class BlockingClient implements MessageWriteTarget {
                 if (!connected) {
                     socket.connect(serverAddress, connectTimeoutMillis);                    
                 }
+                new WriterThread(serverAddress).start();
                 parser.connectionOpened();
                 InputStream stream = socket.getInputStream();
                 byte[] readBuff = new byte[dbuf.capacity()];
@@ -155,14 +204,74 @@ public class BlockingClient implements MessageWriteTarget {
                 } catch (IOException e1) {
                     // At this point there isn't much we can do, and we can probably assume the channel is closed
                 }
+                stopWriting();
                 if (clientSet != null)
                     clientSet.remove(BlockingClient.this);
+                if (udpDispatcher != null)
+                    udpDispatcher.unregister(parser);
                 parser.connectionClosed();
             }
         }
     };
-    
-    
+
+    // Sends the queued messages, gathering the ones which queued up while it was blocked into as few socket writes as
+    // possible
+    private class WriterThread extends Thread {
+        WriterThread(SocketAddress serverAddress) {
+            setName("BlockingClient writer thread for " + serverAddress);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[BUFFER_SIZE_UPPER_BOUND];
+            try {
+                OutputStream stream = socket.getOutputStream();
+                while (true) {
+                    byte[] message = writeQueue.take();
+                    int position = 0;
+                    while (message != null && message != CLOSE) {
+                        if (position > 0 && position + message.length > buffer.length) {
+                            stream.write(buffer, 0, position);
+                            position = 0;
+                        }
+                        if (message.length > buffer.length) {
+                            stream.write(message);
+                        } else {
+                            System.arraycopy(message, 0, buffer, position, message.length);
+                            position += message.length;
+                        }
+                        queuedBytes.addAndGet(-message.length);
+                        message = writeQueue.poll();
+                    }
+                    if (position > 0)
+                        stream.write(buffer, 0, position);
+                    stream.flush();
+                    if (message == CLOSE)
+                        return;
+                }
+            } catch (InterruptedException e) {
+                // Fall through and stop.
+            } catch (IOException e) {
+                if (!vCloseRequested) {
+                    log.error("Error writing message to connection, closing connection", e);
+                    closeConnection();
+                }
+            }
+        }
+    }
+
+    private void stopWriting() {
+        // The writer thread may still be accounting for a message it took, so only take off what is dropped here.
+        List<byte[]> dropped = new ArrayList<byte[]>();
+        writeQueue.drainTo(dropped);
+        long droppedBytes = 0;
+        for (byte[] message : dropped)
+            droppedBytes += message.length;
+        queuedBytes.addAndGet(-droppedBytes);
+        writeQueue.offer(CLOSE);
+    }
+
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -177,26 +286,74 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    /** Sets the maximum number of bytes which may be waiting to be written, {@link #DEFAULT_MAX_QUEUED_BYTES} by default. */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /** Sets what to do when the outbound queue is full, {@link OverflowPolicy#DROP_EXPENDABLE} by default. */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = checkNotNull(overflowPolicy);
+    }
+
+    /** Returns the number of expendable writes which were dropped because the outbound queue was full. */
+    public long getDroppedWriteCount() {
+        return droppedWrites.get();
+    }
+
     @Override
-    public synchronized void writeLowPriorityBytes(byte[] message) throws IOException {
-        try {
-            OutputStream stream = socket.getOutputStream();
-            stream.write(message);
-            stream.flush();
-        } catch (IOException e) {
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    // Returns false if the message would not fit in the queue
+    private boolean enqueue(byte[] message) throws IOException {
+        if (vCloseRequested || socket.isClosed())
+            throw new IOException("Connection closed");
+        if (queuedBytes.addAndGet(message.length) > maxQueuedBytes) {
+            queuedBytes.addAndGet(-message.length);
+            return false;
+        }
+        writeQueue.offer(message);
+        return true;
+    }
+
+    @Override
+    public void writeLowPriorityBytes(byte[] message) throws IOException {
+        if (!enqueue(message)) {
+            IOException e = new IOException("Outbound buffer overflowed");
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
         }
     }
+
+    @Override
+    public boolean writeExpendableBytes(byte[] message) throws IOException {
+        if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+            writeLowPriorityBytes(message);
+            return true;
+        }
+        if (enqueue(message))
+            return true;
+        droppedWrites.incrementAndGet();
+        return false;
+    }
     
     @Override
-    public void setUDPPort(int udpPort) throws IOException {
-        this.udpPort = udpPort;        
+    public boolean setUDPPort(int udpPort, long remoteNodeId) throws IOException {
+        if (datagramSocket == null)
+            return false;
+        this.udpPort = udpPort;
+        if (udpDispatcher != null)
+            udpDispatcher.register(parser, remoteNodeId, new InetSocketAddress(udpAddress, udpPort));
+        return true;
     }
     
     @Override
     public synchronized void writeHighPriorityBytes(byte[] message) throws IOException {
+        if (datagramSocket == null)
+            throw new IOException("No UDP socket to send with");
         try {            
             DatagramPacket packet = new DatagramPacket(message, message.length, udpAddress, udpPort);
             datagramSocket.send(packet);
@@ -207,8 +364,4 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
-    public void receiveBytesUDP(byte[] bytes, int offset, int length) {
-        parser.receiveHighPriorityBytes(bytes, offset, length);
-    }
-    
 }
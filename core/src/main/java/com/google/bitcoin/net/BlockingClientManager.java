@@ -49,10 +49,13 @@ public class BlockingClientManager extends AbstractIdleService implements Client
     private final SocketFactory socketFactory;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
     private int connectTimeoutMillis = 1000;
+    private volatile long maxQueuedBytes = BlockingClient.DEFAULT_MAX_QUEUED_BYTES;
+    private volatile BlockingClient.OverflowPolicy overflowPolicy = BlockingClient.OverflowPolicy.DROP_EXPENDABLE;
     private int serverPort;
     private ServerSocket serverSocket;
     private DatagramSocket datagramSocket;
     private boolean acceptUdp = false;
+    private final UDPDispatcher udpDispatcher = new UDPDispatcher();
     private UDPSocketThread udpSocketThread;
 
     private volatile boolean vServerCloseRequested = false;
@@ -81,12 +84,36 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         if (!isRunning())
             throw new IllegalStateException();
         try {
-            new BlockingClient(serverAddress, datagramSocket, parser, connectTimeoutMillis, socketFactory, clients);
+            configure(new BlockingClient(serverAddress, datagramSocket, udpDispatcher, parser, connectTimeoutMillis,
+                    socketFactory, clients));
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
     }
 
+    /** Returns the dispatcher of incoming datagrams, which counts the ones it had to drop. */
+    public UDPDispatcher getUDPDispatcher() {
+        return udpDispatcher;
+    }
+
+    private void configure(BlockingClient client) {
+        client.setMaxQueuedBytes(maxQueuedBytes);
+        client.setOverflowPolicy(overflowPolicy);
+    }
+
+    /** Sets the outbound queue size of connections opened from now on, see {@link BlockingClient#setMaxQueuedBytes(long)}. */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Sets what connections opened from now on do when their outbound queue is full, see
+     * {@link BlockingClient#setOverflowPolicy(BlockingClient.OverflowPolicy)}.
+     */
+    public void setOverflowPolicy(BlockingClient.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = checkNotNull(overflowPolicy);
+    }
+
     /** Sets the number of milliseconds to wait before giving up on a connect attempt */
     public void setConnectTimeoutMillis(int connectTimeoutMillis) {
         this.connectTimeoutMillis = connectTimeoutMillis;
@@ -96,7 +123,7 @@ public class BlockingClientManager extends AbstractIdleService implements Client
     protected void startUp() throws Exception {
         if (acceptUdp) {
             datagramSocket = new DatagramSocket(serverPort);
-            udpSocketThread = new UDPSocketThread(datagramSocket, clients);
+            udpSocketThread = new UDPSocketThread(datagramSocket, udpDispatcher);
             udpSocketThread.start();            
         }
     }
@@ -110,7 +137,8 @@ public class BlockingClientManager extends AbstractIdleService implements Client
             for (BlockingClient client : clients)
                 client.closeConnection();
         }
-        datagramSocket.close();
+        if (datagramSocket != null)
+            datagramSocket.close();
         if (serverSocket!=null) {
             vServerCloseRequested = true;
             serverSocket.close();
@@ -147,7 +175,7 @@ public class BlockingClientManager extends AbstractIdleService implements Client
                         while (true) {                            
                             Socket socket = serverSocket.accept();
                             log.info("Accepted connection " + socket);
-                            new BlockingClient(socket, datagramSocket, parserFactory, clients);                            
+                            configure(new BlockingClient(socket, datagramSocket, udpDispatcher, parserFactory, clients));
                         }
                     } catch (Exception e) {
                         if (!vServerCloseRequested)
@@ -26,11 +26,11 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
@@ -65,15 +65,21 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private Set<ConnectionHandler> connectedHandlers;
 
-    public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key) throws IOException {
-        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key);
+    // The UDP socket high priority messages are sent and received with, if the owner opened one
+    @Nullable private final DatagramChannelHandler udp;
+    @Nullable private volatile InetSocketAddress udpAddress;
+
+    public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key,
+                             @Nullable DatagramChannelHandler udp) throws IOException {
+        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key, udp);
         if (parser == null)
             throw new IOException("Parser factory.getNewParser returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key, @Nullable DatagramChannelHandler udp) {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
+        this.udp = udp;
         if (parser == null) {
             readBuff = null;
             closeConnection();
@@ -85,8 +91,9 @@ class ConnectionHandler implements MessageWriteTarget {
         connectedHandlers = null;
     }
 
-    public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(parser), key);
+    public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             @Nullable DatagramChannelHandler udp) {
+        this(checkNotNull(parser), key, udp);
 
         // closeConnection() may have already happened, in which case we shouldn't add ourselves to the connectedHandlers set
         lock.lock();
@@ -146,8 +153,9 @@ class ConnectionHandler implements MessageWriteTarget {
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
             // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            // The message array is never modified once handed to us (see MessageWriteTarget), so it can be queued
+            // without copying, even when the same array is being written to many connections.
+            bytesToWrite.offer(ByteBuffer.wrap(message));
             bytesToWriteRemaining += message.length;
             setWriteOps();
         } catch (IOException e) {
@@ -163,15 +171,49 @@ class ConnectionHandler implements MessageWriteTarget {
         }
         lock.unlock();
     }
+
+    @Override
+    public boolean writeExpendableBytes(byte[] message) throws IOException {
+        lock.lock();
+        try {
+            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+                return false;
+        } finally {
+            lock.unlock();
+        }
+        // Another thread may fill the buffer in between, in which case this closes the connection as usual
+        writeLowPriorityBytes(message);
+        return true;
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return bytesToWriteRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
     
     @Override
-    public void setUDPPort(int udpPort) throws IOException {
-        throw new UnsupportedOperationException();        
+    public boolean setUDPPort(int udpPort, long remoteNodeId) throws IOException {
+        if (udp == null)
+            return false;
+        InetSocketAddress address = new InetSocketAddress(channel.socket().getInetAddress(), udpPort);
+        udpAddress = address;
+        udp.getDispatcher().register(parser, remoteNodeId, address);
+        return true;
     }
     
     @Override
     public void writeHighPriorityBytes(byte[] message) throws IOException {
-        throw new UnsupportedOperationException();        
+        InetSocketAddress address = udpAddress;
+        if (udp == null)
+            throw new IOException("No UDP socket to send with");
+        if (address == null)
+            throw new IOException("UDP port of the remote peer is not known yet");
+        udp.send(message, address);
     }
 
     @Override
@@ -196,6 +238,8 @@ class ConnectionHandler implements MessageWriteTarget {
         }
         if (callClosed) {
             checkState(connectedHandlers == null || connectedHandlers.remove(this));
+            if (udp != null && parser != null)
+                udp.getDispatcher().unregister(parser);
             parser.connectionClosed();
         }
     }
@@ -0,0 +1,93 @@
+package com.google.bitcoin.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The UDP socket shared by all the {@link ConnectionHandler}s of a {@link NioClientManager} or {@link NioServer}. It
+ * is registered with their selector, so datagrams are read and handed to a {@link UDPDispatcher} on the same thread
+ * as the TCP traffic, and written directly from whichever thread sends them.
+ */
+class DatagramChannelHandler {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(DatagramChannelHandler.class);
+
+    private final DatagramChannel channel;
+    private final UDPDispatcher dispatcher = new UDPDispatcher();
+    // Only used by the selector thread. One byte more than the dispatcher accepts, see UDPSocketThread.
+    private final ByteBuffer readBuff = ByteBuffer.allocateDirect(UDPDispatcher.MAX_DATAGRAM_SIZE + 1);
+    private final AtomicLong droppedWrites = new AtomicLong();
+
+    /** Binds a UDP socket to the given port and registers it with the given selector. */
+    DatagramChannelHandler(int port, Selector selector) throws IOException {
+        channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    UDPDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /** Returns the number of datagrams which were not sent because the socket's send buffer was full. */
+    long getDroppedWriteCount() {
+        return droppedWrites.get();
+    }
+
+    /**
+     * Sends the given datagram without blocking. Like any datagram it may never arrive, so if the socket's send buffer
+     * is full it is simply dropped.
+     */
+    void send(byte[] datagram, InetSocketAddress target) throws IOException {
+        if (channel.send(ByteBuffer.wrap(datagram), checkNotNull(target)) == 0) {
+            droppedWrites.incrementAndGet();
+            log.debug("Dropped datagram to {}, send buffer full", target);
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Error closing datagram channel", e);
+        }
+    }
+
+    // Handle a SelectionKey which was selected, reading every datagram which is waiting
+    static void handleKey(SelectionKey key) {
+        DatagramChannelHandler handler = (DatagramChannelHandler) key.attachment();
+        if (!key.isValid()) {
+            handler.close();
+            return;
+        }
+        try {
+            while (true) {
+                handler.readBuff.clear();
+                InetSocketAddress source = (InetSocketAddress) handler.channel.receive(handler.readBuff);
+                if (source == null)
+                    return;
+                handler.readBuff.flip();
+                handler.dispatcher.dispatch(handler.readBuff, source);
+            }
+        } catch (IOException e) {
+            // Unlike a TCP connection there is nobody to tell, the socket stays open for the next datagram.
+            log.error("Error reading datagram: {}", Throwables.getRootCause(e).getMessage());
+        }
+    }
+}
@@ -23,17 +23,34 @@ import java.io.IOException;
  */
 public interface MessageWriteTarget {
     /**
-     * Sets the UDP port of the receiver
+     * Sets the UDP port of the receiver and the node id it sends its own datagrams with, so that they can be routed
+     * to this connection. Returns false if this target has no UDP socket, in which case the receiver has to be sent
+     * everything over TCP.
      */
-    void setUDPPort(int udpPort) throws IOException;
+    boolean setUDPPort(int udpPort, long remoteNodeId) throws IOException;
     /**
-     * Writes the given bytes to the remote server via the UDP socket.
+     * Writes the given bytes to the remote server via the UDP socket. The array may be shared with other write targets
+     * and must not be modified by the caller or the implementation. Only valid once {@link #setUDPPort(int, long)}
+     * returned true.
      */
     void writeHighPriorityBytes(byte[] message) throws IOException;
     /**
-     * Writes the given bytes to the remote server via the TCP socket.
+     * Writes the given bytes to the remote server via the TCP socket. The array may be queued without copying and
+     * shared with other write targets, so it must not be modified by the caller or the implementation.
      */
     void writeLowPriorityBytes(byte[] message) throws IOException;
+    /**
+     * Writes the given bytes like {@link #writeLowPriorityBytes(byte[])}, except that if too many bytes are already
+     * waiting to be sent, the write target may drop them rather than close the connection. For messages the protocol
+     * copes with losing, such as inventory announcements.
+     *
+     * @return Whether the bytes will be sent.
+     */
+    boolean writeExpendableBytes(byte[] message) throws IOException;
+    /**
+     * Returns the number of bytes written to this target which are still waiting to be sent.
+     */
+    long getQueuedBytes();
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -64,8 +64,8 @@ public class NioClient implements MessageWriteTarget {
         }
         
         @Override
-        public void receiveHighPriorityBytes(byte[] bytes, int offset, int length) {
-            upstreamParser.receiveHighPriorityBytes(bytes, offset, length);            
+        public void receiveHighPriorityBytes(long nodeId, ByteBuffer buff) throws Exception {
+            upstreamParser.receiveHighPriorityBytes(nodeId, buff);
         }
 
         @Override
@@ -108,14 +108,24 @@ public class NioClient implements MessageWriteTarget {
     }
 
     @Override
-    public void setUDPPort(int udpPort) throws IOException {
-        handler.writeTarget.setUDPPort(udpPort);
+    public boolean setUDPPort(int udpPort, long remoteNodeId) throws IOException {
+        return handler.writeTarget.setUDPPort(udpPort, remoteNodeId);
     }
     
     @Override
     public synchronized void writeLowPriorityBytes(byte[] message) throws IOException {
         handler.writeTarget.writeLowPriorityBytes(message);
     }
+
+    @Override
+    public synchronized boolean writeExpendableBytes(byte[] message) throws IOException {
+        return handler.writeTarget.writeExpendableBytes(message);
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return handler.writeTarget.getQueuedBytes();
+    }
     
     @Override
     public synchronized void writeHighPriorityBytes(byte[] message) throws IOException {
@@ -30,6 +30,8 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import javax.annotation.Nullable;
+
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Throwables;
@@ -43,6 +45,9 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
+    // The UDP port to receive high priority messages on, or -1 for none
+    private final int udpPort;
+    @Nullable private volatile DatagramChannelHandler udp;
 
     // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
     class SocketChannelAndParser {
@@ -56,12 +61,16 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     // Handle a SelectionKey which was selected
     private void handleKey(SelectionKey key) throws IOException {
+        if (key.attachment() instanceof DatagramChannelHandler) {
+            DatagramChannelHandler.handleKey(key);
+            return;
+        }
         // We could have a !isValid() key here if the connection is already closed at this point
         if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
             // Create a ConnectionHandler and hook everything together
             StreamParser parser = (StreamParser) key.attachment();
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers, udp);
             try {
                 if (sc.finishConnect()) {
                     log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
@@ -87,6 +96,15 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(-1);
+    }
+
+    /**
+     * Creates a new client manager which also receives and sends high priority messages through a UDP socket bound to
+     * the given port, from the same thread that handles the connections.
+     */
+    public NioClientManager(int udpPort) {
+        this.udpPort = udpPort;
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
@@ -94,6 +112,22 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
+    @Override
+    protected void startUp() throws Exception {
+        if (udpPort >= 0)
+            udp = new DatagramChannelHandler(udpPort, selector);
+    }
+
+    /**
+     * Returns the dispatcher of incoming datagrams, which counts the ones it had to drop, or null if this manager has
+     * no UDP socket.
+     */
+    @Nullable
+    public UDPDispatcher getUDPDispatcher() {
+        DatagramChannelHandler udp = this.udp;
+        return udp == null ? null : udp.getDispatcher();
+    }
+
     @Override
     public void run() {
         try {
@@ -22,6 +22,8 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.Iterator;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
@@ -39,6 +41,7 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamParserFactory parserFactory;
 
     private final ServerSocketChannel sc;
+    @Nullable private final DatagramChannelHandler udp;
     @VisibleForTesting final Selector selector;
 
     // Handle a SelectionKey which was selected
@@ -48,9 +51,11 @@ public class NioServer extends AbstractExecutionThreadService {
             SocketChannel newChannel = sc.accept();
             newChannel.configureBlocking(false);
             SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
+            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey, udp);
             newKey.attach(handler);
             handler.parser.connectionOpened();
+        } else if (key.attachment() instanceof DatagramChannelHandler) {
+            DatagramChannelHandler.handleKey(key);
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
@@ -63,6 +68,17 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, false);
+    }
+
+    /**
+     * Creates a new server as above which, if acceptUdp is set, also receives and sends high priority messages through
+     * a UDP socket bound to the same port.
+     *
+     * @throws IOException If there is an issue opening the server sockets or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress, boolean acceptUdp)
+            throws IOException {
         this.parserFactory = parserFactory;
 
         sc = ServerSocketChannel.open();
@@ -70,6 +86,16 @@ public class NioServer extends AbstractExecutionThreadService {
         sc.socket().bind(bindAddress);
         selector = SelectorProvider.provider().openSelector();
         sc.register(selector, SelectionKey.OP_ACCEPT);
+        udp = acceptUdp ? new DatagramChannelHandler(sc.socket().getLocalPort(), selector) : null;
+    }
+
+    /**
+     * Returns the dispatcher of incoming datagrams, which counts the ones it had to drop, or null if this server does
+     * not accept UDP.
+     */
+    @Nullable
+    public UDPDispatcher getUDPDispatcher() {
+        return udp == null ? null : udp.getDispatcher();
     }
 
     @Override
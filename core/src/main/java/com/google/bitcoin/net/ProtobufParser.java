@@ -198,7 +198,7 @@ public class ProtobufParser<MessageType extends MessageLite> extends AbstractTim
     }
     
     @Override
-    public void receiveHighPriorityBytes(byte[] bytes, int offset, int length) {
+    public void receiveHighPriorityBytes(long nodeId, ByteBuffer buff) {
         throw new UnsupportedOperationException(); 
     }
 
@@ -51,10 +51,13 @@ public interface StreamParser {
     int receiveLowPriorityBytes(ByteBuffer buff) throws Exception;
 
     /**
-     * Called when new bytes arrived via UDP. The bytes are not necessarily for this StreamParser.
-     * It is StreamParser's responsibility to check whether the bytes are for it or not
+     * Called when a datagram for this parser arrived via UDP. buff holds exactly one message, between its position and
+     * its limit, and is reused once this returns.
+     *
+     * @param nodeId The node id the datagram was sent with.
+     * @throws Exception If the message could not be parsed, in which case the datagram is dropped.
      */
-    void receiveHighPriorityBytes(byte[] bytes, int offset, int length);
+    void receiveHighPriorityBytes(long nodeId, ByteBuffer buff) throws Exception;
 
     /**
      * Called when this parser is attached to an upstream write target (ie a low-level connection handler). This
@@ -0,0 +1,138 @@
+package com.google.bitcoin.net;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Routes the datagrams received on a UDP socket to the {@link StreamParser} of the connection they belong to.</p>
+ *
+ * <p>A high priority datagram is the 8 byte little endian node id of its sender followed by one serialized message.
+ * Connections register the node id and UDP address of their remote peer once they know them, and each datagram is
+ * handed to the one parser registered for its node id, or failing that for its source address, so it is only
+ * deserialized once however many connections share the socket. Datagrams which are too large, too short to hold a
+ * message, cannot be routed or fail to parse are dropped and counted.</p>
+ *
+ * <p>Registration is thread safe. {@link #dispatch(ByteBuffer, InetSocketAddress)} is meant to be called by the
+ * single thread reading the socket.</p>
+ */
+public class UDPDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(UDPDispatcher.class);
+
+    /** The length of the node id which starts every datagram. */
+    public static final int NODE_ID_LENGTH = 8;
+    /** The largest datagram accepted. The ones we send only carry a block header. */
+    public static final int MAX_DATAGRAM_SIZE = 1024;
+    // Magic bytes plus message header, the least a datagram must hold after the node id.
+    private static final int MIN_MESSAGE_SIZE = 4 + 20;
+
+    private static class Registration {
+        final long nodeId;
+        @Nullable final InetSocketAddress address;
+
+        Registration(long nodeId, @Nullable InetSocketAddress address) {
+            this.nodeId = nodeId;
+            this.address = address;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, StreamParser> parsersByNodeId = new ConcurrentHashMap<Long, StreamParser>();
+    private final ConcurrentHashMap<InetSocketAddress, StreamParser> parsersByAddress =
+            new ConcurrentHashMap<InetSocketAddress, StreamParser>();
+    private final ConcurrentHashMap<StreamParser, Registration> registrations =
+            new ConcurrentHashMap<StreamParser, Registration>();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong droppedOversized = new AtomicLong();
+    private final AtomicLong droppedMalformed = new AtomicLong();
+    private final AtomicLong droppedUnroutable = new AtomicLong();
+
+    /**
+     * Routes the datagrams sent with the given node id, or from the given address, to the given parser, replacing any
+     * earlier registration of the parser.
+     */
+    public synchronized void register(StreamParser parser, long nodeId, @Nullable InetSocketAddress address) {
+        unregister(parser);
+        registrations.put(parser, new Registration(nodeId, address));
+        parsersByNodeId.put(nodeId, parser);
+        if (address != null)
+            parsersByAddress.put(address, parser);
+    }
+
+    /** Stops routing datagrams to the given parser, typically because its connection closed. */
+    public synchronized void unregister(StreamParser parser) {
+        Registration registration = registrations.remove(checkNotNull(parser));
+        if (registration == null)
+            return;
+        parsersByNodeId.remove(registration.nodeId, parser);
+        if (registration.address != null)
+            parsersByAddress.remove(registration.address, parser);
+    }
+
+    /**
+     * Hands the datagram between the position and the limit of the given buffer to the parser it belongs to. The
+     * buffer may be reused as soon as this returns.
+     * @return Whether the datagram was delivered.
+     */
+    public boolean dispatch(ByteBuffer datagram, InetSocketAddress source) {
+        received.incrementAndGet();
+        int length = datagram.remaining();
+        if (length > MAX_DATAGRAM_SIZE) {
+            droppedOversized.incrementAndGet();
+            log.debug("Dropped {} byte datagram from {}", length, source);
+            return false;
+        }
+        if (length < NODE_ID_LENGTH + MIN_MESSAGE_SIZE) {
+            droppedMalformed.incrementAndGet();
+            log.debug("Dropped {} byte datagram from {}", length, source);
+            return false;
+        }
+        long nodeId = datagram.order(ByteOrder.LITTLE_ENDIAN).getLong();
+        datagram.order(ByteOrder.BIG_ENDIAN);
+        StreamParser parser = parsersByNodeId.get(nodeId);
+        if (parser == null)
+            parser = parsersByAddress.get(source);
+        if (parser == null) {
+            droppedUnroutable.incrementAndGet();
+            log.debug("Dropped datagram from unknown node {} at {}", nodeId, source);
+            return false;
+        }
+        try {
+            parser.receiveHighPriorityBytes(nodeId, datagram);
+            return true;
+        } catch (Exception e) {
+            droppedMalformed.incrementAndGet();
+            log.debug("Dropped malformed datagram from " + source, e);
+            return false;
+        }
+    }
+
+    /** Returns the number of datagrams passed to {@link #dispatch(ByteBuffer, InetSocketAddress)}. */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /** Returns the number of datagrams dropped for being larger than {@link #MAX_DATAGRAM_SIZE}. */
+    public long getDroppedOversizedCount() {
+        return droppedOversized.get();
+    }
+
+    /** Returns the number of datagrams dropped because they were truncated or could not be parsed. */
+    public long getDroppedMalformedCount() {
+        return droppedMalformed.get();
+    }
+
+    /** Returns the number of datagrams dropped because no connection was registered for their node id or source. */
+    public long getDroppedUnroutableCount() {
+        return droppedUnroutable.get();
+    }
+}
@@ -3,54 +3,57 @@ package com.google.bitcoin.net;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.util.Set;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Reads datagrams from a socket and passes them to a {@link UDPDispatcher}. Every datagram is received into the same
+ * buffer, which the dispatcher is done with by the time the next one is read.
+ */
 public class UDPSocketThread extends Thread {
-    
+
     private static final Logger log = LoggerFactory.getLogger(UDPSocketThread.class);
-    
-    private DatagramSocket datagramSocket;
-    private Set<BlockingClient> clients;
-   
-    private boolean stopSignal = false;
-        
-    public UDPSocketThread(DatagramSocket datagramSocket, Set<BlockingClient> clients) {
+
+    private final DatagramSocket datagramSocket;
+    private final UDPDispatcher dispatcher;
+
+    private volatile boolean stopSignal = false;
+
+    public UDPSocketThread(DatagramSocket datagramSocket, UDPDispatcher dispatcher) {
         super("UDP socket handler thread");
-        this.datagramSocket=datagramSocket;
-        this.clients = clients;
+        this.datagramSocket = datagramSocket;
+        this.dispatcher = dispatcher;
+        setDaemon(true);
     }
-    
+
     @Override
     public void run() {
+        // One byte more than the dispatcher accepts, so that larger datagrams, which the socket truncates, show up as
+        // oversized instead of being parsed.
+        byte[] buf = new byte[UDPDispatcher.MAX_DATAGRAM_SIZE + 1];
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
         while (!stopSignal) {
             try {
-                byte[] buf = new byte[256];
-
-                // receive request
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                packet.setLength(buf.length);
                 datagramSocket.receive(packet);
-
-                //String received = new String(packet.getData(), 0, packet.getLength());
-
-                // long nodeId = Utils.readInt64(packet.getData(), packet.getOffset());
-                
-                for (BlockingClient blockingClient : clients) {
-                    blockingClient.receiveBytesUDP(packet.getData(), packet.getOffset(), packet.getLength());
-                }
-                
+                buffer.clear();
+                buffer.limit(packet.getLength());
+                dispatcher.dispatch(buffer, (InetSocketAddress) packet.getSocketAddress());
             } catch (IOException e) {
-                log.error("Exception processing UDP message", e);
+                if (!stopSignal)
+                    log.error("Exception processing UDP message", e);
             }
         }
-        
+
     }
 
     public void doStop() {
         stopSignal = true;
-        
+
     }
 
 }
@@ -21,6 +21,8 @@ public class NetboxParams extends RegTestParams{
     private int selfNode;
     // The number of the nodes to connect to
     private List<Integer> nodesToConnectTo;
+    // All the connections of the network, not just the ones of this node
+    private List<NodeConnection> connections;
     private Map<NodeConnection, Double> distances;
     Map<Integer,Point> nodePoints;
     // Base port for net in a box test. Nodes should accept connections on port 19001, 19002, etc.
@@ -50,6 +52,20 @@ public class NetboxParams extends RegTestParams{
     public List<Integer> getNodesToConnectTo() {
         return nodesToConnectTo;
     }
+
+    /**
+     * Nodes the given node connects to, as {@link #getNodesToConnectTo()} would return if it was the given node. Lets
+     * a simulation running every node in one process build the same graph.
+     */
+    public List<Integer> getNodesToConnectTo(int node) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (NodeConnection connection : connections) {
+            if (connection.from == node) {
+                result.add(connection.to);
+            }
+        }
+        return result;
+    }
     
     public double getDistance(int node1, int node2) {
         if (distances.containsKey(new NodeConnection(node1, node2))) {
@@ -73,7 +89,7 @@ public class NetboxParams extends RegTestParams{
         // Random with harcoded seed to generate always the same result.
         Random random = new Random(2);
         // The graph of connections (not just from/to this node, all the connections in the network) 
-        List<NodeConnection> connections = new ArrayList<NodeConnection>();
+        connections = new ArrayList<NodeConnection>();
         //key=node number, value=number of connections from/to the node
         Map<Integer, Integer> numberOfConnectionsPerNode = new HashMap<Integer, Integer>();
         //A list of nodes candidates for a new connection
@@ -125,12 +141,7 @@ public class NetboxParams extends RegTestParams{
         
 
         // Now select the nodes this nodes have to connect to         
-        nodesToConnectTo = new ArrayList<Integer>();
-        for (NodeConnection connection : connections) {
-            if (connection.from == selfNode) {
-                nodesToConnectTo.add(connection.to);
-            }
-        }
+        nodesToConnectTo = getNodesToConnectTo(selfNode);
         
         saveGraphTgfFileToDisk(netboxNodes, connections);
         saveGraphGmlFileToDisk(netboxNodes, connections);
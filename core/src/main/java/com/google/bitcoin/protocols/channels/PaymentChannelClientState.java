@@ -417,7 +417,7 @@ public class PaymentChannelClientState {
             mode = Transaction.SigHash.SINGLE;
         TransactionSignature sig = tx.calculateSignature(0, myKey, multisigScript, mode, true);
         valueToMe = newValueToMe;
-        updateChannelInWallet();
+        updatePaymentInWallet();
         IncrementedPayment payment = new IncrementedPayment();
         payment.signature = sig;
         payment.amount = size;
@@ -433,6 +433,18 @@ public class PaymentChannelClientState {
         wallet.addOrUpdateExtension(channels);
     }
 
+    // Like updateChannelInWallet, but only the value changed so the journal can record it if there is one.
+    private synchronized void updatePaymentInWallet() {
+        if (storedChannel == null)
+            return;
+        synchronized (storedChannel) {
+            storedChannel.valueToMe = valueToMe;
+        }
+        StoredPaymentChannelClientStates channels = (StoredPaymentChannelClientStates)
+                wallet.getExtensions().get(StoredPaymentChannelClientStates.EXTENSION_ID);
+        channels.paymentIncremented(storedChannel);
+    }
+
     /**
      * Sets this channel's state in {@link StoredPaymentChannelClientStates} to unopened so this channel can be reopened
      * later.
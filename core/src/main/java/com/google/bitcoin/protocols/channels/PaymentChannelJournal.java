@@ -0,0 +1,331 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An append-only log of the payments made on the channels of a {@link StoredPaymentChannelClientStates} or
+ * {@link StoredPaymentChannelServerStates}. Without one, every payment saves the whole wallet, which makes the speed
+ * of the wallet file the limit on how fast a channel can be used. With one, a payment only appends the new value and
+ * signature of its channel to the journal and the wallet is saved once every
+ * {@link #setCompactionThreshold(int) so many} payments, after which the journal starts over.</p>
+ *
+ * <p>A payment is durable once {@link #append(Sha256Hash, BigInteger, byte[])} returns. Payments made at the same time
+ * on different channels share a single fsync: whichever thread finds no write in progress writes everything queued up
+ * so far, and the others wait for it.</p>
+ *
+ * <p>Give each set of stored states its own journal file, via
+ * {@link StoredPaymentChannelServerStates#setJournal(PaymentChannelJournal)} or
+ * {@link StoredPaymentChannelClientStates#setJournal(PaymentChannelJournal)}, once the wallet has been loaded. That
+ * applies the payments in the journal which didn't make it into the wallet file yet.</p>
+ */
+public class PaymentChannelJournal {
+    private static final Logger log = LoggerFactory.getLogger(PaymentChannelJournal.class);
+
+    /** The default number of entries after which the wallet is saved and the journal emptied. */
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 1000;
+
+    // Entries are a length, a body of contract hash, value and signature, and a CRC32 of the body. Signatures are
+    // around 72 bytes, anything much longer means the entry is garbage.
+    private static final int MAX_BODY_LENGTH = 32 + 8 + 4 + 1024;
+
+    /** Receives the entries of a journal when it is replayed. */
+    interface Replayer {
+        void replayPayment(Sha256Hash contractHash, BigInteger value, @Nullable byte[] signature);
+    }
+
+    private final File file, compactingFile;
+    private final Wallet wallet;
+    private final File walletFile;
+
+    private final ReentrantLock lock = Threading.lock("PaymentChannelJournal");
+    private final Condition written = lock.newCondition();
+    // Held for the duration of a compaction, including the wallet save, so that only one runs at a time.
+    private final ReentrantLock compactionLock = Threading.lock("PaymentChannelJournalCompaction");
+
+    @GuardedBy("lock") private final RandomAccessFile raf;
+    @GuardedBy("lock") private final FileChannel channel;
+    // Entries appended but not yet written, and how many entries were appended and made durable so far.
+    @GuardedBy("lock") private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    @GuardedBy("lock") private long appended, durable;
+    @GuardedBy("lock") private boolean writing, replayed;
+    @GuardedBy("lock") private int entries;
+    @GuardedBy("lock") @Nullable private IOException failure;
+
+    private volatile int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /**
+     * Opens or creates the journal in the given file. When it is compacted, the given wallet is saved to walletFile,
+     * which should be the file the wallet is loaded from.
+     */
+    public PaymentChannelJournal(File file, Wallet wallet, File walletFile) throws IOException {
+        this.file = checkNotNull(file);
+        this.compactingFile = new File(file.getPath() + ".compacting");
+        this.wallet = checkNotNull(wallet);
+        this.walletFile = checkNotNull(walletFile);
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+    }
+
+    /** Sets the number of entries after which the wallet is saved and the journal emptied. */
+    public void setCompactionThreshold(int compactionThreshold) {
+        checkArgument(compactionThreshold > 0);
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /** Returns the number of entries in the journal, which are not necessarily in the wallet file yet. */
+    public int getEntryCount() {
+        lock.lock();
+        try {
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands every entry of the journal to the given replayer, oldest first, and readies the journal for appending.
+     * An incomplete entry at the end, left by a crash in the middle of a write, is discarded.
+     */
+    void replay(Replayer replayer) throws IOException {
+        lock.lock();
+        try {
+            checkState(!replayed, "Journal already replayed");
+            // Left over from a compaction which didn't finish, so the wallet may or may not have been saved. Replaying
+            // a payment the wallet already has does no harm.
+            if (compactingFile.exists()) {
+                RandomAccessFile compacting = new RandomAccessFile(compactingFile, "r");
+                try {
+                    readEntries(compacting.getChannel(), replayer);
+                } finally {
+                    compacting.close();
+                }
+            }
+            long valid = readEntries(channel, replayer);
+            if (valid < channel.size()) {
+                log.warn("Discarding {} bytes of incomplete entry at the end of {}", channel.size() - valid, file);
+                channel.truncate(valid);
+                channel.force(true);
+            }
+            channel.position(valid);
+            replayed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reads entries from the start of the given file up to the first incomplete or corrupt one, whose offset it returns.
+    private long readEntries(FileChannel in, Replayer replayer) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) in.size());
+        in.position(0);
+        while (buf.hasRemaining() && in.read(buf) >= 0) ;
+        buf.flip();
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= 4) {
+            int start = buf.position();
+            int length = buf.getInt();
+            if (length < 32 + 8 + 4 || length > MAX_BODY_LENGTH || buf.remaining() < length + 4) {
+                buf.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(buf.array(), buf.position(), length);
+            byte[] hash = new byte[32];
+            buf.get(hash);
+            BigInteger value = BigInteger.valueOf(buf.getLong());
+            byte[] signature = new byte[buf.getInt()];
+            if (signature.length != length - (32 + 8 + 4)) {
+                buf.position(start);
+                break;
+            }
+            buf.get(signature);
+            if ((int) crc.getValue() != buf.getInt()) {
+                buf.position(start);
+                break;
+            }
+            entries++;
+            replayer.replayPayment(new Sha256Hash(hash), value, signature.length == 0 ? null : signature);
+        }
+        return buf.position();
+    }
+
+    private static byte[] encode(Sha256Hash contractHash, BigInteger value, @Nullable byte[] signature) {
+        if (signature == null)
+            signature = new byte[0];
+        int length = 32 + 8 + 4 + signature.length;
+        checkArgument(length <= MAX_BODY_LENGTH);
+        ByteBuffer buf = ByteBuffer.allocate(4 + length + 4);
+        buf.putInt(length);
+        buf.put(contractHash.getBytes());
+        buf.putLong(value.longValue());
+        buf.putInt(signature.length);
+        buf.put(signature);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, length);
+        buf.putInt((int) crc.getValue());
+        return buf.array();
+    }
+
+    /**
+     * Appends the new value and signature of the channel with the given contract and returns once they are on disk.
+     * If writing fails the journal can't be used any more, and this and all further appends throw.
+     */
+    public void append(Sha256Hash contractHash, BigInteger value, @Nullable byte[] signature) throws IOException {
+        byte[] entry = encode(contractHash, value, signature);
+        lock.lock();
+        try {
+            checkState(replayed, "Journal must be replayed before it is used");
+            if (failure != null)
+                throw new IOException("Journal failed earlier", failure);
+            pending.write(entry, 0, entry.length);
+            entries++;
+            long sequence = ++appended;
+            while (durable < sequence) {
+                if (failure != null)
+                    throw new IOException("Journal failed earlier", failure);
+                if (writing)
+                    written.awaitUninterruptibly();
+                else
+                    writePending();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes and syncs everything appended so far, with the lock released during the IO so that more entries can queue
+    // up for the next write. Called and returns with the lock held.
+    @GuardedBy("lock")
+    private void writePending() throws IOException {
+        writing = true;
+        ByteBuffer data = ByteBuffer.wrap(pending.toByteArray());
+        pending.reset();
+        long target = appended;
+        lock.unlock();
+        IOException error = null;
+        try {
+            while (data.hasRemaining())
+                channel.write(data);
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+            writing = false;
+            written.signalAll();
+        }
+        if (error != null) {
+            failure = error;
+            throw error;
+        }
+        durable = target;
+    }
+
+    /** Compacts the journal if it has reached the compaction threshold and no other compaction is running. */
+    void maybeCompact() {
+        if (getEntryCount() < compactionThreshold || !compactionLock.tryLock())
+            return;
+        try {
+            compact();
+        } catch (IOException e) {
+            log.error("Failed to compact payment channel journal " + file, e);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Saves the wallet, which then contains every payment in the journal, and empties the journal. Payments can carry
+     * on while the wallet is saved. They go into the emptied journal, as the save may or may not include them.
+     */
+    public void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            lock.lock();
+            try {
+                checkState(replayed, "Journal must be replayed before it is used");
+                while (writing || pending.size() > 0) {
+                    if (failure != null)
+                        throw new IOException("Journal failed earlier", failure);
+                    if (writing)
+                        written.awaitUninterruptibly();
+                    else
+                        writePending();
+                }
+                // Set the entries aside until the wallet is saved, adding them to any left over from a compaction that
+                // failed, rather than renaming the file, so that they stay on disk throughout.
+                ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+                channel.position(0);
+                while (data.hasRemaining() && channel.read(data) >= 0) ;
+                FileOutputStream compacting = new FileOutputStream(compactingFile, true);
+                try {
+                    compacting.write(data.array(), 0, data.position());
+                    compacting.getFD().sync();
+                } finally {
+                    compacting.close();
+                }
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+                entries = 0;
+            } finally {
+                lock.unlock();
+            }
+            log.info("Compacting payment channel journal {} into {}", file, walletFile);
+            wallet.saveToFile(walletFile);
+            if (!compactingFile.delete())
+                throw new IOException("Failed to delete " + compactingFile);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /** Closes the journal file. Entries which weren't compacted yet are replayed when it is opened again. */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            while (writing)
+                written.awaitUninterruptibly();
+            raf.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
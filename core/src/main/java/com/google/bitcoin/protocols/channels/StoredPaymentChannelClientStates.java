@@ -26,6 +26,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Date;
 import java.util.Set;
@@ -52,6 +53,8 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
 
     protected final ReentrantLock lock = Threading.lock("StoredPaymentChannelClientStates");
 
+    @Nullable private volatile PaymentChannelJournal journal;
+
     /**
      * Creates a new StoredPaymentChannelClientStates and associates it with the given {@link Wallet} and
      * {@link TransactionBroadcaster} which are used to complete and announce contract and refund
@@ -203,6 +206,56 @@ public class StoredPaymentChannelClientStates implements WalletExtension {
         containingWallet.addOrUpdateExtension(this);
     }
 
+    /**
+     * <p>Records payments in the given journal instead of saving the whole wallet after each one. This must be called
+     * once the wallet, including this extension, has been loaded: the payments in the journal which are newer than
+     * the ones in the wallet are applied to the channels first.</p>
+     */
+    public void setJournal(PaymentChannelJournal journal) throws IOException {
+        journal.replay(new PaymentChannelJournal.Replayer() {
+            @Override
+            public void replayPayment(Sha256Hash contractHash, BigInteger value, @Nullable byte[] signature) {
+                lock.lock();
+                try {
+                    for (StoredClientChannel channel : mapChannels.values()) {
+                        if (!channel.contract.getHash().equals(contractHash))
+                            continue;
+                        synchronized (channel) {
+                            // The value left to us only ever goes down, so older entries are ignored.
+                            if (value.compareTo(channel.valueToMe) < 0)
+                                channel.valueToMe = value;
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        this.journal = journal;
+    }
+
+    /**
+     * Persists the latest payment on the given channel, in the journal if there is one and otherwise by saving the
+     * wallet.
+     */
+    void paymentIncremented(StoredClientChannel channel) {
+        PaymentChannelJournal journal = this.journal;
+        if (journal != null) {
+            BigInteger value;
+            synchronized (channel) {
+                value = channel.valueToMe;
+            }
+            try {
+                journal.append(channel.contract.getHash(), value, null);
+                journal.maybeCompact();
+                return;
+            } catch (IOException e) {
+                log.error("Failed to write payment to journal, saving the wallet instead", e);
+            }
+        }
+        containingWallet.addOrUpdateExtension(this);
+    }
+
     @Override
     public String getWalletExtensionID() {
         return EXTENSION_ID;
@@ -23,6 +23,8 @@ import com.google.protobuf.ByteString;
 import net.jcip.annotations.GuardedBy;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
@@ -46,6 +48,8 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
 
     private final ReentrantLock lock = Threading.lock("StoredPaymentChannelServerStates");
 
+    @Nullable private volatile PaymentChannelJournal journal;
+
     /**
      * The offset between the refund transaction's lock time and the time channels will be automatically closed.
      * This defines a window during which we must get the last payment transaction verified, ie it should allow time for
@@ -133,6 +137,52 @@ public class StoredPaymentChannelServerStates implements WalletExtension {
         }
     }
 
+    /**
+     * <p>Records payments in the given journal instead of saving the whole wallet after each one. This must be called
+     * once the wallet, including this extension, has been loaded: the payments in the journal which are newer than
+     * the ones in the wallet are applied to the channels first.</p>
+     */
+    public void setJournal(PaymentChannelJournal journal) throws IOException {
+        journal.replay(new PaymentChannelJournal.Replayer() {
+            @Override
+            public void replayPayment(Sha256Hash contractHash, BigInteger value, @Nullable byte[] signature) {
+                StoredServerChannel channel = getChannel(contractHash);
+                if (channel == null)
+                    return;
+                synchronized (channel) {
+                    // The value to us only ever goes up, so older entries are ignored.
+                    if (value.compareTo(channel.bestValueToMe) > 0)
+                        channel.updateValueToMe(value, signature);
+                }
+            }
+        });
+        this.journal = journal;
+    }
+
+    /**
+     * Persists the latest payment on the given channel, in the journal if there is one and otherwise by saving the
+     * wallet.
+     */
+    void paymentIncremented(StoredServerChannel channel) {
+        PaymentChannelJournal journal = this.journal;
+        if (journal != null) {
+            BigInteger value;
+            byte[] signature;
+            synchronized (channel) {
+                value = channel.bestValueToMe;
+                signature = channel.bestValueSignature;
+            }
+            try {
+                journal.append(channel.contract.getHash(), value, signature);
+                journal.maybeCompact();
+                return;
+            } catch (IOException e) {
+                log.error("Failed to write payment to journal, saving the wallet instead", e);
+            }
+        }
+        wallet.addOrUpdateExtension(this);
+    }
+
     @Override
     public String getWalletExtensionID() {
         return EXTENSION_ID;
@@ -25,11 +25,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 
+import javax.annotation.Nullable;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -568,7 +569,159 @@ public class Script {
     }
     
     ////////////////////// Script verification and helpers ////////////////////////////////
-    
+
+    // Marks a push of data in Decoded.opcodes.
+    private static final int PUSH = -1;
+
+    private static final int TEMPLATE_NONE = 0;
+    private static final int TEMPLATE_PAY_TO_ADDRESS = 1;
+    private static final int TEMPLATE_PAY_TO_PUBKEY = 2;
+
+    /**
+     * The program as the interpreter runs it: parallel arrays of opcodes, pushed data and where each chunk starts in
+     * the program, plus what it takes to recognize the standard templates without looking at the chunks again.
+     */
+    private static final class Decoded {
+        final int[] opcodes;
+        final byte[][] data;
+        final int[] locations;
+        final int template;
+        // The number of chunks if they all push data that can go on the stack, otherwise -1.
+        final int pushes;
+
+        Decoded(int[] opcodes, byte[][] data, int[] locations) {
+            this.opcodes = opcodes;
+            this.data = data;
+            this.locations = locations;
+            boolean pushOnly = true;
+            for (int i = 0; i < opcodes.length; i++)
+                pushOnly &= opcodes[i] == PUSH && data[i].length <= MAX_SCRIPT_ELEMENT_SIZE;
+            this.pushes = pushOnly ? opcodes.length : -1;
+            if (opcodes.length == 5 && opcodes[0] == OP_DUP && opcodes[1] == OP_HASH160 && opcodes[2] == PUSH &&
+                    data[2].length == Address.LENGTH && opcodes[3] == OP_EQUALVERIFY && opcodes[4] == OP_CHECKSIG)
+                template = TEMPLATE_PAY_TO_ADDRESS;
+            else if (opcodes.length == 2 && opcodes[0] == PUSH && data[0].length <= MAX_SCRIPT_ELEMENT_SIZE &&
+                    opcodes[1] == OP_CHECKSIG)
+                template = TEMPLATE_PAY_TO_PUBKEY;
+            else
+                template = TEMPLATE_NONE;
+        }
+    }
+
+    // Built on first use, scripts are immutable.
+    private volatile Decoded decoded;
+
+    private Decoded getDecoded() {
+        Decoded result = decoded;
+        if (result == null) {
+            byte[] program = getQuickProgram();
+            int n = chunks.size();
+            int[] opcodes = new int[n];
+            byte[][] data = new byte[n][];
+            int[] locations = new int[n];
+            // Walk the program alongside the chunks, which don't all know where they start.
+            int cursor = 0;
+            for (int i = 0; i < n; i++) {
+                locations[i] = cursor;
+                int opcode = 0xFF & program[cursor++];
+                long length = -1;
+                if (opcode < OP_PUSHDATA1) {
+                    length = opcode;
+                } else if (opcode == OP_PUSHDATA1) {
+                    length = 0xFF & program[cursor];
+                    cursor += 1;
+                } else if (opcode == OP_PUSHDATA2) {
+                    length = (0xFF & program[cursor]) | ((0xFF & program[cursor + 1]) << 8);
+                    cursor += 2;
+                } else if (opcode == OP_PUSHDATA4) {
+                    length = Utils.readUint32(program, cursor);
+                    cursor += 4;
+                }
+                if (length < 0) {
+                    opcodes[i] = opcode;
+                } else {
+                    opcodes[i] = PUSH;
+                    data[i] = chunks.get(i).data;
+                    cursor += length;
+                }
+            }
+            decoded = result = new Decoded(opcodes, data, locations);
+        }
+        return result;
+    }
+
+    /**
+     * The interpreter's stack, an array with the top element last. Elements are never modified once pushed, so the
+     * same array can be on the stack any number of times, and the data of scripts and number constants go on directly.
+     */
+    private static final class ByteArrayStack {
+        private byte[][] elements;
+        private int size;
+
+        ByteArrayStack() {
+            elements = new byte[16][];
+        }
+
+        ByteArrayStack(ByteArrayStack other) {
+            elements = Arrays.copyOf(other.elements, other.elements.length);
+            size = other.size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void push(byte[] element) {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, size * 2);
+            elements[size++] = element;
+        }
+
+        byte[] pop() {
+            byte[] element = elements[--size];
+            elements[size] = null;
+            return element;
+        }
+
+        /** Returns the element at the given depth, 0 being the top. */
+        byte[] peek(int depth) {
+            return elements[size - 1 - depth];
+        }
+
+        /** Removes and returns the element at the given depth, 0 being the top. */
+        byte[] remove(int depth) {
+            int index = size - 1 - depth;
+            byte[] element = elements[index];
+            System.arraycopy(elements, index + 1, elements, index, depth);
+            elements[--size] = null;
+            return element;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    builder.append(", ");
+                builder.append(bytesToHexString(elements[i]));
+            }
+            return builder.append("]").toString();
+        }
+    }
+
+    private static final byte[] TRUE = new byte[] {1};
+    private static final byte[] FALSE = new byte[] {0};
+    // The encodings of -1 to 16, which is what OP_1NEGATE to OP_16 and most arithmetic push.
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+
+    static {
+        SMALL_NUMBERS[1] = new byte[0];
+        for (int i = -1; i <= 16; i++) {
+            if (i != 0)
+                SMALL_NUMBERS[i + 1] = encodeNumber(i, true);
+        }
+    }
+
     private static boolean castToBool(byte[] data) {
         for (int i = 0; i < data.length; i++)
         {
@@ -578,87 +731,119 @@ public class Script {
         }
         return false;
     }
-    
-    private static BigInteger castToBigInteger(byte[] chunk) throws ScriptException {
+
+    /**
+     * Numbers are little endian with the top bit of the last byte as the sign. They can be at most 4 bytes long when
+     * used, so always fit in a long, as do the results of any operation on them.
+     */
+    private static long castToLong(byte[] chunk) throws ScriptException {
         if (chunk.length > 4)
             throw new ScriptException("Script attempted to use an integer larger than 4 bytes");
-        return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
+        if (chunk.length == 0)
+            return 0;
+        long value = 0;
+        for (int i = 0; i < chunk.length; i++)
+            value |= (long) (0xFF & chunk[i]) << (8 * i);
+        long sign = 0x80L << (8 * (chunk.length - 1));
+        return (value & sign) != 0 ? -(value & ~sign) : value;
     }
-    
+
+    private static byte[] encodeNumber(long value) {
+        return encodeNumber(value, false);
+    }
+
+    private static byte[] encodeNumber(long value, boolean fresh) {
+        if (!fresh && value >= -1 && value <= 16)
+            return SMALL_NUMBERS[(int) value + 1];
+        if (value == 0)
+            return new byte[0];
+        long magnitude = Math.abs(value);
+        // One more byte than the magnitude strictly needs if its top bit is set, to leave room for the sign.
+        byte[] result = new byte[(64 - Long.numberOfLeadingZeros(magnitude)) / 8 + 1];
+        for (int i = 0; i < result.length; i++)
+            result[i] = (byte) (magnitude >>> (8 * i));
+        if (value < 0)
+            result[result.length - 1] |= 0x80;
+        return result;
+    }
+
     private static void executeScript(Transaction txContainingThis, long index,
-                                      Script script, LinkedList<byte[]> stack) throws ScriptException {
+                                      Script script, ByteArrayStack stack) throws ScriptException {
+        Decoded program = script.getDecoded();
         int opCount = 0;
         int lastCodeSepLocation = 0;
-        
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
-        LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
-        
-        for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
-            
-            if (!chunk.isOpCode()) {
-                if (chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
+
+        ByteArrayStack altstack = new ByteArrayStack();
+        // The conditions of the enclosing OP_IF/OP_NOTIF blocks, innermost last. Only the block structure itself is
+        // executed while any of them is false.
+        boolean[] conditions = new boolean[8];
+        int depth = 0, falseConditions = 0;
+
+        for (int pc = 0; pc < program.opcodes.length; pc++) {
+            int opcode = program.opcodes[pc];
+            boolean shouldExecute = falseConditions == 0;
+
+            if (opcode == PUSH) {
+                byte[] data = program.data[pc];
+                if (data.length > MAX_SCRIPT_ELEMENT_SIZE)
                     throw new ScriptException("Attempted to push a data string larger than 520 bytes");
-                
+
                 if (!shouldExecute)
                     continue;
-                
-                stack.add(chunk.data);
+
+                stack.push(data);
             } else {
-                int opcode = 0xFF & chunk.data[0];
                 if (opcode > OP_16) {
                     opCount++;
                     if (opCount > 201)
                         throw new ScriptException("More script operations than is allowed");
                 }
-                
+
                 if (opcode == OP_VERIF || opcode == OP_VERNOTIF)
                     throw new ScriptException("Script included OP_VERIF or OP_VERNOTIF");
-                
+
                 if (opcode == OP_CAT || opcode == OP_SUBSTR || opcode == OP_LEFT || opcode == OP_RIGHT ||
                     opcode == OP_INVERT || opcode == OP_AND || opcode == OP_OR || opcode == OP_XOR ||
                     opcode == OP_2MUL || opcode == OP_2DIV || opcode == OP_MUL || opcode == OP_DIV ||
                     opcode == OP_MOD || opcode == OP_LSHIFT || opcode == OP_RSHIFT)
                     throw new ScriptException("Script included a disabled Script Op.");
-                
+
                 switch (opcode) {
                 case OP_IF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
-                    }
-                    if (stack.size() < 1)
-                        throw new ScriptException("Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
-                    continue;
                 case OP_NOTIF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
+                    boolean condition = false;
+                    if (shouldExecute) {
+                        if (stack.size() < 1)
+                            throw new ScriptException("Attempted OP_IF/OP_NOTIF on an empty stack");
+                        condition = castToBool(stack.pop()) == (opcode == OP_IF);
                     }
-                    if (stack.size() < 1)
-                        throw new ScriptException("Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    if (depth == conditions.length)
+                        conditions = Arrays.copyOf(conditions, depth * 2);
+                    conditions[depth++] = condition;
+                    if (!condition)
+                        falseConditions++;
                     continue;
                 case OP_ELSE:
-                    if (ifStack.isEmpty())
+                    if (depth == 0)
                         throw new ScriptException("Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    conditions[depth - 1] = !conditions[depth - 1];
+                    falseConditions += conditions[depth - 1] ? -1 : 1;
                     continue;
                 case OP_ENDIF:
-                    if (ifStack.isEmpty())
+                    if (depth == 0)
                         throw new ScriptException("Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    if (!conditions[--depth])
+                        falseConditions--;
                     continue;
                 }
-                
+
                 if (!shouldExecute)
                     continue;
-                
+
                 switch(opcode) {
                 // OP_0 is no opcode
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(encodeNumber(-1));
                     break;
                 case OP_1:
                 case OP_2:
@@ -676,14 +861,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(decodeFromOpN(opcode)), false)));
+                    stack.push(encodeNumber(decodeFromOpN(opcode)));
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException("OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -691,143 +876,103 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    stack.push(stack.peek(1));
+                    stack.push(stack.peek(1));
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
+                    stack.push(stack.peek(2));
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    stack.push(stack.peek(3));
+                    stack.push(stack.peek(3));
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException("Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    stack.push(stack.remove(5));
+                    stack.push(stack.remove(5));
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    stack.push(stack.remove(3));
+                    stack.push(stack.remove(3));
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek(0)))
+                        stack.push(stack.peek(0));
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(encodeNumber(stack.size()));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek(0));
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    stack.remove(1);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast()).longValue();
+                    long val = castToLong(stack.pop());
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException("OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
-                    if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                    stack.push(opcode == OP_ROLL ? stack.remove((int) val) : stack.peek((int) val));
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    stack.push(stack.remove(2));
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    byte[] OPSWAPtmpChunk2 = stack.pop();
+                    byte[] OPSWAPtmpChunk1 = stack.pop();
+                    stack.push(OPSWAPtmpChunk2);
+                    stack.push(OPSWAPtmpChunk1);
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(OPSWAPtmpChunk2);
                     break;
                 case OP_CAT:
                 case OP_SUBSTR:
@@ -837,7 +982,7 @@ public class Script {
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(encodeNumber(stack.peek(0).length));
                     break;
                 case OP_INVERT:
                 case OP_AND:
@@ -847,12 +992,12 @@ public class Script {
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {0});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? TRUE : FALSE);
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException("OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -863,39 +1008,32 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast());
-                                        
+                    long numericOPnum = castToLong(stack.pop());
+
                     switch (opcode) {
                     case OP_1ADD:
-                        numericOPnum = numericOPnum.add(BigInteger.ONE);
+                        numericOPnum = numericOPnum + 1;
                         break;
                     case OP_1SUB:
-                        numericOPnum = numericOPnum.subtract(BigInteger.ONE);
+                        numericOPnum = numericOPnum - 1;
                         break;
                     case OP_NEGATE:
-                        numericOPnum = numericOPnum.negate();
+                        numericOPnum = -numericOPnum;
                         break;
                     case OP_ABS:
-                        if (numericOPnum.signum() < 0)
-                            numericOPnum = numericOPnum.negate();
+                        numericOPnum = Math.abs(numericOPnum);
                         break;
                     case OP_NOT:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ONE;
-                        else
-                            numericOPnum = BigInteger.ZERO;
+                        numericOPnum = numericOPnum == 0 ? 1 : 0;
                         break;
                     case OP_0NOTEQUAL:
-                        if (numericOPnum.equals(BigInteger.ZERO))
-                            numericOPnum = BigInteger.ZERO;
-                        else
-                            numericOPnum = BigInteger.ONE;
+                        numericOPnum = numericOPnum == 0 ? 0 : 1;
                         break;
                     default:
                         throw new AssertionError("Unreachable");
                     }
-                    
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+
+                    stack.push(encodeNumber(numericOPnum));
                     break;
                 case OP_2MUL:
                 case OP_2DIV:
@@ -914,82 +1052,52 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast());
+                    long numericOPnum2 = castToLong(stack.pop());
+                    long numericOPnum1 = castToLong(stack.pop());
 
-                    BigInteger numericOPresult;
+                    long numericOPresult;
                     switch (opcode) {
                     case OP_ADD:
-                        numericOPresult = numericOPnum1.add(numericOPnum2);
+                        numericOPresult = numericOPnum1 + numericOPnum2;
                         break;
                     case OP_SUB:
-                        numericOPresult = numericOPnum1.subtract(numericOPnum2);
+                        numericOPresult = numericOPnum1 - numericOPnum2;
                         break;
                     case OP_BOOLAND:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) && !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 && numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_BOOLOR:
-                        if (!numericOPnum1.equals(BigInteger.ZERO) || !numericOPnum2.equals(BigInteger.ZERO))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != 0 || numericOPnum2 != 0 ? 1 : 0;
                         break;
                     case OP_NUMEQUAL:
-                        if (numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 == numericOPnum2 ? 1 : 0;
                         break;
                     case OP_NUMNOTEQUAL:
-                        if (!numericOPnum1.equals(numericOPnum2))
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 != numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 < numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHAN:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 > numericOPnum2 ? 1 : 0;
                         break;
                     case OP_LESSTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) <= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 <= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_GREATERTHANOREQUAL:
-                        if (numericOPnum1.compareTo(numericOPnum2) >= 0)
-                            numericOPresult = BigInteger.ONE;
-                        else
-                            numericOPresult = BigInteger.ZERO;
+                        numericOPresult = numericOPnum1 >= numericOPnum2 ? 1 : 0;
                         break;
                     case OP_MIN:
-                        if (numericOPnum1.compareTo(numericOPnum2) < 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.min(numericOPnum1, numericOPnum2);
                         break;
                     case OP_MAX:
-                        if (numericOPnum1.compareTo(numericOPnum2) > 0)
-                            numericOPresult = numericOPnum1;
-                        else
-                            numericOPresult = numericOPnum2;
+                        numericOPresult = Math.max(numericOPnum1, numericOPnum2);
                         break;
                     default:
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
-                    
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+
+                    stack.push(encodeNumber(numericOPresult));
                     break;
                 case OP_MUL:
                 case OP_DIV:
@@ -1000,38 +1108,35 @@ public class Script {
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast());
-                    
-                    if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
+                    long OPNUMEQUALVERIFYnum2 = castToLong(stack.pop());
+                    long OPNUMEQUALVERIFYnum1 = castToLong(stack.pop());
+
+                    if (OPNUMEQUALVERIFYnum1 != OPNUMEQUALVERIFYnum2)
                         throw new ScriptException("OP_NUMEQUALVERIFY failed");
                     break;
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast());
-                    if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
-                    else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                    long OPWITHINnum3 = castToLong(stack.pop());
+                    long OPWITHINnum2 = castToLong(stack.pop());
+                    long OPWITHINnum1 = castToLong(stack.pop());
+                    stack.push(encodeNumber(OPWITHINnum2 <= OPWITHINnum1 && OPWITHINnum1 < OPWITHINnum3 ? 1 : 0));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1040,7 +1145,7 @@ public class Script {
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-256").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1048,15 +1153,15 @@ public class Script {
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    stack.add(Utils.doubleDigest(stack.pollLast()));
+                    stack.push(Utils.doubleDigest(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
-                    lastCodeSepLocation = chunk.getStartLocationInProgram() + 1;
+                    lastCodeSepLocation = program.locations[pc] + 1;
                     break;
                 case OP_CHECKSIG:
                 case OP_CHECKSIGVERIFY:
@@ -1077,62 +1182,114 @@ public class Script {
                 case OP_NOP9:
                 case OP_NOP10:
                     break;
-                    
+
                 default:
                     throw new ScriptException("Script used a reserved opcode " + opcode);
                 }
             }
-            
+
             if (stack.size() + altstack.size() > 1000 || stack.size() + altstack.size() < 0)
                 throw new ScriptException("Stack size exceeded range");
         }
-        
-        if (!ifStack.isEmpty())
+
+        if (depth != 0)
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                        int lastCodeSepLocation, int opcode) throws ScriptException {
-        if (stack.size() < 2)
-            throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
-
-        byte[] prog = script.getProgram();
-        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+    // Returns the part of the program after the last OP_CODESEPARATOR executed, without copying it if there was none.
+    private static byte[] getConnectedScript(Script script, int lastCodeSepLocation) {
+        byte[] prog = script.getQuickProgram();
+        return lastCodeSepLocation == 0 ? prog : Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+    }
 
-        UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
+    // As removeAllInstancesOf(script, push of sig), but returns the script itself when it doesn't contain the push,
+    // which is nearly always.
+    private static byte[] removeSignature(byte[] script, byte[] sig) {
+        UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sig.length + 1);
         try {
-            writeBytes(outStream, sigBytes);
+            writeBytes(outStream, sig);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen
         }
-        connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
+        byte[] push = outStream.toByteArray();
+        for (int cursor = 0; cursor < script.length; ) {
+            if (equalsRange(script, cursor, push))
+                return removeAllInstancesOf(script, push);
+            int opcode = script[cursor++] & 0xFF;
+            if (opcode < OP_PUSHDATA1)
+                cursor += opcode;
+            else if (opcode == OP_PUSHDATA1)
+                cursor += (0xFF & script[cursor]) + 1;
+            else if (opcode == OP_PUSHDATA2)
+                cursor += ((0xFF & script[cursor]) | ((0xFF & script[cursor + 1]) << 8)) + 2;
+            else if (opcode == OP_PUSHDATA4)
+                return removeAllInstancesOf(script, push);  // Let it deal with these, they are never seen in practice.
+        }
+        return script;
+    }
 
+    // None by default, see SignatureCache for when one helps.
+    @Nullable private static volatile SignatureCache signatureCache;
+
+    /** Returns the cache of valid signatures used by script execution, or null if there is none. */
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Sets the cache of valid signatures used by script execution, for instance one of
+     * {@link SignatureCache#DEFAULT_SIZE} entries. Null, the default, turns caching off, so that every signature is
+     * verified every time.
+     */
+    public static void setSignatureCache(@Nullable SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    private static boolean verifySignature(Sha256Hash hash, TransactionSignature sig, byte[] sigBytes, byte[] pubKey) {
+        SignatureCache cache = signatureCache;
+        if (cache == null)
+            return ECKey.verify(hash.getBytes(), sig, pubKey);
+        return cache.verify(hash, sig, sigBytes, pubKey);
+    }
+
+    private static boolean checkSignature(Transaction txContainingThis, int index, byte[] connectedScript,
+                                          byte[] sigBytes, byte[] pubKey) {
         // TODO: Use int for indexes everywhere, we can't have that many inputs/outputs
-        boolean sigValid = false;
         try {
             TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            return verifySignature(hash, sig, sigBytes, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
             log.warn(e1.toString());
+            return false;
         }
+    }
+
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ByteArrayStack stack,
+                                        int lastCodeSepLocation, int opcode) throws ScriptException {
+        if (stack.size() < 2)
+            throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
+        byte[] pubKey = stack.pop();
+        byte[] sigBytes = stack.pop();
+
+        byte[] connectedScript = removeSignature(getConnectedScript(script, lastCodeSepLocation), sigBytes);
+        boolean sigValid = checkSignature(txContainingThis, index, connectedScript, sigBytes, pubKey);
 
         if (opcode == OP_CHECKSIG)
-            stack.add(sigValid ? new byte[] {1} : new byte[] {0});
+            stack.push(sigValid ? TRUE : FALSE);
         else if (opcode == OP_CHECKSIGVERIFY)
             if (!sigValid)
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ByteArrayStack stack,
                                        int opCount, int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-        int pubKeyCount = castToBigInteger(stack.pollLast()).intValue();
+        int pubKeyCount = (int) castToLong(stack.pop());
         if (pubKeyCount < 0 || pubKeyCount > 20)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
         opCount += pubKeyCount;
@@ -1143,11 +1300,11 @@ public class Script {
 
         LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
         for (int i = 0; i < pubKeyCount; i++) {
-            byte[] pubKey = stack.pollLast();
+            byte[] pubKey = stack.pop();
             pubkeys.add(pubKey);
         }
 
-        int sigCount = castToBigInteger(stack.pollLast()).intValue();
+        int sigCount = (int) castToLong(stack.pop());
         if (sigCount < 0 || sigCount > pubKeyCount)
             throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
         if (stack.size() < sigCount + 1)
@@ -1155,22 +1312,14 @@ public class Script {
 
         LinkedList<byte[]> sigs = new LinkedList<byte[]>();
         for (int i = 0; i < sigCount; i++) {
-            byte[] sig = stack.pollLast();
+            byte[] sig = stack.pop();
             sigs.add(sig);
         }
 
-        byte[] prog = script.getProgram();
-        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        byte[] connectedScript = getConnectedScript(script, lastCodeSepLocation);
 
-        for (byte[] sig : sigs) {
-            UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sig.length + 1);
-            try {
-                writeBytes(outStream, sig);
-            } catch (IOException e) {
-                throw new RuntimeException(e); // Cannot happen
-            }
-            connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
-        }
+        for (byte[] sig : sigs)
+            connectedScript = removeSignature(connectedScript, sig);
 
         boolean valid = true;
         while (sigs.size() > 0) {
@@ -1180,7 +1329,7 @@ public class Script {
             try {
                 TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), false);
                 Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
+                if (verifySignature(hash, sig, sigs.getFirst(), pubKey))
                     sigs.pollFirst();
             } catch (Exception e) {
                 // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1194,10 +1343,10 @@ public class Script {
         }
 
         // We uselessly remove a stack object to emulate a reference client bug.
-        stack.pollLast();
+        stack.pop();
 
         if (opcode == OP_CHECKMULTISIG) {
-            stack.add(valid ? new byte[] {1} : new byte[] {0});
+            stack.push(valid ? TRUE : FALSE);
         } else if (opcode == OP_CHECKMULTISIGVERIFY) {
             if (!valid)
                 throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
@@ -1205,38 +1354,69 @@ public class Script {
         return opCount;
     }
 
+    /**
+     * Verifies the spend of a pay-to-address or pay-to-pubkey output by a scriptSig which just pushes the signature
+     * and, for pay-to-address, the public key, without running the scripts. The outcome is the same as running them
+     * would give. Returns false if the scripts don't have those forms, so need running.
+     */
+    private boolean correctlySpendsTemplate(Transaction txContainingThis, int index, Script scriptPubKey)
+            throws ScriptException {
+        Decoded sigProgram = getDecoded();
+        Decoded pubKeyProgram = scriptPubKey.getDecoded();
+        byte[] sig, pubKey;
+        switch (pubKeyProgram.template) {
+        case TEMPLATE_PAY_TO_ADDRESS:
+            if (sigProgram.pushes != 2)
+                return false;
+            sig = sigProgram.data[0];
+            pubKey = sigProgram.data[1];
+            if (!Arrays.equals(Utils.sha256hash160(pubKey), pubKeyProgram.data[2]))
+                throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+            break;
+        case TEMPLATE_PAY_TO_PUBKEY:
+            if (sigProgram.pushes != 1)
+                return false;
+            sig = sigProgram.data[0];
+            pubKey = pubKeyProgram.data[0];
+            break;
+        default:
+            return false;
+        }
+        byte[] connectedScript = removeSignature(scriptPubKey.getQuickProgram(), sig);
+        if (!checkSignature(txContainingThis, index, connectedScript, sig, pubKey))
+            throw new ScriptException("Script resulted in a non-true stack: signature check failed");
+        return true;
+    }
+
     /**
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey.
-     * @param txContainingThis The transaction in which this input scriptSig resides.
-     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     * @param txContainingThis The transaction in which this input scriptSig resides. It isn't modified, so any number
+     *                         of its inputs can be verified at the same time.
      * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
      * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
      * @param enforceP2SH Whether "pay to script hash" rules should be enforced. If in doubt, set to true.
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 boolean enforceP2SH) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = new Transaction(txContainingThis.getParams(), txContainingThis.bitcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
-        if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
+        if (getQuickProgram().length > 10000 || scriptPubKey.getQuickProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
-        
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
-        
+
+        // Nearly every output pays to an address or a public key, so check those directly.
+        if (correctlySpendsTemplate(txContainingThis, (int) scriptSigIndex, scriptPubKey))
+            return;
+
+        ByteArrayStack stack = new ByteArrayStack();
+        ByteArrayStack p2shStack = null;
+
         executeScript(txContainingThis, scriptSigIndex, this, stack);
         if (enforceP2SH)
-            p2shStack = new LinkedList<byte[]>(stack);
+            p2shStack = new ByteArrayStack(stack);
         executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
-        
+
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
-        
-        if (!castToBool(stack.pollLast()))
+
+        if (!castToBool(stack.pop()))
             throw new ScriptException("Script resulted in a non-true stack: " + stack);
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
@@ -1257,7 +1437,7 @@ public class Script {
                 if (chunk.isOpCode() && (chunk.data[0] & 0xff) > OP_16)
                     throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
             executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
@@ -1265,7 +1445,7 @@ public class Script {
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.pop()))
                 throw new ScriptException("P2SH script execution resulted in a non-true stack");
         }
     }
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Sha256Hasher;
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers the signatures found to be valid by script execution, so that checking the same signature again, for
+ * instance when a transaction that was verified on its own later arrives in a block, or when a block is connected
+ * again after a re-org, costs a hash and a lookup instead of an ECDSA verification.</p>
+ *
+ * <p>Entries are the hash of the signature hash, public key and signature together. Invalid signatures are not
+ * remembered, so the cache can't be used to make a valid signature look invalid. The entries are split between
+ * segments by hash, each with its own lock, so that threads verifying a block in parallel don't queue up on one lock.
+ * Once a segment is full, its least recently used entries make way for new ones.</p>
+ *
+ * <p>Script execution uses the cache set with {@link Script#setSignatureCache(SignatureCache)}. There is none by
+ * default: the memory pool doesn't run scripts, so a node that only relays transactions verifies them for the first
+ * time when they arrive in a block, and the cache wouldn't save work. Set one if the application verifies transactions
+ * as they are relayed, as the miner's block template builder does, or connects the same blocks more than once. This
+ * class is thread safe.</p>
+ */
+public class SignatureCache {
+    /** A reasonable number of entries, about as many signatures as a few full blocks contain. */
+    public static final int DEFAULT_SIZE = 50000;
+    /** The number of segments used by {@link #SignatureCache(int)}, for caches with at least that many entries. */
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private static class Segment {
+        final ReentrantLock lock = Threading.lock("SignatureCache");
+        @GuardedBy("lock") final LinkedHashMap<Sha256Hash, Boolean> entries;
+
+        Segment(final int size) {
+            // Access ordered, so the eldest entry is the least recently used.
+            entries = new LinkedHashMap<Sha256Hash, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                    return size() > size;
+                }
+            };
+        }
+    }
+
+    private final Segment[] segments;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache which remembers up to the given number of valid signatures. */
+    public SignatureCache(int size) {
+        this(size, Math.min(size, DEFAULT_SEGMENTS));
+    }
+
+    /**
+     * Creates a cache which remembers up to the given number of valid signatures, split between the given number of
+     * segments. Each segment evicts on its own, so with more than one the least recently used entry overall isn't
+     * always the one to go.
+     */
+    public SignatureCache(int size, int segmentCount) {
+        checkArgument(segmentCount > 0 && size >= segmentCount);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(size / segmentCount + (i < size % segmentCount ? 1 : 0));
+    }
+
+    private Segment segment(Sha256Hash entry) {
+        return segments[(entry.hashCode() & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private static Sha256Hash entry(Sha256Hash sigHash, byte[] encodedSignature, byte[] pubKey) {
+        Sha256Hasher hasher = Sha256Hasher.newHasher();
+        hasher.write(sigHash.getBytes(), 0, 32);
+        // Pushes are at most 520 bytes, so two bytes of length keep the boundary between key and signature apart.
+        hasher.write(pubKey.length >> 8);
+        hasher.write(pubKey.length);
+        hasher.write(pubKey, 0, pubKey.length);
+        hasher.write(encodedSignature, 0, encodedSignature.length);
+        return new Sha256Hash(hasher.digest());
+    }
+
+    /**
+     * Returns whether the given signature of sigHash is valid for the given public key, verifying it only if it isn't
+     * already known to be valid.
+     *
+     * @param signature the decoded form of encodedSignature
+     * @param encodedSignature the signature as it appears in the script
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] encodedSignature, byte[] pubKey) {
+        Sha256Hash entry = entry(sigHash, encodedSignature, pubKey);
+        Segment segment = segment(entry);
+        segment.lock.lock();
+        try {
+            if (segment.entries.get(entry) != null) {
+                hits.incrementAndGet();
+                return true;
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+        misses.incrementAndGet();
+        // Verify outside the lock, it's what takes the time and any number of threads can do it at once.
+        if (!ECKey.verify(sigHash.getBytes(), signature, pubKey))
+            return false;
+        segment.lock.lock();
+        try {
+            segment.entries.put(entry, Boolean.TRUE);
+        } finally {
+            segment.lock.unlock();
+        }
+        return true;
+    }
+
+    /** Returns the number of valid signatures remembered. */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.entries.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /** Forgets all signatures. The hit and miss counts are kept. */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.entries.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /** Returns how many signatures were found in the cache, so didn't need verifying. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns how many signatures were not found in the cache and were verified. */
+    public long getMissCount() {
+        return misses.get();
+    }
+}
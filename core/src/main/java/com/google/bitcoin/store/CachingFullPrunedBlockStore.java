@@ -0,0 +1,252 @@
+package com.google.bitcoin.store;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps unspent transaction outputs in memory in front of another, usually
+ * SQL backed, store. Everything but the unspent outputs is passed straight to the underlying store.</p>
+ *
+ * <p>Outputs added and removed between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()}
+ * are only recorded in memory, and written to the underlying store in one go just before its own commit, so they end
+ * up in the same database transaction as the blocks and verified chain head of the batch. An output created and spent
+ * in the same batch cancels out and never reaches the underlying store. Like the other stores, pending changes are
+ * only visible to the thread that made them.</p>
+ *
+ * <p>Outputs read from or written to the underlying store are remembered in a least recently used cache bounded by an
+ * approximate memory budget, so the inputs of a block that spend recent outputs do not need a database round trip.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget of the output cache, in bytes. */
+    public static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+    // Rough size of a cached output without its script: the map entry, out point, hash, value and output objects.
+    private static final int ENTRY_OVERHEAD = 250;
+
+    private final FullPrunedBlockStore store;
+    private final long cacheSize;
+    // The outputs added and removed by a thread since it called beginDatabaseBatchWrite.
+    private final ThreadLocal<PendingOutputWrites> batch = new ThreadLocal<PendingOutputWrites>();
+    // Outputs known to be unspent in the underlying store, least recently used first. Guarded by this.
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> cache =
+            new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(16, 0.75f, true);
+    private long cacheBytes;
+    private long hits, misses;
+
+    /** Wraps the given store with an output cache of {@link #DEFAULT_CACHE_SIZE} bytes. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param cacheSize The approximate number of bytes the cache of unspent outputs may use.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long cacheSize) {
+        checkArgument(cacheSize > 0);
+        this.store = checkNotNull(store);
+        this.cacheSize = cacheSize;
+    }
+
+    /** Returns the store this one writes to. */
+    public FullPrunedBlockStore getUnderlyingStore() {
+        return store;
+    }
+
+    private static long entrySize(StoredTransactionOutput out) {
+        return ENTRY_OVERHEAD + out.getScriptBytes().length;
+    }
+
+    private void cachePut(StoredTransactionOutPoint outPoint, StoredTransactionOutput out) {
+        StoredTransactionOutput previous = cache.put(outPoint, out);
+        if (previous != null)
+            cacheBytes -= entrySize(previous);
+        cacheBytes += entrySize(out);
+        Iterator<StoredTransactionOutput> it = cache.values().iterator();
+        while (cacheBytes > cacheSize && it.hasNext()) {
+            cacheBytes -= entrySize(it.next());
+            it.remove();
+        }
+    }
+
+    private void cacheRemove(StoredTransactionOutPoint outPoint) {
+        StoredTransactionOutput previous = cache.remove(outPoint);
+        if (previous != null)
+            cacheBytes -= entrySize(previous);
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        PendingOutputWrites batch = this.batch.get();
+        if (batch != null) {
+            if (batch.isRemoved(hash, index))
+                return null;
+            StoredTransactionOutput out = batch.getAdded(hash, index);
+            if (out != null)
+                return out;
+        }
+        StoredTransactionOutput out = cache.get(outPoint);
+        if (out != null) {
+            hits++;
+            return out;
+        }
+        misses++;
+        out = store.getTransactionOutput(hash, index);
+        if (out != null)
+            cachePut(outPoint, out);
+        return out;
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        PendingOutputWrites batch = this.batch.get();
+        if (batch == null) {
+            store.addUnspentTransactionOutput(out);
+            cachePut(outPoint, out);
+        } else if (batch.add(out)) {
+            // Spent and then restored in the same batch (a reorg), the underlying store never saw the removal.
+            cachePut(outPoint, out);
+        }
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        PendingOutputWrites batch = this.batch.get();
+        if (batch == null) {
+            cacheRemove(outPoint);
+            store.removeUnspentTransactionOutput(out);
+        } else {
+            if (batch.getAdded(out.getHash(), out.getIndex()) == null) {
+                if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+                cacheRemove(outPoint);
+            }
+            batch.remove(out);
+        }
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingOutputWrites batch = this.batch.get();
+        if (batch != null) {
+            if (batch.hasAdded(hash))
+                return true;
+            if (batch.hasRemoved(hash)) {
+                // The underlying store still has the removed outputs, so look at the others one by one.
+                for (int i = 0; i < numOutputs; i++)
+                    if (getTransactionOutput(hash, i) != null)
+                        return true;
+                return false;
+            }
+        }
+        for (int i = 0; i < numOutputs; i++)
+            if (cache.containsKey(new StoredTransactionOutPoint(hash, i)))
+                return true;
+        return store.hasUnspentOutputs(hash, numOutputs);
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        if (batch.get() == null)
+            batch.set(new PendingOutputWrites());
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        PendingOutputWrites batch = this.batch.get();
+        if (batch != null) {
+            for (StoredTransactionOutput out : batch.getRemoved())
+                store.removeUnspentTransactionOutput(out);
+            for (StoredTransactionOutput out : batch.getAdded())
+                store.addUnspentTransactionOutput(out);
+        }
+        store.commitDatabaseBatchWrite();
+        if (batch != null) {
+            this.batch.remove();
+            // Another thread may have cached a removed output from the underlying store before we committed.
+            for (StoredTransactionOutput out : batch.getRemoved())
+                cacheRemove(new StoredTransactionOutPoint(out));
+            for (StoredTransactionOutput out : batch.getAdded())
+                cachePut(new StoredTransactionOutPoint(out), out);
+            if (log.isDebugEnabled())
+                log.debug("Flushed {} new and {} spent outputs, cache holds {} outputs in ~{} bytes ({} hits, {} misses)",
+                        batch.getAdded().size(), batch.getRemoved().size(), cache.size(), cacheBytes, hits, misses);
+        }
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        // The cache only ever holds what the underlying store has committed, so only the batch is dropped.
+        batch.remove();
+        store.abortDatabaseBatchWrite();
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public List<StoredUndoableBlock> getUndoBlocksUsingTransaction(Sha256Hash txHash) throws BlockStoreException {
+        return store.getUndoBlocksUsingTransaction(txHash);
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return store.getVerifiedChainHead();
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setVerifiedChainHead(chainHead);
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public Map<Date, Integer> getStaleBlocks(int period, int maxPeriod) throws BlockStoreException {
+        return store.getStaleBlocks(period, maxPeriod);
+    }
+
+    public Map<Date, Integer> getBlocks(int period, int maxPeriod) throws BlockStoreException {
+        return store.getBlocks(period, maxPeriod);
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public synchronized void close() throws BlockStoreException {
+        cache.clear();
+        cacheBytes = 0;
+        store.close();
+    }
+}
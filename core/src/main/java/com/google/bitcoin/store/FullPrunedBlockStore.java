@@ -21,6 +21,8 @@ import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.StoredTransactionOutput;
 import com.google.bitcoin.core.StoredUndoableBlock;
 
+import java.util.List;
+
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
  * 
@@ -72,6 +74,14 @@ public interface FullPrunedBlockStore extends BlockStore {
      * {@link StoredBlock}s have a {@link StoredUndoableBlock} copy stored as well.
      */
     StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException;
+
+    /**
+     * Returns the {@link StoredUndoableBlock}s still held by this store that contain the transaction with the given
+     * hash, or create or spend its outputs. Implementations keep an index from transaction hash to block that is
+     * updated by {@link #put(StoredBlock, StoredUndoableBlock)} and pruned together with the undoable blocks, so the
+     * lookup does not have to read every stored block.
+     */
+    List<StoredUndoableBlock> getUndoBlocksUsingTransaction(Sha256Hash txHash) throws BlockStoreException;
     
     /**
      * Gets a {@link StoredTransactionOutput} with the given hash and index, or null if none is found
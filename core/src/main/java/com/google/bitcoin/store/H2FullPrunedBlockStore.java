@@ -76,6 +76,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
     private List<Connection> allConnections;
+    // The prepared statements of each connection.
+    private ThreadLocal<PreparedStatementCache> statements;
     private String connectionURL;
     private int fullStoreDepth;
 
@@ -83,6 +85,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
             + "name VARCHAR(32) NOT NULL CONSTRAINT settings_pk PRIMARY KEY,"
             + "value BLOB" + ")";
+    static final String DUPLICATE_KEY_SQL_STATE = "23505";
+    static final String MISSING_OUTPUT_MESSAGE =
+            "Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!";
     static final String CHAIN_HEAD_SETTING = "chainhead";
     static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
     static final String VERSION_SETTING = "version";
@@ -99,6 +104,13 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             + "transactions BLOB" + ")";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
 
+    // Maps the hash of every transaction used by an undoable block to that block, see getUndoBlocksUsingTransaction.
+    static final String CREATE_UNDOABLE_TRANSACTIONS_TABLE = "CREATE TABLE undoableTransactions ( "
+            + "txHash BINARY(32) NOT NULL,"
+            + "blockHash BINARY(28) NOT NULL,"
+            + "PRIMARY KEY (blockHash, txHash)" + ")";
+    static final String CREATE_UNDOABLE_TRANSACTIONS_INDEX = "CREATE INDEX txHashIndex ON undoableTransactions (txHash)";
+
     static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs ("
             + "hash BINARY(32) NOT NULL," + "index INT NOT NULL,"
             + "height INT NOT NULL," + "value BLOB NOT NULL,"
@@ -129,6 +141,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<PreparedStatementCache>();
 
         try {
             Class.forName(driver);
@@ -188,6 +201,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
             conn.set(DriverManager.getConnection(connectionURL));
             allConnections.add(conn.get());
+            statements.set(new PreparedStatementCache(conn.get()));
             log.info("Made a new connection to database " + connectionURL);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -195,6 +209,15 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     public synchronized void close() {
+        // Only this thread's statements: other threads may still be using theirs, which go with their connections.
+        PreparedStatementCache statements = this.statements.get();
+        if (statements != null) {
+            try {
+                statements.close();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
         for (Connection conn : allConnections) {
             try {
                 conn.rollback();
@@ -212,6 +235,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.executeUpdate("DROP TABLE settings");
             s.executeUpdate("DROP TABLE headers");
             s.executeUpdate("DROP TABLE undoableBlocks");
+            s.executeUpdate("DROP TABLE undoableTransactions");
             s.executeUpdate("DROP TABLE openOutputs");
             s.close();
             createTables();
@@ -235,6 +259,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         log.debug("H2FullPrunedBlockStore : CREATE undoable block index");
         s.executeUpdate(CREATE_UNDOABLE_TABLE_INDEX);
 
+        log.debug("H2FullPrunedBlockStore : CREATE undoable transactions table");
+        s.executeUpdate(CREATE_UNDOABLE_TRANSACTIONS_TABLE);
+        s.executeUpdate(CREATE_UNDOABLE_TRANSACTIONS_INDEX);
+
         log.debug("H2FullPrunedBlockStore : CREATE open output table");
         s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE);
 
@@ -255,6 +283,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             if (rs.getString(1).equalsIgnoreCase("openOutputsIndex"))
                 throw new BlockStoreException(
                         "Attempted to open a H2 database with an old schema, please reset database.");
+        if (!tableExists("undoableTransactions"))
+            createUndoableTransactionsTable();
 
         rs = s.executeQuery("SELECT value FROM settings WHERE name = '"
                 + CHAIN_HEAD_SETTING + "'");
@@ -288,6 +318,87 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /**
+     * Creates the transaction index of a database made before it existed, and fills it from the undoable blocks
+     * already stored.
+     */
+    private void createUndoableTransactionsTable() throws SQLException,
+            BlockStoreException {
+        log.info("H2FullPrunedBlockStore : building undoable transactions table");
+        Statement s = conn.get().createStatement();
+        s.executeUpdate(CREATE_UNDOABLE_TRANSACTIONS_TABLE);
+        s.executeUpdate(CREATE_UNDOABLE_TRANSACTIONS_INDEX);
+        ResultSet rs = s.executeQuery("SELECT txOutChanges, transactions, header"
+                + " FROM undoableBlocks, headers WHERE undoableBlocks.hash = headers.hash");
+        try {
+            while (rs.next()) {
+                Sha256Hash hash = new Block(params, rs.getBytes(3)).getHash();
+                StoredUndoableBlock block = deserializeUndoableBlock(hash,
+                        rs.getBytes(1), rs.getBytes(2));
+                putUndoableTransactions(getHashBytes(hash), block);
+            }
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } finally {
+            rs.close();
+            s.close();
+        }
+    }
+
+    // We skip the first 4 bytes because (on prodnet) the minimum target has
+    // 4 0-bytes
+    private static byte[] getHashBytes(Sha256Hash hash) {
+        byte[] hashBytes = new byte[28];
+        System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
+        return hashBytes;
+    }
+
+    private StoredUndoableBlock deserializeUndoableBlock(Sha256Hash hash,
+            @Nullable byte[] txOutChanges, byte[] transactions)
+            throws ProtocolException, IOException {
+        int offset = 0;
+        int numTxn = ((transactions[offset++] & 0xFF) << 0)
+                | ((transactions[offset++] & 0xFF) << 8)
+                | ((transactions[offset++] & 0xFF) << 16)
+                | ((transactions[offset++] & 0xFF) << 24);
+        List<Transaction> transactionList = new LinkedList<Transaction>();
+        for (int i = 0; i < numTxn; i++) {
+            Transaction tx = new Transaction(params, transactions, offset);
+            transactionList.add(tx);
+            offset += tx.getMessageSize();
+        }
+        if (txOutChanges == null)
+            return new StoredUndoableBlock(hash, transactionList);
+        TransactionOutputChanges outChangesObject = new TransactionOutputChanges(
+                new ByteArrayInputStream(txOutChanges));
+        return new StoredUndoableBlock(hash, transactionList, outChangesObject);
+    }
+
+    /**
+     * Replaces the rows of the undoable transactions table of the given block
+     * with the hashes of the transactions it uses.
+     */
+    private void putUndoableTransactions(byte[] blockHashBytes,
+            StoredUndoableBlock undoableBlock) throws SQLException {
+        PreparedStatement s = statements.get().get(
+                "DELETE FROM undoableTransactions WHERE blockHash = ?");
+        s.setBytes(1, blockHashBytes);
+        s.executeUpdate();
+
+        s = statements.get().get(
+                "INSERT INTO undoableTransactions(txHash, blockHash) VALUES(?, ?)");
+        for (Sha256Hash txHash : undoableBlock.getTransactionHashes()) {
+            s.setBytes(1, txHash.getBytes());
+            s.setBytes(2, blockHashBytes);
+            s.addBatch();
+        }
+        s.executeBatch();
+    }
+
     private void createNewStore(NetworkParameters params)
             throws BlockStoreException {
         try {
@@ -382,6 +493,15 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 "Undoable Blocks size: %d, count: %d, average size: %f%n",
                 size, count, (double) size / count);
 
+        totalSize += size;
+        rs = s.executeQuery("SELECT COUNT(*) FROM undoableTransactions");
+        rs.next();
+        count = rs.getInt(1);
+        size = count * (32 + 28); // txHash, blockHash
+        rs.close();
+        System.out.printf(
+                "Undoable Transactions size: %d, count: %d%n", size, count);
+
         totalSize += size;
         size = 0;
         count = 0;
@@ -411,7 +531,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private void putUpdateStoredBlock(StoredBlock storedBlock,
             boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s = conn.get().prepareStatement(
+            PreparedStatement s = statements.get().get(
                     "INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
                             + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target
@@ -425,7 +545,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we
             // upgraded
@@ -433,7 +552,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             if (e.getErrorCode() != 23505 || !wasUndoable)
                 throw e;
 
-            PreparedStatement s = conn.get().prepareStatement(
+            PreparedStatement s = statements.get().get(
                     "UPDATE headers SET wasUndoable=? WHERE hash=?");
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target
@@ -443,7 +562,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -491,7 +609,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
         try {
             try {
-                PreparedStatement s = conn.get().prepareStatement(
+                PreparedStatement s = statements.get().get(
                         "INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
                                 + " VALUES(?, ?, ?, ?)");
                 s.setBytes(1, hashBytes);
@@ -504,19 +622,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
                     throw new BlockStoreException(e);
                 }
+                putUndoableTransactions(hashBytes, undoableBlock);
             } catch (SQLException e) {
                 if (e.getErrorCode() != 23505)
                     throw new BlockStoreException(e);
 
                 // There is probably an update-or-insert statement, but it
                 // wasn't obvious from the docs
-                PreparedStatement s = conn.get().prepareStatement(
+                PreparedStatement s = statements.get().get(
                         "UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
                                 + " WHERE hash = ?");
                 s.setBytes(3, hashBytes);
@@ -528,7 +646,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
+                putUndoableTransactions(hashBytes, undoableBlock);
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -544,11 +662,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement(
-                            "SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = statements.get().get(
+                    "SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target
             // has 4 0-bytes
             byte[] hashBytes = new byte[28];
@@ -575,15 +691,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(
-                            "Failed to close PreparedStatement");
-                }
-            }
         }
     }
 
@@ -820,11 +927,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash)
             throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement(
-                            "SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = statements.get().get(
+                    "SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target
             // has 4 0-bytes
             byte[] hashBytes = new byte[28];
@@ -835,29 +940,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 return null;
             }
             // Parse it.
-            byte[] txOutChanges = results.getBytes(1);
-            byte[] transactions = results.getBytes(2);
-            StoredUndoableBlock block;
-            int offset = 0;
-            int numTxn = ((transactions[offset++] & 0xFF) << 0)
-                    | ((transactions[offset++] & 0xFF) << 8)
-                    | ((transactions[offset++] & 0xFF) << 16)
-                    | ((transactions[offset++] & 0xFF) << 24);
-            List<Transaction> transactionList = new LinkedList<Transaction>();
-            for (int i = 0; i < numTxn; i++) {
-                Transaction tx = new Transaction(params, transactions, offset);
-                transactionList.add(tx);
-                offset += tx.getMessageSize();
-            }
-            if (txOutChanges == null) {
-                block = new StoredUndoableBlock(hash, transactionList);
-            } else {
-                TransactionOutputChanges outChangesObject = new TransactionOutputChanges(
-                        new ByteArrayInputStream(txOutChanges));
-                block = new StoredUndoableBlock(hash, transactionList,
-                        outChangesObject);
-            }
-            return block;
+            return deserializeUndoableBlock(hash, results.getBytes(1),
+                    results.getBytes(2));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } catch (NullPointerException e) {
@@ -872,81 +956,26 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(
-                            "Failed to close PreparedStatement");
-                }
         }
     }
 
-    @Nullable
     public List<StoredUndoableBlock> getUndoBlocksUsingTransaction(
             Sha256Hash txHash) throws BlockStoreException {
         List<StoredUndoableBlock> undoableBlocks = new ArrayList<StoredUndoableBlock>();
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement(
-                    "SELECT txOutChanges, transactions, header FROM undoableBlocks, headers "
-                            + " WHERE undoableBlocks.hash = headers.hash");
+            PreparedStatement s = statements.get().get(
+                    "SELECT txOutChanges, transactions, header"
+                            + " FROM undoableTransactions, undoableBlocks, headers"
+                            + " WHERE undoableTransactions.txHash = ?"
+                            + " AND undoableBlocks.hash = undoableTransactions.blockHash"
+                            + " AND headers.hash = undoableBlocks.hash");
+            s.setBytes(1, txHash.getBytes());
             ResultSet results = s.executeQuery();
             while (results.next()) {
-                byte[] txOutChanges = results.getBytes(1);
-                byte[] transactions = results.getBytes(2);
-                StoredUndoableBlock storedUndoableBlock;
-                int offset = 0;
-                int numTxn = ((transactions[offset++] & 0xFF) << 0)
-                        | ((transactions[offset++] & 0xFF) << 8)
-                        | ((transactions[offset++] & 0xFF) << 16)
-                        | ((transactions[offset++] & 0xFF) << 24);
-                List<Transaction> transactionList = new LinkedList<Transaction>();
-                for (int i = 0; i < numTxn; i++) {
-                    Transaction tx = new Transaction(params, transactions,
-                            offset);
-                    transactionList.add(tx);
-                    offset += tx.getMessageSize();
-                }
                 Block block = new Block(params, results.getBytes(3));
-                if (txOutChanges == null) {
-                    storedUndoableBlock = new StoredUndoableBlock(
-                            block.getHash(), transactionList);
-                } else {
-                    TransactionOutputChanges outChangesObject = new TransactionOutputChanges(
-                            new ByteArrayInputStream(txOutChanges));
-                    storedUndoableBlock = new StoredUndoableBlock(
-                            block.getHash(), transactionList, outChangesObject);
-                }
-                boolean found = false;
-                for (Transaction transaction : storedUndoableBlock
-                        .getTransactions()) {
-                    if (transaction.getHash().equals(txHash)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (storedUndoableBlock.getTxOutChanges() != null) {
-                    for (StoredTransactionOutput transaction : storedUndoableBlock
-                            .getTxOutChanges().txOutsCreated) {
-                        if (transaction.getHash().equals(txHash)) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    for (StoredTransactionOutput transaction : storedUndoableBlock
-                            .getTxOutChanges().txOutsSpent) {
-                        if (transaction.getHash().equals(txHash)) {
-                            found = true;
-                            break;
-                        }
-                    }
-                }
-                if (found) {
-                    undoableBlocks.add(storedUndoableBlock);
-                }
+                undoableBlocks.add(deserializeUndoableBlock(block.getHash(),
+                        results.getBytes(1), results.getBytes(2)));
             }
             return undoableBlocks;
         } catch (SQLException ex) {
@@ -963,14 +992,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(
-                            "Failed to close PreparedStatement");
-                }
         }
     }
 
@@ -984,12 +1005,11 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get().prepareStatement(
+            PreparedStatement s = statements.get().get(
                     "UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -1006,12 +1026,11 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get().prepareStatement(
+            PreparedStatement s = statements.get().get(
                     "UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -1024,11 +1043,15 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private void removeUndoableBlocksWhereHeightIsLessThan(int height)
             throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get().prepareStatement(
+            PreparedStatement s = statements.get().get(
+                    "DELETE FROM undoableTransactions WHERE blockHash IN"
+                            + " (SELECT hash FROM undoableBlocks WHERE height <= ?)");
+            s.setInt(1, height);
+            s.executeUpdate();
+            s = statements.get().get(
                     "DELETE FROM undoableBlocks WHERE height <= ?");
             s.setInt(1, height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -1038,9 +1061,15 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash,
             long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        // Outputs added or removed earlier in this batch must be visible.
+        PendingOutputWrites pending = statements.get().getPendingOutputs();
+        StoredTransactionOutput added = pending.getAdded(hash, index);
+        if (added != null)
+            return added;
+        if (pending.isRemoved(hash, index))
+            return null;
         try {
-            s = conn.get().prepareStatement(
+            PreparedStatement s = statements.get().get(
                     "SELECT height, value, scriptBytes FROM openOutputs "
                             + "WHERE hash = ? AND index = ?");
             s.setBytes(1, hash.getBytes());
@@ -1059,23 +1088,21 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     true, results.getBytes(3));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(
-                            "Failed to close PreparedStatement");
-                }
         }
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out)
             throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        if (statements.get().isBatching())
+            statements.get().getPendingOutputs().add(out);
+        else
+            insertOutput(out, false);
+    }
+
+    private void insertOutput(StoredTransactionOutput out, boolean batch) throws BlockStoreException {
         try {
-            s = conn.get().prepareStatement(
+            PreparedStatement s = statements.get().get(
                     "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) "
                             + "VALUES (?, ?, ?, ?, ?)");
             s.setBytes(1, out.getHash().getBytes());
@@ -1084,36 +1111,41 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setInt(3, out.getHeight());
             s.setBytes(4, out.getValue().toByteArray());
             s.setBytes(5, out.getScriptBytes());
-            s.executeUpdate();
-            s.close();
+            if (batch)
+                statements.get().addBatch(s, null, DUPLICATE_KEY_SQL_STATE);
+            else
+                s.executeUpdate();
         } catch (SQLException e) {
             if (e.getErrorCode() != 23505)
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
         }
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out)
             throws BlockStoreException {
         maybeConnect();
+        if (statements.get().isBatching()) {
+            if (!statements.get().getPendingOutputs().remove(out))
+                throw new BlockStoreException(MISSING_OUTPUT_MESSAGE);
+            return;
+        }
+        deleteOutput(out, false);
+    }
+
+    private void deleteOutput(StoredTransactionOutput out, boolean batch) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get().prepareStatement(
+            PreparedStatement s = statements.get().get(
                     "DELETE FROM openOutputs WHERE hash = ? AND index = ?");
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) out.getIndex());
+            if (batch) {
+                statements.get().addBatch(s, MISSING_OUTPUT_MESSAGE, null);
+                return;
+            }
             s.executeUpdate();
-            int updateCount = s.getUpdateCount();
-            s.close();
-            if (updateCount == 0)
-                throw new BlockStoreException(
-                        "Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            if (s.getUpdateCount() == 0)
+                throw new BlockStoreException(MISSING_OUTPUT_MESSAGE);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -1123,16 +1155,42 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         maybeConnect();
         try {
             conn.get().setAutoCommit(false);
+            statements.get().setBatching(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    // Sends the output writes of the batch, deletes first, then inserts.
+    private void flushPendingOutputs() throws BlockStoreException, SQLException {
+        PendingOutputWrites pending = statements.get().getPendingOutputs();
+        try {
+            for (StoredTransactionOutput out : pending.getRemoved())
+                deleteOutput(out, true);
+            for (StoredTransactionOutput out : pending.getAdded())
+                insertOutput(out, true);
+            statements.get().executeBatch();
+        } finally {
+            pending.clear();
+        }
+    }
+
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        try {
+            flushPendingOutputs();
+        } catch (BlockStoreException e) {
+            // Do not leave the rest of the batch waiting for the next commit.
+            abortDatabaseBatchWrite();
+            throw e;
+        } catch (SQLException e) {
+            abortDatabaseBatchWrite();
+            throw new BlockStoreException(e);
+        }
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
+            statements.get().setBatching(false);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -1141,6 +1199,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
+            statements.get().getPendingOutputs().clear();
+            statements.get().clearBatch();
+            statements.get().setBatching(false);
             conn.get().rollback();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
@@ -1151,9 +1212,24 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs)
             throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputWrites pending = statements.get().getPendingOutputs();
+        if (pending.hasAdded(hash))
+            return true;
         try {
-            s = conn.get().prepareStatement(
+            if (pending.hasRemoved(hash)) {
+                // Some outputs of the transaction are only removed in this batch, look for one which isn't.
+                PreparedStatement s = statements.get().get(
+                        "SELECT index FROM openOutputs WHERE hash = ?");
+                s.setBytes(1, hash.getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    // index is actually an unsigned int
+                    if (!pending.isRemoved(hash, results.getInt(1) & 0xFFFFFFFFL))
+                        return true;
+                }
+                return false;
+            }
+            PreparedStatement s = statements.get().get(
                     "SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
@@ -1165,14 +1241,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(
-                            "Failed to close PreparedStatement");
-                }
         }
     }
 }
@@ -213,11 +213,18 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
         return mapValues.remove(key);
     }
     
-    public void removeByMultiKey(MultiKeyType key) {
+    /** Removes the values put with the given multi key and returns them. */
+    public List<ValueType> removeByMultiKey(MultiKeyType key) {
+        List<ValueType> removed = new ArrayList<ValueType>();
         Set<UniqueKeyType> set = mapKeys.remove(key);
-        if (set != null)
-            for (UniqueKeyType uniqueKey : set)
-                removeByUniqueKey(uniqueKey);
+        if (set != null) {
+            for (UniqueKeyType uniqueKey : set) {
+                ValueType value = removeByUniqueKey(uniqueKey);
+                if (value != null)
+                    removed.add(value);
+            }
+        }
+        return removed;
     }
 }
 
@@ -233,6 +240,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
+    // Transaction hash -> hashes of the blocks in fullBlockMap using it. May point at blocks whose put was aborted.
+    private HashMap<Sha256Hash, Set<Sha256Hash>> transactionBlockMap;
     //TODO: Use something more suited to remove-heavy use?
     private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
     private StoredBlock chainHead;
@@ -247,6 +256,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
+        transactionBlockMap = new HashMap<Sha256Hash, Set<Sha256Hash>>();
         transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
@@ -276,6 +286,14 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         Sha256Hash hash = storedBlock.getHeader().getHash();
         fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
+        for (Sha256Hash txHash : undoableBlock.getTransactionHashes()) {
+            Set<Sha256Hash> blocks = transactionBlockMap.get(txHash);
+            if (blocks == null) {
+                blocks = new HashSet<Sha256Hash>();
+                transactionBlockMap.put(txHash, blocks);
+            }
+            blocks.add(hash);
+        }
     }
 
     @Nullable
@@ -286,13 +304,53 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     
     @Override
-    public Map<Date, Integer> getStaleBlocks(int period, int maxPeriod) throws BlockStoreException {
-        throw new UnsupportedOperationException("Not implemented yet");
+    public synchronized Map<Date, Integer> getStaleBlocks(int period, int maxPeriod) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
+        // As H2FullPrunedBlockStore does, every block at a height but one is stale. The one not counted is the
+        // earliest, so the result doesn't depend on the order of the map.
+        Map<Date, Integer> staleBlocksPerPeriod = newPeriodMap(period, maxPeriod);
+        Map<Integer, Date> earliest = new HashMap<Integer, Date>();
+        for (StoredBlockAndWasUndoableFlag stored : blockMap.map.values()) {
+            Date time = stored.block.getHeader().getTime();
+            Date previous = earliest.put(stored.block.getHeight(), time);
+            if (previous == null)
+                continue;
+            if (previous.before(time)) {
+                earliest.put(stored.block.getHeight(), previous);
+                addToPeriod(staleBlocksPerPeriod, time);
+            } else {
+                addToPeriod(staleBlocksPerPeriod, previous);
+            }
+        }
+        return staleBlocksPerPeriod;
     }
 
     @Override
-    public Map<Date, Integer> getBlocks(int period, int maxPeriod) throws BlockStoreException {
-        throw new UnsupportedOperationException("Not implemented yet");
+    public synchronized Map<Date, Integer> getBlocks(int period, int maxPeriod) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
+        Map<Date, Integer> blocksPerPeriod = newPeriodMap(period, maxPeriod);
+        for (StoredBlockAndWasUndoableFlag stored : blockMap.map.values())
+            addToPeriod(blocksPerPeriod, stored.block.getHeader().getTime());
+        return blocksPerPeriod;
+    }
+
+    // The beginnings of the periods of the given length covering the last maxPeriod seconds, latest first, mapped to 0.
+    // A block is counted in the period of the latest beginning before its time, and not at all if that's none of them.
+    private static Map<Date, Integer> newPeriodMap(int period, int maxPeriod) {
+        Map<Date, Integer> map = new TreeMap<Date, Integer>(Collections.reverseOrder());
+        long now = Utils.currentTimeMillis();
+        for (int i = 0; i < maxPeriod / period; i++)
+            map.put(new Date(now - (i + 1) * period * 1000L), 0);
+        return map;
+    }
+
+    private static void addToPeriod(Map<Date, Integer> map, Date time) {
+        for (Map.Entry<Date, Integer> entry : map.entrySet()) {
+            if (entry.getKey().before(time)) {
+                entry.setValue(entry.getValue() + 1);
+                return;
+            }
+        }
     }
     
     @Nullable
@@ -308,6 +366,20 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return fullBlockMap.get(hash);
     }
 
+    public synchronized List<StoredUndoableBlock> getUndoBlocksUsingTransaction(Sha256Hash txHash) throws BlockStoreException {
+        Preconditions.checkNotNull(fullBlockMap, "MemoryFullPrunedBlockStore is closed");
+        List<StoredUndoableBlock> undoableBlocks = new ArrayList<StoredUndoableBlock>();
+        Set<Sha256Hash> blocks = transactionBlockMap.get(txHash);
+        if (blocks != null) {
+            for (Sha256Hash blockHash : blocks) {
+                StoredUndoableBlock undoableBlock = fullBlockMap.get(blockHash);
+                if (undoableBlock != null)
+                    undoableBlocks.add(undoableBlock);
+            }
+        }
+        return undoableBlocks;
+    }
+
     public synchronized StoredBlock getChainHead() throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
         return chainHead;
@@ -330,12 +402,19 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
             setChainHead(chainHead);
         // Potential leak here if not all blocks get setChainHead'd
         // Though the FullPrunedBlockStore allows for this, the current AbstractBlockChain will not do it.
-        fullBlockMap.removeByMultiKey(chainHead.getHeight() - fullStoreDepth);
+        for (StoredUndoableBlock removed : fullBlockMap.removeByMultiKey(chainHead.getHeight() - fullStoreDepth)) {
+            for (Sha256Hash txHash : removed.getTransactionHashes()) {
+                Set<Sha256Hash> blocks = transactionBlockMap.get(txHash);
+                if (blocks != null && blocks.remove(removed.getHash()) && blocks.isEmpty())
+                    transactionBlockMap.remove(txHash);
+            }
+        }
     }
     
     public void close() {
         blockMap = null;
         fullBlockMap = null;
+        transactionBlockMap = null;
         transactionOutputMap = null;
     }
     
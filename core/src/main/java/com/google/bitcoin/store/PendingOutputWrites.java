@@ -0,0 +1,114 @@
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>The unspent outputs added and removed during a batch write, kept until the batch is committed so that they can
+ * be written to the store in one go. Used by {@link CachingFullPrunedBlockStore} in front of another store, and by the
+ * SQL stores so that the output writes of a batch go out as one JDBC batch each rather than one statement each.</p>
+ *
+ * <p>An output created and spent in the same batch cancels out and is never written. So does one spent and then
+ * restored in the same batch, as happens when a re-organize spends it again: the store never sees the removal.</p>
+ *
+ * <p>Like the batch it belongs to, an instance must only be used by one thread.</p>
+ */
+class PendingOutputWrites {
+    // In the order they were made, so the store sees them in that order within each kind.
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> added =
+            new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> removed =
+            new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+    // How many of the added and of the removed outputs there are by transaction hash.
+    private final Map<Sha256Hash, Integer> addedCounts = new HashMap<Sha256Hash, Integer>();
+    private final Map<Sha256Hash, Integer> removedCounts = new HashMap<Sha256Hash, Integer>();
+
+    /**
+     * Adds an output, returning true if that cancelled its removal earlier in the batch, in which case the store
+     * still has it.
+     */
+    boolean add(StoredTransactionOutput out) {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        if (removed.remove(outPoint) != null) {
+            count(removedCounts, out.getHash(), -1);
+            return true;
+        }
+        if (added.put(outPoint, out) == null)
+            count(addedCounts, out.getHash(), 1);
+        return false;
+    }
+
+    /**
+     * Removes an output, returning false if it was already removed in this batch, in which case there is nothing left
+     * to remove. An output added in this batch is simply forgotten.
+     */
+    boolean remove(StoredTransactionOutput out) {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        if (added.remove(outPoint) != null) {
+            count(addedCounts, out.getHash(), -1);
+            return true;
+        }
+        if (removed.containsKey(outPoint))
+            return false;
+        removed.put(outPoint, out);
+        count(removedCounts, out.getHash(), 1);
+        return true;
+    }
+
+    private static void count(Map<Sha256Hash, Integer> counts, Sha256Hash hash, int delta) {
+        Integer count = counts.get(hash);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount == 0)
+            counts.remove(hash);
+        else
+            counts.put(hash, newCount);
+    }
+
+    /** Returns the output if it was added in this batch and not removed since. */
+    @Nullable
+    StoredTransactionOutput getAdded(Sha256Hash hash, long index) {
+        return added.get(new StoredTransactionOutPoint(hash, index));
+    }
+
+    /** Returns true if the output was removed in this batch and not restored since. */
+    boolean isRemoved(Sha256Hash hash, long index) {
+        return removed.containsKey(new StoredTransactionOutPoint(hash, index));
+    }
+
+    /** Returns true if any output of the given transaction was added in this batch and not removed since. */
+    boolean hasAdded(Sha256Hash hash) {
+        return addedCounts.containsKey(hash);
+    }
+
+    /** Returns true if any output of the given transaction was removed in this batch and not restored since. */
+    boolean hasRemoved(Sha256Hash hash) {
+        return removedCounts.containsKey(hash);
+    }
+
+    /** The outputs to add to the store. */
+    Collection<StoredTransactionOutput> getAdded() {
+        return added.values();
+    }
+
+    /** The outputs to remove from the store, each of which it must have. Removals should be written first. */
+    Collection<StoredTransactionOutput> getRemoved() {
+        return removed.values();
+    }
+
+    boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    void clear() {
+        added.clear();
+        removed.clear();
+        addedCounts.clear();
+        removedCounts.clear();
+    }
+}
@@ -41,6 +41,8 @@ import java.util.Date;
 public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(PostgresFullPrunedBlockStore.class);
     private static final String POSTGRES_DUPLICATE_KEY_ERROR_CODE = "23505";
+    private static final String MISSING_OUTPUT_MESSAGE =
+            "Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!";
 
     private Sha256Hash chainHeadHash;
     private StoredBlock chainHeadBlock;
@@ -49,6 +51,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
     private List<Connection> allConnections;
+    // The prepared statements of each connection.
+    private ThreadLocal<PreparedStatementCache> statements;
     private String connectionURL;
     private int fullStoreDepth;
     private String username;
@@ -90,6 +94,14 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     private static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
 
+    // Maps the hash of every transaction used by an undoable block to that block, see getUndoBlocksUsingTransaction.
+    private static final String CREATE_UNDOABLE_TRANSACTIONS_TABLE = "CREATE TABLE undoabletransactions (" +
+            "    txhash bytea NOT NULL," +
+            "    blockhash bytea NOT NULL," +
+            "    PRIMARY KEY (blockhash, txhash)" +
+            ");";
+    private static final String CREATE_UNDOABLE_TRANSACTIONS_INDEX = "CREATE INDEX undoabletransactionstxhashindex ON undoabletransactions USING btree (txhash);";
+
     // Some indexes to speed up inserts
     private static final String CREATE_HEADERS_HASH_INDEX = "CREATE INDEX headershashindex ON headers USING btree (hash);";
     private static final String CREATE_OUTPUTS_ADDRESS_INDEX = "CREATE INDEX idx_address ON openoutputs USING btree (hash, index, height, toaddress);";
@@ -171,6 +183,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<PreparedStatementCache>();
 
         try {
             Class.forName(driver);
@@ -212,6 +225,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
                 s.execute("set search_path to '" + schemaName +"';");
             }
             allConnections.add(conn.get());
+            statements.set(new PreparedStatementCache(connection));
             log.info("Made a new connection to database " + connectionURL);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -219,6 +233,15 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     public synchronized void close() {
+        // Only this thread's statements: other threads may still be using theirs, which go with their connections.
+        PreparedStatementCache statements = this.statements.get();
+        if (statements != null) {
+            try {
+                statements.close();
+            } catch (SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
         for (Connection conn : allConnections) {
             try {
                 if(!conn.getAutoCommit()) {
@@ -238,6 +261,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             s.execute("DROP TABLE settings");
             s.execute("DROP TABLE headers");
             s.execute("DROP TABLE undoableBlocks");
+            s.execute("DROP TABLE undoableTransactions");
             s.execute("DROP TABLE openOutputs");
             s.close();
             createTables();
@@ -264,6 +288,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (log.isDebugEnabled())
             log.debug("PostgresFullPrunedBlockStore : CREATE undoable block index");
         s.executeUpdate(CREATE_UNDOABLE_TABLE_INDEX);
+        if (log.isDebugEnabled())
+            log.debug("PostgresFullPrunedBlockStore : CREATE undoable transactions table");
+        s.executeUpdate(CREATE_UNDOABLE_TRANSACTIONS_TABLE);
+        s.executeUpdate(CREATE_UNDOABLE_TRANSACTIONS_INDEX);
         if (log.isDebugEnabled())
             log.debug("PostgresFullPrunedBlockStore : CREATE open output table");
         s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE);
@@ -285,6 +313,9 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     private void initFromDatabase() throws SQLException, BlockStoreException {
+        if (!tableExists("undoableTransactions"))
+            createUndoableTransactionsTable();
+
         Statement s = conn.get().createStatement();
         ResultSet rs;
 
@@ -314,6 +345,80 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    /**
+     * Creates the transaction index of a database made before it existed, and fills it from the undoable blocks
+     * already stored.
+     */
+    private void createUndoableTransactionsTable() throws SQLException, BlockStoreException {
+        log.info("PostgresFullPrunedBlockStore : building undoable transactions table");
+        Statement s = conn.get().createStatement();
+        s.executeUpdate(CREATE_UNDOABLE_TRANSACTIONS_TABLE);
+        s.executeUpdate(CREATE_UNDOABLE_TRANSACTIONS_INDEX);
+        ResultSet rs = s.executeQuery("SELECT txOutChanges, transactions, header" +
+                " FROM undoableBlocks, headers WHERE undoableBlocks.hash = headers.hash");
+        try {
+            while (rs.next()) {
+                Sha256Hash hash = new Block(params, rs.getBytes(3)).getHash();
+                StoredUndoableBlock block = deserializeUndoableBlock(hash, rs.getBytes(1), rs.getBytes(2));
+                putUndoableTransactions(getHashBytes(hash), block);
+            }
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } finally {
+            rs.close();
+            s.close();
+        }
+    }
+
+    // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
+    private static byte[] getHashBytes(Sha256Hash hash) {
+        byte[] hashBytes = new byte[28];
+        System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
+        return hashBytes;
+    }
+
+    private StoredUndoableBlock deserializeUndoableBlock(Sha256Hash hash, @Nullable byte[] txOutChanges,
+                                                         byte[] transactions) throws ProtocolException, IOException {
+        int offset = 0;
+        int numTxn = ((transactions[offset++] & 0xFF) << 0) |
+                ((transactions[offset++] & 0xFF) << 8) |
+                ((transactions[offset++] & 0xFF) << 16) |
+                ((transactions[offset++] & 0xFF) << 24);
+        List<Transaction> transactionList = new LinkedList<Transaction>();
+        for (int i = 0; i < numTxn; i++) {
+            Transaction tx = new Transaction(params, transactions, offset);
+            transactionList.add(tx);
+            offset += tx.getMessageSize();
+        }
+        if (txOutChanges == null)
+            return new StoredUndoableBlock(hash, transactionList);
+        TransactionOutputChanges outChangesObject =
+                new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
+        return new StoredUndoableBlock(hash, transactionList, outChangesObject);
+    }
+
+    /**
+     * Replaces the rows of the undoable transactions table of the given block with the hashes of the transactions it
+     * uses.
+     */
+    private void putUndoableTransactions(byte[] blockHashBytes, StoredUndoableBlock undoableBlock) throws SQLException {
+        PreparedStatement s = statements.get().get("DELETE FROM undoableTransactions WHERE blockHash = ?");
+        s.setBytes(1, blockHashBytes);
+        s.executeUpdate();
+
+        s = statements.get().get("INSERT INTO undoableTransactions(txHash, blockHash) VALUES(?, ?)");
+        for (Sha256Hash txHash : undoableBlock.getTransactionHashes()) {
+            s.setBytes(1, txHash.getBytes());
+            s.setBytes(2, blockHashBytes);
+            s.addBatch();
+        }
+        s.executeBatch();
+    }
+
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
         try {
             // Set up the genesis block. When we start out fresh, it is by
@@ -393,6 +498,14 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         rs.close();
         System.out.printf("Undoable Blocks size: %d, count: %d, average size: %f%n", size, count, (double)size/count);
 
+        totalSize += size;
+        rs = s.executeQuery("SELECT COUNT(*) FROM undoableTransactions");
+        rs.next();
+        count = rs.getInt(1);
+        size = count * (32 + 28); // txHash, blockHash
+        rs.close();
+        System.out.printf("Undoable Transactions size: %d, count: %d%n", size, count);
+
         totalSize += size; size = 0; count = 0;
         long scriptSize = 0;
         rs = s.executeQuery("SELECT value, scriptBytes FROM openOutputs");
@@ -419,7 +532,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    statements.get().get("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
                             + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
@@ -430,21 +543,19 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if  (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)) || !wasUndoable)
                 throw e;
 
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+            PreparedStatement s = statements.get().get("UPDATE headers SET wasUndoable=? WHERE hash=?");
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -491,19 +602,18 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             if (log.isDebugEnabled())
                 log.debug("Looking for undoable block with hash: " + Utils.bytesToHexString(hashBytes));
 
-            PreparedStatement findS = conn.get().prepareStatement("select 1 from undoableBlocks where hash = ?");
+            PreparedStatement findS = statements.get().get("select 1 from undoableBlocks where hash = ?");
             findS.setBytes(1, hashBytes);
 
             ResultSet rs = findS.executeQuery();
             if (rs.next())
             {
                 // We already have this output, update it.
-                findS.close();
 
                 // Postgres insert-or-updates are very complex (and finnicky).  This level of transaction isolation
                 // seems to work for bitcoinj
                 PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
+                        statements.get().get("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
                                 + " WHERE hash = ?");
                 s.setBytes(3, hashBytes);
 
@@ -519,13 +629,13 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
+                putUndoableTransactions(hashBytes, undoableBlock);
 
                 return;
             }
 
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                    statements.get().get("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
                             + " VALUES(?, ?, ?, ?)");
             s.setBytes(1, hashBytes);
             s.setInt(2, height);
@@ -542,12 +652,12 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
                 s.setBytes(4, transactions);
             }
             s.executeUpdate();
-            s.close();
             try {
                 putUpdateStoredBlock(storedBlock, true);
             } catch (SQLException e) {
                 throw new BlockStoreException(e);
             }
+            putUndoableTransactions(hashBytes, undoableBlock);
         } catch (SQLException e) {
             if (!e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE))
                 throw new BlockStoreException(e);
@@ -562,10 +672,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = statements.get().get("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -594,11 +702,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -622,10 +725,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = statements.get().get("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
 
             byte[] hashBytes = new byte[28];
@@ -636,28 +737,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
                 return null;
             }
             // Parse it.
-            byte[] txOutChanges = results.getBytes(1);
-            byte[] transactions = results.getBytes(2);
-            StoredUndoableBlock block;
-            int offset = 0;
-            int numTxn = ((transactions[offset++] & 0xFF) << 0) |
-                    ((transactions[offset++] & 0xFF) << 8) |
-                    ((transactions[offset++] & 0xFF) << 16) |
-                    ((transactions[offset++] & 0xFF) << 24);
-            List<Transaction> transactionList = new LinkedList<Transaction>();
-            for (int i = 0; i < numTxn; i++) {
-                Transaction tx = new Transaction(params, transactions, offset);
-                transactionList.add(tx);
-                offset += tx.getMessageSize();
-            }
-            if (txOutChanges == null) {
-                block = new StoredUndoableBlock(hash, transactionList);
-            } else {
-                TransactionOutputChanges outChangesObject =
-                        new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
-                block = new StoredUndoableBlock(hash, transactionList, outChangesObject);
-            }
-            return block;
+            return deserializeUndoableBlock(hash, results.getBytes(1), results.getBytes(2));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } catch (NullPointerException e) {
@@ -672,11 +752,33 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+        }
+    }
+
+    public List<StoredUndoableBlock> getUndoBlocksUsingTransaction(Sha256Hash txHash) throws BlockStoreException {
+        List<StoredUndoableBlock> undoableBlocks = new ArrayList<StoredUndoableBlock>();
+        maybeConnect();
+        try {
+            PreparedStatement s = statements.get().get("SELECT txOutChanges, transactions, header" +
+                    " FROM undoableTransactions, undoableBlocks, headers" +
+                    " WHERE undoableTransactions.txHash = ?" +
+                    " AND undoableBlocks.hash = undoableTransactions.blockHash" +
+                    " AND headers.hash = undoableBlocks.hash");
+            s.setBytes(1, txHash.getBytes());
+            ResultSet results = s.executeQuery();
+            while (results.next()) {
+                Block block = new Block(params, results.getBytes(3));
+                undoableBlocks.add(deserializeUndoableBlock(block.getHash(), results.getBytes(1), results.getBytes(2)));
+            }
+            return undoableBlocks;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
         }
     }
 
@@ -690,12 +792,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = statements.get().get("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -711,12 +811,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = statements.get().get("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -727,8 +825,12 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+            PreparedStatement s = statements.get().get("DELETE FROM undoableTransactions WHERE blockHash IN" +
+                    " (SELECT hash FROM undoableBlocks WHERE height <= ?)");
+            s.setInt(1, height);
+            s.executeUpdate();
+
+            s = statements.get().get("DELETE FROM undoableBlocks WHERE height <= ?");
             s.setInt(1, height);
 
             if (log.isDebugEnabled())
@@ -736,7 +838,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
 
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -744,10 +845,15 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        // Outputs added or removed earlier in this batch must be visible.
+        PendingOutputWrites pending = statements.get().getPendingOutputs();
+        StoredTransactionOutput added = pending.getAdded(hash, index);
+        if (added != null)
+            return added;
+        if (pending.isRemoved(hash, index))
+            return null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
+            PreparedStatement s = statements.get().get("SELECT height, value, scriptBytes FROM openOutputs " +
                             "WHERE hash = ? AND index = ?");
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
@@ -764,18 +870,18 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        if (statements.get().isBatching())
+            statements.get().getPendingOutputs().add(out);
+        else
+            insertOutput(out, false);
+    }
 
+    private void insertOutput(StoredTransactionOutput out, boolean batch) throws BlockStoreException {
         // Calculate the toAddress (if any)
         String dbAddress = "";
         int type = 0;
@@ -816,8 +922,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         }
 
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
+            // An output the table already has is skipped by the query itself rather than by catching an error: in a
+            // JDBC batch Postgres stops at the first failing row and aborts the transaction.
+            PreparedStatement s = statements.get().get("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
+                    "SELECT ?, ?, ?, ?, ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM openOutputs WHERE hash = ? AND index = ?)");
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
@@ -826,32 +934,40 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(5, out.getScriptBytes());
             s.setString(6, dbAddress);
             s.setInt(7, type);
-            s.executeUpdate();
-            s.close();
+            s.setBytes(8, out.getHash().getBytes());
+            s.setInt(9, (int)out.getIndex());
+            if (batch)
+                statements.get().addBatch(s, null, null);
+            else
+                s.executeUpdate();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
-            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+        if (statements.get().isBatching()) {
+            if (!statements.get().getPendingOutputs().remove(out))
+                throw new BlockStoreException(MISSING_OUTPUT_MESSAGE);
+            return;
+        }
+        deleteOutput(out, false);
+    }
+
+    private void deleteOutput(StoredTransactionOutput out, boolean batch) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = statements.get().get("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
+            if (batch) {
+                statements.get().addBatch(s, MISSING_OUTPUT_MESSAGE, null);
+                return;
+            }
+            if (s.executeUpdate() == 0)
+                throw new BlockStoreException(MISSING_OUTPUT_MESSAGE);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -866,11 +982,26 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
         try {
             conn.get().setAutoCommit(false);
+            statements.get().setBatching(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    // Sends the output writes of the batch, deletes first, then inserts.
+    private void flushPendingOutputs() throws BlockStoreException, SQLException {
+        PendingOutputWrites pending = statements.get().getPendingOutputs();
+        try {
+            for (StoredTransactionOutput out : pending.getRemoved())
+                deleteOutput(out, true);
+            for (StoredTransactionOutput out : pending.getAdded())
+                insertOutput(out, true);
+            statements.get().executeBatch();
+        } finally {
+            pending.clear();
+        }
+    }
+
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
 
@@ -878,9 +1009,20 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             log.debug("Committing database batch write with connection: " + conn.get().toString());
 
 
+        try {
+            flushPendingOutputs();
+        } catch (BlockStoreException e) {
+            // Do not leave the rest of the batch waiting for the next commit.
+            abortDatabaseBatchWrite();
+            throw e;
+        } catch (SQLException e) {
+            abortDatabaseBatchWrite();
+            throw new BlockStoreException(e);
+        }
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
+            statements.get().setBatching(false);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -893,6 +1035,9 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
 
         try {
+            statements.get().getPendingOutputs().clear();
+            statements.get().clearBatch();
+            statements.get().setBatching(false);
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
                 conn.get().setAutoCommit(true);
@@ -906,10 +1051,23 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputWrites pending = statements.get().getPendingOutputs();
+        if (pending.hasAdded(hash))
+            return true;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            if (pending.hasRemoved(hash)) {
+                // Some outputs of the transaction are only removed in this batch, look for one which isn't.
+                PreparedStatement s = statements.get().get("SELECT index FROM openOutputs WHERE hash = ?");
+                s.setBytes(1, hash.getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    // index is actually an unsigned int
+                    if (!pending.isRemoved(hash, results.getInt(1) & 0xFFFFFFFFL))
+                        return true;
+                }
+                return false;
+            }
+            PreparedStatement s = statements.get().get("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
             if (!results.next()) {
@@ -919,11 +1077,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -940,6 +1093,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
 
         try {
+            // The balance is read from the database, so it has to have the outputs of the batch so far.
+            flushPendingOutputs();
             s = conn.get().prepareStatement("select sum(('x'||lpad(substr(value::text, 3, 50),16,'0'))::bit(64)::bigint) "
                     + "from openoutputs where toaddress = ?");
             s.setString(1, address.toString());
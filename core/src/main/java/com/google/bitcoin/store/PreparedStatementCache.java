@@ -0,0 +1,123 @@
+package com.google.bitcoin.store;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>The prepared statements of one JDBC connection, kept open so that the queries the SQL block stores run for every
+ * block and every output are only prepared once. Statements returned by {@link #get(String)} must not be closed by
+ * the caller.</p>
+ *
+ * <p>It also accumulates the rows of a batch write: {@link #addBatch(PreparedStatement, String, String)} adds the
+ * current parameters of a statement to its JDBC batch, and {@link #executeBatch()} sends it. To keep the writes in
+ * order, adding to another statement first sends the pending batch of the previous one. The output writes of a batch
+ * are kept in {@link #getPendingOutputs()} until it's committed, so that they go out as one batch each.</p>
+ *
+ * <p>Like the connection it belongs to, an instance must only be used by one thread.</p>
+ */
+class PreparedStatementCache {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    private final PendingOutputWrites pendingOutputs = new PendingOutputWrites();
+
+    private boolean batching;
+    private PreparedStatement batchStatement;
+    // Thrown if a row of the pending batch changed nothing, may be null.
+    private String noUpdateMessage;
+    // The SQL state of errors to ignore in the pending batch, may be null.
+    private String ignoredSqlState;
+
+    PreparedStatementCache(Connection connection) {
+        this.connection = connection;
+    }
+
+    /** Returns the prepared statement for the given SQL, preparing it the first time. */
+    PreparedStatement get(String sql) throws SQLException {
+        PreparedStatement s = statements.get(sql);
+        if (s == null) {
+            s = connection.prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
+    /**
+     * Adds the current parameters of the given statement to the pending batch.
+     * @param noUpdateMessage If not null, {@link #executeBatch()} throws a {@link BlockStoreException} with this
+     *                        message if one of the rows of this statement did not update anything.
+     * @param ignoredSqlState If not null, errors of rows of this statement with this SQL state are ignored. Only for
+     *                        drivers which carry on with the rest of the batch after a failing row, as H2's does.
+     *                        Postgres stops at the first failing row and aborts the transaction, so statements there
+     *                        must not fail at all.
+     */
+    void addBatch(PreparedStatement s, @Nullable String noUpdateMessage, @Nullable String ignoredSqlState)
+            throws SQLException, BlockStoreException {
+        if (batchStatement != null && batchStatement != s)
+            executeBatch();
+        s.addBatch();
+        batchStatement = s;
+        this.noUpdateMessage = noUpdateMessage;
+        this.ignoredSqlState = ignoredSqlState;
+    }
+
+    /** The output inserts and deletes of the current batch write, not yet sent to the database. */
+    PendingOutputWrites getPendingOutputs() {
+        return pendingOutputs;
+    }
+
+    /** Sets whether the connection is in a batch write, in which case writes should go through addBatch. */
+    void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    boolean isBatching() {
+        return batching;
+    }
+
+    /** Sends the pending batch, if any. */
+    void executeBatch() throws SQLException, BlockStoreException {
+        if (batchStatement == null)
+            return;
+        PreparedStatement s = batchStatement;
+        String noUpdateMessage = this.noUpdateMessage;
+        String ignoredSqlState = this.ignoredSqlState;
+        batchStatement = null;
+        int[] counts;
+        try {
+            counts = s.executeBatch();
+        } catch (BatchUpdateException e) {
+            if (ignoredSqlState == null || !ignoredSqlState.equals(e.getSQLState()))
+                throw e;
+            for (SQLException next = e.getNextException(); next != null; next = next.getNextException())
+                if (!ignoredSqlState.equals(next.getSQLState()))
+                    throw e;
+            counts = e.getUpdateCounts();
+        }
+        if (noUpdateMessage != null)
+            for (int count : counts)
+                if (count == 0)
+                    throw new BlockStoreException(noUpdateMessage);
+    }
+
+    /** Drops the pending batch without sending it. */
+    void clearBatch() throws SQLException {
+        if (batchStatement != null)
+            batchStatement.clearBatch();
+        batchStatement = null;
+    }
+
+    /** Closes all the statements. The cache can still be used afterwards, statements are prepared again. */
+    void close() throws SQLException {
+        batchStatement = null;
+        pendingOutputs.clear();
+        for (PreparedStatement s : statements.values())
+            s.close();
+        statements.clear();
+    }
+}
@@ -65,7 +65,7 @@ public class TestWithNetworkConnections {
         NIO_CLIENT,
         BLOCKING_CLIENT
     }
-    private final ClientType clientType;
+    protected final ClientType clientType;
     public TestWithNetworkConnections(ClientType clientType) {
         this.clientType = clientType;
         if (clientType == ClientType.NIO_CLIENT_MANAGER)
@@ -24,6 +24,7 @@ import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
 import com.google.bitcoin.utils.BlockFileLoader;
 import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.common.collect.Sets;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -31,7 +32,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -145,6 +148,80 @@ public abstract class AbstractFullPrunedBlockChainTest
         }
     }
 
+    @Test
+    public void undoBlocksUsingTransaction() throws Exception {
+        final int UNDOABLE_BLOCKS_STORED = 10;
+        store = createStore(params, UNDOABLE_BLOCKS_STORED);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+
+        ECKey outKey = new ECKey();
+        Block firstBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(firstBlock);
+        Transaction coinbase = firstBlock.getTransactions().get(0);
+        Block rollingBlock = firstBlock;
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        assertEquals(Arrays.asList(firstBlock.getHash()), undoBlockHashes(coinbase.getHash()));
+
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, Utils.toNanoCoins(50, 0), new byte[] {}));
+        t.addSignedInput(new TransactionOutPoint(params, 0, coinbase.getHash()), coinbase.getOutput(0).getScriptPubKey(), outKey);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        chain.add(rollingBlock);
+        Block spendingBlock = rollingBlock;
+
+        // The coinbase is found both in the block that created it and in the block that spent it.
+        assertEquals(Sets.newHashSet(firstBlock.getHash(), spendingBlock.getHash()),
+                Sets.newHashSet(undoBlockHashes(coinbase.getHash())));
+        assertEquals(Arrays.asList(spendingBlock.getHash()), undoBlockHashes(t.getHash()));
+        assertTrue(store.getUndoBlocksUsingTransaction(new Sha256Hash(new byte[32])).isEmpty());
+
+        // Once the undoable blocks are pruned they are not found any more.
+        for (int i = 0; i < UNDOABLE_BLOCKS_STORED + 1; i++) {
+            rollingBlock = rollingBlock.createNextBlock(null);
+            chain.add(rollingBlock);
+        }
+        assertTrue(store.getUndoBlocksUsingTransaction(t.getHash()).isEmpty());
+        assertTrue(store.getUndoBlocksUsingTransaction(coinbase.getHash()).isEmpty());
+    }
+
+    private List<Sha256Hash> undoBlockHashes(Sha256Hash txHash) throws BlockStoreException {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (StoredUndoableBlock block : store.getUndoBlocksUsingTransaction(txHash))
+            hashes.add(block.getHash());
+        return hashes;
+    }
+
+    @Test
+    public void batchedDuplicateOutput() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        Sha256Hash txHash = Sha256Hash.create(new byte[] {42});
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 4; i++)
+            outputs.add(new StoredTransactionOutput(txHash, i, Utils.COIN, 1, false, new byte[] {}));
+        store.addUnspentTransactionOutput(outputs.get(0));
+
+        // The first row of the batch is already in the store, the rows after it must still be written.
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : outputs)
+            store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        for (int i = 0; i < 4; i++)
+            assertNotNull(store.getTransactionOutput(txHash, i));
+
+        // And the store holds the duplicate only once.
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        assertNull(store.getTransactionOutput(txHash, 0));
+        assertTrue(store.hasUnspentOutputs(txHash, 4));
+        store.close();
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
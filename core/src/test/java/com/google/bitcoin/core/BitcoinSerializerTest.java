@@ -219,6 +219,22 @@ public class BitcoinSerializerTest {
         assertEquals(thirdBlock.getNonce(), 2850094635L);
     }
 
+    @Test
+    public void testSerializeOnce() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Transaction tx = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        SerializedMessage serialized = bs.serialize(tx);
+        assertSame(tx, serialized.getMessage());
+        assertArrayEquals(txMessage, serialized.getBytes());
+
+        // The UDP datagram is the node id followed by the same bytes, built once per node id.
+        byte[] datagram = serialized.getHighPriorityBytes(0x0102030405060708L);
+        assertEquals(0x0102030405060708L, Utils.readInt64(datagram, 0));
+        assertArrayEquals(txMessage, Arrays.copyOfRange(datagram, 8, datagram.length));
+        assertSame(datagram, serialized.getHighPriorityBytes(0x0102030405060708L));
+        assertNotSame(datagram, serialized.getHighPriorityBytes(42));
+    }
+
     @Test
     public void testBitcoinPacketHeader() {
         try {
@@ -179,6 +179,53 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void orphansConnectInOrder() throws Exception {
+        // A chain and a fork off it both arrive backwards, then the block they all descend from.
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block[] blocks = new Block[6];
+        blocks[0] = b1.createNextBlock(coinbaseTo);
+        for (int i = 1; i < blocks.length; i++)
+            blocks[i] = blocks[i - 1].createNextBlock(coinbaseTo);
+        Block fork = blocks[1].createNextBlock(new ECKey().toAddress(unitTestParams));
+        assertFalse(chain.add(fork));
+        for (int i = blocks.length - 1; i >= 0; i--)
+            assertFalse(chain.add(blocks[i]));
+        assertEquals(7, chain.getOrphanCount());
+        assertEquals(blocks[0], chain.getOrphanRoot(blocks[5].getHash()));
+        assertTrue(chain.add(b1));
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(blocks[5].cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(7, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void orphanLimits() throws Exception {
+        chain.setOrphanLimits(2, Long.MAX_VALUE);
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b4));
+        // The oldest was dropped, the rest wait for it to come again.
+        assertEquals(2, chain.getOrphanCount());
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertEquals(b3, chain.getOrphanRoot(b4.getHash()));
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertTrue(chain.add(b2));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanCount());
+
+        // The newest orphan is always kept, however big it is.
+        chain.setOrphanLimits(2, 1);
+        Block b6 = b4.createNextBlock(coinbaseTo).createNextBlock(coinbaseTo);
+        assertFalse(chain.add(b6));
+        assertTrue(chain.isOrphan(b6.getHash()));
+    }
+
     @Test
     public void difficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
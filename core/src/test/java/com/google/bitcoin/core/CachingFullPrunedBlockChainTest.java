@@ -0,0 +1,99 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        // A small cache, so that outputs get evicted.
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 16 * 1024);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        //No-op for memory store, because it's not persistent
+    }
+
+    private static class CountingStore extends MemoryFullPrunedBlockStore {
+        int adds, removes;
+
+        CountingStore(NetworkParameters params) {
+            super(params, 10);
+        }
+
+        @Override
+        public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            adds++;
+            super.addUnspentTransactionOutput(out);
+        }
+
+        @Override
+        public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            removes++;
+            super.removeUnspentTransactionOutput(out);
+        }
+    }
+
+    private static StoredTransactionOutput output(int index) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {1}), index, BigInteger.TEN, 1, false, new byte[] {});
+    }
+
+    @Test
+    public void writesOnCommit() throws Exception {
+        CountingStore backing = new CountingStore(UnitTestParams.get());
+        CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(backing);
+        StoredTransactionOutput a = output(0), b = output(1);
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+        // Created and spent in the same batch, never written.
+        store.removeUnspentTransactionOutput(b);
+        assertNull(store.getTransactionOutput(b.getHash(), 1));
+        assertEquals(0, backing.adds);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, backing.adds);
+        assertEquals(0, backing.removes);
+        assertEquals(a, backing.getTransactionOutput(a.getHash(), 0));
+        assertNull(backing.getTransactionOutput(b.getHash(), 1));
+
+        // Aborted removals are forgotten.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 2));
+        store.abortDatabaseBatchWrite();
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+
+        // A removal undone in the same batch is not written either.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, backing.adds);
+        assertEquals(0, backing.removes);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        try {
+            store.removeUnspentTransactionOutput(a);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, backing.removes);
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertFalse(backing.hasUnspentOutputs(a.getHash(), 2));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChainIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    // Counts the reads, so tests can check the index doesn't walk back through the store.
+    private static class CountingBlockStore extends MemoryBlockStore {
+        int reads;
+
+        CountingBlockStore() {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            reads++;
+            return super.get(hash);
+        }
+    }
+
+    private CountingBlockStore store;
+    private ChainIndex index;
+    // The main chain, by height, and a fork off it at height 20.
+    private List<StoredBlock> main, fork;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new CountingBlockStore();
+        index = new ChainIndex(store);
+        main = extend(store.getChainHead(), 50, new ECKey().toAddress(params));
+        fork = extend(main.get(20), 15, new ECKey().toAddress(params));
+        store.reads = 0;
+    }
+
+    // Returns the blocks from the given one up, by height, with the given number of new blocks on top.
+    private List<StoredBlock> extend(StoredBlock from, int count, Address to) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < from.getHeight(); i++)
+            blocks.add(null);
+        blocks.add(from);
+        for (int i = 0; i < count; i++) {
+            from = from.build(from.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(from);
+            blocks.add(from);
+        }
+        return blocks;
+    }
+
+    private StoredBlock tip(List<StoredBlock> chain) {
+        return chain.get(chain.size() - 1);
+    }
+
+    @Test
+    public void ancestorsOnTheBestChain() throws Exception {
+        index.setChainHead(tip(main));
+        assertEquals(main.get(0), index.getAncestor(tip(main), 0));
+        // Once filled in, an ancestor costs a single read, however far back.
+        store.reads = 0;
+        assertEquals(main.get(3), index.getAncestor(tip(main), 3));
+        assertEquals(main.get(40), index.getAncestor(main.get(45), 40));
+        assertEquals(2, store.reads);
+        assertEquals(main.get(30).getHeader().getHash(), index.getAncestorHash(tip(main), 30));
+        assertEquals(2, store.reads);
+        assertEquals(tip(main), index.getAncestor(tip(main), tip(main).getHeight()));
+        // A new block on top doesn't read anything.
+        List<StoredBlock> longer = extend(tip(main), 1, new ECKey().toAddress(params));
+        store.reads = 0;
+        index.setChainHead(tip(longer));
+        assertEquals(0, store.reads);
+    }
+
+    @Test
+    public void ancestorsOffTheBestChain() throws Exception {
+        index.setChainHead(tip(main));
+        assertEquals(fork.get(25), index.getAncestor(tip(fork), 25));
+        assertEquals(main.get(20), index.getAncestor(tip(fork), 20));
+        assertEquals(main.get(5), index.getAncestor(tip(fork), 5));
+        assertEquals(main.get(20), index.findSplit(tip(fork), tip(main)));
+        assertEquals(main.get(20), index.findSplit(tip(main), tip(fork)));
+        assertEquals(main.get(30), index.findSplit(tip(main), main.get(30)));
+
+        // After a re-organize onto the fork, it's the old chain which is off the index.
+        index.setChainHead(tip(fork));
+        assertEquals(fork.get(30), index.getAncestor(tip(fork), 30));
+        assertEquals(main.get(30), index.getAncestor(tip(main), 30));
+        assertEquals(main.get(20), index.findSplit(tip(main), tip(fork)));
+        // And back onto a chain shorter than the one in the index.
+        index.setChainHead(main.get(33));
+        assertEquals(main.get(25), index.getAncestor(main.get(33), 25));
+        assertEquals(fork.get(34), index.getAncestor(tip(fork), 34));
+    }
+
+    @Test
+    public void locator() throws Exception {
+        index.setChainHead(tip(main));
+        List<Sha256Hash> locator = index.getLocator(tip(main));
+        // 50 to 41 one at a time, then 39, 35, 27 and 11, then the genesis block.
+        int[] heights = {50, 49, 48, 47, 46, 45, 44, 43, 42, 41, 39, 35, 27, 11, 0};
+        assertEquals(heights.length, locator.size());
+        for (int i = 0; i < heights.length; i++)
+            assertEquals(main.get(heights[i]).getHeader().getHash(), locator.get(i));
+        assertEquals(params.getGenesisBlock().getHash(), locator.get(locator.size() - 1));
+
+        List<Sha256Hash> genesisOnly = index.getLocator(main.get(0));
+        assertEquals(1, genesisOnly.size());
+        assertEquals(params.getGenesisBlock().getHash(), genesisOnly.get(0));
+    }
+}
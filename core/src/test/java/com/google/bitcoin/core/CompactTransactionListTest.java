@@ -0,0 +1,169 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import static com.google.bitcoin.testing.FakeTxBuilder.createFakeTx;
+import static com.google.bitcoin.testing.FakeTxBuilder.makeSolvedTestBlock;
+import static org.junit.Assert.*;
+
+public class CompactTransactionListTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private BitcoinSerializer serializer;
+    private Transaction t1, t2, t3;
+    private Block block;
+    // The transaction paying to a fresh key that makeSolvedTestBlock puts after the coinbase.
+    private Transaction payment;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        serializer = new BitcoinSerializer(params);
+        t1 = createFakeTx(params, BigInteger.valueOf(10), new ECKey());
+        t2 = createFakeTx(params, BigInteger.valueOf(20), new ECKey());
+        t3 = createFakeTx(params, BigInteger.valueOf(30), new ECKey());
+        block = makeSolvedTestBlock(params.getGenesisBlock(), t1, t2, t3);
+        payment = block.getTransactions().get(1);
+    }
+
+    private Message roundTrip(Message message) throws Exception {
+        return serializer.deserialize(ByteBuffer.wrap(serializer.serialize(message).getBytes()));
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        CompactTransactionList list = new CompactTransactionList(params, block, 1234);
+        assertEquals(4, list.getShortIds().length);
+        assertEquals(5, list.getTransactionCount());
+        assertTrue(list.getPrefilledTransactions().get(0).isCoinBase());
+
+        CompactTransactionList parsed = (CompactTransactionList) roundTrip(list);
+        assertEquals(block.getHash(), parsed.getBlockHash());
+        assertEquals(1234, parsed.getNonce());
+        assertArrayEquals(list.getShortIds(), parsed.getShortIds());
+        assertEquals(block.getTransactions().get(0), parsed.getPrefilledTransactions().get(0));
+
+        GetBlockTransactions getBlockTransactions = new GetBlockTransactions(params, block.getHash(),
+                Lists.newArrayList(1, 2, 7, 300));
+        assertEquals(getBlockTransactions.getIndexes(), ((GetBlockTransactions) roundTrip(getBlockTransactions)).getIndexes());
+
+        BlockTransactions blockTransactions = new BlockTransactions(params, block.getHash(), Lists.newArrayList(t1, t3));
+        assertEquals(blockTransactions.getTransactions(), ((BlockTransactions) roundTrip(blockTransactions)).getTransactions());
+    }
+
+    @Test
+    public void shortIdsAreSalted() throws Exception {
+        CompactTransactionList a = new CompactTransactionList(params, block, 1);
+        CompactTransactionList b = new CompactTransactionList(params, block, 2);
+        assertFalse(a.getShortIds()[0] == b.getShortIds()[0]);
+        // Short ids fit in 6 bytes.
+        assertEquals(0, a.getShortIds()[0] >>> 48);
+    }
+
+    @Test
+    public void reconstructFromMemoryPool() throws Exception {
+        MemoryPool memoryPool = new MemoryPool();
+        memoryPool.intern(payment);
+        memoryPool.intern(t1);
+        memoryPool.intern(t2);
+        memoryPool.intern(t3);
+        CompactTransactionList list = (CompactTransactionList) roundTrip(new CompactTransactionList(params, block, 42));
+        CompactTransactionListReconstructor reconstructor =
+                new CompactTransactionListReconstructor(block.cloneAsHeader(), list, memoryPool);
+        assertTrue(reconstructor.isComplete());
+        assertTrue(reconstructor.checkMerkleRoot());
+        assertEquals(block.getTransactions(), reconstructor.getTransactions());
+    }
+
+    @Test
+    public void requestMissingTransactions() throws Exception {
+        MemoryPool memoryPool = new MemoryPool();
+        memoryPool.intern(payment);
+        memoryPool.intern(t2);
+        CompactTransactionList list = (CompactTransactionList) roundTrip(new CompactTransactionList(params, block, 42));
+        CompactTransactionListReconstructor reconstructor =
+                new CompactTransactionListReconstructor(block.cloneAsHeader(), list, memoryPool);
+        assertFalse(reconstructor.isComplete());
+        List<Integer> missing = reconstructor.getMissingIndexes();
+        assertEquals(Lists.newArrayList(2, 4), missing);
+
+        // An answer that does not match the request is rejected.
+        assertFalse(reconstructor.addMissingTransactions(
+                new BlockTransactions(params, block.getHash(), Lists.newArrayList(t1))));
+        assertTrue(reconstructor.addMissingTransactions(
+                new BlockTransactions(params, block.getHash(), Lists.newArrayList(t1, t3))));
+        assertTrue(reconstructor.isComplete());
+        assertTrue(reconstructor.checkMerkleRoot());
+        assertEquals(block.getTransactions(), reconstructor.getTransactions());
+    }
+
+    // A varint for the given value, as the 9 byte encoding, so that values too big for a long can be written.
+    private static byte[] varInt64(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0xFF).putLong(value);
+        return buffer.array();
+    }
+
+    @Test
+    public void rejectsOverflowingIndexes() throws Exception {
+        // A delta of 2^64 - 1 reads as -1, and one of 2^32 - 1 wraps the index around when added as an int.
+        for (long delta : new long[] {-1, 0xFFFFFFFFL, Long.MAX_VALUE}) {
+            ByteBuffer getBlockTransactions = ByteBuffer.allocate(32 + 1 + 1 + 9);
+            getBlockTransactions.put(new byte[32]).put((byte) 2).put((byte) 0).put(varInt64(delta));
+            try {
+                new GetBlockTransactions(params, getBlockTransactions.array());
+                fail();
+            } catch (ProtocolException e) {
+                // Expected.
+            }
+
+            ByteBuffer compactTransactionList = ByteBuffer.allocate(32 + 8 + 1 + 1 + 9);
+            compactTransactionList.put(new byte[40]).put((byte) 0).put((byte) 1).put(varInt64(delta));
+            try {
+                new CompactTransactionList(params, compactTransactionList.array());
+                fail();
+            } catch (ProtocolException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void requiresOneCoinbaseFirst() throws Exception {
+        Block noCoinbase = block.cloneAsHeader();
+        noCoinbase.addTransaction(t1, false);
+        Block twoCoinbases = block.cloneAsHeader();
+        twoCoinbases.addTransaction(block.getTransactions().get(0), false);
+        twoCoinbases.addTransaction(block.getTransactions().get(0), false);
+        for (Block bad : new Block[] {noCoinbase, twoCoinbases}) {
+            try {
+                new CompactTransactionList(params, bad, 1);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void discardMemoryPoolMatches() throws Exception {
+        MemoryPool memoryPool = new MemoryPool();
+        memoryPool.intern(t1);
+        memoryPool.intern(t2);
+        memoryPool.intern(t3);
+        CompactTransactionListReconstructor reconstructor =
+                new CompactTransactionListReconstructor(block.cloneAsHeader(), new CompactTransactionList(params, block, 7), memoryPool);
+        assertTrue(reconstructor.hasMemoryPoolMatches());
+        reconstructor.discardMemoryPoolMatches();
+        assertFalse(reconstructor.hasMemoryPoolMatches());
+        assertEquals(Lists.newArrayList(1, 2, 3, 4), reconstructor.getMissingIndexes());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InFlightGetDataTest {
+    private InFlightGetData table;
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+        table = new InFlightGetData(2);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    private static InFlightGetData.Request request(int n) {
+        return request(n, 0);
+    }
+
+    private static InFlightGetData.Request request(int n, long nonce) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) n});
+        return new InFlightGetData.Request(new InventoryItem(InventoryItem.Type.Transaction, hash), nonce);
+    }
+
+    @Test
+    public void completesByHash() throws Exception {
+        InFlightGetData.Request first = request(1), second = request(1), other = request(2);
+        assertTrue(table.add(first));
+        assertTrue(table.add(other));
+        // Over the limit, but answered all the same when the item arrives.
+        assertFalse(table.add(second));
+        assertEquals(2, table.getInFlightCount());
+        assertEquals(1, table.getWaitingCount());
+
+        assertTrue(table.complete(first.item.hash, "answer"));
+        assertEquals("answer", first.future.get());
+        assertEquals("answer", second.future.get());
+        assertFalse(other.future.isDone());
+        assertFalse(table.complete(first.item.hash, "again"));
+        assertEquals(1, table.getInFlightCount());
+        assertEquals(0, table.getWaitingCount());
+
+        assertTrue(table.notFound(other.item.hash));
+        assertTrue(other.future.isCancelled());
+        assertEquals(0, table.getInFlightCount());
+    }
+
+    @Test
+    public void waitsForRoom() throws Exception {
+        InFlightGetData.Request one = request(1), two = request(2), three = request(3), four = request(4);
+        assertTrue(table.add(one));
+        assertTrue(table.add(two));
+        assertFalse(table.add(three));
+        assertFalse(table.add(four));
+        assertTrue(table.takeSendable().isEmpty());
+
+        table.complete(one.item.hash, "answer");
+        List<InFlightGetData.Request> sendable = table.takeSendable();
+        assertEquals(1, sendable.size());
+        assertSame(three, sendable.get(0));
+        assertEquals(2, table.getInFlightCount());
+        assertEquals(1, table.getWaitingCount());
+    }
+
+    @Test
+    public void expiresOldest() throws Exception {
+        InFlightGetData.Request one = request(1), two = request(2);
+        table.add(one);
+        Utils.rollMockClockMillis(500);
+        table.add(two);
+        Utils.rollMockClockMillis(600);
+        List<InFlightGetData.Request> expired = table.expire(1000);
+        assertEquals(1, expired.size());
+        assertSame(one, expired.get(0));
+        // Expired requests are handed back to be asked elsewhere, not cancelled.
+        assertFalse(one.future.isDone());
+        assertEquals(1, table.getInFlightCount());
+        assertTrue(table.expire(1000).isEmpty());
+        Utils.rollMockClockMillis(500);
+        assertSame(two, table.expire(1000).get(0));
+    }
+
+    @Test
+    public void expiresEachRequestFromItsOwnSendTime() throws Exception {
+        InFlightGetData.Request first = request(1), second = request(1);
+        table.add(first);
+        Utils.rollMockClockMillis(800);
+        // Asked for again while the first request is still in flight.
+        table.add(second);
+        Utils.rollMockClockMillis(300);
+        List<InFlightGetData.Request> expired = table.expire(1000);
+        assertEquals(1, expired.size());
+        assertSame(first, expired.get(0));
+        assertEquals(1, table.getInFlightCount());
+        Utils.rollMockClockMillis(700);
+        assertSame(second, table.expire(1000).get(0));
+        assertEquals(0, table.getInFlightCount());
+        assertFalse(table.complete(first.item.hash, "answer"));
+    }
+
+    @Test
+    public void removesByNonce() throws Exception {
+        table.add(request(1, 7));
+        table.add(request(2, 8));
+        table.add(request(3, 7));
+        assertEquals(2, table.removeByNonce(7).size());
+        assertEquals(1, table.getInFlightCount());
+        assertEquals(0, table.getWaitingCount());
+        assertEquals(1, table.removeAll().size());
+        assertEquals(0, table.getInFlightCount());
+    }
+}
@@ -0,0 +1,65 @@
+package com.google.bitcoin.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MerkleTreeUtilsTest {
+
+    @After
+    public void tearDown() {
+        MerkleTreeUtils.setParallelThreshold(MerkleTreeUtils.DEFAULT_PARALLEL_THRESHOLD);
+        MerkleTreeUtils.parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    private static List<Sha256Hash> makeHashes(int count) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[4];
+            Utils.uint32ToByteArrayBE(i, bytes, 0);
+            hashes.add(Sha256Hash.create(bytes));
+        }
+        return hashes;
+    }
+
+    private static Sha256Hash rootOfFullTree(List<Sha256Hash> hashes) {
+        List<byte[]> tree = MerkleTreeUtils.buildMerkleTree(hashes);
+        return new Sha256Hash(tree.get(tree.size() - 1));
+    }
+
+    @Test
+    public void rootMatchesFullTree() throws Exception {
+        for (int count = 1; count <= 70; count++) {
+            List<Sha256Hash> hashes = makeHashes(count);
+            assertEquals("count " + count, rootOfFullTree(hashes), MerkleTreeUtils.calculateHashesMerkleRoot(hashes));
+        }
+    }
+
+    @Test
+    public void parallelRootMatchesFullTree() throws Exception {
+        MerkleTreeUtils.setParallelThreshold(2);
+        MerkleTreeUtils.parallelism = 4;
+        for (int count : new int[] { 2, 3, 5, 16, 17, 31, 33, 100, 257, 1000, 1025 }) {
+            List<Sha256Hash> hashes = makeHashes(count);
+            assertEquals("count " + count, rootOfFullTree(hashes), MerkleTreeUtils.calculateHashesMerkleRoot(hashes));
+        }
+    }
+
+    @Test
+    public void bufferIsReused() throws Exception {
+        // A large tree followed by a smaller one must not see stale data from the first computation.
+        List<Sha256Hash> large = makeHashes(200);
+        List<Sha256Hash> small = makeHashes(7);
+        assertEquals(rootOfFullTree(large), MerkleTreeUtils.calculateHashesMerkleRoot(large));
+        assertEquals(rootOfFullTree(small), MerkleTreeUtils.calculateHashesMerkleRoot(small));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyList() throws Exception {
+        MerkleTreeUtils.calculateHashesMerkleRoot(new ArrayList<Sha256Hash>());
+    }
+}
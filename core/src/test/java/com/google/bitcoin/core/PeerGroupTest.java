@@ -26,6 +26,7 @@ import com.google.bitcoin.testing.InboundMessageQueuer;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.junit.After;
 import org.junit.Before;
@@ -34,6 +35,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.math.BigInteger;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.*;
@@ -100,6 +102,7 @@ public class PeerGroupTest extends TestWithPeerGroup {
     public void tearDown() throws Exception {
         super.tearDown();
         Utils.finishMockSleep();
+        Utils.mockTime = null;
         peerGroup.stopAsync();
         peerGroup.awaitTerminated();
     }
@@ -581,4 +584,101 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKey()));
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
+
+    // Connects a peer which advertises an address of its own, or the group takes it for one already connected.
+    private InboundMessageQueuer connectDistinctPeer(int id) throws Exception {
+        VersionMessage versionMessage = remoteVersionMessage.duplicate();
+        versionMessage.myAddr = new PeerAddress(InetAddress.getByName("127.0.0.1"), 3000 + id);
+        return connectPeer(id, versionMessage);
+    }
+
+    @Test
+    public void getDataTimeoutAsksLeastLoadedPeer() throws Exception {
+        Utils.setMockClock();
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        InboundMessageQueuer p1 = connectDistinctPeer(1);
+        InboundMessageQueuer p2 = connectDistinctPeer(2);
+        InboundMessageQueuer p3 = connectDistinctPeer(3);
+        // p2 is already waiting on something, p3 isn't.
+        p2.peer.getPeerMempoolTransaction(Sha256Hash.create(new byte[] {1}));
+        assertTrue(outbound(p2) instanceof GetDataMessage);
+
+        Transaction tx = FakeTxBuilder.createFakeTx(params, Utils.COIN, address);
+        ListenableFuture<Transaction> future = p1.peer.getPeerMempoolTransaction(tx.getHash());
+        assertEquals(tx.getHash(), ((GetDataMessage) outbound(p1)).getItems().get(0).hash);
+        Utils.rollMockClockMillis(Peer.GETDATA_TIMEOUT_MILLIS);
+        p1.peer.checkGetDataTimeouts();
+        assertEquals(0, p1.peer.getGetDataInFlightCount());
+        assertEquals(tx.getHash(), ((GetDataMessage) outbound(p3)).getItems().get(0).hash);
+        assertNull(outbound(p2));
+        // The answer from the other peer completes the original request.
+        inbound(p3, tx);
+        assertEquals(tx.getHash(), future.get().getHash());
+    }
+
+    @Test
+    public void getDataGivesUpAfterMaxAttempts() throws Exception {
+        Utils.setMockClock();
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        InboundMessageQueuer p1 = connectDistinctPeer(1);
+        InboundMessageQueuer p2 = connectDistinctPeer(2);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        ListenableFuture<Transaction> future = p1.peer.getPeerMempoolTransaction(hash);
+        // Neither peer ever answers, so it goes back and forth between them.
+        InboundMessageQueuer[] peers = {p1, p2};
+        for (int i = 0; i < Peer.MAX_GETDATA_ATTEMPTS; i++) {
+            InboundMessageQueuer asked = peers[i % 2];
+            assertEquals(hash, ((GetDataMessage) outbound(asked)).getItems().get(0).hash);
+            assertFalse(future.isDone());
+            Utils.rollMockClockMillis(Peer.GETDATA_TIMEOUT_MILLIS);
+            asked.peer.checkGetDataTimeouts();
+        }
+        assertTrue(future.isCancelled());
+        assertNull(outbound(p1));
+        assertNull(outbound(p2));
+    }
+
+    @Test
+    public void closedPeerHandsOverGetData() throws Exception {
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        peerGroup.addEventListener(listener);
+        InboundMessageQueuer p1 = connectDistinctPeer(1);
+        InboundMessageQueuer p2 = connectDistinctPeer(2);
+        Transaction tx = FakeTxBuilder.createFakeTx(params, Utils.COIN, address);
+        ListenableFuture<Transaction> future = p1.peer.getPeerMempoolTransaction(tx.getHash());
+        assertTrue(outbound(p1) instanceof GetDataMessage);
+
+        p1.close();
+        assertEquals(p1.peer, disconnectedPeers.take());
+        GetDataMessage getdata = (GetDataMessage) waitForOutbound(p2);
+        assertEquals(tx.getHash(), getdata.getItems().get(0).hash);
+        inbound(p2, tx);
+        assertEquals(tx.getHash(), future.get().getHash());
+    }
+
+    @Test
+    public void pushTransactionListMissingATransaction() throws Exception {
+        Block b1 = FakeTxBuilder.createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Transaction t1 = FakeTxBuilder.createFakeTx(params, Utils.COIN, new ECKey());
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1, t1);
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        InboundMessageQueuer p1 = connectDistinctPeer(1);
+
+        inbound(p1, new PushHeader(params, b2.cloneAsHeader()));
+        inbound(p1, new PushTransactionList(params, b2));
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(2, getdata.getItems().size());
+        // The peer doesn't have one of them, so the list can't be completed.
+        inbound(p1, new NotFoundMessage(params, getdata.getItems().subList(0, 1)));
+        inbound(p1, b2.getTransactions().get(2));
+        pingAndWait(p1);
+        // The block is dropped, rather than connected with a transaction missing.
+        assertEquals(0, p1.peer.getGetDataInFlightCount());
+        assertEquals(b1.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
 }
@@ -738,6 +738,17 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(7250, peer.getPingTime());
     }
 
+    @Test
+    public void highPriorityOverTcpWithoutUdp() throws Exception {
+        // The blocking client is the only one here with a UDP socket, the others have to send everything over TCP.
+        if (clientType == ClientType.BLOCKING_CLIENT)
+            return;
+        VersionMessage peerVersion = new VersionMessage(unitTestParams, OTHER_PEER_CHAIN_HEIGHT, true, true, 5000, true);
+        writeTarget = connect(peer, peerVersion);
+        peer.sendHighPriorityMessage(new Ping(42));
+        assertEquals(42, ((Ping) outbound(writeTarget)).getNonce());
+    }
+
     @Test
     public void recursiveDownloadNew() throws Exception {
         recursiveDownload(true);
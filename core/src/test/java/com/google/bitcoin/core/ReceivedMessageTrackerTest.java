@@ -0,0 +1,64 @@
+package com.google.bitcoin.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReceivedMessageTrackerTest {
+    private Sha256Hash hash1, hash2, hash3;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        hash1 = Sha256Hash.create(new byte[] { 1 });
+        hash2 = Sha256Hash.create(new byte[] { 2 });
+        hash3 = Sha256Hash.create(new byte[] { 3 });
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    @Test
+    public void countsPerMessageType() throws Exception {
+        ReceivedMessageTracker tracker = new ReceivedMessageTracker();
+        assertEquals(1, tracker.recordReceived(Transaction.class, hash1));
+        assertEquals(2, tracker.recordReceived(Transaction.class, hash1));
+        // An inv announcing the same hash is counted separately.
+        assertEquals(1, tracker.recordReceived(InventoryMessage.class, hash1));
+        assertEquals(3, tracker.recordReceived(Transaction.class, hash1));
+        assertEquals(1, tracker.size());
+        assertEquals(2, tracker.getHits());
+        assertEquals(2, tracker.getMisses());
+        assertEquals(0.5, tracker.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void evictsOldestWhenFull() throws Exception {
+        ReceivedMessageTracker tracker = new ReceivedMessageTracker(2, ReceivedMessageTracker.DEFAULT_MAX_AGE_MILLIS);
+        tracker.recordReceived(Transaction.class, hash1);
+        tracker.recordReceived(Transaction.class, hash2);
+        tracker.recordReceived(Transaction.class, hash3);
+        assertEquals(2, tracker.size());
+        assertEquals(1, tracker.getEvictions());
+        // hash1 was forgotten so it starts counting from one again.
+        assertEquals(1, tracker.recordReceived(Transaction.class, hash1));
+        assertEquals(2, tracker.recordReceived(Transaction.class, hash3));
+    }
+
+    @Test
+    public void expiresOldEntries() throws Exception {
+        ReceivedMessageTracker tracker = new ReceivedMessageTracker(10, 60 * 1000);
+        tracker.recordReceived(Transaction.class, hash1);
+        Utils.rollMockClock(30);
+        tracker.recordReceived(Transaction.class, hash2);
+        Utils.rollMockClock(31);
+        assertEquals(2, tracker.recordReceived(Transaction.class, hash2));
+        assertEquals(1, tracker.size());
+        assertEquals(1, tracker.getExpirations());
+        assertEquals(1, tracker.recordReceived(Transaction.class, hash1));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationServiceTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private final Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(params));
+    private final ScriptVerificationService service = new ScriptVerificationService(2);
+
+    @After
+    public void tearDown() {
+        service.shutdown();
+    }
+
+    // Makes a transaction with the given number of inputs all spending scriptPubKey, signed unless told otherwise.
+    private Transaction spend(int inputs, boolean signed) {
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, i, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Utils.COIN, new ECKey().toAddress(params));
+        for (int i = 0; i < inputs; i++) {
+            TransactionSignature sig = tx.calculateSignature(i, signed ? key : new ECKey(), scriptPubKey,
+                    Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(sig, key));
+        }
+        return tx;
+    }
+
+    private List<Script> scripts(Transaction tx) {
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            scripts.add(scriptPubKey);
+        return scripts;
+    }
+
+    @Test
+    public void verifiesBlock() throws Exception {
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 5; i++)
+            txns.add(spend(3, true));
+        ScriptVerificationService.Batch batch = service.newBatch(15);
+        for (Transaction tx : txns)
+            batch.add(tx, scripts(tx), true);
+        batch.verify();
+        assertEquals(1, service.getBlocksVerified());
+        assertEquals(15, service.getInputsVerified());
+        assertTrue(service.getLastBlockVerificationNanos() > 0);
+        assertEquals(service.getLastBlockVerificationNanos(), service.getTotalVerificationNanos());
+        assertEquals(0, service.getQueueDepth());
+    }
+
+    @Test
+    public void failsBlock() throws Exception {
+        ScriptVerificationService.Batch batch = service.newBatch(7);
+        Transaction good = spend(3, true);
+        batch.add(good, scripts(good), true);
+        Transaction bad = spend(4, false);
+        batch.add(bad, scripts(bad), true);
+        try {
+            batch.verify();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, service.getBlocksVerified());
+
+        // The service carries on with the next block.
+        batch = service.newBatch(3);
+        batch.add(good, scripts(good), true);
+        batch.verify();
+        assertEquals(1, service.getBlocksVerified());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        ScriptVerificationService.Batch batch = service.newBatch(1);
+        Transaction tx = spend(1, true);
+        batch.add(tx, scripts(tx), true);
+        batch.cancel();
+        service.shutdown();
+        assertTrue(service.isShutdown());
+        try {
+            service.newBatch(1);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void shutdownWhileVerifying() throws Exception {
+        ScriptVerificationService single = new ScriptVerificationService(1);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Holds up the only verification thread, so the chunks added after it stay queued.
+        Transaction slow = new Transaction(params, spend(1, true).bitcoinSerialize()) {
+            @Override
+            public List<TransactionInput> getInputs() {
+                if (Thread.currentThread().getName().startsWith("Script verification")) {
+                    running.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                }
+                return super.getInputs();
+            }
+        };
+        final ScriptVerificationService.Batch batch = single.newBatch(1);
+        batch.add(slow, scripts(slow), true);
+        running.await();
+        Transaction tx = spend(2, true);
+        batch.add(tx, scripts(tx), true);
+        assertEquals(2, single.getQueueDepth());
+        ScriptVerificationService.Batch unused = single.newBatch(1);
+
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        Thread verifier = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    batch.verify();
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        };
+        verifier.start();
+        while (verifier.getState() != Thread.State.WAITING)
+            Thread.sleep(10);
+        single.shutdown();
+        release.countDown();
+        verifier.join(10000);
+        assertFalse("verify() still waiting after shutdown", verifier.isAlive());
+        assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof IllegalStateException);
+
+        try {
+            unused.add(tx, scripts(tx), true);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Sha256HasherTest {
+    private static final byte[] ABC = new byte[] { 'a', 'b', 'c' };
+    // SHA-256("abc") from FIPS 180-2.
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Test
+    public void digests() throws Exception {
+        assertEquals(ABC_SHA256, Utils.bytesToHexString(Sha256Hasher.digest(ABC, 0, ABC.length)));
+        byte[] single = Sha256Hasher.digest(ABC, 0, ABC.length);
+        assertArrayEquals(Sha256Hasher.digest(single, 0, single.length), Sha256Hasher.doubleDigest(ABC, 0, ABC.length));
+        assertArrayEquals(Sha256Hasher.doubleDigest(ABC, 0, ABC.length),
+                Sha256Hasher.doubleDigestTwoBuffers(ABC, 0, 1, ABC, 1, 2));
+    }
+
+    @Test
+    public void incremental() throws Exception {
+        Sha256Hasher hasher = Sha256Hasher.newHasher();
+        hasher.write('a');
+        hasher.write(ABC, 1, 2);
+        assertEquals(ABC_SHA256, Utils.bytesToHexString(hasher.digest()));
+
+        hasher = Sha256Hasher.newHasher();
+        hasher.write(ABC);
+        assertArrayEquals(Sha256Hasher.doubleDigest(ABC, 0, ABC.length), hasher.doubleDigest());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishedHasherCannotBeReused() throws Exception {
+        Sha256Hasher hasher = Sha256Hasher.newHasher();
+        hasher.digest();
+        hasher.write(1);
+    }
+
+    @Test
+    public void nestedHashers() throws Exception {
+        Sha256Hasher outer = Sha256Hasher.newHasher();
+        outer.write(ABC, 0, 1);
+        // Hashing something else in the middle must not disturb the outer hasher.
+        Sha256Hasher inner = Sha256Hasher.newHasher();
+        inner.write(new byte[] { 1, 2, 3 });
+        inner.digest();
+        Sha256Hasher.doubleDigest(new byte[] { 4 }, 0, 1);
+        outer.write(ABC, 1, 2);
+        assertEquals(ABC_SHA256, Utils.bytesToHexString(outer.digest()));
+    }
+
+    @Test
+    public void inPlaceDoubleDigest() throws Exception {
+        byte[] buffer = new byte[64];
+        for (int i = 0; i < buffer.length; i++)
+            buffer[i] = (byte) i;
+        byte[] expected = Sha256Hasher.doubleDigestTwoBuffers(buffer, 0, 32, buffer, 32, 32);
+        Sha256Hasher.doubleDigestTwoBuffers(buffer, 0, 32, buffer, 32, 32, buffer, 0);
+        byte[] actual = new byte[32];
+        System.arraycopy(buffer, 0, actual, 0, 32);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void concurrentHashing() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        byte[] result = null;
+                        for (int j = 0; j < 1000; j++)
+                            result = Utils.doubleDigest(ABC);
+                        return result;
+                    }
+                }));
+            }
+            for (Future<byte[]> result : results)
+                assertArrayEquals(Sha256Hasher.doubleDigest(ABC, 0, ABC.length), result.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SimulatedLinkTest {
+    // Pings as they come off the wire, which know their size.
+    private static Ping ping(long nonce) throws ProtocolException {
+        return new Ping(UnitTestParams.get(), new Ping(nonce).bitcoinSerialize());
+    }
+
+    @Test
+    public void deliversInOrderWithoutBlocking() throws Exception {
+        final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        SimulatedLink link = new SimulatedLink(new SimulatedLink.Receiver() {
+            @Override
+            public void receive(Message message) {
+                received.add(((Ping) message).getNonce());
+                latch.countDown();
+            }
+        });
+        Ping first = ping(1), second = ping(2), third = ping(3);
+        long start = System.nanoTime();
+        link.send(first, 200);
+        // A shorter latency later on doesn't let a message overtake the ones before it.
+        link.send(second, 0);
+        link.send(third, 100);
+        // Sending returns straight away, with the messages still to come.
+        assertEquals(3, link.getPendingCount());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+        assertEquals(0, link.getPendingCount());
+        assertEquals(3, received.size());
+        assertEquals(Long.valueOf(1), received.get(0));
+        assertEquals(Long.valueOf(2), received.get(1));
+        assertEquals(Long.valueOf(3), received.get(2));
+    }
+}
@@ -0,0 +1,146 @@
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransactionTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final byte[] SCRIPT = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+    private static final byte ANYONECANPAY = Transaction.SIGHASH_ANYONECANPAY_VALUE;
+    // What SIGHASH_SINGLE gives for an input without a matching output, see Transaction.hashForSignature.
+    private static final Sha256Hash ONE =
+            new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        tx = new Transaction(params);
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] scriptSig = new byte[10 + i];
+            random.nextBytes(scriptSig);
+            TransactionInput input = new TransactionInput(params, tx, scriptSig,
+                    new TransactionOutPoint(params, i, new Sha256Hash(hash)));
+            input.setSequenceNumber(i);
+            tx.addInput(input);
+        }
+        for (int i = 0; i < 3; i++) {
+            byte[] script = new byte[20 + i];
+            random.nextBytes(script);
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(1000 + i), script));
+        }
+        tx.setLockTime(12345);
+    }
+
+    // Builds the simplified transaction the way the reference client does, and hashes that.
+    private Sha256Hash referenceHash(Transaction tx, int inputIndex, byte[] connectedScript, byte sigHashType)
+            throws Exception {
+        int mode = sigHashType & 0x1f;
+        boolean none = mode == Transaction.SigHash.NONE.ordinal() + 1;
+        boolean single = mode == Transaction.SigHash.SINGLE.ordinal() + 1;
+        Transaction copy = new Transaction(params);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            if ((sigHashType & ANYONECANPAY) != 0 && i != inputIndex)
+                continue;
+            TransactionInput input = tx.getInput(i);
+            TransactionInput copied = new TransactionInput(params, copy,
+                    i == inputIndex ? connectedScript : new byte[0], input.getOutpoint());
+            copied.setSequenceNumber((none || single) && i != inputIndex ? 0 : input.getSequenceNumber());
+            copy.addInput(copied);
+        }
+        List<TransactionOutput> outputs = tx.getOutputs();
+        if (single) {
+            for (int i = 0; i < inputIndex; i++)
+                copy.addOutput(new TransactionOutput(params, copy, Utils.NEGATIVE_ONE, new byte[0]));
+            copy.addOutput(new TransactionOutput(params, copy, outputs.get(inputIndex).getValue(),
+                    outputs.get(inputIndex).getScriptBytes()));
+        } else if (!none) {
+            for (TransactionOutput output : outputs)
+                copy.addOutput(new TransactionOutput(params, copy, output.getValue(), output.getScriptBytes()));
+        }
+        copy.setLockTime(tx.getLockTime());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        copy.bitcoinSerialize(stream);
+        Utils.uint32ToByteStreamLE(0xff & sigHashType, stream);
+        return new Sha256Hash(Utils.doubleDigest(stream.toByteArray()));
+    }
+
+    @Test
+    public void signatureHashes() throws Exception {
+        byte[] serialized = tx.bitcoinSerialize();
+        for (byte type : new byte[] {0, 1, 2, 3, 1 | ANYONECANPAY, 2 | ANYONECANPAY, 3 | ANYONECANPAY}) {
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                Sha256Hash hash = tx.hashForSignature(i, SCRIPT, type);
+                if ((type & 0x1f) == 3 && i >= tx.getOutputs().size())
+                    assertEquals(ONE, hash);
+                else
+                    assertEquals("type " + type + " input " + i, referenceHash(tx, i, SCRIPT, type), hash);
+            }
+        }
+        // Nothing was changed along the way.
+        assertEquals(Utils.bytesToHexString(serialized), Utils.bytesToHexString(tx.bitcoinSerialize()));
+    }
+
+    @Test
+    public void singleWithoutMatchingOutput() throws Exception {
+        assertEquals(ONE, tx.hashForSignature(4, SCRIPT, (byte) 3));
+    }
+
+    @Test
+    public void changesAreSeen() throws Exception {
+        Sha256Hash before = tx.hashForSignature(1, SCRIPT, (byte) 1);
+        tx.getInput(3).setSequenceNumber(7);
+        Sha256Hash after = tx.hashForSignature(1, SCRIPT, (byte) 1);
+        assertEquals(referenceHash(tx, 1, SCRIPT, (byte) 1), after);
+        // Only the scripts of other inputs are not signed.
+        tx.getInput(3).setScriptSig(new ScriptBuilder().data(new byte[5]).build());
+        assertEquals(after, tx.hashForSignature(1, SCRIPT, (byte) 1));
+        tx.getInput(3).setSequenceNumber(3);
+        assertEquals(before, tx.hashForSignature(1, SCRIPT, (byte) 1));
+    }
+
+    @Test
+    public void concurrentHashing() throws Exception {
+        final int rounds = 200;
+        final List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            expected.add(referenceHash(tx, i, SCRIPT, (byte) 1));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int r = 0; r < rounds; r++)
+                            for (int i = 0; i < expected.size(); i++)
+                                if (!expected.get(i).equals(tx.hashForSignature(i, SCRIPT, (byte) 1)))
+                                    return false;
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertEquals(true, result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -1312,6 +1312,57 @@ public class WalletTest extends TestWithWallet {
         assertEquals(0, wallet.getPoolSize(Pool.UNSPENT));
     }
 
+    @Test
+    public void keyLookups() throws Exception {
+        ECKey key = new ECKey();
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertTrue(wallet.addKey(key));
+        assertFalse(wallet.addKey(new ECKey(null, key.getPubKey())));
+        assertEquals(key, wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertEquals(key, wallet.findKeyFromPubKey(key.getPubKey()));
+        assertTrue(wallet.hasKey(key));
+        assertTrue(wallet.removeKey(key));
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key.getPubKey()));
+        assertFalse(wallet.hasKey(key));
+
+        // Decrypting replaces the keys, so lookups must find the new ones.
+        ECKey encryptedKey = encryptedWallet.getKeys().get(0);
+        assertTrue(encryptedWallet.findKeyFromPubHash(encryptedKey.getPubKeyHash()).isEncrypted());
+        encryptedWallet.decrypt(aesKey);
+        assertFalse(encryptedWallet.findKeyFromPubHash(encryptedKey.getPubKeyHash()).isEncrypted());
+        assertFalse(encryptedWallet.findKeyFromPubKey(encryptedKey.getPubKey()).isEncrypted());
+    }
+
+    @Test
+    public void balancesFollowChanges() throws Exception {
+        // Balances are kept between queries, so check they notice each kind of change.
+        BigInteger v1 = Utils.toNanoCoins(3, 0);
+        sendMoneyToWallet(v1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(v1, wallet.getBalance());
+        assertEquals(v1, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        Transaction t2 = wallet.createSend(new ECKey().toAddress(params), Utils.toNanoCoins(1, 0));
+        wallet.commitTx(t2);
+        BigInteger change = t2.getValueSentToMe(wallet);
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(1, wallet.calculateAllSpendCandidates(true).size());
+
+        // Our own change becomes available once peers announce it.
+        t2.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1, 2, 3, 4})));
+        t2.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{5, 6, 7, 8})));
+        assertEquals(change, wallet.getBalance());
+
+        assertTrue(wallet.removeKey(myKey));
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertTrue(wallet.calculateAllSpendCandidates(false).isEmpty());
+        assertTrue(wallet.addKey(myKey));
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(change, wallet.getBalance());
+    }
+
     @Test
     public void encryptionDecryptionBasic() throws Exception {
         // Check the wallet is initially of WalletType ENCRYPTED.
@@ -0,0 +1,114 @@
+package com.google.bitcoin.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.SocketFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class BlockingClientTest {
+    private ServerSocket server;
+    // Holds up the client's connect, so that its writes pile up in the outbound queue
+    private final CountDownLatch connect = new CountDownLatch(1);
+
+    private final SocketFactory delayedConnectFactory = new SocketFactory() {
+        @Override
+        public Socket createSocket() {
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    try {
+                        connect.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    super.connect(endpoint, timeout);
+                }
+            };
+        }
+
+        @Override public Socket createSocket(String host, int port) { throw new UnsupportedOperationException(); }
+        @Override public Socket createSocket(String host, int port, InetAddress localHost, int localPort) { throw new UnsupportedOperationException(); }
+        @Override public Socket createSocket(InetAddress host, int port) { throw new UnsupportedOperationException(); }
+        @Override public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) { throw new UnsupportedOperationException(); }
+    };
+
+    private static class NullParser implements StreamParser {
+        @Override public void connectionClosed() {}
+        @Override public void connectionOpened() {}
+        @Override public int receiveLowPriorityBytes(ByteBuffer buff) { return buff.position(); }
+        @Override public void receiveHighPriorityBytes(long nodeId, ByteBuffer buff) {}
+        @Override public void setWriteTarget(MessageWriteTarget writeTarget) {}
+        @Override public int getMaxMessageSize() { return 0; }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private BlockingClient newClient() throws IOException {
+        return new BlockingClient(new InetSocketAddress("127.0.0.1", server.getLocalPort()), null, new NullParser(),
+                0, delayedConnectFactory, null);
+    }
+
+    @Test
+    public void queuesAndDropsExpendableWrites() throws Exception {
+        BlockingClient client = newClient();
+        client.setMaxQueuedBytes(10);
+        client.writeLowPriorityBytes(new byte[] {1, 2, 3});
+        assertTrue(client.writeExpendableBytes(new byte[] {4, 5, 6, 7, 8}));
+        assertEquals(8, client.getQueuedBytes());
+        assertFalse(client.writeExpendableBytes(new byte[] {9, 9, 9}));
+        assertEquals(1, client.getDroppedWriteCount());
+        client.writeLowPriorityBytes(new byte[] {9, 10});
+        assertEquals(10, client.getQueuedBytes());
+
+        connect.countDown();
+        Socket socket = server.accept();
+        byte[] received = new byte[10];
+        new DataInputStream(socket.getInputStream()).readFully(received);
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10}, received);
+        client.closeConnection();
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+    }
+
+    @Test
+    public void disconnectsOnOverflow() throws Exception {
+        BlockingClient client = newClient();
+        client.setMaxQueuedBytes(10);
+        client.setOverflowPolicy(BlockingClient.OverflowPolicy.DISCONNECT);
+        client.writeLowPriorityBytes(new byte[8]);
+        try {
+            client.writeExpendableBytes(new byte[3]);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            client.writeLowPriorityBytes(new byte[1]);
+            fail();
+        } catch (IOException e) {
+            // Closed by the overflow.
+        }
+        connect.countDown();
+    }
+}
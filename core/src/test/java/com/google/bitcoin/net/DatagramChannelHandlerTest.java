@@ -0,0 +1,92 @@
+package com.google.bitcoin.net;
+
+import com.google.bitcoin.core.Utils;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DatagramChannelHandlerTest {
+    private static final int SERVER_PORT = 35010;
+    private static final int CLIENT_UDP_PORT = 35011;
+
+    private static class UDPParser implements StreamParser {
+        final SettableFuture<MessageWriteTarget> writeTarget = SettableFuture.create();
+        final SettableFuture<Long> nodeId = SettableFuture.create();
+        final SettableFuture<byte[]> datagram = SettableFuture.create();
+
+        @Override public void connectionClosed() {}
+        @Override public void connectionOpened() {}
+        @Override public int receiveLowPriorityBytes(ByteBuffer buff) { return 0; }
+        @Override public int getMaxMessageSize() { return 0; }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget.set(writeTarget);
+        }
+
+        @Override
+        public void receiveHighPriorityBytes(long nodeId, ByteBuffer buff) {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            this.nodeId.set(nodeId);
+            datagram.set(bytes);
+        }
+    }
+
+    private static byte[] datagram(long nodeId, byte fill) {
+        byte[] bytes = new byte[UDPDispatcher.NODE_ID_LENGTH + 100];
+        Utils.uint64ToByteArrayLE(nodeId, bytes, 0);
+        for (int i = UDPDispatcher.NODE_ID_LENGTH; i < bytes.length; i++)
+            bytes[i] = fill;
+        return bytes;
+    }
+
+    @Test
+    public void highPriorityRoundTrip() throws Exception {
+        final UDPParser serverParser = new UDPParser();
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                return serverParser;
+            }
+        }, new InetSocketAddress("localhost", SERVER_PORT), true);
+        server.startAsync();
+        server.awaitRunning();
+        NioClientManager client = new NioClientManager(CLIENT_UDP_PORT);
+        client.startAsync();
+        client.awaitRunning();
+        try {
+            UDPParser clientParser = new UDPParser();
+            client.openConnection(new InetSocketAddress("localhost", SERVER_PORT), clientParser);
+            MessageWriteTarget clientTarget = clientParser.writeTarget.get(5, TimeUnit.SECONDS);
+            MessageWriteTarget serverTarget = serverParser.writeTarget.get(5, TimeUnit.SECONDS);
+            // As after the version handshake, each side learns the UDP port and node id of the other.
+            clientTarget.setUDPPort(SERVER_PORT, 1);
+            serverTarget.setUDPPort(CLIENT_UDP_PORT, 2);
+
+            clientTarget.writeHighPriorityBytes(datagram(2, (byte) 7));
+            assertEquals(2L, (long) serverParser.nodeId.get(5, TimeUnit.SECONDS));
+            byte[] received = serverParser.datagram.get();
+            assertEquals(100, received.length);
+            assertEquals(7, received[0]);
+
+            serverTarget.writeHighPriorityBytes(datagram(1, (byte) 9));
+            assertEquals(1L, (long) clientParser.nodeId.get(5, TimeUnit.SECONDS));
+            assertEquals(9, clientParser.datagram.get()[99]);
+
+            assertEquals(1, server.getUDPDispatcher().getReceivedCount());
+            assertEquals(1, client.getUDPDispatcher().getReceivedCount());
+        } finally {
+            client.stopAsync();
+            client.awaitTerminated();
+            server.stopAsync();
+            server.awaitTerminated();
+        }
+    }
+}
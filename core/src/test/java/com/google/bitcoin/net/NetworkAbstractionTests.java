@@ -58,9 +58,11 @@ public class NetworkAbstractionTests {
         if (clientType == 0) {
             channels = new NioClientManager();
             channels.startAsync();
+            channels.awaitRunning();
         } else if (clientType == 1) {
             channels = new BlockingClientManager(35000, false);
             channels.startAsync();
+            channels.awaitRunning();
         } else
             channels = null;
     }
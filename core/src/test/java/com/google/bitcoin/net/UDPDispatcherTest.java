@@ -0,0 +1,102 @@
+package com.google.bitcoin.net;
+
+import com.google.bitcoin.core.Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class UDPDispatcherTest {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 1234);
+    private static final InetSocketAddress OTHER_ADDRESS = new InetSocketAddress("127.0.0.1", 1235);
+
+    private UDPDispatcher dispatcher;
+
+    private static class RecordingParser implements StreamParser {
+        int received;
+        long lastNodeId;
+        int lastLength;
+        boolean fail;
+
+        @Override public void connectionClosed() {}
+        @Override public void connectionOpened() {}
+        @Override public int receiveLowPriorityBytes(ByteBuffer buff) { return 0; }
+        @Override public void setWriteTarget(MessageWriteTarget writeTarget) {}
+        @Override public int getMaxMessageSize() { return 0; }
+
+        @Override
+        public void receiveHighPriorityBytes(long nodeId, ByteBuffer buff) throws Exception {
+            if (fail)
+                throw new Exception("Bad message");
+            received++;
+            lastNodeId = nodeId;
+            lastLength = buff.remaining();
+        }
+    }
+
+    private static ByteBuffer datagram(long nodeId, int messageLength) {
+        byte[] bytes = new byte[UDPDispatcher.NODE_ID_LENGTH + messageLength];
+        Utils.uint64ToByteArrayLE(nodeId, bytes, 0);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Before
+    public void setUp() {
+        dispatcher = new UDPDispatcher();
+    }
+
+    @Test
+    public void routesByNodeIdThenAddress() {
+        RecordingParser a = new RecordingParser(), b = new RecordingParser();
+        dispatcher.register(a, 1, ADDRESS);
+        dispatcher.register(b, -2, OTHER_ADDRESS);
+
+        assertTrue(dispatcher.dispatch(datagram(-2, 100), ADDRESS));
+        assertEquals(0, a.received);
+        assertEquals(1, b.received);
+        assertEquals(-2, b.lastNodeId);
+        assertEquals(100, b.lastLength);
+
+        // An unknown node id falls back to the source address.
+        assertTrue(dispatcher.dispatch(datagram(3, 100), ADDRESS));
+        assertEquals(1, a.received);
+        assertEquals(3, a.lastNodeId);
+
+        assertFalse(dispatcher.dispatch(datagram(3, 100), new InetSocketAddress("127.0.0.1", 1)));
+        assertEquals(1, dispatcher.getDroppedUnroutableCount());
+
+        dispatcher.unregister(b);
+        assertFalse(dispatcher.dispatch(datagram(-2, 100), new InetSocketAddress("127.0.0.1", 1)));
+        assertEquals(2, dispatcher.getDroppedUnroutableCount());
+        assertEquals(4, dispatcher.getReceivedCount());
+    }
+
+    @Test
+    public void reregistering() {
+        RecordingParser a = new RecordingParser();
+        dispatcher.register(a, 1, ADDRESS);
+        dispatcher.register(a, 2, null);
+        assertFalse(dispatcher.dispatch(datagram(1, 100), ADDRESS));
+        assertTrue(dispatcher.dispatch(datagram(2, 100), ADDRESS));
+        assertEquals(1, a.received);
+    }
+
+    @Test
+    public void dropsBadDatagrams() {
+        RecordingParser a = new RecordingParser();
+        dispatcher.register(a, 1, ADDRESS);
+
+        assertFalse(dispatcher.dispatch(datagram(1, UDPDispatcher.MAX_DATAGRAM_SIZE), ADDRESS));
+        assertEquals(1, dispatcher.getDroppedOversizedCount());
+        assertFalse(dispatcher.dispatch(datagram(1, 10), ADDRESS));
+        assertEquals(1, dispatcher.getDroppedMalformedCount());
+        a.fail = true;
+        assertFalse(dispatcher.dispatch(datagram(1, 100), ADDRESS));
+        assertEquals(2, dispatcher.getDroppedMalformedCount());
+        assertEquals(0, a.received);
+        assertEquals(0, dispatcher.getDroppedUnroutableCount());
+    }
+}
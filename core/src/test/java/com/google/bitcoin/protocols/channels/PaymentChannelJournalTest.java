@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.protocols.channels;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class PaymentChannelJournalTest {
+    private static final Sha256Hash CONTRACT = Sha256Hash.create(new byte[] {1});
+
+    private File file, walletFile;
+    private Wallet wallet;
+
+    private static class RecordingReplayer implements PaymentChannelJournal.Replayer {
+        final List<BigInteger> values = new ArrayList<BigInteger>();
+        final List<byte[]> signatures = new ArrayList<byte[]>();
+
+        @Override
+        public void replayPayment(Sha256Hash contractHash, BigInteger value, @Nullable byte[] signature) {
+            assertEquals(CONTRACT, contractHash);
+            values.add(value);
+            signatures.add(signature);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("payment_channel_journal_test", null);
+        walletFile = File.createTempFile("payment_channel_journal_test", ".wallet");
+        wallet = new Wallet(UnitTestParams.get());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+        walletFile.delete();
+    }
+
+    private PaymentChannelJournal open(RecordingReplayer replayer) throws Exception {
+        PaymentChannelJournal journal = new PaymentChannelJournal(file, wallet, walletFile);
+        journal.replay(replayer);
+        return journal;
+    }
+
+    @Test
+    public void appendAndReplay() throws Exception {
+        PaymentChannelJournal journal = open(new RecordingReplayer());
+        journal.append(CONTRACT, BigInteger.valueOf(10), new byte[] {1, 2, 3});
+        journal.append(CONTRACT, BigInteger.valueOf(20), null);
+        journal.close();
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        journal = open(replayer);
+        assertEquals(2, journal.getEntryCount());
+        assertEquals(BigInteger.valueOf(10), replayer.values.get(0));
+        assertArrayEquals(new byte[] {1, 2, 3}, replayer.signatures.get(0));
+        assertEquals(BigInteger.valueOf(20), replayer.values.get(1));
+        assertNull(replayer.signatures.get(1));
+        journal.close();
+    }
+
+    @Test
+    public void discardsIncompleteEntry() throws Exception {
+        PaymentChannelJournal journal = open(new RecordingReplayer());
+        journal.append(CONTRACT, BigInteger.valueOf(10), new byte[] {1});
+        journal.close();
+        // As if the next append was cut short by a crash.
+        FileOutputStream stream = new FileOutputStream(file, true);
+        stream.write(new byte[] {0, 0, 0, 60, 1, 2, 3});
+        stream.close();
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        journal = open(replayer);
+        assertEquals(1, replayer.values.size());
+        journal.append(CONTRACT, BigInteger.valueOf(30), new byte[] {1});
+        journal.close();
+
+        replayer = new RecordingReplayer();
+        open(replayer).close();
+        assertEquals(2, replayer.values.size());
+        assertEquals(BigInteger.valueOf(30), replayer.values.get(1));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        PaymentChannelJournal journal = open(new RecordingReplayer());
+        journal.setCompactionThreshold(2);
+        journal.append(CONTRACT, BigInteger.valueOf(10), null);
+        journal.maybeCompact();
+        assertEquals(1, journal.getEntryCount());
+        assertEquals(0, walletFile.length());
+        journal.append(CONTRACT, BigInteger.valueOf(20), null);
+        journal.maybeCompact();
+        assertEquals(0, journal.getEntryCount());
+        assertTrue(walletFile.length() > 0);
+        assertFalse(new File(file.getPath() + ".compacting").exists());
+        journal.append(CONTRACT, BigInteger.valueOf(30), null);
+        journal.close();
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        open(replayer).close();
+        assertEquals(1, replayer.values.size());
+        assertEquals(BigInteger.valueOf(30), replayer.values.get(0));
+    }
+
+    @Test
+    public void concurrentAppends() throws Exception {
+        final PaymentChannelJournal journal = open(new RecordingReplayer());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int i = 0; i < 50; i++)
+                            journal.append(CONTRACT, BigInteger.valueOf(i), new byte[72]);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results)
+                result.get();
+        } finally {
+            executor.shutdown();
+        }
+        journal.close();
+
+        RecordingReplayer replayer = new RecordingReplayer();
+        open(replayer).close();
+        assertEquals(400, replayer.values.size());
+    }
+}
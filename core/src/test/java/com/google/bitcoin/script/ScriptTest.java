@@ -108,7 +108,51 @@ public class ScriptTest {
         Script s = new Script(bytes);
         assertTrue(s.isSentToRawPubKey());
     }
-    
+
+    private static boolean spends(Script scriptSig, Transaction tx, Script scriptPubKey) {
+        try {
+            scriptSig.correctlySpends(tx, 0, scriptPubKey, true);
+            return true;
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void standardTemplates() throws Exception {
+        // Spends of pay-to-address and pay-to-pubkey outputs are checked without running the scripts. A leading OP_1
+        // in the scriptSig makes them run, which must give the same results.
+        ECKey key = new ECKey();
+        ECKey other = new ECKey();
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, 0, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Utils.COIN, other.toAddress(params));
+        for (Script scriptPubKey : ImmutableList.of(ScriptBuilder.createOutputScript(key.toAddress(params)),
+                                                    ScriptBuilder.createOutputScript(key))) {
+            TransactionSignature sig = tx.calculateSignature(0, key, scriptPubKey, SigHash.ALL, false);
+            TransactionSignature otherSig = tx.calculateSignature(0, other, scriptPubKey, SigHash.ALL, false);
+            for (boolean run : new boolean[] {false, true}) {
+                ScriptBuilder good = new ScriptBuilder(), badSig = new ScriptBuilder(), badKey = new ScriptBuilder();
+                if (run) {
+                    good.smallNum(1);
+                    badSig.smallNum(1);
+                    badKey.smallNum(1);
+                }
+                good.data(sig.encodeToBitcoin());
+                badSig.data(otherSig.encodeToBitcoin());
+                badKey.data(otherSig.encodeToBitcoin());
+                if (scriptPubKey.isSentToAddress()) {
+                    good.data(key.getPubKey());
+                    badSig.data(key.getPubKey());
+                    badKey.data(other.getPubKey());
+                }
+                assertTrue(spends(good.build(), tx, scriptPubKey));
+                assertFalse(spends(badSig.build(), tx, scriptPubKey));
+                assertFalse(spends(badKey.build(), tx, scriptPubKey));
+            }
+        }
+    }
+
     @Test
     public void testCreateMultiSigInputScript() throws AddressFormatException {
         // Setup transaction and signatures
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.script;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final ECKey key = new ECKey();
+    private final ECKey other = new ECKey();
+    private SignatureCache previous;
+
+    @Before
+    public void setUp() {
+        previous = Script.getSignatureCache();
+    }
+
+    @After
+    public void tearDown() {
+        Script.setSignatureCache(previous);
+    }
+
+    @Test
+    public void remembersValidSignatures() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] encoded = sig.encodeToDER();
+        assertTrue(cache.verify(hash, sig, encoded, key.getPubKey()));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertTrue(cache.verify(hash, sig, encoded, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+
+        // Invalid signatures are checked every time.
+        assertFalse(cache.verify(hash, sig, encoded, other.getPubKey()));
+        assertFalse(cache.verify(hash, sig, encoded, other.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        Sha256Hash otherHash = Sha256Hash.create(new byte[] {2});
+        assertFalse(cache.verify(otherHash, sig, encoded, key.getPubKey()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        // One segment, so the least recently used entry overall is the one evicted.
+        SignatureCache cache = new SignatureCache(2, 1);
+        Sha256Hash[] hashes = new Sha256Hash[3];
+        ECKey.ECDSASignature[] sigs = new ECKey.ECDSASignature[3];
+        for (int i = 0; i < 3; i++) {
+            hashes[i] = Sha256Hash.create(new byte[] {(byte) i});
+            sigs[i] = key.sign(hashes[i]);
+        }
+        cache.verify(hashes[0], sigs[0], sigs[0].encodeToDER(), key.getPubKey());
+        cache.verify(hashes[1], sigs[1], sigs[1].encodeToDER(), key.getPubKey());
+        cache.verify(hashes[0], sigs[0], sigs[0].encodeToDER(), key.getPubKey());
+        cache.verify(hashes[2], sigs[2], sigs[2].encodeToDER(), key.getPubKey());
+        assertEquals(2, cache.size());
+        long hits = cache.getHitCount();
+        cache.verify(hashes[0], sigs[0], sigs[0].encodeToDER(), key.getPubKey());
+        assertEquals(hits + 1, cache.getHitCount());
+        cache.verify(hashes[1], sigs[1], sigs[1].encodeToDER(), key.getPubKey());
+        assertEquals(hits + 1, cache.getHitCount());
+    }
+
+    @Test
+    public void segmentsShareTheSize() throws Exception {
+        SignatureCache cache = new SignatureCache(10, 4);
+        for (int i = 0; i < 30; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) i});
+            ECKey.ECDSASignature sig = key.sign(hash);
+            assertTrue(cache.verify(hash, sig, sig.encodeToDER(), key.getPubKey()));
+            assertTrue(cache.verify(hash, sig, sig.encodeToDER(), key.getPubKey()));
+        }
+        assertEquals(30, cache.getHitCount());
+        assertTrue(cache.size() <= 10);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void offByDefault() {
+        assertNull(previous);
+    }
+
+    @Test
+    public void usedByScripts() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        Script.setSignatureCache(cache);
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0], new TransactionOutPoint(params, 0, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Utils.COIN, other.toAddress(params));
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(params));
+        TransactionSignature sig = tx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        Script scriptSig = ScriptBuilder.createInputScript(sig, key);
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, true);
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        // The same signature, run by the interpreter rather than matched as a template, is found too.
+        new ScriptBuilder().smallNum(1).data(sig.encodeToBitcoin()).data(key.getPubKey()).build()
+                .correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(2, cache.getHitCount());
+
+        Script.setSignatureCache(null);
+        scriptSig.correctlySpends(tx, 0, scriptPubKey, true);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+}
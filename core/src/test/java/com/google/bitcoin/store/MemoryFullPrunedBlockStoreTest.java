@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryFullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final Address to = new ECKey().toAddress(params);
+    private MemoryFullPrunedBlockStore store;
+    // Now, in seconds. Well after the genesis block, which was made when the parameters were.
+    private long now;
+
+    @Before
+    public void setUp() throws Exception {
+        now = params.getGenesisBlock().getTimeSeconds() + 2000;
+        Utils.setMockClock(now);
+        store = new MemoryFullPrunedBlockStore(params, 10);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+        store.close();
+    }
+
+    // Stores a block on top of the given one, mined the given number of seconds ago.
+    private StoredBlock put(StoredBlock prev, long secondsAgo) throws Exception {
+        StoredBlock block = prev.build(prev.getHeader().createNextBlock(to, now - secondsAgo).cloneAsHeader());
+        store.put(block);
+        return block;
+    }
+
+    private Date secondsAgo(long seconds) {
+        return new Date((now - seconds) * 1000);
+    }
+
+    @Test
+    public void blocksAndStaleBlocksPerPeriod() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        // The first block at its height, so not stale, but too old to be counted at all.
+        put(genesis, 1000);
+        // Compete with the one above and came later, so they're stale.
+        StoredBlock a1 = put(genesis, 250);
+        put(genesis, 30);
+        // Exactly at the beginning of the oldest period, which only counts blocks after it.
+        put(genesis, 300);
+        // Competes with the block below and came later, so it's the stale one.
+        put(a1, 60);
+        put(a1, 100);
+
+        Map<Date, Integer> blocks = store.getBlocks(60, 300);
+        assertEquals(5, blocks.size());
+        assertEquals(1, (int) blocks.get(secondsAgo(60)));
+        // A block at the beginning of a period counts in the one before.
+        assertEquals(2, (int) blocks.get(secondsAgo(120)));
+        assertEquals(0, (int) blocks.get(secondsAgo(180)));
+        assertEquals(0, (int) blocks.get(secondsAgo(240)));
+        assertEquals(1, (int) blocks.get(secondsAgo(300)));
+
+        Map<Date, Integer> stale = store.getStaleBlocks(60, 300);
+        assertEquals(5, stale.size());
+        assertEquals(1, (int) stale.get(secondsAgo(60)));
+        assertEquals(1, (int) stale.get(secondsAgo(120)));
+        assertEquals(0, (int) stale.get(secondsAgo(180)));
+        assertEquals(0, (int) stale.get(secondsAgo(240)));
+        assertEquals(1, (int) stale.get(secondsAgo(300)));
+    }
+
+    @Test
+    public void periodsLatestFirst() throws Exception {
+        Map<Date, Integer> blocks = store.getBlocks(100, 250);
+        // Only whole periods.
+        assertEquals(2, blocks.size());
+        assertEquals(secondsAgo(100), blocks.keySet().iterator().next());
+    }
+}
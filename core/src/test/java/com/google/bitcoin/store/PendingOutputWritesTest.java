@@ -0,0 +1,66 @@
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class PendingOutputWritesTest {
+    private final PendingOutputWrites pending = new PendingOutputWrites();
+    private final Sha256Hash tx = Sha256Hash.create(new byte[] {1});
+
+    private StoredTransactionOutput output(long index) {
+        return new StoredTransactionOutput(tx, index, BigInteger.ONE, 1, false, new byte[0]);
+    }
+
+    @Test
+    public void readsSeeTheBatch() throws Exception {
+        StoredTransactionOutput added = output(0), existing = output(1);
+        assertFalse(pending.add(added));
+        assertSame(added, pending.getAdded(tx, 0));
+        assertTrue(pending.hasAdded(tx));
+        assertFalse(pending.hasRemoved(tx));
+
+        assertTrue(pending.remove(existing));
+        assertTrue(pending.isRemoved(tx, 1));
+        assertNull(pending.getAdded(tx, 1));
+        assertTrue(pending.hasRemoved(tx));
+        // There's nothing left to remove.
+        assertFalse(pending.remove(existing));
+
+        assertEquals(ImmutableList.of(existing), ImmutableList.copyOf(pending.getRemoved()));
+        assertEquals(ImmutableList.of(added), ImmutableList.copyOf(pending.getAdded()));
+        pending.clear();
+        assertTrue(pending.isEmpty());
+        assertFalse(pending.hasAdded(tx));
+    }
+
+    @Test
+    public void addedThenRemoved() throws Exception {
+        StoredTransactionOutput out = output(0);
+        pending.add(out);
+        // Created and spent in the batch, so never written.
+        assertTrue(pending.remove(out));
+        assertFalse(pending.isRemoved(tx, 0));
+        assertFalse(pending.hasAdded(tx));
+        assertFalse(pending.hasRemoved(tx));
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    public void removedThenAdded() throws Exception {
+        StoredTransactionOutput out = output(0);
+        assertTrue(pending.remove(out));
+        // Restored, so the store keeps the one it has.
+        assertTrue(pending.add(out));
+        assertFalse(pending.isRemoved(tx, 0));
+        assertNull(pending.getAdded(tx, 0));
+        assertTrue(pending.isEmpty());
+        assertTrue(pending.remove(out));
+        assertTrue(pending.isRemoved(tx, 0));
+    }
+}
@@ -0,0 +1,453 @@
+package com.google.bitcoin.tools;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.AbstractBlockChainListener;
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Keeps the transactions a miner can put in its next block up to date, so that a block template is ready as soon as
+ * the miner asks for one instead of being built from the whole memory pool while holding the chain lock.</p>
+ *
+ * <p>Transactions are checked once, when they arrive from a peer (or are found in the {@link PeerGroup} memory pool
+ * by a periodic scan), against the unspent outputs of the {@link FullPrunedBlockStore}. Those spending only spendable
+ * outputs, and whose scripts spend them, become candidates, ordered by fee rate. The others wait, indexed by the transaction they depend on or by the
+ * height at which their inputs mature, and are checked again only when that transaction is confirmed or that height
+ * is reached. When a block is connected its transactions and the candidates conflicting with them are dropped. A
+ * re-org starts over from the memory pool.</p>
+ *
+ * <p>All the bookkeeping runs on a dedicated thread, which only takes the chain lock while it reads the block store
+ * and checks scripts. After every change a new {@link Template} is published and
+ * {@link #getTemplate(Sha256Hash, long)} just returns it.</p>
+ *
+ * <p>With a {@link com.google.bitcoin.script.SignatureCache} set, the signatures checked here are remembered, so
+ * connecting a block made of these transactions, ours or another miner's, doesn't verify them again.</p>
+ */
+public class BlockTemplateBuilder {
+    private static final Logger log = LoggerFactory.getLogger(BlockTemplateBuilder.class);
+
+    /** The maximum number of transactions in a template, not counting the coinbase. */
+    public static final int MAX_TRANSACTIONS = 1000;
+    // Room left in the block for the header and the coinbase.
+    private static final int RESERVED_BLOCK_SIZE = 1000;
+    // Transactions that can't be included yet, or were rejected, are remembered up to these numbers.
+    private static final int MAX_WAITING = 10000;
+    private static final int MAX_REJECTED = 10000;
+    // How often the memory pool is scanned for transactions no peer told us about, like the ones we broadcast.
+    private static final long MEMORY_POOL_SCAN_SECONDS = 10;
+
+    /** The transactions to include in a block built on top of a given block, in order. */
+    public static class Template {
+        private final Sha256Hash prevBlockHash;
+        private final List<Transaction> transactions;
+        private final BigInteger fees;
+
+        Template(Sha256Hash prevBlockHash, List<Transaction> transactions, BigInteger fees) {
+            this.prevBlockHash = prevBlockHash;
+            this.transactions = transactions;
+            this.fees = fees;
+        }
+
+        public Sha256Hash getPrevBlockHash() {
+            return prevBlockHash;
+        }
+
+        public List<Transaction> getTransactions() {
+            return transactions;
+        }
+
+        /** Returns the total fees of the transactions. */
+        public BigInteger getFees() {
+            return fees;
+        }
+    }
+
+    private static class Candidate {
+        final Transaction tx;
+        final BigInteger fee;
+        final int size;
+        final double feeRate;
+        final long updateTime;
+
+        Candidate(Transaction tx, BigInteger fee, int size) {
+            this.tx = tx;
+            this.fee = fee;
+            this.size = size;
+            this.feeRate = fee.doubleValue() / size;
+            this.updateTime = tx.getUpdateTime().getTime();
+        }
+    }
+
+    // Highest fee rate first, then first seen first.
+    private static final Comparator<Candidate> FEE_RATE_ORDER = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            int feeRateComparison = Double.compare(c2.feeRate, c1.feeRate);
+            if (feeRateComparison != 0)
+                return feeRateComparison;
+            if (c1.updateTime != c2.updateTime)
+                return c1.updateTime < c2.updateTime ? -1 : 1;
+            return c1.tx.getHash().compareTo(c2.tx.getHash());
+        }
+    };
+
+    private final NetworkParameters params;
+    private final PeerGroup peers;
+    private final FullPrunedBlockStore store;
+    private final AbstractBlockChain chain;
+    private final ScheduledExecutorService executor;
+
+    // The state below is only touched from the executor thread.
+    private StoredBlock head;
+    private final Map<Sha256Hash, Candidate> candidates = new HashMap<Sha256Hash, Candidate>();
+    private final TreeSet<Candidate> candidatesByFeeRate = new TreeSet<Candidate>(FEE_RATE_ORDER);
+    private final Map<TransactionOutPoint, Candidate> spentOutPoints = new HashMap<TransactionOutPoint, Candidate>();
+    private final LinkedHashMap<Sha256Hash, Transaction> waiting = new LinkedHashMap<Sha256Hash, Transaction>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+            return size() > MAX_WAITING;
+        }
+    };
+    // Transactions waiting for a transaction to be confirmed, keyed by its hash. Entries of transactions forgotten by
+    // the waiting map are left behind and skipped when they come up.
+    private final SetMultimap<Sha256Hash, Sha256Hash> waitingForTransaction = HashMultimap.create();
+    // Transactions waiting for their inputs to mature, keyed by the height of the first block they can be in.
+    private final TreeMap<Integer, List<Sha256Hash>> waitingForHeight = new TreeMap<Integer, List<Sha256Hash>>();
+    private final Set<Sha256Hash> rejected = Collections.newSetFromMap(new LinkedHashMap<Sha256Hash, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+            return size() > MAX_REJECTED;
+        }
+    });
+
+    private final ReentrantLock lock = Threading.lock("blocktemplate");
+    private final Condition templateChanged = lock.newCondition();
+    private volatile Template template;
+
+    private final AbstractBlockChainListener chainListener = new AbstractBlockChainListener() {
+        @Override
+        public void notifyNewBestBlock(StoredBlock block) {
+            blockConnected(block);
+        }
+
+        @Override
+        public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+            // The first block of the list is the new chain head.
+            reset(newBlocks.get(0));
+        }
+    };
+
+    private final AbstractPeerEventListener peerListener = new AbstractPeerEventListener() {
+        @Override
+        public void onTransaction(Peer peer, Transaction tx) {
+            chain.getLock().lock();
+            try {
+                evaluate(tx);
+            } catch (BlockStoreException e) {
+                log.warn("Could not check transaction " + tx.getHash(), e);
+            } finally {
+                chain.getLock().unlock();
+            }
+            publishTemplate();
+        }
+    };
+
+    public BlockTemplateBuilder(NetworkParameters params, PeerGroup peers, FullPrunedBlockStore store,
+                                AbstractBlockChain chain) {
+        this.params = params;
+        this.peers = peers;
+        this.store = store;
+        this.chain = chain;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Block template builder")
+                .build());
+    }
+
+    /** Loads the memory pool and starts following the chain and the peers. */
+    public void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                reset(chain.getChainHead());
+            }
+        });
+        chain.addListener(chainListener, executor);
+        peers.addEventListener(peerListener, executor);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scanMemoryPool();
+                publishTemplate();
+            }
+        }, MEMORY_POOL_SCAN_SECONDS, MEMORY_POOL_SCAN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        chain.removeListener(chainListener);
+        peers.removeEventListener(peerListener);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the template for a block on top of the given block, waiting up to the given time for the builder to
+     * catch up with it. Returns null if the builder did not reach that block in time. Must not be called with the chain
+     * lock held, as the builder needs it to make progress.
+     */
+    @Nullable
+    public Template getTemplate(Sha256Hash prevBlockHash, long timeoutMillis) throws InterruptedException {
+        checkState(!chain.getLock().isHeldByCurrentThread());
+        Template current = template;
+        if (current != null && current.getPrevBlockHash().equals(prevBlockHash))
+            return current;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (true) {
+                current = template;
+                if (current != null && current.getPrevBlockHash().equals(prevBlockHash))
+                    return current;
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return null;
+                templateChanged.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions that can be included in the next block. */
+    public int getCandidateCount() {
+        Template current = template;
+        return current == null ? 0 : current.getTransactions().size();
+    }
+
+    private void reset(StoredBlock newHead) {
+        candidates.clear();
+        candidatesByFeeRate.clear();
+        spentOutPoints.clear();
+        waiting.clear();
+        waitingForTransaction.clear();
+        waitingForHeight.clear();
+        rejected.clear();
+        head = newHead;
+        scanMemoryPool();
+        log.info("Loaded {} candidate transactions on top of {}", candidates.size(), newHead.getHeader().getHash());
+        publishTemplate();
+    }
+
+    // Checks the memory pool transactions we do not know about yet.
+    private void scanMemoryPool() {
+        chain.getLock().lock();
+        try {
+            for (Transaction tx : peers.getMemoryPool().getAll())
+                evaluate(tx);
+        } catch (BlockStoreException e) {
+            log.warn("Could not check memory pool transactions", e);
+        } finally {
+            chain.getLock().unlock();
+        }
+    }
+
+    private void blockConnected(StoredBlock block) {
+        chain.getLock().lock();
+        try {
+            StoredUndoableBlock undoableBlock = store.getUndoBlock(block.getHeader().getHash());
+            if (undoableBlock == null || undoableBlock.getTransactions() == null) {
+                // Can't tell what the block spent, start over.
+                reset(block);
+                return;
+            }
+            List<Transaction> retry = new ArrayList<Transaction>();
+            for (Transaction tx : undoableBlock.getTransactions()) {
+                Sha256Hash hash = tx.getHash();
+                removeCandidate(hash);
+                waiting.remove(hash);
+                if (!tx.isCoinBase()) {
+                    // Drop the candidates that double spend the block.
+                    for (TransactionInput input : tx.getInputs()) {
+                        Candidate conflict = spentOutPoints.get(input.getOutpoint());
+                        if (conflict != null) {
+                            removeCandidate(conflict.tx.getHash());
+                            rejected.add(conflict.tx.getHash());
+                        }
+                    }
+                }
+                for (Sha256Hash childHash : waitingForTransaction.removeAll(hash)) {
+                    Transaction child = waiting.remove(childHash);
+                    if (child != null)
+                        retry.add(child);
+                }
+            }
+            head = block;
+            // Transactions whose inputs mature at the next height.
+            Map<Integer, List<Sha256Hash>> matured = waitingForHeight.headMap(head.getHeight() + 1, true);
+            for (List<Sha256Hash> hashes : matured.values()) {
+                for (Sha256Hash hash : hashes) {
+                    Transaction tx = waiting.remove(hash);
+                    if (tx != null)
+                        retry.add(tx);
+                }
+            }
+            matured.clear();
+            for (Transaction tx : retry)
+                evaluate(tx);
+        } catch (BlockStoreException e) {
+            log.warn("Could not process block " + block.getHeader().getHash(), e);
+        } finally {
+            chain.getLock().unlock();
+        }
+        publishTemplate();
+    }
+
+    // Sorts the transaction into the candidates, the waiting transactions or the rejected ones.
+    private void evaluate(Transaction tx) throws BlockStoreException {
+        checkState(chain.getLock().isHeldByCurrentThread());
+        Sha256Hash hash = tx.getHash();
+        if (candidates.containsKey(hash) || waiting.containsKey(hash) || rejected.contains(hash))
+            return;
+        if (tx.isCoinBase() || store.hasUnspentOutputs(hash, tx.getOutputs().size())) {
+            // Coinbases can't be relayed and the others are already in the chain.
+            rejected.add(hash);
+            return;
+        }
+        int nextHeight = head.getHeight() + 1;
+        BigInteger valueIn = BigInteger.ZERO;
+        int maturityHeight = 0;
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>(tx.getInputs().size());
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            if (spentOutPoints.containsKey(outPoint)) {
+                // Double spends one of the candidates, first seen wins.
+                rejected.add(hash);
+                return;
+            }
+            StoredTransactionOutput output = store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+            if (output == null) {
+                // Spends a transaction that is not in the best chain yet.
+                waiting.put(hash, tx);
+                waitingForTransaction.put(outPoint.getHash(), hash);
+                return;
+            }
+            maturityHeight = Math.max(maturityHeight, output.getHeight() + params.getSpendableCoinbaseDepth());
+            valueIn = valueIn.add(output.getValue());
+            spent.add(output);
+        }
+        if (maturityHeight > nextHeight) {
+            waiting.put(hash, tx);
+            List<Sha256Hash> hashes = waitingForHeight.get(maturityHeight);
+            if (hashes == null) {
+                hashes = new ArrayList<Sha256Hash>();
+                waitingForHeight.put(maturityHeight, hashes);
+            }
+            hashes.add(hash);
+            return;
+        }
+        BigInteger valueOut = BigInteger.ZERO;
+        for (TransactionOutput output : tx.getOutputs())
+            valueOut = valueOut.add(output.getValue());
+        BigInteger fee = valueIn.subtract(valueOut);
+        if (fee.signum() < 0) {
+            rejected.add(hash);
+            return;
+        }
+        try {
+            for (int i = 0; i < spent.size(); i++)
+                tx.getInput(i).getScriptSig().correctlySpends(tx, i, new Script(spent.get(i).getScriptBytes()), true);
+        } catch (ScriptException e) {
+            log.info("Transaction {} does not spend its inputs: {}", hash, e.getMessage());
+            rejected.add(hash);
+            return;
+        }
+        Candidate candidate = new Candidate(tx, fee, tx.bitcoinSerialize().length);
+        candidates.put(hash, candidate);
+        candidatesByFeeRate.add(candidate);
+        for (TransactionInput input : tx.getInputs())
+            spentOutPoints.put(input.getOutpoint(), candidate);
+    }
+
+    private void removeCandidate(Sha256Hash hash) {
+        Candidate candidate = candidates.remove(hash);
+        if (candidate == null)
+            return;
+        candidatesByFeeRate.remove(candidate);
+        for (TransactionInput input : candidate.tx.getInputs())
+            spentOutPoints.remove(input.getOutpoint());
+    }
+
+    private void publishTemplate() {
+        ImmutableList.Builder<Transaction> transactions = ImmutableList.builder();
+        BigInteger fees = BigInteger.ZERO;
+        int count = 0;
+        int size = 0;
+        for (Candidate candidate : candidatesByFeeRate) {
+            if (count == MAX_TRANSACTIONS)
+                break;
+            if (size + candidate.size > Block.MAX_BLOCK_SIZE - RESERVED_BLOCK_SIZE)
+                continue;
+            transactions.add(candidate.tx);
+            fees = fees.add(candidate.fee);
+            size += candidate.size;
+            count++;
+        }
+        lock.lock();
+        try {
+            template = new Template(head.getHeader().getHash(), transactions.build(), fees);
+            templateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        Template current = template;
+        return "BlockTemplateBuilder [head=" + (current == null ? null : current.getPrevBlockHash())
+                + ", transactions=" + getCandidateCount() + "]";
+    }
+}
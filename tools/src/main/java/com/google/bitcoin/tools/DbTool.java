@@ -71,6 +71,7 @@ public class DbTool {
        System.out.println(undos);
        
         
+       chain.close();
        store.close();
         
     }
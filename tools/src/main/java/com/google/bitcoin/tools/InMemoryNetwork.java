@@ -0,0 +1,359 @@
+package com.google.bitcoin.tools;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.net.ClientConnectionManager;
+import com.google.bitcoin.net.MessageWriteTarget;
+import com.google.bitcoin.net.StreamParser;
+import com.google.bitcoin.net.StreamParserFactory;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>Connects {@link StreamParser}s of the same process to each other without sockets, so that many
+ * {@link com.google.bitcoin.core.PeerGroup}s can run in one JVM. Each node gets a {@link ClientConnectionManager} from
+ * {@link #newConnectionManager(int)} listening on a port of its own. Connections to that port on any address reach
+ * it.</p>
+ *
+ * <p>Bytes are handed to the receiving parser straight away, from a pool of threads shared by all connections, in
+ * order and one write at a time for the same side of a connection. Latency and bandwidth are left to
+ * {@link com.google.bitcoin.core.Peer}, which emulates them on test networks. Every message written is counted by type,
+ * see {@link #getTraffic()}.</p>
+ */
+public class InMemoryNetwork {
+    private static final Logger log = LoggerFactory.getLogger(InMemoryNetwork.class);
+
+    private static final int BUFFER_SIZE = 65536;
+    // Magic bytes before the command of a message, and node id before a datagram.
+    private static final int COMMAND_OFFSET = 4;
+    private static final int DATAGRAM_HEADER = 8;
+    private static final int COMMAND_LENGTH = 12;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("In-memory network thread %d")
+            .build());
+    private final Map<Integer, Manager> managers = new ConcurrentHashMap<Integer, Manager>();
+    private final ConcurrentHashMap<String, Traffic> traffic = new ConcurrentHashMap<String, Traffic>();
+
+    /** Messages and bytes of one type written to the network. */
+    public static class Traffic {
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        public long getMessages() {
+            return messages.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+    }
+
+    /**
+     * Creates the connection manager of a node which accepts connections on the given port, once it has been started
+     * and told to accept them.
+     */
+    public ClientConnectionManager newConnectionManager(int port) {
+        Manager manager = new Manager(port);
+        managers.put(port, manager);
+        return manager;
+    }
+
+    /**
+     * Returns the traffic written so far, by message command. Datagrams are counted separately from the same message
+     * sent over a connection, with " (udp)" after the command.
+     */
+    public Map<String, Traffic> getTraffic() {
+        return new TreeMap<String, Traffic>(traffic);
+    }
+
+    private void count(byte[] bytes, int offset, String suffix) {
+        String command = "?";
+        if (bytes.length >= offset + COMMAND_LENGTH) {
+            int length = 0;
+            while (length < COMMAND_LENGTH && bytes[offset + length] != 0)
+                length++;
+            try {
+                command = new String(bytes, offset, length, "US-ASCII");
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+        command += suffix;
+        Traffic entry = traffic.get(command);
+        if (entry == null) {
+            traffic.putIfAbsent(command, new Traffic());
+            entry = traffic.get(command);
+        }
+        entry.messages.incrementAndGet();
+        entry.bytes.addAndGet(bytes.length);
+    }
+
+    private class Manager extends AbstractIdleService implements ClientConnectionManager {
+        private final int port;
+        private final Set<Endpoint> endpoints = Collections.synchronizedSet(new HashSet<Endpoint>());
+        private volatile StreamParserFactory parserFactory;
+
+        Manager(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+            if (!isRunning())
+                throw new IllegalStateException();
+            Manager server = managers.get(((InetSocketAddress) serverAddress).getPort());
+            StreamParserFactory factory = server == null || !server.isRunning() ? null : server.parserFactory;
+            StreamParser serverParser = null;
+            if (factory != null) {
+                try {
+                    serverParser = factory.getNewParser(InetAddress.getByAddress(new byte[] {127, 0, 0, 1}), port);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);  // Cannot happen (illegal IP length).
+                }
+            }
+            Endpoint client = new Endpoint(this, parser);
+            if (serverParser == null) {
+                // Connection refused.
+                client.enqueue(Endpoint.CLOSED);
+                return;
+            }
+            Endpoint serverSide = new Endpoint(server, serverParser);
+            client.remote = serverSide;
+            serverSide.remote = client;
+            endpoints.add(client);
+            server.endpoints.add(serverSide);
+            // Both sides are told the connection is open before either can see data from the other.
+            client.queue.add(Endpoint.OPENED);
+            serverSide.queue.add(Endpoint.OPENED);
+            client.startDelivering();
+            serverSide.startDelivering();
+        }
+
+        @Override
+        public int getConnectedClientCount() {
+            return endpoints.size();
+        }
+
+        @Override
+        public void closeConnections(int n) {
+            if (!isRunning())
+                throw new IllegalStateException();
+            List<Endpoint> toClose = new ArrayList<Endpoint>();
+            synchronized (endpoints) {
+                Iterator<Endpoint> it = endpoints.iterator();
+                while (n-- > 0 && it.hasNext())
+                    toClose.add(it.next());
+            }
+            for (Endpoint endpoint : toClose)
+                endpoint.closeConnection();
+        }
+
+        @Override
+        public void acceptConnections(StreamParserFactory parserFactory) {
+            if (!isRunning())
+                throw new IllegalStateException();
+            this.parserFactory = parserFactory;
+        }
+
+        @Override
+        protected void startUp() throws Exception {
+        }
+
+        @Override
+        protected void shutDown() throws Exception {
+            parserFactory = null;
+            List<Endpoint> toClose;
+            synchronized (endpoints) {
+                toClose = new ArrayList<Endpoint>(endpoints);
+            }
+            for (Endpoint endpoint : toClose)
+                endpoint.closeConnection();
+        }
+    }
+
+    /** One side of a connection: writes go to the remote side's parser, and this side's parser gets what it reads. */
+    private class Endpoint implements MessageWriteTarget, Runnable {
+        // Events queued along with the data, so the parser sees them in order.
+        static final int OPENED = 0, CLOSED = 1;
+
+        private final Manager manager;
+        private final StreamParser parser;
+        private volatile Endpoint remote;
+
+        // Guarded by this.
+        private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+        private boolean running;
+        private boolean closed;
+        private long queuedBytes;
+
+        // Only used by the thread delivering to the parser.
+        private final ByteBuffer readBuffer;
+        private boolean parserClosed;
+
+        Endpoint(Manager manager, StreamParser parser) {
+            this.manager = manager;
+            this.parser = parser;
+            this.readBuffer = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(), 4096), BUFFER_SIZE));
+            parser.setWriteTarget(this);
+        }
+
+        // Delivers what has been queued since the endpoint was created.
+        void startDelivering() {
+            synchronized (this) {
+                if (running)
+                    return;
+                running = true;
+            }
+            executor.execute(this);
+        }
+
+        // Items are byte[] for connection data, ByteBuffer for a datagram or an Integer event.
+        void enqueue(Object item) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                if (item instanceof Integer && (Integer) item == CLOSED)
+                    closed = true;
+                if (item instanceof byte[])
+                    queuedBytes += ((byte[]) item).length;
+                queue.add(item);
+                if (running)
+                    return;
+                running = true;
+            }
+            executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Object item;
+                synchronized (this) {
+                    item = queue.poll();
+                    if (item == null) {
+                        running = false;
+                        return;
+                    }
+                    if (item instanceof byte[])
+                        queuedBytes -= ((byte[]) item).length;
+                }
+                try {
+                    deliver(item);
+                } catch (Exception e) {
+                    log.error("Error delivering to " + parser + ", closing connection", e);
+                    closeConnection();
+                }
+            }
+        }
+
+        private void deliver(Object item) throws Exception {
+            if (parserClosed)
+                return;
+            if (item instanceof byte[]) {
+                byte[] bytes = (byte[]) item;
+                int offset = 0;
+                while (offset < bytes.length) {
+                    int length = Math.min(readBuffer.remaining(), bytes.length - offset);
+                    readBuffer.put(bytes, offset, length);
+                    offset += length;
+                    readBuffer.flip();
+                    if (parser.receiveLowPriorityBytes(readBuffer) < 0)
+                        throw new IOException("Parser failed");
+                    readBuffer.compact();
+                }
+            } else if (item instanceof ByteBuffer) {
+                ByteBuffer datagram = (ByteBuffer) item;
+                long nodeId = datagram.order(ByteOrder.LITTLE_ENDIAN).getLong();
+                try {
+                    parser.receiveHighPriorityBytes(nodeId, datagram.order(ByteOrder.BIG_ENDIAN));
+                } catch (Exception e) {
+                    // A bad datagram is dropped, as the UDP dispatcher does.
+                    log.debug("Dropped datagram", e);
+                }
+            } else if ((Integer) item == OPENED) {
+                parser.connectionOpened();
+            } else {
+                parserClosed = true;
+                manager.endpoints.remove(this);
+                parser.connectionClosed();
+            }
+        }
+
+        private void write(byte[] message) throws IOException {
+            Endpoint remote = this.remote;
+            synchronized (this) {
+                if (closed || remote == null)
+                    throw new IOException("Connection closed");
+            }
+            count(message, COMMAND_OFFSET, "");
+            remote.enqueue(message);
+        }
+
+        @Override
+        public void writeLowPriorityBytes(byte[] message) throws IOException {
+            write(message);
+        }
+
+        @Override
+        public boolean writeExpendableBytes(byte[] message) throws IOException {
+            write(message);
+            return true;
+        }
+
+        @Override
+        public void writeHighPriorityBytes(byte[] message) throws IOException {
+            Endpoint remote = this.remote;
+            if (remote == null)
+                return;
+            count(message, DATAGRAM_HEADER + COMMAND_OFFSET, " (udp)");
+            remote.enqueue(ByteBuffer.wrap(message));
+        }
+
+        @Override
+        public boolean setUDPPort(int udpPort, long remoteNodeId) {
+            // Datagrams go straight to the other side of the connection.
+            return true;
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            Endpoint remote = this.remote;
+            if (remote == null)
+                return 0;
+            synchronized (remote) {
+                return remote.queuedBytes;
+            }
+        }
+
+        @Override
+        public void closeConnection() {
+            enqueue(CLOSED);
+            Endpoint remote = this.remote;
+            if (remote != null)
+                remote.enqueue(CLOSED);
+        }
+    }
+}
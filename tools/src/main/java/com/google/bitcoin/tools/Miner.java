@@ -3,13 +3,12 @@ package com.google.bitcoin.tools;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.Comparator;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
-import java.util.Set;
-import java.util.TreeSet;
+
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,22 +21,18 @@ import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.PeerGroup;
 import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
-import com.google.bitcoin.core.StoredTransactionOutput;
 import com.google.bitcoin.core.StoredUndoableBlock;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionInput;
-import com.google.bitcoin.core.TransactionOutPoint;
 import com.google.bitcoin.core.TransactionOutput;
 import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.core.VerificationException;
 import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptOpCodes;
-import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.script.SignatureCache;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.FullPrunedBlockStore;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 
 /**
@@ -54,8 +49,14 @@ public class Miner extends AbstractExecutionThreadService {
     private Wallet wallet;
     private FullPrunedBlockStore store; 
     private AbstractBlockChain chain;
+    // How long to wait for the template builder to process the block we mine on top of.
+    private static final long TEMPLATE_WAIT_MILLIS = 2000;
     private int numberOfMinersInParallelToEmulate = 0;
-    private boolean newBestBlockArrivedFromAnotherNode = false;
+    private volatile boolean newBestBlockArrivedFromAnotherNode = false;
+    private int miningThreads = Runtime.getRuntime().availableProcessors();
+    private MiningEngine miningEngine;
+    private BlockTemplateBuilder templateBuilder;
+    private volatile Thread runThread;
     
     public Miner(NetworkParameters params, PeerGroup peers, Wallet wallet, FullPrunedBlockStore store, AbstractBlockChain chain) {
         this.params = params;
@@ -109,6 +110,12 @@ public class Miner extends AbstractExecutionThreadService {
     @Override
     protected void startUp() throws Exception {
         super.startUp();
+        miningEngine = new MiningEngine(miningThreads);
+        // The template builder verifies every transaction we mine, so blocks connect without verifying them again.
+        if (Script.getSignatureCache() == null)
+            Script.setSignatureCache(new SignatureCache(SignatureCache.DEFAULT_SIZE));
+        templateBuilder = new BlockTemplateBuilder(params, peers, store, chain);
+        templateBuilder.start();
         chain.addListener(minerBlockChainListener);
     }
     
@@ -116,21 +123,34 @@ public class Miner extends AbstractExecutionThreadService {
     protected void shutDown() throws Exception {
         super.shutDown();
         chain.removeListener(minerBlockChainListener);
+        templateBuilder.stop();
+        miningEngine.shutdown();
     }
 
     @Override
     protected void run() throws Exception {
+        runThread = Thread.currentThread();
         while (isRunning()) {
             try {
                 //System.out.println("Press any key to mine 1 block...");
                 //System.in.read();
                 mine();
                 Thread.sleep(getMillisToSleep());
+            } catch (InterruptedException e) {
+                // Stopping, see triggerShutdown.
             } catch (Exception e) {
                 log.error("Exception mining", e);
             }
         }
     }
+
+    @Override
+    protected void triggerShutdown() {
+        // Emulating many miners can mean sleeping for minutes between blocks, don't make stopping wait for that.
+        Thread thread = runThread;
+        if (thread != null)
+            thread.interrupt();
+    }
     
     public long getMillisToSleep() {
         if (numberOfMinersInParallelToEmulate>0) {
@@ -146,30 +166,26 @@ public class Miner extends AbstractExecutionThreadService {
     public void setNumberOfMinersInParallelToEmulate(int numberOfMinersInParallelToEmulate) {
         this.numberOfMinersInParallelToEmulate = numberOfMinersInParallelToEmulate;
     }
+
+    /** Sets the number of threads searching for nonces, defaults to the number of processors. Call before starting. */
+    public void setMiningThreads(int miningThreads) {
+        checkState(state() == State.NEW, "Miner already started");
+        this.miningThreads = miningThreads;
+    }
 	
 	
 	private void mine() throws Exception {
-        Transaction coinbaseTransaction = new Transaction(params);
-        String coibaseMessage = "Minining NimbleCoin" + System.currentTimeMillis();
-        char[] chars = coibaseMessage.toCharArray();
-        byte[] bytes = new byte[chars.length];
-        for(int i=0;i<bytes.length;i++) bytes[i] = (byte) chars[i];
-        TransactionInput ti = new TransactionInput(params, coinbaseTransaction, bytes);
-        coinbaseTransaction.addInput(ti);        
-        ByteArrayOutputStream scriptPubKeyBytes = new ByteArrayOutputStream();
         ECKey key = new ECKey();
         wallet.addKey(key);
-        Script.writeBytes(scriptPubKeyBytes, key.getPubKey());
-        scriptPubKeyBytes.write(ScriptOpCodes.OP_CHECKSIG);
-        coinbaseTransaction.addOutput(new TransactionOutput(params, coinbaseTransaction, Utils.toNanoCoins(50, 0), scriptPubKeyBytes.toByteArray()));
-        
         
         StoredBlock prevBlock = null;
         boolean mineAnEmptyBlock = false;
         Block newBlock;
+        Sha256Hash chainHeadHash;
         chain.getLock().lock();
         try {
             prevBlock = chain.getChainHead();
+            chainHeadHash = prevBlock.getHeader().getHash();
             for (Block header : chain.getHeadersWaitingForItsTransactions().values()) {
                 if (header.getPrevBlockHash().equals(prevBlock.getHeader().getHash())) {
                     prevBlock = chain.getChainHead().build(header);
@@ -182,45 +198,39 @@ public class Miner extends AbstractExecutionThreadService {
         
             Sha256Hash prevBlockHash = prevBlock.getHeader().getHash();        
             long time = System.currentTimeMillis() / 1000;
-            long difficultyTarget = getDifficultyTargetForNewBlock(prevBlock, store, params, time);
+            long difficultyTarget = getDifficultyTargetForNewBlock(prevBlock, params, time);
             
             newBlock = new Block(params, NetworkParameters.PROTOCOL_VERSION, prevBlockHash, time, difficultyTarget);
-            newBlock.addTransaction(coinbaseTransaction);
-            if (!mineAnEmptyBlock) {
-                //Only include transactions if we are not mining on top of a header
-                Set<Transaction> transactionsToInclude = getTransactionsToInclude(peers.getMemoryPool().getAll(), prevBlock.getHeight());
-                for (Transaction transaction : transactionsToInclude) {
-                    newBlock.addTransaction(transaction);
-                }            
-            } else {
-                newBlock.setEmptyBlock(true);
-                log.info("About to mine an empty block");            
-            }
-            log.info("Starting to mine block " + newBlock);
             newBestBlockArrivedFromAnotherNode = false;
         } finally {
             chain.getLock().unlock();
         }
 
-        
-        while (!newBestBlockArrivedFromAnotherNode) {
-            try {
-                // Is our proof of work valid yet?
-                if (newBlock.checkProofOfWork(false))
-                    break;
-                // No, so increment the nonce and try again.
-                newBlock.setNonce(newBlock.getNonce() + 1);
-                if (newBlock.getNonce() % 100000 == 0 ) {
-                    log.info("Solving block. Nonce: " + newBlock.getNonce());
-                }
-                
-            } catch (VerificationException e) {
-                throw new RuntimeException(e); // Cannot happen.
-            }            
+        BlockTemplateBuilder.Template template = null;
+        if (!mineAnEmptyBlock) {
+            //Only include transactions if we are not mining on top of a header
+            //An empty header spends nothing, so the template of the chain head is still valid on top of it
+            template = templateBuilder.getTemplate(chainHeadHash, TEMPLATE_WAIT_MILLIS);
+            if (template == null) {
+                log.info("No block template ready on top of " + chainHeadHash + ", mining without transactions");
+            }
+        }
+        fillBlock(params, newBlock, prevBlock.getHeight() + 1, key, template);
+        if (mineAnEmptyBlock) {
+            newBlock.setEmptyBlock(true);
+            log.info("About to mine an empty block");            
         }
+        log.info("Starting to mine block " + newBlock);
+
+        boolean solved = miningEngine.solve(newBlock, new MiningEngine.StopCondition() {
+            @Override
+            public boolean shouldStop() {
+                return newBestBlockArrivedFromAnotherNode || !isRunning();
+            }
+        });
 
         
-        if (newBestBlockArrivedFromAnotherNode) {
+        if (!solved) {
             log.info("Interrupted mining because another best block arrived");
             return;
         }
@@ -233,68 +243,43 @@ public class Miner extends AbstractExecutionThreadService {
 
 	}
 
-	private Set<Transaction> getTransactionsToInclude(Set<Transaction> allTransactions, int prevHeight) throws BlockStoreException {
-        checkState(chain.getLock().isHeldByCurrentThread());
-        Set<TransactionOutPoint> spentOutPointsInThisBlock = new HashSet<TransactionOutPoint>();
-        Set<Transaction> transactionsToInclude = new TreeSet<Transaction>(new TransactionPriorityComparator());
-        for (Transaction transaction : allTransactions) {
-            if (!store.hasUnspentOutputs(transaction.getHash(), transaction.getOutputs().size())) {                
-                // Transaction was not already included in a block that is part of the best chain 
-                boolean allOutPointsAreInTheBestChain = true;
-                boolean allOutPointsAreMature = true;
-                boolean doesNotDoubleSpend = true;
-                for (TransactionInput transactionInput : transaction.getInputs()) {
-                    TransactionOutPoint outPoint = transactionInput.getOutpoint();
-                    StoredTransactionOutput storedOutPoint = store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
-                    if (storedOutPoint == null) {
-                        //Outpoint not in the best chain
-                        allOutPointsAreInTheBestChain = false;
-                        break;
-                    }
-                    if ((prevHeight+1) - storedOutPoint.getHeight() < params.getSpendableCoinbaseDepth()) {
-                        //Outpoint is a non mature coinbase
-                        allOutPointsAreMature = false;
-                        break;
-                    }
-                    if (spentOutPointsInThisBlock.contains(outPoint)) {
-                        doesNotDoubleSpend = false;
-                        break;
-                    } else {
-                        spentOutPointsInThisBlock.add(outPoint);
-                    }                 
-                    
-                }
-                if (allOutPointsAreInTheBestChain && allOutPointsAreMature && doesNotDoubleSpend) {
-                    transactionsToInclude.add(transaction);                    
-                }
+    /**
+     * Adds the coinbase, paying the reward of a block at the given height plus the fees of the template to the key,
+     * followed by the transactions of the template, if any.
+     */
+    static void fillBlock(NetworkParameters params, Block block, int height, ECKey key,
+                          @Nullable BlockTemplateBuilder.Template template) throws IOException {
+        Transaction coinbaseTransaction = new Transaction(params);
+        String coibaseMessage = "Minining NimbleCoin" + System.currentTimeMillis();
+        char[] chars = coibaseMessage.toCharArray();
+        byte[] bytes = new byte[chars.length];
+        for(int i=0;i<bytes.length;i++) bytes[i] = (byte) chars[i];
+        TransactionInput ti = new TransactionInput(params, coinbaseTransaction, bytes);
+        coinbaseTransaction.addInput(ti);        
+        ByteArrayOutputStream scriptPubKeyBytes = new ByteArrayOutputStream();
+        Script.writeBytes(scriptPubKeyBytes, key.getPubKey());
+        scriptPubKeyBytes.write(ScriptOpCodes.OP_CHECKSIG);
+        BigInteger value = block.getBlockInflation(height);
+        if (template != null)
+            value = value.add(template.getFees());
+        coinbaseTransaction.addOutput(new TransactionOutput(params, coinbaseTransaction, value, scriptPubKeyBytes.toByteArray()));
+        block.addTransaction(coinbaseTransaction);
+        if (template != null) {
+            for (Transaction transaction : template.getTransactions()) {
+                block.addTransaction(transaction);
             }
-            
-        }	    
-        return ImmutableSet.copyOf(Iterables.limit(transactionsToInclude, 1000));	        
-    }
-
-    private static class TransactionPriorityComparator implements Comparator<Transaction>{
-        @Override
-        public int compare(Transaction tx1, Transaction tx2) {
-            int updateTimeComparison = tx1.getUpdateTime().compareTo(tx2.getUpdateTime());
-            //If time1==time2, compare by tx hash to make comparator consistent with equals
-            return updateTimeComparison!=0 ? updateTimeComparison : tx1.getHash().compareTo(tx2.getHash());
         }
     }
-    	
 
-    private long getDifficultyTargetForNewBlock(StoredBlock storedPrev, BlockStore blockStore, NetworkParameters params, long time) throws BlockStoreException {
+    private long getDifficultyTargetForNewBlock(StoredBlock storedPrev, NetworkParameters params, long time) throws BlockStoreException {
         if ((storedPrev.getHeight() + 1) % params.getInterval() != 0) {
     		return storedPrev.getHeader().getDifficultyTarget();
         }
-        StoredBlock ancestorBlock = storedPrev;
-        for (int i = 0; i < params.getInterval() - 1; i++) {
-            if (ancestorBlock == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            ancestorBlock = blockStore.get(ancestorBlock.getHeader().getPrevBlockHash());
+        StoredBlock ancestorBlock = chain.getAncestor(storedPrev, storedPrev.getHeight() - (params.getInterval() - 1));
+        if (ancestorBlock == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         int timespan = (int) (storedPrev.getHeader().getTimeSeconds() - ancestorBlock.getHeader().getTimeSeconds());
         log.debug("timespan: " + timespan);
@@ -0,0 +1,203 @@
+package com.google.bitcoin.tools;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Utils;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Searches for the nonce that solves a block on several threads.</p>
+ *
+ * <p>The 32 bit nonce space is split in one range per thread. Every thread works on its own copy of the 80 byte
+ * serialized header: the SHA-256 state after the first 64 bytes (the midstate) is computed once, so each attempt only
+ * hashes the last 16 bytes of the header and then the 32 byte first hash. Hashes are compared with the target as raw
+ * little endian bytes, no {@link BigInteger} or {@link Block} is involved in the loop. When a thread exhausts its
+ * range it rolls the block time forward by one second, which lives in the same last 16 bytes, and starts its range
+ * again.</p>
+ */
+public class MiningEngine {
+    private static final Logger log = LoggerFactory.getLogger(MiningEngine.class);
+
+    /** Checked by the worker threads every few thousand hashes, mining stops as soon as it returns true. */
+    public interface StopCondition {
+        boolean shouldStop();
+    }
+
+    private static final int HASH_LENGTH = 32;
+    private static final int MIDSTATE_LENGTH = 64;
+    // Offsets in the last 16 bytes of the header.
+    private static final int TIME_OFFSET = 68 - MIDSTATE_LENGTH;
+    private static final int NONCE_OFFSET = 76 - MIDSTATE_LENGTH;
+    // Hashes done between two checks of the stop condition.
+    private static final int CHECK_INTERVAL = 1 << 14;
+    private static final long NONCE_SPACE = 1L << 32;
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    public MiningEngine(int threads) {
+        checkArgument(threads > 0);
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Mining thread %d")
+                .setPriority(Thread.MIN_PRIORITY)
+                .build());
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Stops the worker threads. The engine cannot be used afterwards. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Searches for a nonce, and if needed a later time, that makes the hash of the block lower than its target.
+     * Returns true and updates the nonce and time of the block if one was found, returns false if the stop condition
+     * became true first.
+     */
+    public boolean solve(Block block, StopCondition stopCondition) throws InterruptedException {
+        final byte[] header = Arrays.copyOf(block.cloneAsHeader().bitcoinSerialize(), Block.HEADER_SIZE);
+        final byte[] target = toLittleEndian(block.getDifficultyTargetAsInteger());
+        SearchState state = new SearchState(stopCondition);
+        long startMillis = System.currentTimeMillis();
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        long rangeSize = NONCE_SPACE / threads;
+        for (int i = 0; i < threads; i++) {
+            long first = i * rangeSize;
+            long end = i == threads - 1 ? NONCE_SPACE : first + rangeSize;
+            futures.add(executor.submit(new Worker(header, target, first, end, state)));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // Make sure no worker keeps hashing if we were interrupted.
+            state.done.set(true);
+        }
+
+        long millis = Math.max(1, System.currentTimeMillis() - startMillis);
+        log.info("Hashed {} headers in {} ms on {} threads ({} kH/s)",
+                state.hashes.get(), millis, threads, state.hashes.get() / millis);
+        if (state.solution == null)
+            return false;
+        block.setTime(state.solution[0]);
+        block.setNonce(state.solution[1]);
+        return true;
+    }
+
+    private static byte[] toLittleEndian(BigInteger target) {
+        byte[] bigEndian = target.toByteArray();
+        byte[] result = new byte[HASH_LENGTH];
+        // toByteArray may have a leading sign byte, which is zero as the target is positive.
+        for (int i = 0; i < Math.min(bigEndian.length, HASH_LENGTH); i++)
+            result[i] = bigEndian[bigEndian.length - 1 - i];
+        return result;
+    }
+
+    // Compares the hash, read as a little endian number, with the target.
+    private static boolean isBelowOrEqualTarget(byte[] hash, byte[] target) {
+        for (int i = HASH_LENGTH - 1; i >= 0; i--) {
+            int h = hash[i] & 0xFF;
+            int t = target[i] & 0xFF;
+            if (h != t)
+                return h < t;
+        }
+        return true;
+    }
+
+    private static class SearchState {
+        final StopCondition stopCondition;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong hashes = new AtomicLong();
+        // The time and nonce of the solution, written once by the worker that wins the race to set done.
+        volatile long[] solution;
+
+        SearchState(StopCondition stopCondition) {
+            this.stopCondition = stopCondition;
+        }
+
+        boolean shouldStop() {
+            if (done.get())
+                return true;
+            if (stopCondition.shouldStop()) {
+                done.set(true);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class Worker implements Runnable {
+        private final byte[] tail = new byte[Block.HEADER_SIZE - MIDSTATE_LENGTH];
+        private final byte[] target;
+        private final long firstNonce;
+        private final long endNonce;
+        private final SearchState state;
+        private final SHA256Digest midstate = new SHA256Digest();
+        private final SHA256Digest digest = new SHA256Digest();
+        private final byte[] hash = new byte[HASH_LENGTH];
+
+        Worker(byte[] header, byte[] target, long firstNonce, long endNonce, SearchState state) {
+            System.arraycopy(header, MIDSTATE_LENGTH, tail, 0, tail.length);
+            this.target = target;
+            this.firstNonce = firstNonce;
+            this.endNonce = endNonce;
+            this.state = state;
+            midstate.update(header, 0, MIDSTATE_LENGTH);
+        }
+
+        @Override
+        public void run() {
+            long time = Utils.readUint32(tail, TIME_OFFSET);
+            long nonce = firstNonce;
+            while (!state.shouldStop()) {
+                long batchStart = nonce;
+                long batchEnd = Math.min(nonce + CHECK_INTERVAL, endNonce);
+                for (; nonce < batchEnd; nonce++) {
+                    Utils.uint32ToByteArrayLE(nonce, tail, NONCE_OFFSET);
+                    digest.reset(midstate);
+                    digest.update(tail, 0, tail.length);
+                    digest.doFinal(hash, 0);
+                    digest.update(hash, 0, HASH_LENGTH);
+                    digest.doFinal(hash, 0);
+                    if (isBelowOrEqualTarget(hash, target)) {
+                        state.hashes.addAndGet(nonce - batchStart + 1);
+                        if (state.done.compareAndSet(false, true))
+                            state.solution = new long[] { time, nonce };
+                        return;
+                    }
+                }
+                state.hashes.addAndGet(batchEnd - batchStart);
+                if (nonce == endNonce) {
+                    // Range exhausted, roll the time and start over.
+                    time++;
+                    Utils.uint32ToByteArrayLE(time, tail, TIME_OFFSET);
+                    nonce = firstNonce;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.google.bitcoin.tools;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractBlockChainListener;
+import com.google.bitcoin.core.FullPrunedBlockChain;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.NetboxParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import com.google.bitcoin.utils.Threading;
+
+/**
+ * <p>Runs a whole netbox network in one process: a {@link PeerGroup}, {@link FullPrunedBlockChain} and {@link Miner}
+ * per node, connected over an {@link InMemoryNetwork} following the graph {@link NetboxParams} generates, instead of
+ * one WalletTool process per node. Latency between nodes is emulated by {@link com.google.bitcoin.core.Peer} from the
+ * distances of the graph, as it is for separate processes.</p>
+ *
+ * <p>After running for the given time it prints how long blocks took to propagate, the stale block rate and the
+ * bandwidth used by each type of message.</p>
+ */
+public class NetboxSimulator {
+    private static final Logger log = LoggerFactory.getLogger(NetboxSimulator.class);
+
+    // How many blocks each node keeps the undo data of.
+    private static final int FULL_STORE_DEPTH = 100;
+
+    private final NetboxParams params = NetboxParams.get();
+    private final int nodes;
+    private final int peers;
+    private final boolean acceptUdp;
+    private final int minersToEmulate;
+    private final InMemoryNetwork network = new InMemoryNetwork();
+    private final List<Node> nodeList = new ArrayList<Node>();
+    // For each block, when it became the head of the best chain of each node that got it, by node number.
+    private final ConcurrentHashMap<Sha256Hash, ConcurrentHashMap<Integer, Long>> arrivals =
+            new ConcurrentHashMap<Sha256Hash, ConcurrentHashMap<Integer, Long>>();
+    private long startNanos, stopNanos;
+
+    private class Node extends AbstractBlockChainListener {
+        final int number;
+        final MemoryFullPrunedBlockStore store;
+        final FullPrunedBlockChain chain;
+        final PeerGroup peerGroup;
+        final Miner miner;
+
+        Node(int number) throws BlockStoreException, UnknownHostException {
+            this.number = number;
+            int port = NetboxParams.BASE_NETBOX_PORT + number;
+            InetAddress localhost = InetAddress.getByAddress(new byte[] {127, 0, 0, 1});
+            Wallet wallet = new Wallet(params);
+            store = new MemoryFullPrunedBlockStore(params, FULL_STORE_DEPTH);
+            chain = new FullPrunedBlockChain(params, wallet, store);
+            chain.addListener(this, Threading.SAME_THREAD);
+            peerGroup = new PeerGroup(params, chain, network.newConnectionManager(port), true, port, acceptUdp);
+            peerGroup.setUserAgent("NetboxSimulator", "1.0");
+            // The nonce tells nodes apart, it's what Peer looks the distance between two nodes up by.
+            peerGroup.getVersionMessage().nonce = number;
+            peerGroup.addWallet(wallet);
+            for (int to : params.getNodesToConnectTo(number))
+                peerGroup.addAddress(new PeerAddress(localhost, NetboxParams.BASE_NETBOX_PORT + to));
+            peerGroup.setMaxConnections(peers);
+            miner = new Miner(params, peerGroup, wallet, store, chain);
+            miner.setMiningThreads(1);
+            miner.setNumberOfMinersInParallelToEmulate(minersToEmulate);
+        }
+
+        @Override
+        public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+            arrived(block);
+        }
+
+        @Override
+        public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks)
+                throws VerificationException {
+            for (StoredBlock block : newBlocks)
+                arrived(block);
+        }
+
+        private void arrived(StoredBlock block) {
+            long now = System.nanoTime();
+            Sha256Hash hash = block.getHeader().getHash();
+            ConcurrentHashMap<Integer, Long> times = arrivals.get(hash);
+            if (times == null) {
+                arrivals.putIfAbsent(hash, new ConcurrentHashMap<Integer, Long>());
+                times = arrivals.get(hash);
+            }
+            // A block may come back to the best chain after a reorganize, it's the first time that counts.
+            times.putIfAbsent(number, now);
+        }
+    }
+
+    public NetboxSimulator(int nodes, int peers, boolean acceptUdp, int minersToEmulate) {
+        this.nodes = nodes;
+        this.peers = peers;
+        this.acceptUdp = acceptUdp;
+        this.minersToEmulate = minersToEmulate;
+    }
+
+    /** Builds the network and starts every node, then every miner once the nodes are connected. */
+    public void start() throws Exception {
+        // NetboxParams writes the graph it generates there.
+        new File("data").mkdirs();
+        params.initialize(nodes, peers, NetboxParams.BASE_NETBOX_PORT + 1);
+        for (int i = 1; i <= nodes; i++)
+            nodeList.add(new Node(i));
+        for (Node node : nodeList)
+            node.peerGroup.startAsync();
+        for (Node node : nodeList)
+            node.peerGroup.awaitRunning();
+        for (Node node : nodeList)
+            node.miner.startAsync();
+        for (Node node : nodeList)
+            node.miner.awaitRunning();
+        startNanos = System.nanoTime();
+        log.info("Started {} nodes", nodes);
+    }
+
+    /** Stops the miners first, so no block is left half propagated, then the nodes. */
+    public void stop() throws Exception {
+        stopNanos = System.nanoTime();
+        for (Node node : nodeList)
+            node.miner.stopAsync();
+        for (Node node : nodeList)
+            node.miner.awaitTerminated();
+        for (Node node : nodeList)
+            node.peerGroup.stopAsync();
+        for (Node node : nodeList) {
+            node.peerGroup.awaitTerminated();
+            node.chain.close();
+        }
+    }
+
+    /** Closes the block stores, after the report has been printed. */
+    public void close() {
+        for (Node node : nodeList)
+            node.store.close();
+    }
+
+    public void printReport(PrintStream out) throws BlockStoreException {
+        double seconds = (stopNanos - startNanos) / 1e9;
+        out.printf("%d nodes, %d connections each, ran for %.0f seconds%n", nodes, peers, seconds);
+
+        // Delays are measured from the first node to have a block, which is normally the one that mined it.
+        List<Long> delays = new ArrayList<Long>();
+        List<Long> toHalf = new ArrayList<Long>(), toMost = new ArrayList<Long>(), toAll = new ArrayList<Long>();
+        for (Map<Integer, Long> times : arrivals.values()) {
+            List<Long> sorted = new ArrayList<Long>(times.values());
+            Collections.sort(sorted);
+            long first = sorted.get(0);
+            for (int i = 1; i < sorted.size(); i++)
+                delays.add(sorted.get(i) - first);
+            addTimeToReach((nodes + 1) / 2, sorted, toHalf);
+            addTimeToReach((int) Math.ceil(nodes * 0.9), sorted, toMost);
+            addTimeToReach(nodes, sorted, toAll);
+        }
+        Collections.sort(delays);
+        out.printf("Block propagation over %d blocks, %d arrivals (ms):%n", arrivals.size(), delays.size());
+        out.printf("  p50 %s  p90 %s  p99 %s  max %s%n", percentile(delays, 0.5), percentile(delays, 0.9),
+                percentile(delays, 0.99), percentile(delays, 1));
+        out.printf("  mean time to reach 50%% of nodes %s (%d blocks), 90%% %s (%d blocks), all %s (%d blocks)%n",
+                mean(toHalf), toHalf.size(), mean(toMost), toMost.size(), mean(toAll), toAll.size());
+
+        // Stale blocks as WalletTool's stale report counts them, over the whole run, summed over the nodes.
+        int period = (int) Math.ceil(seconds) + 60;
+        long blocks = 0, stale = 0;
+        for (Node node : nodeList) {
+            for (int count : node.store.getBlocks(period, period).values())
+                blocks += count;
+            for (int count : node.store.getStaleBlocks(period, period).values())
+                stale += count;
+        }
+        out.printf("Stale blocks: %d of %d in the stores of all nodes (%.2f%%)%n", stale, blocks,
+                blocks == 0 ? 0 : 100.0 * stale / blocks);
+
+        out.println("Bandwidth by message type:");
+        out.printf("  %-16s %10s %14s %12s%n", "type", "messages", "bytes", "bytes/sec");
+        for (Map.Entry<String, InMemoryNetwork.Traffic> entry : network.getTraffic().entrySet()) {
+            InMemoryNetwork.Traffic traffic = entry.getValue();
+            out.printf("  %-16s %10d %14d %12.0f%n", entry.getKey(), traffic.getMessages(), traffic.getBytes(),
+                    traffic.getBytes() / seconds);
+        }
+    }
+
+    // Adds how long the block took to reach the given number of nodes, if it got that far.
+    private static void addTimeToReach(int count, List<Long> sortedTimes, List<Long> result) {
+        if (count > 0 && sortedTimes.size() >= count)
+            result.add(sortedTimes.get(count - 1) - sortedTimes.get(0));
+    }
+
+    private static String percentile(List<Long> sortedNanos, double fraction) {
+        if (sortedNanos.isEmpty())
+            return "-";
+        int index = Math.max(0, (int) Math.ceil(fraction * sortedNanos.size()) - 1);
+        return String.valueOf(TimeUnit.NANOSECONDS.toMillis(sortedNanos.get(index)));
+    }
+
+    private static String mean(List<Long> nanos) {
+        if (nanos.isEmpty())
+            return "-";
+        long total = 0;
+        for (long value : nanos)
+            total += value;
+        return TimeUnit.NANOSECONDS.toMillis(total / nanos.size()) + "ms";
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        OptionSpec<Integer> nodesFlag = parser.accepts("nodes", "Number of nodes").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(10);
+        OptionSpec<Integer> peersFlag = parser.accepts("peers", "Connections per node").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(4);
+        OptionSpec<Integer> durationFlag = parser.accepts("duration", "Seconds to run for").withRequiredArg()
+                .ofType(Integer.class).defaultsTo(120);
+        OptionSpec<Integer> minersFlag = parser.accepts("miner-emulate",
+                "Miners each node's miner emulates, see Miner.setNumberOfMinersInParallelToEmulate (defaults to the number of nodes)")
+                .withRequiredArg().ofType(Integer.class);
+        parser.accepts("accept-udp", "Send pushed headers over datagrams");
+        parser.accepts("help", "Print this help");
+        OptionSet options = parser.parse(args);
+        if (options.has("help")) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+        int nodes = options.valueOf(nodesFlag);
+        int minersToEmulate = options.has(minersFlag) ? options.valueOf(minersFlag) : nodes;
+
+        NetboxSimulator simulator = new NetboxSimulator(nodes, options.valueOf(peersFlag), options.has("accept-udp"),
+                minersToEmulate);
+        simulator.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.valueOf(durationFlag)));
+        simulator.stop();
+        simulator.printReport(System.out);
+        simulator.close();
+    }
+}
@@ -96,6 +96,7 @@ public class TxGeneratorTest {
        System.out.println(undos);
        
         
+       chain.close();
        store.close();
         
     }
@@ -81,6 +81,7 @@ import com.google.bitcoin.protocols.payments.PaymentRequestException;
 import com.google.bitcoin.protocols.payments.PaymentSession;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
 import com.google.bitcoin.store.FullPrunedBlockStore;
 import com.google.bitcoin.store.H2FullPrunedBlockStore;
 import com.google.bitcoin.store.SPVBlockStore;
@@ -257,6 +258,7 @@ public class WalletTool {
         parser.accepts("server-port").withRequiredArg();
         parser.accepts("miner");
         parser.accepts("miner-emulate").withRequiredArg();
+        parser.accepts("miner-threads").withRequiredArg();
         parser.accepts("txgen-rate").withRequiredArg();
         parser.accepts("stales-period").withRequiredArg();
         parser.accepts("stales-max").withRequiredArg();
@@ -453,6 +455,9 @@ public class WalletTool {
                 int numberOfMinersInParallelToEmulate = Integer.valueOf((String) options.valueOf("miner-emulate"));            
                 miner.setNumberOfMinersInParallelToEmulate(numberOfMinersInParallelToEmulate);                
             }
+            if (options.has("miner-threads")) {
+                miner.setMiningThreads(Integer.valueOf((String) options.valueOf("miner-threads")));
+            }
             miner.startAsync();
             miner.awaitRunning();
         } catch (BlockStoreException e) {
@@ -796,7 +801,8 @@ public class WalletTool {
             store = new SPVBlockStore(params, chainBaseFile);
             chain = new BlockChain(params, wallet, store);
         } else if (mode == ValidationMode.FULL) {
-            FullPrunedBlockStore s = new H2FullPrunedBlockStore(params, chainBaseFile.getAbsolutePath(), 500000);
+            FullPrunedBlockStore s = new CachingFullPrunedBlockStore(
+                    new H2FullPrunedBlockStore(params, chainBaseFile.getAbsolutePath(), 500000));
             store = s;
             chain = new FullPrunedBlockChain(params, wallet, s);
         }
@@ -891,6 +897,8 @@ public class WalletTool {
             peers.stopAsync();
             peers.awaitTerminated();
             saveWallet(walletFile);
+            if (chain instanceof FullPrunedBlockChain)
+                ((FullPrunedBlockChain) chain).close();
             store.close();
             wallet = null;
         } catch (BlockStoreException e) {
@@ -0,0 +1,192 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.FullPrunedBlockChain;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.SignatureCache;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockTemplateBuilderTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private NetworkParameters params;
+    private FullPrunedBlockStore store;
+    private FullPrunedBlockChain chain;
+    private PeerGroup peers;
+    private BlockTemplateBuilder builder;
+    private final ECKey key = new ECKey();
+    private Block head;
+    // The coinbases of the blocks on top of the genesis block, the first few of which are spendable.
+    private final List<Transaction> coinbases = new ArrayList<Transaction>();
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        params = new UnitTestParams() {
+            // No difficulty transitions, the blocks below don't bother with them.
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        store = new MemoryFullPrunedBlockStore(params, 100);
+        chain = new FullPrunedBlockChain(params, store);
+        peers = new PeerGroup(params, chain);
+        head = params.getGenesisBlock();
+        for (int i = 0; i < 8; i++) {
+            addBlock(head.createNextBlockWithCoinbase(key.getPubKey(), Utils.toNanoCoins(50, 0)));
+            coinbases.add(head.getTransactions().get(0));
+        }
+        builder = new BlockTemplateBuilder(params, peers, store, chain);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        builder.stop();
+        chain.close();
+        store.close();
+    }
+
+    private void addBlock(Block block) throws Exception {
+        assertTrue(chain.add(block));
+        head = block;
+    }
+
+    // Spends the first output of the given transaction to the key, leaving the given fee. Padding makes it bigger.
+    private Transaction spend(Transaction parent, long fee, int padding) throws Exception {
+        return spend(parent, fee, padding, key);
+    }
+
+    private Transaction spend(Transaction parent, long fee, int padding, ECKey signingKey) throws Exception {
+        Transaction tx = new Transaction(params);
+        TransactionOutput out = parent.getOutput(0);
+        tx.addOutput(new TransactionOutput(params, tx, out.getValue().subtract(BigInteger.valueOf(fee)),
+                key.toAddress(params)));
+        if (padding > 0)
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.ZERO, new byte[padding]));
+        tx.addSignedInput(new TransactionOutPoint(params, 0, parent.getHash()), out.getScriptPubKey(), signingKey);
+        return tx;
+    }
+
+    private BlockTemplateBuilder.Template template() throws Exception {
+        BlockTemplateBuilder.Template template = builder.getTemplate(head.getHash(), TIMEOUT_MILLIS);
+        assertNotNull(template);
+        return template;
+    }
+
+    // Mines a block on top of the chain head with the given template, the way the Miner does.
+    private Block mine(BlockTemplateBuilder.Template template) throws Exception {
+        Block block = new Block(params, NetworkParameters.PROTOCOL_VERSION, head.getHash(), head.getTimeSeconds() + 1,
+                head.getDifficultyTarget());
+        Miner.fillBlock(params, block, chain.getBestChainHeight() + 1, new ECKey(), template);
+        block.solve();
+        addBlock(block);
+        return block;
+    }
+
+    @Test
+    public void ordersByFeeRateAndPaysFeesToCoinbase() throws Exception {
+        Transaction cheap = spend(coinbases.get(0), 1000, 0);
+        Transaction expensive = spend(coinbases.get(1), 100000, 0);
+        peers.getMemoryPool().intern(cheap);
+        peers.getMemoryPool().intern(expensive);
+        builder.start();
+
+        BlockTemplateBuilder.Template template = template();
+        assertEquals(ImmutableList.of(expensive, cheap), template.getTransactions());
+        assertEquals(BigInteger.valueOf(101000), template.getFees());
+
+        Block block = mine(template);
+        Transaction coinbase = block.getTransactions().get(0);
+        assertEquals(block.getBlockInflation(chain.getBestChainHeight()).add(template.getFees()),
+                coinbase.getOutput(0).getValue());
+        assertEquals(ImmutableList.of(coinbase, expensive, cheap), block.getTransactions());
+        // The block took them.
+        assertTrue(template().getTransactions().isEmpty());
+    }
+
+    @Test
+    public void childWaitsForParent() throws Exception {
+        Transaction parent = spend(coinbases.get(0), 1000, 0);
+        Transaction child = spend(parent, 1000, 0);
+        peers.getMemoryPool().intern(parent);
+        peers.getMemoryPool().intern(child);
+        builder.start();
+
+        // The child waits for its parent to be confirmed, so it can't come before it.
+        assertEquals(ImmutableList.of(parent), template().getTransactions());
+        mine(template());
+        assertEquals(ImmutableList.of(child), template().getTransactions());
+        mine(template());
+        assertTrue(template().getTransactions().isEmpty());
+    }
+
+    @Test
+    public void rejectsBadSignatures() throws Exception {
+        Transaction good = spend(coinbases.get(0), 1000, 0);
+        Transaction bad = spend(coinbases.get(1), 100000, 0, new ECKey());
+        peers.getMemoryPool().intern(good);
+        peers.getMemoryPool().intern(bad);
+        builder.start();
+        assertEquals(ImmutableList.of(good), template().getTransactions());
+    }
+
+    @Test
+    public void signaturesVerifiedOnce() throws Exception {
+        SignatureCache previous = Script.getSignatureCache();
+        SignatureCache cache = new SignatureCache(10);
+        Script.setSignatureCache(cache);
+        try {
+            peers.getMemoryPool().intern(spend(coinbases.get(0), 1000, 0));
+            builder.start();
+            BlockTemplateBuilder.Template template = template();
+            assertEquals(1, cache.getMissCount());
+            // Connecting the block finds the signature the builder verified.
+            mine(template);
+            assertEquals(1, cache.getMissCount());
+            assertEquals(1, cache.getHitCount());
+        } finally {
+            Script.setSignatureCache(previous);
+        }
+    }
+
+    @Test
+    public void sizeLimit() throws Exception {
+        // Each big one takes 40% of a block, so only two fit. The small one pays the lowest fee rate but still fits.
+        int padding = Block.MAX_BLOCK_SIZE * 2 / 5;
+        Transaction big1 = spend(coinbases.get(0), 3000000, padding);
+        Transaction big2 = spend(coinbases.get(1), 2000000, padding);
+        Transaction big3 = spend(coinbases.get(2), 1000000, padding);
+        Transaction small = spend(coinbases.get(3), 100, 0);
+        for (Transaction tx : ImmutableList.of(big1, big2, big3, small))
+            peers.getMemoryPool().intern(tx);
+        builder.start();
+
+        BlockTemplateBuilder.Template template = template();
+        assertEquals(ImmutableList.of(big1, big2, small), template.getTransactions());
+        int size = 0;
+        for (Transaction tx : template.getTransactions())
+            size += tx.bitcoinSerialize().length;
+        assertTrue(size < Block.MAX_BLOCK_SIZE);
+        assertEquals(BigInteger.valueOf(5000100), template.getFees());
+    }
+}
@@ -0,0 +1,70 @@
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MiningEngineTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final MiningEngine engine = new MiningEngine(2);
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    // Gives up after a while, so that a broken target comparison fails the test instead of hashing forever.
+    private static MiningEngine.StopCondition deadline() {
+        final long deadline = System.currentTimeMillis() + 10000;
+        return new MiningEngine.StopCondition() {
+            @Override
+            public boolean shouldStop() {
+                return System.currentTimeMillis() > deadline;
+            }
+        };
+    }
+
+    // A block on top of the genesis block, at the difficulty of the unit test network unless told otherwise.
+    private Block newBlock() {
+        return params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+    }
+
+    @Test
+    public void solves() throws Exception {
+        // Half the hashes are below the target, so comparing the wrong end of the hash would fail one of these.
+        for (int i = 0; i < 20; i++) {
+            Block block = newBlock();
+            assertTrue(engine.solve(block, deadline()));
+            assertTrue(block.checkProofOfWork(true));
+        }
+    }
+
+    @Test
+    public void solvesHarderTarget() throws Exception {
+        // The first two bytes of the hash must be zero.
+        Block block = newBlock();
+        block.setDifficultyTarget(0x1f00ffffL);
+        assertTrue(engine.solve(block, deadline()));
+        assertTrue(block.checkProofOfWork(true));
+        assertTrue(block.getHash().toBigInteger().bitLength() <= 240);
+    }
+
+    @Test
+    public void stops() throws Exception {
+        Block block = newBlock();
+        long nonce = block.getNonce();
+        assertFalse(engine.solve(block, new MiningEngine.StopCondition() {
+            @Override
+            public boolean shouldStop() {
+                return true;
+            }
+        }));
+        assertEquals(nonce, block.getNonce());
+    }
+}